@@ -26,7 +26,13 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -39,13 +45,6 @@ import org.granite.messaging.engine.EngineResponseHandler;
 import org.granite.messaging.engine.HttpClientEngine;
 import org.granite.rpc.AsyncResponder;
 import org.granite.rpc.AsyncToken;
-<<<<<<< HEAD
-=======
-<<<<<<< HEAD
-import org.granite.rpc.events.AbstractEvent;
-=======
->>>>>>> 6e5c8c0... Tide implementation for Java client
->>>>>>> master
 import org.granite.rpc.events.FaultEvent;
 import org.granite.rpc.events.MessageEvent;
 import org.granite.rpc.events.ResultEvent;
@@ -57,6 +56,7 @@ import flex.messaging.messages.AsyncMessage;
 import flex.messaging.messages.CommandMessage;
 import flex.messaging.messages.ErrorMessage;
 import flex.messaging.messages.Message;
+import flex.messaging.messages.RemotingMessage;
 
 /**
  * @author Franck WOLFF
@@ -64,25 +64,50 @@ import flex.messaging.messages.Message;
 public class Channel {
 	
 	private static final Logger log = Logger.getLogger(Channel.class);
+	
+	/**
+	 * Header holding the client time (in milliseconds) after which the caller will not wait for the response anymore.
+	 */
+	public static final String REQUEST_DEADLINE_HEADER = "GDSRequestDeadline";
 
 	private final HttpClientEngine engine;
 	private final String id;
 	private final URI uri;
 	
-	private String credentials = null;
-	private boolean authenticated = false;
-	private boolean authenticating = false;
+	private volatile String credentials = null;
+	private volatile boolean authenticated = false;
+	private volatile boolean authenticating = false;
 
-	private int index = 1;
+	private final AtomicInteger index = new AtomicInteger(1);
 	
+	// Only guards the engine start and the connect (ping) handshake, messages are sent without holding it
 	private Lock connectionLock = new ReentrantLock();
 	private boolean connecting = false;
-	private URI connectedUri = null;
+	private volatile URI connectedUri = null;
+	private volatile boolean optimisticConnect = false;
+	private volatile boolean optimisticConnectRejected = false;
+	private final AtomicBoolean pingPending = new AtomicBoolean(false);
 	
 	private Lock respondersLock = new ReentrantLock();
 	private List<AsyncToken> pendingTokens = new ArrayList<AsyncToken>();
+	// Set while the batch carrying the optimistic ping waits for its response, other tokens are kept pending meanwhile
+	private boolean optimisticBatchActive = false;
+	
+	// Batching: pending tokens are flushed after batchDelayMillis or when maxBatchMessages are queued
+	private volatile long batchDelayMillis = 0L;
+	private volatile int maxBatchMessages = 0;
+	private Timer timer = null;
+	private TimerTask flushTask = null;
+	private long batchStartTime = 0L;
+	
+	private final AtomicLong flushCount = new AtomicLong();
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong batchedMessageCount = new AtomicLong();
+	private final AtomicInteger maxBatchSize = new AtomicInteger();
+	private final AtomicLong batchWaitMillis = new AtomicLong();
 	
 	private final ConcurrentHashMap<String, AsyncToken> activeTokens = new ConcurrentHashMap<String, AsyncToken>();
+	private final ConcurrentHashMap<String, Batch> activeBatches = new ConcurrentHashMap<String, Batch>();
 	
 	public Channel(HttpClientEngine engine, String id, URI uri) {
 		if (engine == null)
@@ -114,6 +139,100 @@ public class Channel {
 		return authenticated;
 	}
 	
+	public boolean isOptimisticConnect() {
+		return optimisticConnect;
+	}
+	
+	/**
+	 * When enabled, the first batch is sent without waiting for the ping handshake, the ping message
+	 * being sent as the first message of this batch. Other calls are held until the ping is answered.
+	 * If the server rejects the ping, the channel falls back to the blocking handshake and the calls
+	 * rejected with it are sent again.
+	 */
+	public void setOptimisticConnect(boolean optimisticConnect) {
+		this.optimisticConnect = optimisticConnect;
+	}
+	
+	/**
+	 * Starts the engine and the ping handshake right away, so that it is done before the first call.
+	 */
+	public void connect() {
+		connectionLock.lock();
+		try {
+			if (!engine.isStarted())
+				engine.start();
+			
+			if (connectedUri == null)
+				connect(uri);
+		}
+		finally {
+			connectionLock.unlock();
+		}
+	}
+	
+	public long getBatchDelayMillis() {
+		return batchDelayMillis;
+	}
+	
+	/**
+	 * Delay during which calls are accumulated before being sent in a single request.
+	 * 0 (default) sends each call immediately.
+	 */
+	public void setBatchDelayMillis(long batchDelayMillis) {
+		if (batchDelayMillis < 0L)
+			throw new IllegalArgumentException("Batch delay cannot be negative");
+		this.batchDelayMillis = batchDelayMillis;
+	}
+	
+	public int getMaxBatchMessages() {
+		return maxBatchMessages;
+	}
+	
+	/**
+	 * Maximum number of messages sent in a single request. Pending calls are flushed as soon as
+	 * this count is reached, larger batches are split in several concurrent requests.
+	 * 0 (default) means no limit.
+	 */
+	public void setMaxBatchMessages(int maxBatchMessages) {
+		if (maxBatchMessages < 0)
+			throw new IllegalArgumentException("Max batch messages cannot be negative");
+		this.maxBatchMessages = maxBatchMessages;
+	}
+	
+	public long getFlushCount() {
+		return flushCount.get();
+	}
+	
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+	
+	public long getBatchedMessageCount() {
+		return batchedMessageCount.get();
+	}
+	
+	public int getMaxBatchSize() {
+		return maxBatchSize.get();
+	}
+	
+	public double getAverageBatchSize() {
+		long count = batchCount.get();
+		return count > 0L ? (double)batchedMessageCount.get() / count : 0.0;
+	}
+	
+	public double getAverageBatchWaitMillis() {
+		long count = flushCount.get();
+		return count > 0L ? (double)batchWaitMillis.get() / count : 0.0;
+	}
+	
+	public void resetBatchStatistics() {
+		flushCount.set(0L);
+		batchCount.set(0L);
+		batchedMessageCount.set(0L);
+		maxBatchSize.set(0);
+		batchWaitMillis.set(0L);
+	}
+	
 	public void logout(AsyncResponder responder) {
 		this.credentials = null;
 		this.authenticated = false;
@@ -129,131 +248,377 @@ public class Channel {
 		send(token);
 	}
 	
-	public void send(AsyncToken token) {
+	public void send(final AsyncToken token) {
+		TimerTask timeoutTask = null;
+		if (token.getTimeout() > 0L) {
+			Message message = token.getMessage();
+			if (message.getHeaders() == null)
+				message.setHeaders(new HashMap<String, Object>());
+			message.setHeader(REQUEST_DEADLINE_HEADER, System.currentTimeMillis() + token.getTimeout());
+			timeoutTask = new TimerTask() {
+				@Override
+				public void run() {
+					token.timeout();
+				}
+			};
+			getTimer().schedule(timeoutTask, token.getTimeout());
+		}
+		token.addResponder(new CallMonitor(token, timeoutTask));
+		
+		long delay = batchDelayMillis;
+		int maxMessages = maxBatchMessages;
+		
 		respondersLock.lock();
 		try {
+			if (pendingTokens.size() == 0)
+				batchStartTime = System.currentTimeMillis();
 			pendingTokens.add(token);
+			
+			if (delay > 0L && (maxMessages <= 0 || pendingTokens.size() < maxMessages)) {
+				if (flushTask == null) {
+					flushTask = new TimerTask() {
+						@Override
+						public void run() {
+							respondersLock.lock();
+							try {
+								if (flushTask == this)
+									flushTask = null;
+							}
+							finally {
+								respondersLock.unlock();
+							}
+							internalSend();
+						}
+					};
+					getTimer().schedule(flushTask, delay);
+				}
+				return;
+			}
 		}
 		finally {
 			respondersLock.unlock();
+			fireTokenCountsChanged();
 		}
 		
 		internalSend();
 	}
 	
+	private void fireTokenCountsChanged() {
+		int pending = 0;
+		respondersLock.lock();
+		try {
+			pending = pendingTokens.size();
+		}
+		finally {
+			respondersLock.unlock();
+		}
+		engine.getMetricsListener().tokenCountsChanged(pending, activeTokens.size());
+	}
+	
+	private synchronized Timer getTimer() {
+		if (timer == null)
+			timer = new Timer("Channel timer", true);
+		return timer;
+	}
+	
+	/**
+	 * Cancels the batch flush and call timeout timer, calls still waiting for a flush are faulted.
+	 */
+	public void stop() {
+		respondersLock.lock();
+		try {
+			if (flushTask != null) {
+				flushTask.cancel();
+				flushTask = null;
+			}
+		}
+		finally {
+			respondersLock.unlock();
+		}
+		
+		synchronized (this) {
+			if (timer != null) {
+				timer.cancel();
+				timer = null;
+			}
+		}
+		
+		respondersLock.lock();
+		try {
+			optimisticBatchActive = false;
+		}
+		finally {
+			respondersLock.unlock();
+		}
+		
+		callPendingTokens("Channel.Stopped", null);
+		fireTokenCountsChanged();
+	}
+	
 	protected void internalSend() {
-
+		try {
+			if (!ensureConnected())
+				return;
+		}
+		catch (Exception e) {
+			callPendingTokens("Channel.Failed", e);
+			engine.getStatusHandler().handleException(new EngineException("Channel failed", e));
+			return;
+		}
+		
+		List<AsyncToken> tokens = null;
+		AsyncToken pingToken = null;
+		int maxMessages = maxBatchMessages;
+		respondersLock.lock();
+		try {
+			// Nothing more is sent before the server has accepted the optimistic ping
+			if (pendingTokens.size() == 0 || optimisticBatchActive)
+				return;
+			
+			tokens = pendingTokens;
+			pendingTokens = new ArrayList<AsyncToken>();
+			
+			if (flushTask != null) {
+				flushTask.cancel();
+				flushTask = null;
+			}
+			
+			if (!authenticated && !authenticating && credentials != null) {
+				authenticating = true;
+				tokens.add(0, createLoginToken());
+			}
+			
+			if (pingPending.compareAndSet(true, false)) {
+				pingToken = createPingToken();
+				tokens.add(0, pingToken);
+				optimisticBatchActive = true;
+				
+				// Only the first chunk goes with the ping, the next ones are sent once it has been answered
+				if (maxMessages > 0 && tokens.size() > maxMessages) {
+					pendingTokens.addAll(tokens.subList(maxMessages, tokens.size()));
+					tokens = new ArrayList<AsyncToken>(tokens.subList(0, maxMessages));
+				}
+			}
+			
+			flushCount.incrementAndGet();
+			batchWaitMillis.addAndGet(System.currentTimeMillis() - batchStartTime);
+		}
+		finally {
+			respondersLock.unlock();
+		}
+		
+		// Split oversized batches in several requests sent concurrently
+		int chunkSize = (maxMessages <= 0 || tokens.size() <= maxMessages) ? tokens.size() : maxMessages;
+		for (int i = 0; i < tokens.size(); i += chunkSize) {
+			int end = Math.min(i + chunkSize, tokens.size());
+			try {
+				sendBatch(chunkSize == tokens.size() ? tokens : new ArrayList<AsyncToken>(tokens.subList(i, end)), pingToken);
+			}
+			catch (Exception e) {
+				if (pingToken != null)
+					optimisticBatchDone(null);
+				// The failed chunk has been faulted by sendBatch, the following chunks will never be sent.
+				// Tokens queued meanwhile by other threads are left to the next flush.
+				callFaultTokens(tokens.subList(end, tokens.size()), "Channel.Failed", e);
+				engine.getStatusHandler().handleException(new EngineException("Channel failed", e));
+				break;
+			}
+		}
+		fireTokenCountsChanged();
+	}
+	
+	/**
+	 * Start the engine and the connect handshake if needed.
+	 * 
+	 * @return true if the channel is connected and pending tokens can be sent immediately
+	 */
+	private boolean ensureConnected() {
+		if (connectedUri != null && engine.isStarted())
+			return true;
+		
 		connectionLock.lock();
 		try {
 			if (!engine.isStarted())
 				engine.start();
 			
-			if (connectedUri == null)
+			if (connectedUri == null) {
+				if (optimisticConnect && !optimisticConnectRejected && !connecting) {
+					// Piggy-back the ping on the first batch. The ping must be pending before connectedUri
+					// is published, so that no thread can take the fast path and send a batch without it
+					pingPending.set(true);
+					connectedUri = uri;
+					return true;
+				}
+				
 				connect(uri);
-			else {
-				List<AsyncToken> tokens = null;
-				respondersLock.lock();
+				return false;
+			}
+			return true;
+		}
+		finally {
+			connectionLock.unlock();
+		}
+	}
+	
+	private AsyncToken createLoginToken() {
+		CommandMessage message = new CommandMessage();
+		message.setOperation(CommandMessage.LOGIN_OPERATION);
+		message.setMessageId(UUIDUtil.randomUUID());
+		message.setBody(credentials);
+		
+		AsyncToken token = new AsyncToken(message);
+		token.addResponder(new AsyncResponder() {
+
+			@Override
+			public void result(ResultEvent event) {
+				authenticated = true;
+				authenticating = false;
+			}
+
+			@Override
+			public void fault(FaultEvent event) {
+				authenticated = false;
+				authenticating = false;
+			}
+		});
+		token.addResponder(new CallMonitor(token, null));
+		return token;
+	}
+	
+	private AsyncToken createPingToken() {
+		AsyncToken token = new AsyncToken(createPingMessage());
+		token.addResponder(new AsyncResponder() {
+
+			@Override
+			public void result(ResultEvent event) {
+			}
+
+			@Override
+			public void fault(FaultEvent event) {
+				log.warn("Optimistic connect to %s rejected (%s), falling back to ping handshake", uri, event.getFaultCode());
+				
+				connectionLock.lock();
 				try {
-					if (pendingTokens.size() == 0)
-						return;
-					
-					tokens = pendingTokens;
-					pendingTokens = new ArrayList<AsyncToken>();
+					optimisticConnectRejected = true;
+					connectedUri = null;
 				}
 				finally {
-					respondersLock.unlock();
+					connectionLock.unlock();
 				}
+			}
+		});
+		token.addResponder(new CallMonitor(token, null));
+		return token;
+	}
+	
+	/**
+	 * The response to the optimistic ping has been received: tokens rejected along with the ping are queued again
+	 * before the tokens held meanwhile, and all are sent after the fallback ping handshake.
+	 */
+	private void optimisticBatchDone(List<AsyncToken> rejectedTokens) {
+		respondersLock.lock();
+		try {
+			optimisticBatchActive = false;
+			if (rejectedTokens != null)
+				pendingTokens.addAll(0, rejectedTokens);
+		}
+		finally {
+			respondersLock.unlock();
+		}
+		internalSend();
+	}
+	
+	private static boolean isFault(AMF0Message message, AsyncToken token) {
+		String id = token.getMessage().getMessageId();
+		for (int i = 0; i < message.getBodyCount(); i++) {
+			Object response = message.getBody(i).getValue();
+			if (response instanceof ErrorMessage && id.equals(((ErrorMessage)response).getCorrelationId()))
+				return true;
+		}
+		return false;
+	}
+	
+	private void sendBatch(List<AsyncToken> tokens, final AsyncToken pingToken) throws Exception {
+		batchCount.incrementAndGet();
+		batchedMessageCount.addAndGet(tokens.size());
+		int max = maxBatchSize.get();
+		while (tokens.size() > max && !maxBatchSize.compareAndSet(max, tokens.size()))
+			max = maxBatchSize.get();
+		engine.getMetricsListener().batchSent(tokens.size());
+		
+		final Message[] messages = new Message[tokens.size()];
+		final Batch batch = new Batch(tokens.size());
+		try {
+			for (int i = 0; i < messages.length; i++) {
+				AsyncToken token = tokens.get(i);
 				
-				if (!authenticated && !authenticating && credentials != null) {
-					authenticating = true;
-					
-					CommandMessage message = new CommandMessage();
-					message.setOperation(CommandMessage.LOGIN_OPERATION);
-					message.setMessageId(UUIDUtil.randomUUID());
-					message.setBody(credentials);
-					
-					AsyncToken token = new AsyncToken(message);
-					token.addResponder(new AsyncResponder() {
-
-						@Override
-						public void result(ResultEvent event) {
-							authenticated = true;
-							authenticating = false;
-						}
-
-						@Override
-						public void fault(FaultEvent event) {
-							authenticated = false;
-							authenticating = false;
-						}
-					});
-					tokens.add(0, token);
+				Message message = token.getMessage();
+				
+				if (id != null) {
+					if (message.getHeaders() == null)
+						message.setHeaders(new HashMap<String, Object>());
+					message.setHeader(Message.ENDPOINT_HEADER, id);
 				}
 				
-				final Message[] messages = new Message[tokens.size()];
-				try {
-					for (int i = 0; i < messages.length; i++) {
-						AsyncToken token = tokens.get(i);
-						
-						Message message = token.getMessage();
-						
-						if (id != null) {
-							if (message.getHeaders() == null)
-								message.setHeaders(new HashMap<String, Object>());
-							message.setHeader(Message.ENDPOINT_HEADER, id);
-						}
-						
-						messages[i] = message;
-						activeTokens.putIfAbsent(message.getMessageId(), token);
-					}
+				messages[i] = message;
+				activeTokens.putIfAbsent(message.getMessageId(), token);
+				activeBatches.putIfAbsent(message.getMessageId(), batch);
+			}
 
-					AMF0Message amf0Message = createAMF0Message(messages);
-					engine.send(connectedUri, amf0Message, new EngineResponseHandler() {
-						
-						@Override
-						public void completed(AMF0Message message) {
+			AMF0Message amf0Message = createAMF0Message(messages);
+			Future<?> request = engine.send(connectedUri, amf0Message, new EngineResponseHandler() {
+				
+				@Override
+				public void completed(AMF0Message message) {
+					// Calls rejected with the optimistic ping are retried after the ping handshake instead of being faulted
+					List<AsyncToken> rejectedTokens = (pingToken != null && isFault(message, pingToken)) ? new ArrayList<AsyncToken>() : null;
 
-							final int count = message.getBodyCount();
-							for (int i = 0; i < count; i++) {
-								AMF0Body body = message.getBody(i);
-								AsyncMessage response = (AsyncMessage)body.getValue();
-								String id = response.getCorrelationId();
-								
-								AsyncToken token = activeTokens.remove(id);
-								if (token != null) {
-									MessageEvent event = null;
-									if (response instanceof ErrorMessage)
-										event = new FaultEvent(token, (ErrorMessage)response);
-									else
-										event = new ResultEvent(token, response);
-									token.callResponders(event);
+					final int count = message.getBodyCount();
+					for (int i = 0; i < count; i++) {
+						AMF0Body body = message.getBody(i);
+						AsyncMessage response = (AsyncMessage)body.getValue();
+						String id = response.getCorrelationId();
+						
+						AsyncToken token = activeTokens.remove(id);
+						if (token != null) {
+							MessageEvent event = null;
+							if (response instanceof ErrorMessage) {
+								if (rejectedTokens != null && token != pingToken) {
+									activeBatches.remove(id);
+									rejectedTokens.add(token);
+									continue;
 								}
+								event = new FaultEvent(token, (ErrorMessage)response);
 							}
+							else
+								event = new ResultEvent(token, response);
+							token.callResponders(event);
 						}
-						
-						@Override
-						public void failed(Exception e) {
-							callFaultActiveTokens(messages, "Connection.Failed", e);
-						}
-						
-						@Override
-						public void cancelled() {
-							callFaultActiveTokens(messages, "Connection.Cancelled", null);
-						}
-					});
+					}
+					
+					if (pingToken != null)
+						optimisticBatchDone(rejectedTokens);
 				}
-				catch (Exception e) {
-					callFaultActiveTokens(messages, "Client.Error", e);
-					throw e;
+				
+				@Override
+				public void failed(Exception e) {
+					callFaultActiveTokens(messages, "Connection.Failed", e);
+					if (pingToken != null)
+						optimisticBatchDone(null);
 				}
-			}
+				
+				@Override
+				public void cancelled() {
+					callFaultActiveTokens(messages, "Connection.Cancelled", null);
+					if (pingToken != null)
+						optimisticBatchDone(null);
+				}
+			});
+			batch.setRequest(request);
 		}
 		catch (Exception e) {
-			callPendingTokens("Channel.Failed", e);
-			engine.getStatusHandler().handleException(new EngineException("Channel failed", e));
-		}
-		finally {
-			connectionLock.unlock();
+			callFaultActiveTokens(messages, "Client.Error", e);
+			throw e;
 		}
 	}
 	
@@ -272,56 +637,197 @@ public class Channel {
 		}
 	}
 	
+	/**
+	 * Must be called while holding the connection lock.
+	 */
 	protected void connect(final URI uri) {		
 		if (connecting)
 			return;
 		
 		connecting = true;
 
-		final CommandMessage message = new CommandMessage();
-		message.setOperation(CommandMessage.CLIENT_PING_OPERATION);
-		message.setHeader("DSMessagingVersion", "1");
-		message.setHeader("DSId", "nil");
-		message.setMessageId(UUIDUtil.randomUUID());
-		message.setBody(new HashMap<Object, Object>(0));
-		
-		AMF0Message amf0Message = createAMF0Message(message);
+		AMF0Message amf0Message = createAMF0Message(createPingMessage());
         
         engine.send(uri, amf0Message, new EngineResponseHandler() {
 			
 			@Override
 			public void completed(AMF0Message message) {
-				if (message.getBodyCount() == 1  && message.getBody(0).getValue() instanceof AcknowledgeMessage) {
-					connectedUri = uri;
+				boolean acknowledged = (message.getBodyCount() == 1  && message.getBody(0).getValue() instanceof AcknowledgeMessage);
+				connectionDone(acknowledged ? uri : null);
+				if (acknowledged)
 					internalSend();
-				}
-				connecting = false;
 			}
 			
 			@Override
 			public void failed(Exception e) {
+				connectionDone(null);
 				callPendingTokens("Connection.Failed", e);
-				connecting = false;
 			}
 			
 			@Override
 			public void cancelled() {
+				connectionDone(null);
 				callPendingTokens("Connection.Cancelled", null);
-				connecting = false;
 			}
 		});
 	}
 	
+	/**
+	 * Name of the operation reported to the metrics listener: the remote method name, or the command name (ping, login...).
+	 */
+	protected static String getOperationName(Message message) {
+		if (message instanceof RemotingMessage)
+			return ((RemotingMessage)message).getOperation();
+		if (!(message instanceof CommandMessage))
+			return message.getClass().getSimpleName();
+		
+		switch (((CommandMessage)message).getOperation()) {
+		case CommandMessage.CLIENT_PING_OPERATION:
+			return "ping";
+		case CommandMessage.LOGIN_OPERATION:
+			return "login";
+		case CommandMessage.LOGOUT_OPERATION:
+			return "logout";
+		case CommandMessage.SUBSCRIBE_OPERATION:
+			return "subscribe";
+		case CommandMessage.UNSUBSCRIBE_OPERATION:
+			return "unsubscribe";
+		case CommandMessage.CONNECT_OPERATION:
+			return "connect";
+		case CommandMessage.DISCONNECT_OPERATION:
+			return "disconnect";
+		default:
+			return "command" + ((CommandMessage)message).getOperation();
+		}
+	}
+	
+	private CommandMessage createPingMessage() {
+		CommandMessage message = new CommandMessage();
+		message.setOperation(CommandMessage.CLIENT_PING_OPERATION);
+		message.setHeader("DSMessagingVersion", "1");
+		message.setHeader("DSId", "nil");
+		message.setMessageId(UUIDUtil.randomUUID());
+		message.setBody(new HashMap<Object, Object>(0));
+		return message;
+	}
+	
+	private void connectionDone(URI connectedUri) {
+		connectionLock.lock();
+		try {
+			if (connectedUri != null)
+				this.connectedUri = connectedUri;
+			connecting = false;
+		}
+		finally {
+			connectionLock.unlock();
+		}
+	}
+	
 	private void callPendingTokens(String faultCode, Exception e) {
-		for (AsyncToken token : pendingTokens) {
+		List<AsyncToken> tokens = null;
+		respondersLock.lock();
+		try {
+			tokens = pendingTokens;
+			pendingTokens = new ArrayList<AsyncToken>();
+		}
+		finally {
+			respondersLock.unlock();
+		}
+		
+		callFaultTokens(tokens, faultCode, e);
+	}
+	
+	private void callFaultTokens(List<AsyncToken> tokens, String faultCode, Exception e) {
+		for (AsyncToken token : tokens) {
 			ErrorMessage errorMessage = new ErrorMessage(token.getMessage(), e);
 			errorMessage.setFaultCode(faultCode);
 			errorMessage.setFaultString(e != null ? e.getMessage() : "");
 			FaultEvent event = new FaultEvent(token, errorMessage);
 			token.callResponders(event);
 		}
+	}
+	
+	/**
+	 * Cleans up the channel state of a call when its token is done, and aborts the underlying request
+	 * when all calls of a batch have been cancelled or have timed out.
+	 */
+	private class CallMonitor implements AsyncResponder {
+		
+		private final AsyncToken token;
+		private final TimerTask timeoutTask;
+		private final long startTime = System.currentTimeMillis();
+		
+		public CallMonitor(AsyncToken token, TimerTask timeoutTask) {
+			this.token = token;
+			this.timeoutTask = timeoutTask;
+		}
+
+		@Override
+		public void result(ResultEvent event) {
+			done(false, false);
+		}
+
+		@Override
+		public void fault(FaultEvent event) {
+			String faultCode = event.getFaultCode();
+			done(true, AsyncToken.CANCELLED_FAULT_CODE.equals(faultCode) || AsyncToken.TIMEOUT_FAULT_CODE.equals(faultCode));
+		}
+		
+		private void done(boolean fault, boolean aborted) {
+			if (timeoutTask != null)
+				timeoutTask.cancel();
+			
+			Message message = token.getMessage();
+			engine.getMetricsListener().callCompleted(message.getDestination(), getOperationName(message), System.currentTimeMillis() - startTime, fault);
+			
+			String messageId = message.getMessageId();
+			Batch batch = activeBatches.remove(messageId);
+			if (aborted) {
+				activeTokens.remove(messageId);
+				
+				respondersLock.lock();
+				try {
+					pendingTokens.remove(token);
+				}
+				finally {
+					respondersLock.unlock();
+				}
+				
+				if (batch != null)
+					batch.callAborted();
+			}
+			
+			fireTokenCountsChanged();
+		}
+	}
+	
+	private static class Batch {
+		
+		private final int size;
+		private int aborted = 0;
+		private Future<?> request = null;
 		
-		pendingTokens.clear();
+		public Batch(int size) {
+			this.size = size;
+		}
+		
+		public synchronized void setRequest(Future<?> request) {
+			this.request = request;
+			if (aborted == size)
+				cancelRequest();
+		}
+		
+		public synchronized void callAborted() {
+			if (++aborted == size)
+				cancelRequest();
+		}
+		
+		private void cancelRequest() {
+			if (request != null) {
+				log.debug("All calls of batch aborted, cancelling request");
+				request.cancel(true);
+			}
+		}
 	}
 	
 	protected AMF0Message createAMF0Message(Message message) {
@@ -332,7 +838,7 @@ public class Channel {
 		AMF0Message amf0Message = new AMF0Message();
 		for (Message message : messages) {
 			AMF3Object data = new AMF3Object(message);
-	        AMF0Body body = new AMF0Body("", "/" + (index++), new Object[]{data}, AMF0Body.DATA_TYPE_AMF3_OBJECT);
+	        AMF0Body body = new AMF0Body("", "/" + index.getAndIncrement(), new Object[]{data}, AMF0Body.DATA_TYPE_AMF3_OBJECT);
 	        amf0Message.addBody(body);
 		}
 		return amf0Message;
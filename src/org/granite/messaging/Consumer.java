@@ -1,6 +1,15 @@
 package org.granite.messaging;
 
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.granite.rpc.AsyncResponder;
 import org.granite.util.UUIDUtil;
@@ -19,6 +28,21 @@ public class Consumer implements MessageAgent, MessageListener {
 	private String selector;
 	private MessageListener messageListener;
 	private SubscriptionListener subscriptionListener;
+	private Executor executor = null;
+	
+	private String conflationHeader = null;
+	private String conflationBodyKey = null;
+	private volatile long conflationIntervalMillis = 0L;
+	private int maxBufferedMessages = 10000;
+	private volatile boolean paused = false;
+	private final LinkedHashMap<Object, Message> bufferedMessages = new LinkedHashMap<Object, Message>();
+	private TimerTask flushTask = null;
+	private boolean flushing = false;
+	
+	private final AtomicLong receivedCount = new AtomicLong();
+	private final AtomicLong deliveredCount = new AtomicLong();
+	private final AtomicLong conflatedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
 	
     
     public Consumer(String destination) {
@@ -45,7 +69,95 @@ public class Consumer implements MessageAgent, MessageListener {
 	public void setSubscriptionListener(SubscriptionListener subscriptionListener) {
 		this.subscriptionListener = subscriptionListener;
 	}
+	
+	/**
+	 * Executor used to call the message listener, so that a slow listener does not stall the channel.
+	 * By default (null), the listener is called on the channel I/O thread.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
 
+	/**
+	 * Enables conflation: received messages are buffered and delivered every intervalMillis (the UI pulse),
+	 * only the latest message is kept for each value of the header keyHeader. 0 disables conflation.
+	 * Without executor, conflated messages are delivered on the channel conflation timer thread.
+	 */
+	public void setConflation(String keyHeader, long intervalMillis) {
+		synchronized (bufferedMessages) {
+			this.conflationHeader = keyHeader;
+			this.conflationBodyKey = null;
+			this.conflationIntervalMillis = intervalMillis;
+		}
+	}
+	
+	/**
+	 * Same as setConflation, with messages keyed by the value of bodyKey in their (map) body.
+	 */
+	public void setConflationByBodyKey(String bodyKey, long intervalMillis) {
+		synchronized (bufferedMessages) {
+			this.conflationHeader = null;
+			this.conflationBodyKey = bodyKey;
+			this.conflationIntervalMillis = intervalMillis;
+		}
+	}
+	
+	/**
+	 * Maximum number of messages buffered while paused or between conflation pulses (default 10000),
+	 * the oldest messages are dropped above this limit. 0 means no limit.
+	 */
+	public void setMaxBufferedMessages(int maxBufferedMessages) {
+		synchronized (bufferedMessages) {
+			this.maxBufferedMessages = maxBufferedMessages;
+		}
+	}
+	
+	/**
+	 * Stops delivering messages to the listener, they are buffered (and conflated) until resume is called.
+	 */
+	public void pause() {
+		synchronized (bufferedMessages) {
+			paused = true;
+			if (flushTask != null) {
+				flushTask.cancel();
+				flushTask = null;
+			}
+		}
+	}
+	
+	public void resume() {
+		synchronized (bufferedMessages) {
+			paused = false;
+		}
+		flush();
+	}
+	
+	public boolean isPaused() {
+		return paused;
+	}
+	
+	public long getReceivedMessageCount() {
+		return receivedCount.get();
+	}
+	
+	public long getDeliveredMessageCount() {
+		return deliveredCount.get();
+	}
+	
+	/**
+	 * Number of messages replaced by a more recent message with the same conflation key.
+	 */
+	public long getConflatedMessageCount() {
+		return conflatedCount.get();
+	}
+	
+	/**
+	 * Number of messages dropped because the buffer was full.
+	 */
+	public long getDroppedMessageCount() {
+		return droppedCount.get();
+	}
+	
 	public WebSocketChannel getChannel() {
 		return channel;
 	}
@@ -86,6 +198,7 @@ public class Consumer implements MessageAgent, MessageListener {
 	
 	private CommandMessage subscribeMessage = null;
 	private CommandMessage unsubscribeMessage = null;
+	private String subscriptionId = null;
 	private boolean subscribed = false;
 	
 	public void subscribe() {
@@ -100,16 +213,28 @@ public class Consumer implements MessageAgent, MessageListener {
 		cmdMessage.setHeader(CommandMessage.SUBTOPIC_HEADER, topic);
 		cmdMessage.setHeader(CommandMessage.SELECTOR_HEADER, selector);
 		cmdMessage.setHeader(AsyncMessage.DESTINATION_CLIENT_ID_HEADER, subscriptionId);
+		this.subscriptionId = subscriptionId;
 		subscribeMessage = cmdMessage;
+		channel.routeCorrelation(cmdMessage.getMessageId(), this);
+		channel.routeSubscription(this, subscriptionId);
 		channel.send(cmdMessage);
 	}
 	
+	/**
+	 * Called by the channel after a reconnection, the server may have lost the subscription.
+	 */
+	void resubscribe() {
+		if (subscribed)
+			subscribe(subscriptionId);
+	}
+	
 	public void unsubscribe() {
 		CommandMessage cmdMessage = new CommandMessage();
 		cmdMessage.setOperation(CommandMessage.UNSUBSCRIBE_OPERATION);
 		cmdMessage.setDestination(destination);
 		cmdMessage.setMessageId(UUIDUtil.randomUUID());
 		unsubscribeMessage = cmdMessage;
+		channel.routeCorrelation(cmdMessage.getMessageId(), this);
 		channel.send(cmdMessage);
 	}
 	
@@ -123,34 +248,162 @@ public class Consumer implements MessageAgent, MessageListener {
 
 	@Override
 	public void onMessage(Message message) {
-		if (message instanceof AcknowledgeMessage) {
+		// ErrorMessage extends AcknowledgeMessage, check it first
+		if (message instanceof ErrorMessage) {
+			ErrorMessage errorMessage = (ErrorMessage)message;
+			if (subscribeMessage != null && errorMessage.getCorrelationId().equals(subscribeMessage.getMessageId())) {
+				subscribed = false;
+				channel.unrouteSubscription(this);
+				if (subscriptionListener != null)
+					subscriptionListener.onSubscribeFault(errorMessage.getFaultCode(), errorMessage.getFaultString(), errorMessage.getFaultDetail(), errorMessage);
+			}
+			else if (unsubscribeMessage != null && errorMessage.getCorrelationId().equals(unsubscribeMessage.getMessageId())) {
+				subscribed = false;
+				if (subscriptionListener != null)
+					subscriptionListener.onUnsubscribeFault(errorMessage.getFaultCode(), errorMessage.getFaultString(), errorMessage.getFaultDetail(), errorMessage);
+			}
+		}
+		else if (message instanceof AcknowledgeMessage) {
 			AcknowledgeMessage ackMessage = (AcknowledgeMessage)message;
 			if (subscribeMessage != null && ackMessage.getCorrelationId().equals(subscribeMessage.getMessageId())) {
 				subscribed = true;
+				String ackSubscriptionId = (String)ackMessage.getHeader(AsyncMessage.DESTINATION_CLIENT_ID_HEADER);
+				if (ackSubscriptionId != null && !ackSubscriptionId.equals(subscriptionId)) {
+					subscriptionId = ackSubscriptionId;
+					channel.routeSubscription(this, subscriptionId);
+				}
 				if (subscriptionListener != null)
 					subscriptionListener.onSubscribeSuccess(ackMessage, subscribeMessage);
 			}
 			else if (unsubscribeMessage != null && ackMessage.getCorrelationId().equals(unsubscribeMessage.getMessageId())) {
 				subscribed = false;
+				channel.unrouteSubscription(this);
 				if (subscriptionListener != null)
 					subscriptionListener.onUnsubscribeSuccess(ackMessage, unsubscribeMessage);
 			}
 		}
-		else if (message instanceof ErrorMessage) {
-			ErrorMessage errorMessage = (ErrorMessage)message;
-			if (unsubscribeMessage != null && errorMessage.getCorrelationId().equals(subscribeMessage.getMessageId())) {
-				subscribed = false;
-				if (subscriptionListener != null)
-					subscriptionListener.onSubscribeFault(errorMessage.getFaultCode(), errorMessage.getFaultString(), errorMessage.getFaultDetail(), errorMessage);
+		else {
+			receivedCount.incrementAndGet();
+			
+			// Messages cannot overtake buffered ones, they are buffered until the buffer has been flushed
+			boolean buffered = false;
+			synchronized (bufferedMessages) {
+				if (paused || conflationIntervalMillis > 0L || flushing || !bufferedMessages.isEmpty()) {
+					buffer(message);
+					buffered = true;
+				}
 			}
-			else if (unsubscribeMessage != null && errorMessage.getCorrelationId().equals(unsubscribeMessage.getMessageId())) {
-				subscribed = false;
-				if (subscriptionListener != null)
-					subscriptionListener.onSubscribeFault(errorMessage.getFaultCode(), errorMessage.getFaultString(), errorMessage.getFaultDetail(), errorMessage);
+			if (!buffered)
+				deliver(Collections.singletonList(message));
+		}
+	}
+	
+	/**
+	 * Must be called while holding the buffer lock.
+	 */
+	private void buffer(Message message) {
+		Object key = getConflationKey(message);
+		if (key == null)
+			key = new Object();
+		else if (bufferedMessages.remove(key) != null)
+			conflatedCount.incrementAndGet();
+		
+		if (maxBufferedMessages > 0 && bufferedMessages.size() >= maxBufferedMessages) {
+			Iterator<Object> i = bufferedMessages.keySet().iterator();
+			i.next();
+			i.remove();
+			droppedCount.incrementAndGet();
+		}
+		bufferedMessages.put(key, message);
+		
+		// A running flush delivers the message with the others
+		if (!paused && !flushing && flushTask == null)
+			scheduleFlush();
+	}
+	
+	private Object getConflationKey(Message message) {
+		if (conflationHeader != null)
+			return message.getHeader(conflationHeader);
+		if (conflationBodyKey != null && message.getBody() instanceof Map<?, ?>)
+			return ((Map<?, ?>)message.getBody()).get(conflationBodyKey);
+		return null;
+	}
+	
+	/**
+	 * Must be called while holding the buffer lock.
+	 */
+	private void scheduleFlush() {
+		flushTask = new TimerTask() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+		channel.getConflationTimer().schedule(flushTask, conflationIntervalMillis);
+	}
+	
+	/**
+	 * Delivers buffered messages until the buffer is empty. Only one thread flushes at a time, so that
+	 * messages are delivered in the order they have been received.
+	 */
+	private void flush() {
+		synchronized (bufferedMessages) {
+			flushTask = null;
+			if (flushing)
+				return;
+			flushing = true;
+		}
+		
+		boolean done = false;
+		try {
+			List<Message> messages = null;
+			while ((messages = takeBufferedMessages()) != null)
+				deliver(messages);
+			done = true;
+		}
+		finally {
+			if (!done) {
+				synchronized (bufferedMessages) {
+					flushing = false;
+				}
 			}
 		}
-		else if (messageListener != null)
-			messageListener.onMessage(message);
+	}
+	
+	/**
+	 * Returns the buffered messages, or null and ends the flush when there is nothing to deliver.
+	 */
+	private List<Message> takeBufferedMessages() {
+		synchronized (bufferedMessages) {
+			if (paused || bufferedMessages.isEmpty()) {
+				flushing = false;
+				return null;
+			}
+			List<Message> messages = new ArrayList<Message>(bufferedMessages.values());
+			bufferedMessages.clear();
+			return messages;
+		}
+	}
+	
+	private void deliver(final List<Message> messages) {
+		final MessageListener listener = messageListener;
+		if (listener == null)
+			return;
+		
+		deliveredCount.addAndGet(messages.size());
+		if (executor == null) {
+			for (Message message : messages)
+				listener.onMessage(message);
+		}
+		else {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (Message message : messages)
+						listener.onMessage(message);
+				}
+			});
+		}
 	}
 
 	public interface SubscriptionListener {
@@ -23,10 +23,17 @@ package org.granite.messaging;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -41,6 +48,7 @@ import org.granite.util.Base64;
 import org.granite.util.UUIDUtil;
 
 import flex.messaging.messages.AcknowledgeMessage;
+import flex.messaging.messages.AsyncMessage;
 import flex.messaging.messages.CommandMessage;
 import flex.messaging.messages.Message;
 
@@ -72,6 +80,21 @@ public class WebSocketChannel implements EngineMessageHandler  {
 	private int maxIdleTime = 300000;
 	private int reconnectMaxAttempts = 5;
 	private int reconnectIntervalMillis = 60000;
+	private long reconnectMaxIntervalMillis = 600000L;
+	private double reconnectBackoffMultiplier = 2.0;
+	private double reconnectJitter = 0.5;
+	private long heartbeatIntervalMillis = 0L;
+	private volatile int maxPendingMessages = 10000;
+	private volatile int maxFrameMessages = 100;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	
+	private final Random random = new Random();
+	private Timer timer = null;
+	private Timer conflationTimer = null;
+	private TimerTask reconnectTask = null;
+	private TimerTask heartbeatTask = null;
+	private volatile long lastMessageTime = 0L;
+	private volatile boolean reconnected = false;
 	
 	
 	public WebSocketChannel(WebSocketEngine engine, String id, URI uri) {
@@ -101,6 +124,38 @@ public class WebSocketChannel implements EngineMessageHandler  {
 		this.maxIdleTime = maxIdleTime;
 	}
 	
+	/**
+	 * Upper bound of the delay between reconnection attempts, the delay starting at the
+	 * reconnect interval advised by the server and growing by the backoff multiplier.
+	 */
+	public void setReconnectMaxIntervalMillis(long reconnectMaxIntervalMillis) {
+		this.reconnectMaxIntervalMillis = reconnectMaxIntervalMillis;
+	}
+	
+	public void setReconnectBackoffMultiplier(double reconnectBackoffMultiplier) {
+		if (reconnectBackoffMultiplier < 1.0)
+			throw new IllegalArgumentException("Backoff multiplier must be >= 1");
+		this.reconnectBackoffMultiplier = reconnectBackoffMultiplier;
+	}
+	
+	/**
+	 * Fraction (0 to 1) of each reconnection delay that is randomized, so that clients
+	 * disconnected at the same time do not reconnect all together.
+	 */
+	public void setReconnectJitter(double reconnectJitter) {
+		if (reconnectJitter < 0.0 || reconnectJitter > 1.0)
+			throw new IllegalArgumentException("Jitter must be between 0 and 1");
+		this.reconnectJitter = reconnectJitter;
+	}
+	
+	/**
+	 * Interval at which a ping is sent on an idle connection. The connection is closed (and reopened)
+	 * when nothing has been received from the server during two intervals. 0 (default) disables the heartbeat.
+	 */
+	public void setHeartbeatIntervalMillis(long heartbeatIntervalMillis) {
+		this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+	}
+	
 	public void setCredentials(String credentials, Charset charset) {
 		if (charset == null)
 			charset = Charset.defaultCharset();
@@ -129,14 +184,117 @@ public class WebSocketChannel implements EngineMessageHandler  {
 	
 	private Connection connection;
 	
-	private List<MessageListener> messageListeners = new ArrayList<MessageListener>();
+	private final List<MessageListener> messageListeners = new CopyOnWriteArrayList<MessageListener>();
+	private final List<Consumer> consumers = new CopyOnWriteArrayList<Consumer>();
+	
+	// Routing tables of incoming messages to consumers
+	private final ConcurrentHashMap<String, Consumer> correlationRoutes = new ConcurrentHashMap<String, Consumer>();
+	private final ConcurrentHashMap<String, Consumer> subscriptionRoutes = new ConcurrentHashMap<String, Consumer>();
+	private final ConcurrentHashMap<String, List<Consumer>> topicRoutes = new ConcurrentHashMap<String, List<Consumer>>();
+	private final ConcurrentHashMap<String, List<Consumer>> destinationRoutes = new ConcurrentHashMap<String, List<Consumer>>();
 	
+	/**
+	 * Consumers only receive the messages routed to them (by correlation id, subscription id or destination/topic),
+	 * other listeners receive all incoming messages.
+	 */
 	public void addMessageListener(MessageListener messageListener) {
-		messageListeners.add(messageListener);
+		if (messageListener instanceof Consumer)
+			consumers.add((Consumer)messageListener);
+		else
+			messageListeners.add(messageListener);
 	}
 
 	public void removeMessageListener(MessageListener messageListener) {
-		messageListeners.remove(messageListener);
+		if (messageListener instanceof Consumer) {
+			consumers.remove(messageListener);
+			unrouteSubscription((Consumer)messageListener);
+			correlationRoutes.values().remove(messageListener);
+		}
+		else
+			messageListeners.remove(messageListener);
+	}
+	
+	void routeCorrelation(String messageId, Consumer consumer) {
+		correlationRoutes.put(messageId, consumer);
+	}
+	
+	void routeSubscription(Consumer consumer, String subscriptionId) {
+		if (subscriptionId != null)
+			subscriptionRoutes.put(subscriptionId, consumer);
+		
+		// Consumers without topic are routed by destination only
+		addRoute(topicRoutes, destinationKey(consumer.getDestination(), consumer.getTopic()), consumer);
+		addRoute(destinationRoutes, consumer.getDestination(), consumer);
+	}
+	
+	void unrouteSubscription(Consumer consumer) {
+		subscriptionRoutes.values().remove(consumer);
+		for (List<Consumer> route : topicRoutes.values())
+			route.remove(consumer);
+		for (List<Consumer> route : destinationRoutes.values())
+			route.remove(consumer);
+	}
+	
+	private static void addRoute(ConcurrentHashMap<String, List<Consumer>> routes, String key, Consumer consumer) {
+		List<Consumer> route = routes.get(key);
+		if (route == null) {
+			route = new CopyOnWriteArrayList<Consumer>();
+			List<Consumer> previous = routes.putIfAbsent(key, route);
+			if (previous != null)
+				route = previous;
+		}
+		if (!route.contains(consumer))
+			route.add(consumer);
+	}
+	
+	private static String destinationKey(String destination, String topic) {
+		return (topic != null ? destination + '/' + topic : destination);
+	}
+	
+	private void dispatch(Message message) {
+		for (MessageListener listener : messageListeners)
+			listener.onMessage(message);
+		
+		if (message instanceof AcknowledgeMessage) {
+			// Acknowledges and errors are only of interest to the consumer that sent the corresponding message
+			String correlationId = ((AcknowledgeMessage)message).getCorrelationId();
+			Consumer consumer = (correlationId != null ? correlationRoutes.remove(correlationId) : null);
+			if (consumer != null)
+				consumer.onMessage(message);
+			return;
+		}
+		
+		String subscriptionId = (String)message.getHeader(AsyncMessage.DESTINATION_CLIENT_ID_HEADER);
+		if (subscriptionId != null) {
+			Consumer consumer = subscriptionRoutes.get(subscriptionId);
+			if (consumer != null) {
+				consumer.onMessage(message);
+				return;
+			}
+		}
+		
+		String destination = message.getDestination();
+		if (destination != null) {
+			// Messages with a topic go to the consumers of this topic, or else to the consumers without topic.
+			// Messages without topic go to all consumers of the destination.
+			String topic = (String)message.getHeader(AsyncMessage.SUBTOPIC_HEADER);
+			List<Consumer> route = null;
+			if (topic != null) {
+				route = topicRoutes.get(destinationKey(destination, topic));
+				if (route == null || route.isEmpty())
+					route = topicRoutes.get(destinationKey(destination, null));
+			}
+			else
+				route = destinationRoutes.get(destination);
+			
+			if (route != null && !route.isEmpty()) {
+				for (Consumer consumer : route)
+					consumer.onMessage(message);
+				return;
+			}
+		}
+		
+		log.warn("No consumer for message %s (destination %s), message dropped", message.getMessageId(), destination);
 	}
 
 	
@@ -154,15 +312,25 @@ public class WebSocketChannel implements EngineMessageHandler  {
 	
 	@Override
 	public void onConnect(Connection connection) {
-		this.connection = connection;
-		this.connecting = false;
-		this.reconnectAttempts = 0;
+		connectionLock.lock();
+		try {
+			this.connection = connection;
+			this.connecting = false;
+			this.lastMessageTime = System.currentTimeMillis();
+			
+			scheduleHeartbeat();
+		}
+		finally {
+			connectionLock.unlock();
+		}
 		
 		// Wait for the initial acknowledge message
 	}
 
 	@Override
 	public void onMessage(Message message) {
+		lastMessageTime = System.currentTimeMillis();
+		
 		if (message instanceof AcknowledgeMessage && "OPEN_CONNECTION".equals(((AcknowledgeMessage)message).getCorrelationId())) {
 			clientId = (String)message.getClientId();
 	        @SuppressWarnings("unchecked")
@@ -179,128 +347,540 @@ public class WebSocketChannel implements EngineMessageHandler  {
 	        }
 			log.info("Connection opened, received clientId %s", clientId);			
 			
-			internalSend();
+			// Only a connection accepted by the server ends the reconnection attempts, not a socket closed right after opening
+			connectionLock.lock();
+			try {
+				this.reconnectAttempts = 0;
+			}
+			finally {
+				connectionLock.unlock();
+			}
+			
+			if (reconnected) {
+				reconnected = false;
+				for (Consumer consumer : consumers)
+					consumer.resubscribe();
+			}
+			
+			setOpenConnection(connection);
 			return;
 		}
 		
-		for (MessageListener listener : messageListeners)
-			listener.onMessage(message);
+		dispatch(message);
 	}
 	
 	private int reconnectAttempts = 0;
 
 	@Override
-	public void onDisconnect(int closeCode, String message) {
-		// Mark the connection as close, the channel should reopen a connection for the next message
-		this.connection = null;
-		this.connecting = false;
-		
-		if (!engine.isStarted())
-			this.connected = false;
-		
-		if (clientId == null) {
-			engine.getStatusHandler().handleException(new EngineException("Channel could not connect code: " + closeCode + " " + message));
-			return;
-		}
-		
-		if (connected) {
-			if (reconnectAttempts >= reconnectMaxAttempts) {
+	public void onDisconnect(final int closeCode, final String message) {
+		connectionLock.lock();
+		try {
+			// Mark the connection as close, the channel should reopen a connection for the next message
+			this.connection = null;
+			setOpenConnection(null);
+			this.connecting = false;
+			cancelHeartbeat();
+			
+			if (!engine.isStarted())
 				this.connected = false;
-				if (engine.isStarted())
-					engine.stop();
-				
-				engine.getStatusHandler().handleException(new EngineException("Channel disconnected"));
+			
+			if (clientId == null) {
+				engine.getStatusHandler().handleException(new EngineException("Channel could not connect code: " + closeCode + " " + message));
 				return;
 			}
 			
-			try {
-				Thread.sleep(reconnectIntervalMillis);
-			}
-			catch (InterruptedException e) {
+			if (connected) {
+				if (reconnectAttempts >= reconnectMaxAttempts) {
+					this.connected = false;
+					if (engine.isStarted())
+						engine.stop();
+					
+					engine.getStatusHandler().handleException(new EngineException("Channel disconnected"));
+					return;
+				}
+				
+				// Do not block the IO thread, schedule the reconnection
+				long delay = nextReconnectDelay();
+				log.info("Connection lost (code %d, msg %s), reconnect channel in %d ms (retry #%d)", closeCode, message, delay, reconnectAttempts + 1);
+				
+				if (reconnectTask != null)
+					reconnectTask.cancel();
+				reconnectTask = new TimerTask() {
+					@Override
+					public void run() {
+						reconnect(this);
+					}
+				};
+				getTimer().schedule(reconnectTask, delay);
 			}
+		}
+		finally {
+			connectionLock.unlock();
+		}
+	}
+	
+	private void reconnect(TimerTask task) {
+		connectionLock.lock();
+		try {
+			if (reconnectTask != task || !connected || connection != null)
+				return;
+			reconnectTask = null;
 			
 			reconnectAttempts++;
+			reconnected = true;
+			engine.getMetricsListener().reconnected();
 			
 			// If the channel should be connected, try to reconnect
-			log.info("Connection lost (code %d, msg %s), reconnect channel (retry #%d)", closeCode, message, reconnectAttempts);
+			if (!engine.isStarted())
+				engine.start();
 			connect();
 		}
+		catch (Exception e) {
+			engine.getStatusHandler().handleException(new EngineException("Channel could not reconnect", e));
+		}
+		finally {
+			connectionLock.unlock();
+		}
 	}
 	
+	private long nextReconnectDelay() {
+		double delay = reconnectIntervalMillis * Math.pow(reconnectBackoffMultiplier, reconnectAttempts);
+		if (reconnectMaxIntervalMillis > 0L)
+			delay = Math.min(delay, Math.max(reconnectMaxIntervalMillis, reconnectIntervalMillis));
+		delay -= delay * reconnectJitter * random.nextDouble();
+		return Math.max(0L, (long)delay);
+	}
 	
-	private Lock messagesLock = new ReentrantLock();
-	private List<Message> pendingMessages = new ArrayList<Message>();
+	/**
+	 * Must be called while holding the connection lock.
+	 */
+	private void scheduleHeartbeat() {
+		cancelHeartbeat();
+		
+		final long interval = heartbeatIntervalMillis;
+		if (interval <= 0L)
+			return;
+		
+		heartbeatTask = new TimerTask() {
+			@Override
+			public void run() {
+				heartbeat(this, interval);
+			}
+		};
+		getTimer().schedule(heartbeatTask, interval, interval);
+	}
+	
+	/**
+	 * Must be called while holding the connection lock.
+	 */
+	private void cancelHeartbeat() {
+		if (heartbeatTask != null) {
+			heartbeatTask.cancel();
+			heartbeatTask = null;
+		}
+	}
+	
+	private void heartbeat(TimerTask task, long interval) {
+		Connection connection = null;
+		connectionLock.lock();
+		try {
+			if (heartbeatTask != task || this.connection == null)
+				return;
+			connection = this.connection;
+		}
+		finally {
+			connectionLock.unlock();
+		}
+		
+		long idle = System.currentTimeMillis() - lastMessageTime;
+		if (idle > 2 * interval) {
+			log.warn("No message received for %d ms, closing connection", idle);
+			try {
+				connection.close();
+			}
+			catch (Exception e) {
+				log.debug(e, "Could not close connection");
+			}
+		}
+		else if (idle >= interval / 2) {
+			// Timer ticks are not aligned with received messages: waiting for a full idle interval could skip
+			// the ping at one tick and close a live connection at the next one
+			CommandMessage pingMessage = new CommandMessage();
+			pingMessage.setOperation(CommandMessage.CLIENT_PING_OPERATION);
+			pingMessage.setMessageId(UUIDUtil.randomUUID());
+			// Never block the timer thread, it also runs reconnections
+			if (!enqueue(pingMessage, false))
+				log.debug("Outbound queue full, heartbeat ping skipped");
+		}
+	}
+	
+	private synchronized Timer getTimer() {
+		if (timer == null)
+			timer = new Timer("WebSocketChannel timer", true);
+		return timer;
+	}
+	
+	/**
+	 * Timer delivering the conflated messages of the channel consumers, kept apart from the reconnection
+	 * and heartbeat timer so that listeners cannot delay them.
+	 */
+	synchronized Timer getConflationTimer() {
+		if (conflationTimer == null)
+			conflationTimer = new Timer("WebSocketChannel conflation timer", true);
+		return conflationTimer;
+	}
+	
+	
+	private final Lock messagesLock = new ReentrantLock();
+	private final Condition messagesAvailable = messagesLock.newCondition();
+	private final Condition messagesNotFull = messagesLock.newCondition();
+	private final ArrayDeque<Message> pendingMessages = new ArrayDeque<Message>();
+	private Connection openConnection = null;
+	private Thread writerThread = null;
+	private boolean stopped = false;
+	private long droppedMessageCount = 0L;
+	private int writeFailures = 0;
+	
+	public int getMaxPendingMessages() {
+		return maxPendingMessages;
+	}
+	
+	/**
+	 * Maximum number of messages waiting to be written, 0 means no limit.
+	 */
+	public void setMaxPendingMessages(int maxPendingMessages) {
+		if (maxPendingMessages < 0)
+			throw new IllegalArgumentException("Max pending messages cannot be negative");
+		this.maxPendingMessages = maxPendingMessages;
+	}
+	
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
 	
+	/**
+	 * What send does when the outbound queue is full, BLOCK (default) waits until the writer has flushed the queue.
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		if (overflowPolicy == null)
+			throw new NullPointerException("Overflow policy cannot be null");
+		this.overflowPolicy = overflowPolicy;
+	}
+	
+	public int getMaxFrameMessages() {
+		return maxFrameMessages;
+	}
+	
+	/**
+	 * Maximum number of queued messages coalesced in a single frame (default 100), the next ones are left in the
+	 * queue for the following frames. 0 means no limit.
+	 */
+	public void setMaxFrameMessages(int maxFrameMessages) {
+		if (maxFrameMessages < 0)
+			throw new IllegalArgumentException("Max frame messages cannot be negative");
+		this.maxFrameMessages = maxFrameMessages;
+	}
+	
+	public int getPendingMessageCount() {
+		messagesLock.lock();
+		try {
+			return pendingMessages.size();
+		}
+		finally {
+			messagesLock.unlock();
+		}
+	}
+	
+	public long getDroppedMessageCount() {
+		messagesLock.lock();
+		try {
+			return droppedMessageCount;
+		}
+		finally {
+			messagesLock.unlock();
+		}
+	}
+	
+	/**
+	 * Queue a message, it is written by the channel writer thread together with all other queued messages
+	 * as soon as the connection is open.
+	 * 
+	 * @throws IllegalStateException if the channel is stopped, or if the queue is full and the overflow policy is FAIL
+	 */
 	public void send(Message message) {
+		enqueue(message, true);
+	}
+	
+	/**
+	 * @param applyOverflowPolicy false to skip the message instead of applying the overflow policy when the queue is full
+	 * @return true if the message has been queued
+	 */
+	private boolean enqueue(Message message, boolean applyOverflowPolicy) {
+		int depth = 0;
+		long dropped = 0L;
 		messagesLock.lock();
 		try {
+			if (stopped) {
+				if (!applyOverflowPolicy)
+					return false;
+				throw new IllegalStateException("Channel stopped");
+			}
+			
+			while (maxPendingMessages > 0 && pendingMessages.size() >= maxPendingMessages) {
+				if (!applyOverflowPolicy)
+					return false;
+				
+				switch (overflowPolicy) {
+				case DROP_OLDEST:
+					pendingMessages.poll();
+					droppedMessageCount++;
+					break;
+				case FAIL:
+					throw new IllegalStateException("Outbound queue full (" + maxPendingMessages + " messages)");
+				default:
+					try {
+						messagesNotFull.await();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IllegalStateException("Interrupted while waiting for outbound queue", e);
+					}
+					if (stopped)
+						throw new IllegalStateException("Channel stopped");
+				}
+			}
+			
 			pendingMessages.add(message);
+			depth = pendingMessages.size();
+			dropped = droppedMessageCount;
+			
+			if (writerThread == null) {
+				writerThread = new Thread(new Writer(), "WebSocketChannel writer " + uri);
+				writerThread.setDaemon(true);
+				writerThread.start();
+			}
+			messagesAvailable.signal();
 		}
 		finally {
 			messagesLock.unlock();
 		}
 		
-		internalSend();
+		engine.getMetricsListener().outboundQueueChanged(depth, dropped);
+		
+		ensureConnected();
+		return true;
 	}
 	
-	private void internalSend() {
+	/**
+	 * Stops the writer thread and the reconnection/heartbeat and conflation timers, queued messages are discarded.
+	 */
+	public void stop() {
+		messagesLock.lock();
+		try {
+			stopped = true;
+			pendingMessages.clear();
+			messagesAvailable.signalAll();
+			messagesNotFull.signalAll();
+		}
+		finally {
+			messagesLock.unlock();
+		}
+		
+		connectionLock.lock();
+		try {
+			connected = false;
+			cancelHeartbeat();
+			if (reconnectTask != null) {
+				reconnectTask.cancel();
+				reconnectTask = null;
+			}
+		}
+		finally {
+			connectionLock.unlock();
+		}
+		
+		synchronized (this) {
+			if (timer != null) {
+				timer.cancel();
+				timer = null;
+			}
+			if (conflationTimer != null) {
+				conflationTimer.cancel();
+				conflationTimer = null;
+			}
+		}
+	}
+	
+	private void ensureConnected() {
 		connectionLock.lock();
 		try {
 			if (!engine.isStarted())
 				engine.start();
 			
-			if (connection == null)
+			// While a reconnection is scheduled, let the backoff delay run
+			if (connection == null && reconnectTask == null)
 				connect();
+		}
+		catch (Exception e) {
+			engine.getStatusHandler().handleException(new EngineException("Channel failed", e));
+		}
+		finally {
+			connectionLock.unlock();
+		}
+	}
+	
+	private void setOpenConnection(Connection connection) {
+		messagesLock.lock();
+		try {
+			openConnection = connection;
+			if (connection != null)
+				messagesAvailable.signal();
+		}
+		finally {
+			messagesLock.unlock();
+		}
+	}
+	
+	private void write(Connection connection, List<Message> messages) {
+		CommandMessage loginMessage = null;
+		if (!authenticated && !authenticating && credentials != null) {
+			authenticating = true;
+			
+			loginMessage = new CommandMessage();
+			loginMessage.setOperation(CommandMessage.LOGIN_OPERATION);
+			loginMessage.setMessageId(UUIDUtil.randomUUID());
+			loginMessage.setBody(credentials);
+			messages.add(0, loginMessage);
+		}
+		
+		try {
+			for (int i = 0; i < messages.size(); i++) {
+				Message message = messages.get(i);
+				
+				if (id != null) {
+					if (message.getHeaders() == null)
+						message.setHeaders(new HashMap<String, Object>());
+					message.setHeader(Message.ENDPOINT_HEADER, id);
+				}
+				message.setClientId(clientId);
+			}
+			
+			// The messages taken from the queue are coalesced in a single frame
+			connection.send(messages.toArray(new Message[messages.size()]));
+			writeFailures = 0;
+			engine.getMetricsListener().batchSent(messages.size());
+		}
+		catch (Exception e) {
+			// The login message is created again for the next connection
+			if (loginMessage != null) {
+				messages.remove(loginMessage);
+				authenticating = false;
+			}
+			writeFailed(connection, messages, e);
+		}
+	}
+	
+	/**
+	 * Puts the messages of a failed frame back at the head of the queue and closes the connection, so that
+	 * they are written again once reconnected. A frame failing more than reconnectMaxAttempts times
+	 * in a row is dropped.
+	 */
+	private void writeFailed(Connection connection, List<Message> messages, Exception e) {
+		boolean requeued = false;
+		int depth = 0;
+		long dropped = 0L;
+		messagesLock.lock();
+		try {
+			if (openConnection == connection)
+				openConnection = null;
+			
+			if (stopped)
+				return;
+			
+			if (++writeFailures <= reconnectMaxAttempts) {
+				for (int i = messages.size() - 1; i >= 0; i--)
+					pendingMessages.addFirst(messages.get(i));
+				requeued = true;
+			}
 			else {
+				droppedMessageCount += messages.size();
+				writeFailures = 0;
+			}
+			depth = pendingMessages.size();
+			dropped = droppedMessageCount;
+		}
+		finally {
+			messagesLock.unlock();
+		}
+		
+		engine.getMetricsListener().outboundQueueChanged(depth, dropped);
+		
+		if (requeued)
+			log.warn(e, "Could not write %d messages, requeued until reconnected", messages.size());
+		else
+			engine.getStatusHandler().handleException(new EngineException("Could not write " + messages.size() + " messages, dropped", e));
+		
+		try {
+			connection.close();
+		}
+		catch (Exception ce) {
+			log.debug(ce, "Could not close connection");
+		}
+	}
+	
+	/**
+	 * Writes queued messages once the connection is open, so that callers never block on socket writes.
+	 */
+	private class Writer implements Runnable {
+
+		@Override
+		public void run() {
+			while (true) {
+				Connection connection = null;
 				List<Message> messages = null;
+				int depth = 0;
+				long dropped = 0L;
+				
 				messagesLock.lock();
 				try {
-					if (pendingMessages.size() == 0)
+					while (!stopped && (pendingMessages.isEmpty() || openConnection == null))
+						messagesAvailable.await();
+					if (stopped)
 						return;
 					
-					messages = pendingMessages;
-					pendingMessages = new ArrayList<Message>();
+					connection = openConnection;
+					int max = maxFrameMessages;
+					if (max <= 0 || pendingMessages.size() <= max) {
+						messages = new ArrayList<Message>(pendingMessages);
+						pendingMessages.clear();
+					}
+					else {
+						messages = new ArrayList<Message>(max);
+						for (int i = 0; i < max; i++)
+							messages.add(pendingMessages.pollFirst());
+					}
+					depth = pendingMessages.size();
+					dropped = droppedMessageCount;
+					messagesNotFull.signalAll();
+				}
+				catch (InterruptedException e) {
+					return;
 				}
 				finally {
 					messagesLock.unlock();
 				}
 				
-				if (!authenticated && !authenticating && credentials != null) {
-					authenticating = true;
-					
-					CommandMessage loginMessage = new CommandMessage();
-					loginMessage.setOperation(CommandMessage.LOGIN_OPERATION);
-					loginMessage.setMessageId(UUIDUtil.randomUUID());
-					loginMessage.setBody(credentials);
-					messages.add(0, loginMessage);
-				}
+				engine.getMetricsListener().outboundQueueChanged(depth, dropped);
 				
-				try {
-					for (int i = 0; i < messages.size(); i++) {
-						Message message = messages.get(i);
-						
-						if (id != null) {
-							if (message.getHeaders() == null)
-								message.setHeaders(new HashMap<String, Object>());
-							message.setHeader(Message.ENDPOINT_HEADER, id);
-						}
-						message.setClientId(clientId);
-					}
-					
-					connection.send(messages.toArray(new Message[messages.size()]));
-				}
-				catch (Exception e) {
-					engine.getStatusHandler().handleException(new EngineException("Client error", e));
-					throw e;
-				}
+				write(connection, messages);
 			}
 		}
-		catch (Exception e) {
-			engine.getStatusHandler().handleException(new EngineException("Channel failed", e));
-		}
-		finally {
-			connectionLock.unlock();
-		}
+	}
+	
+	public static enum OverflowPolicy {
+		BLOCK,
+		DROP_OLDEST,
+		FAIL
 	}
 	
 	
@@ -0,0 +1,106 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2011 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.messaging.engine;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Produces an AMF request body from the pooled chunks of a message that has already been fully
+ * serialized (nothing is streamed while serializing), releasing the chunks once they have been
+ * written to the socket.
+ */
+public class AMFRequestProducer implements HttpAsyncRequestProducer {
+	
+	private final URI uri;
+	private final String contentType;
+	private final PooledOutputStream content;
+	
+	public AMFRequestProducer(URI uri, String contentType, PooledOutputStream content) {
+		this.uri = uri;
+		this.contentType = contentType;
+		this.content = content;
+	}
+
+	@Override
+	public HttpHost getTarget() {
+		return URIUtils.extractHost(uri);
+	}
+
+	@Override
+	public HttpRequest generateRequest() {
+		HttpPost request = new HttpPost(uri);
+		request.getParams().setParameter(ClientPNames.COOKIE_POLICY, CookiePolicy.BROWSER_COMPATIBILITY);
+		request.setHeader("Content-Type", contentType);
+		
+		// Only describes the body, the content itself is written by produceContent
+		BasicHttpEntity entity = new BasicHttpEntity();
+		entity.setContentType(contentType);
+		entity.setContentLength(content.size());
+		request.setEntity(entity);
+		return request;
+	}
+
+	@Override
+	public synchronized void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+		ByteBuffer buffer = content.nextBuffer();
+		while (buffer != null) {
+			encoder.write(buffer);
+			if (buffer.hasRemaining())
+				return; // Socket buffer full, wait for the next output event
+			buffer = content.nextBuffer();
+		}
+		encoder.complete();
+		content.release();
+	}
+
+	@Override
+	public void requestCompleted(HttpContext context) {
+		close();
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public void resetRequest() {
+	}
+
+	@Override
+	public synchronized void close() {
+		content.release();
+	}
+}
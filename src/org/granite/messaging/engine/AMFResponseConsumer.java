@@ -0,0 +1,90 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2011 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.messaging.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Accumulates the response body into pooled chunks without blocking the I/O reactor.
+ * The resulting response entity streams the chunks and releases them as they are read,
+ * so decoding can be done later on another thread.
+ */
+public class AMFResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+
+	private final BufferPool pool;
+	
+	private HttpResponse response = null;
+	private PooledOutputStream content = null;
+	
+	public AMFResponseConsumer(BufferPool pool) {
+		this.pool = pool;
+	}
+	
+	@Override
+	protected void onResponseReceived(HttpResponse response) {
+		this.response = response;
+		this.content = new PooledOutputStream(pool);
+	}
+
+	@Override
+	protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+		while (true) {
+			ByteBuffer buffer = content.writableBuffer();
+			int count = decoder.read(buffer);
+			if (count <= 0)
+				break;
+			content.commit(count);
+		}
+	}
+
+	@Override
+	protected HttpResponse buildResult(HttpContext context) {
+		BasicHttpEntity entity = new BasicHttpEntity();
+		HttpEntity received = response.getEntity();
+		if (received != null && received.getContentType() != null)
+			entity.setContentType(received.getContentType());
+		entity.setContentLength(content.size());
+		entity.setContent(content.getInputStream());
+		response.setEntity(entity);
+		
+		// Chunks now belong to the entity stream
+		content = null;
+		return response;
+	}
+
+	@Override
+	protected void releaseResources() {
+		if (content != null) {
+			content.release();
+			content = null;
+		}
+		response = null;
+	}
+}
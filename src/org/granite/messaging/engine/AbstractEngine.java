@@ -20,11 +20,9 @@
 
 package org.granite.messaging.engine;
 
-import java.io.IOException;
-import java.io.InputStream;
-
 import org.granite.config.GraniteConfig;
 import org.granite.config.flex.ServicesConfig;
+import org.granite.messaging.metrics.MetricsListener;
 
 /**
  * @author Franck WOLFF
@@ -33,13 +31,14 @@ public abstract class AbstractEngine implements Engine {
 
 	protected static final String CONTENT_TYPE = "application/x-amf";
 
-	protected boolean started = false;
-	protected GraniteConfig graniteConfig = null;
+	protected volatile boolean started = false;
+	protected volatile GraniteConfig graniteConfig = null;
 	protected Configurator configurator = null;
-	protected ServicesConfig servicesConfig = null;
+	protected volatile ServicesConfig servicesConfig = null;
 
 	protected EngineExceptionHandler exceptionHandler = new LogEngineExceptionHandler();
 	protected EngineStatusHandler statusHandler = new DefaultEngineStatusHandler();
+	protected volatile MetricsListener metricsListener = MetricsListener.NONE;
 	protected String graniteStdConfigPath = "org/granite/messaging/engine/granite-config.xml";
 	protected String graniteConfigPath = null;
 	protected int maxIdleTime = 30000;
@@ -55,6 +54,14 @@ public abstract class AbstractEngine implements Engine {
 		this.statusHandler = statusHandler;
 	}
 	
+	public MetricsListener getMetricsListener() {
+		return metricsListener;
+	}
+	
+	public void setMetricsListener(MetricsListener metricsListener) {
+		this.metricsListener = (metricsListener != null ? metricsListener : MetricsListener.NONE);
+	}
+	
 	public void setGraniteStdConfigPath(String graniteConfigPath) {
 		this.graniteStdConfigPath = graniteConfigPath;
 	}
@@ -79,16 +86,10 @@ public abstract class AbstractEngine implements Engine {
 			return;
 		}
 
-		InputStream is = null;
 		try {
-			is = Thread.currentThread().getContextClassLoader().getResourceAsStream("org/granite/messaging/engine/granite-config.xml");
-			graniteConfig = new GraniteConfig(null, is, null, null);
-			if (graniteConfigPath != null)
-				is = Thread.currentThread().getContextClassLoader().getResourceAsStream(graniteConfigPath);
-			graniteConfig = new GraniteConfig(graniteStdConfigPath, is, null, null);
-			if (configurator != null)
-				configurator.configure(graniteConfig);
-			servicesConfig = new ServicesConfig(null, null, false);
+			ConfigurationCache.Entry configuration = ConfigurationCache.get(graniteStdConfigPath, graniteConfigPath, configurator);
+			graniteConfig = configuration.getGraniteConfig();
+			servicesConfig = configuration.getServicesConfig();
 			started = true;
 		}
 		catch (Exception e) {
@@ -96,13 +97,6 @@ public abstract class AbstractEngine implements Engine {
 			servicesConfig = null;
 			statusHandler.handleException(new EngineException("Could not load default configuration", e));
 		}
-		finally {
-			if (is != null) try {
-				is.close();
-			}
-			catch (IOException e) {
-			}
-		}
 	}
 	
 	public boolean isStarted() {
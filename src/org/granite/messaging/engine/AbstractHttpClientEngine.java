@@ -24,6 +24,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.granite.context.GraniteContext;
 import org.granite.context.SimpleGraniteContext;
@@ -36,6 +40,138 @@ import org.granite.messaging.amf.io.AMF0Serializer;
  */
 public abstract class AbstractHttpClientEngine extends AbstractEngine implements HttpClientEngine {
 	
+	protected BufferPool bufferPool = new BufferPool();
+	
+	protected Executor responseExecutor = null;
+	private ExecutorService defaultResponseExecutor = null;
+	
+	protected int maxTotalConnections = 20;
+	protected int maxConnectionsPerRoute = 2;
+	protected long keepAliveMillis = -1L;
+	protected int connectTimeout = 0;
+	protected int socketTimeout = 0;
+	protected int ioThreadCount = 0;
+	
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	public void setBufferPool(BufferPool bufferPool) {
+		if (bufferPool == null)
+			throw new NullPointerException("bufferPool cannot be null");
+		this.bufferPool = bufferPool;
+	}
+	
+	public Executor getResponseExecutor() {
+		return responseExecutor != null ? responseExecutor : defaultResponseExecutor;
+	}
+	
+	/**
+	 * Executor used to decode responses and notify response handlers, so this work is never done
+	 * on the I/O threads. By default a single daemon thread is created when the engine starts.
+	 */
+	public void setResponseExecutor(Executor responseExecutor) {
+		this.responseExecutor = responseExecutor;
+	}
+	
+	public int getMaxTotalConnections() {
+		return maxTotalConnections;
+	}
+	
+	/**
+	 * Maximum number of open connections for all servers (default 20).
+	 */
+	public void setMaxTotalConnections(int maxTotalConnections) {
+		if (maxTotalConnections <= 0)
+			throw new IllegalArgumentException("maxTotalConnections must be positive");
+		this.maxTotalConnections = maxTotalConnections;
+	}
+	
+	public int getMaxConnectionsPerRoute() {
+		return maxConnectionsPerRoute;
+	}
+	
+	/**
+	 * Maximum number of open connections to one server, ie. of concurrent requests in flight (default 2).
+	 */
+	public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+		if (maxConnectionsPerRoute <= 0)
+			throw new IllegalArgumentException("maxConnectionsPerRoute must be positive");
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+	}
+	
+	public long getKeepAliveMillis() {
+		return keepAliveMillis;
+	}
+	
+	/**
+	 * Maximum time an idle connection is kept open. The server keep-alive timeout is used when shorter.
+	 * A negative value (default) only relies on the server keep-alive timeout, zero closes connections
+	 * after each request.
+	 */
+	public void setKeepAliveMillis(long keepAliveMillis) {
+		this.keepAliveMillis = keepAliveMillis;
+	}
+	
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+	
+	/**
+	 * Connect timeout in milliseconds, 0 (default) means no timeout.
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+	
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+	
+	/**
+	 * Socket read timeout in milliseconds, 0 (default) means no timeout.
+	 */
+	public void setSocketTimeout(int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+	}
+	
+	public int getIoThreadCount() {
+		return ioThreadCount;
+	}
+	
+	/**
+	 * Number of I/O threads, 0 (default) uses the library default (one per processor).
+	 */
+	public void setIoThreadCount(int ioThreadCount) {
+		this.ioThreadCount = ioThreadCount;
+	}
+	
+	@Override
+	public void start() {
+		super.start();
+		
+		if (responseExecutor == null && defaultResponseExecutor == null) {
+			defaultResponseExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "GraniteDS response decoder");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+	
+	@Override
+	public void stop() {
+		super.stop();
+		
+		if (defaultResponseExecutor != null) {
+			defaultResponseExecutor.shutdown();
+			defaultResponseExecutor = null;
+		}
+	}
+	
 	protected void serialize(AMF0Message message, OutputStream os) throws IOException {
 		AMF0Serializer serializer = new AMF0Serializer(os);
 		SimpleGraniteContext.createThreadInstance(graniteConfig, servicesConfig, new HashMap<String, Object>(0));
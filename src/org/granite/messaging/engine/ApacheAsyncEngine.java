@@ -21,19 +21,30 @@
 package org.granite.messaging.engine;
 
 import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.CookieStore;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.params.ClientPNames;
-import org.apache.http.client.params.CookiePolicy;
 import org.apache.http.concurrent.FutureCallback;
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.NoConnectionReuseStrategy;
 import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.nio.client.DefaultHttpAsyncClient;
+import org.apache.http.impl.nio.conn.AsyncSchemeRegistryFactory;
+import org.apache.http.impl.nio.conn.PoolingAsyncClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.nio.reactor.IOReactorStatus;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.HttpContext;
 import org.granite.logging.Logger;
 import org.granite.messaging.amf.AMF0Message;
 
@@ -44,7 +55,7 @@ public class ApacheAsyncEngine extends AbstractHttpClientEngine {
 	
 	private static final Logger log = Logger.getLogger(ApacheAsyncEngine.class);
 
-	protected DefaultHttpAsyncClient httpClient = null;
+	protected volatile DefaultHttpAsyncClient httpClient = null;
 	protected CookieStore cookieStore = new BasicCookieStore();
 
 	@Override
@@ -52,16 +63,33 @@ public class ApacheAsyncEngine extends AbstractHttpClientEngine {
 		super.start();
 		
 		try {
-			httpClient = new DefaultHttpAsyncClient();
+			IOReactorConfig ioReactorConfig = new IOReactorConfig();
+			if (ioThreadCount > 0)
+				ioReactorConfig.setIoThreadCount(ioThreadCount);
+			ioReactorConfig.setConnectTimeout(connectTimeout);
+			ioReactorConfig.setSoTimeout(socketTimeout);
+			
+			DispatcherThreadFactory threadFactory = new DispatcherThreadFactory();
+			PoolingAsyncClientConnectionManager connectionManager = new PoolingAsyncClientConnectionManager(
+				new DefaultConnectingIOReactor(ioReactorConfig, threadFactory),
+				AsyncSchemeRegistryFactory.createDefault()
+			);
+			connectionManager.setMaxTotal(maxTotalConnections);
+			connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+			
+			httpClient = new DefaultHttpAsyncClient(connectionManager);
+			HttpConnectionParams.setConnectionTimeout(httpClient.getParams(), connectTimeout);
+			HttpConnectionParams.setSoTimeout(httpClient.getParams(), socketTimeout);
+			// A zero keep-alive duration would mean indefinitely for HttpCore, so close connections instead
+			if (keepAliveMillis == 0L)
+				httpClient.setReuseStrategy(new NoConnectionReuseStrategy());
+			else if (keepAliveMillis > 0L)
+				httpClient.setKeepAliveStrategy(new MaxKeepAliveStrategy(keepAliveMillis));
 			httpClient.setCookieStore(cookieStore);
 			httpClient.start();
 			
-			final long timeout = System.currentTimeMillis() + 10000L; // 10sec.
-			while (httpClient.getStatus() != IOReactorStatus.ACTIVE) {
-				if (System.currentTimeMillis() > timeout)
-					throw new TimeoutException("HttpAsyncClient start process too long");
-				Thread.sleep(100);
-			}
+			if (!threadFactory.awaitActive(10000L)) // 10sec.
+				throw new TimeoutException("HttpAsyncClient start process too long");
 		}
 		catch (Exception e) {
 			super.stop();
@@ -73,52 +101,75 @@ public class ApacheAsyncEngine extends AbstractHttpClientEngine {
 	}
 
 	@Override
-	public synchronized boolean isStarted() {
+	public boolean isStarted() {
+		DefaultHttpAsyncClient httpClient = this.httpClient;
 		return (super.isStarted() && httpClient != null && httpClient.getStatus() == IOReactorStatus.ACTIVE);
 	}
 
 	@Override
-	public synchronized void send(final URI uri, final AMF0Message message, final EngineResponseHandler handler) {
-	    
-	    if (!isStarted()) {
-			statusHandler.handleException(new EngineException("Apache HttpAsyncClient not started"));
-			return;
+	public Future<?> send(final URI uri, final AMF0Message message, final EngineResponseHandler handler) {
+		
+		// No engine lock here: serialization runs concurrently on each calling thread
+		final DefaultHttpAsyncClient httpClient = this.httpClient;
+	    if (!super.isStarted() || httpClient == null || httpClient.getStatus() != IOReactorStatus.ACTIVE) {
+			EngineException e = new EngineException("Apache HttpAsyncClient not started");
+			handler.failed(e);
+			statusHandler.handleException(e);
+			return null;
 		}
 		
-		PublicByteArrayOutputStream os = new PublicByteArrayOutputStream();
+		// Serialized content is kept in pooled chunks, released while written to the socket
+		PooledOutputStream os = new PooledOutputStream(bufferPool);
 		
 		try {
+			long start = System.nanoTime();
 			serialize(message, os);
+			metricsListener.messageSerialized((int)os.size(), System.nanoTime() - start);
 		}
 		catch (Exception e) {
+			os.release();
+			handler.failed(e);
 			log.error(e, "Could not serialize AMF0 message");
 			statusHandler.handleException(new EngineException("Could not serialize AMF0 message", e));
-			return;
+			return null;
 		}
 		
-		final HttpPost request = new HttpPost(uri);
-		request.getParams().setParameter(ClientPNames.COOKIE_POLICY, CookiePolicy.BROWSER_COMPATIBILITY);
-		request.setHeader("Content-Type", CONTENT_TYPE);
-		request.setEntity(new ByteArrayEntity(os.getBytes()));
+		AMFRequestProducer producer = new AMFRequestProducer(uri, CONTENT_TYPE, os);
 		
 		statusHandler.handleIO(true);
 		
-		httpClient.execute(request, new FutureCallback<HttpResponse>() {
+		try {
+			return execute(httpClient, producer, handler);
+		}
+		catch (RuntimeException e) {
+			// Request never reached the I/O reactor (client shut down concurrently...)
+			producer.close();
+			handler.failed(e);
+			statusHandler.handleIO(false);
+			log.error(e, "Could not send AMF0 message");
+			statusHandler.handleException(new EngineException("Could not send AMF0 message", e));
+			return null;
+		}
+	}
+	
+	private Future<HttpResponse> execute(DefaultHttpAsyncClient httpClient, AMFRequestProducer producer, final EngineResponseHandler handler) {
+		final Executor responseExecutor = getResponseExecutor();
+		
+		return httpClient.execute(producer, new AMFResponseConsumer(bufferPool), new FutureCallback<HttpResponse>() {
 
             public void completed(final HttpResponse response) {
-            	AMF0Message responseMessage = null;
+            	// Response body has been fully received, decode it out of the I/O reactor thread
             	try {
-                	HttpEntity entity = response.getEntity();
-            		responseMessage = deserialize(entity.getContent());
-				}
-            	catch (Exception e) {
-            		handler.failed(e);
-            		statusHandler.handleIO(false);
-            		statusHandler.handleException(new EngineException("Could not deserialize AMF0 message", e));
-            		return;
-				}
-            	handler.completed(responseMessage);
-        		statusHandler.handleIO(false);
+	            	responseExecutor.execute(new Runnable() {
+	            		public void run() {
+	            			handleResponse(response, handler);
+	            		}
+	            	});
+            	}
+            	catch (RejectedExecutionException e) {
+            		closeQuietly(response);
+            		failed(e);
+            	}
             }
 
             public void failed(final Exception e) {
@@ -132,7 +183,53 @@ public class ApacheAsyncEngine extends AbstractHttpClientEngine {
         		statusHandler.handleIO(false);
             }
         });
+	}
+
+	protected void handleResponse(HttpResponse response, EngineResponseHandler handler) {
+    	AMF0Message responseMessage = null;
+    	try {
+        	HttpEntity entity = response.getEntity();
+        	long start = System.nanoTime();
+    		responseMessage = deserialize(entity.getContent());
+    		metricsListener.messageDeserialized((int)entity.getContentLength(), System.nanoTime() - start);
+		}
+    	catch (Exception e) {
+    		handler.failed(e);
+    		statusHandler.handleIO(false);
+    		statusHandler.handleException(new EngineException("Could not deserialize AMF0 message", e));
+    		return;
+		}
+    	finally {
+    		closeQuietly(response);
+    	}
+    	handler.completed(responseMessage);
+		statusHandler.handleIO(false);
+	}
+	
+	private static void closeQuietly(HttpResponse response) {
+		try {
+			HttpEntity entity = response.getEntity();
+			if (entity != null)
+				entity.getContent().close();
+		}
+		catch (Exception e) {
+			log.debug(e, "Could not release response content");
+		}
+	}
+
+	private static class MaxKeepAliveStrategy extends DefaultConnectionKeepAliveStrategy {
+		
+		private final long keepAliveMillis;
 		
+		public MaxKeepAliveStrategy(long keepAliveMillis) {
+			this.keepAliveMillis = keepAliveMillis;
+		}
+
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			long duration = super.getKeepAliveDuration(response, context);
+			return (duration > 0L && duration < keepAliveMillis) ? duration : keepAliveMillis;
+		}
 	}
 
 	@Override
@@ -149,4 +246,24 @@ public class ApacheAsyncEngine extends AbstractHttpClientEngine {
 			httpClient = null;
 		}
 	}
+	
+	/**
+	 * The reactor creates its dispatcher threads right after switching to the ACTIVE
+	 * status: the first thread creation signals that the client is ready to send requests.
+	 */
+	private static class DispatcherThreadFactory implements ThreadFactory {
+		
+		private final CountDownLatch active = new CountDownLatch(1);
+		private final AtomicInteger count = new AtomicInteger();
+		
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "I/O dispatcher " + count.incrementAndGet());
+			active.countDown();
+			return thread;
+		}
+		
+		public boolean awaitActive(long timeoutMillis) throws InterruptedException {
+			return active.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
 }
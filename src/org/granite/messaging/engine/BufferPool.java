@@ -0,0 +1,86 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2011 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.messaging.engine;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe pool of fixed size byte chunks used to serialize messages without
+ * reallocating and copying ever growing arrays.
+ */
+public class BufferPool {
+	
+	public static final int DEFAULT_CHUNK_SIZE = 8192;
+	public static final int DEFAULT_MAX_POOLED_CHUNKS = 256;
+
+	private final int chunkSize;
+	private final int maxPooledChunks;
+	
+	private final Queue<byte[]> chunks = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger pooledChunks = new AtomicInteger();
+	
+	public BufferPool() {
+		this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED_CHUNKS);
+	}
+	
+	public BufferPool(int chunkSize, int maxPooledChunks) {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("Chunk size must be positive");
+		if (maxPooledChunks < 0)
+			throw new IllegalArgumentException("Max pooled chunks cannot be negative");
+		
+		this.chunkSize = chunkSize;
+		this.maxPooledChunks = maxPooledChunks;
+	}
+	
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	
+	public int getMaxPooledChunks() {
+		return maxPooledChunks;
+	}
+	
+	public int getPooledChunks() {
+		return pooledChunks.get();
+	}
+	
+	public byte[] acquire() {
+		byte[] chunk = chunks.poll();
+		if (chunk == null)
+			return new byte[chunkSize];
+		pooledChunks.decrementAndGet();
+		return chunk;
+	}
+	
+	public void release(byte[] chunk) {
+		if (chunk == null || chunk.length != chunkSize)
+			return;
+		
+		if (pooledChunks.incrementAndGet() > maxPooledChunks) {
+			pooledChunks.decrementAndGet();
+			return;
+		}
+		chunks.offer(chunk);
+	}
+}
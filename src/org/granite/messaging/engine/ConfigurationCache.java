@@ -0,0 +1,186 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2011 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.messaging.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.granite.config.GraniteConfig;
+import org.granite.config.flex.ServicesConfig;
+import org.granite.messaging.engine.Engine.Configurator;
+
+/**
+ * Parses and shares the <code>GraniteConfig</code>/<code>ServicesConfig</code> pairs
+ * used by engines, keyed by configuration paths and configurator.
+ * 
+ * Engines started with the same paths and configurator share the same <code>GraniteConfig</code>
+ * instance, which must not be modified once the configurator has been applied. Configurators
+ * are weakly referenced, so their configurations are dropped when they are no longer used.
+ * 
+ * Custom configuration files are rewritten to use the internal granite-config DTD
+ * (bundled in granite.jar), so that no DTD is ever fetched from the network.
+ */
+public class ConfigurationCache {
+	
+	public static final String INTERNAL_DOCTYPE =
+		"<!DOCTYPE granite-config PUBLIC \"-//Granite Data Services//DTD granite-config internal//EN\" " +
+		"\"http://www.graniteds.org/public/dtd/2.0.0/granite-config.dtd\">";
+	
+	private static final Pattern DOCTYPE_PATTERN = Pattern.compile("<!DOCTYPE\\s+granite-config\\s+(PUBLIC|SYSTEM)\\s[^>\\[]*>");
+	
+	private static final Map<Key, Entry> cache = new HashMap<Key, Entry>();
+	private static final Map<Configurator, Map<Key, Entry>> configuratorCaches = new WeakHashMap<Configurator, Map<Key, Entry>>();
+	
+	public static Entry get(String graniteStdConfigPath, String graniteConfigPath, Configurator configurator) throws IOException {
+		Key key = new Key(graniteStdConfigPath, graniteConfigPath);
+		
+		synchronized (cache) {
+			Map<Key, Entry> entries = cache;
+			if (configurator != null) {
+				entries = configuratorCaches.get(configurator);
+				if (entries == null) {
+					entries = new HashMap<Key, Entry>();
+					configuratorCaches.put(configurator, entries);
+				}
+			}
+			
+			Entry entry = entries.get(key);
+			if (entry == null) {
+				entry = load(graniteStdConfigPath, graniteConfigPath, configurator);
+				entries.put(key, entry);
+			}
+			return entry;
+		}
+	}
+	
+	public static void clear() {
+		synchronized (cache) {
+			cache.clear();
+			configuratorCaches.clear();
+		}
+	}
+	
+	private static Entry load(String graniteStdConfigPath, String graniteConfigPath, Configurator configurator) throws IOException {
+		InputStream is = null;
+		try {
+			if (graniteConfigPath != null) {
+				is = Thread.currentThread().getContextClassLoader().getResourceAsStream(graniteConfigPath);
+				if (is != null)
+					is = toOfflineStream(is);
+			}
+			
+			GraniteConfig graniteConfig = new GraniteConfig(graniteStdConfigPath, is, null, null);
+			if (configurator != null)
+				configurator.configure(graniteConfig);
+			
+			return new Entry(graniteConfig, new ServicesConfig(null, null, false));
+		}
+		catch (Exception e) {
+			throw new IOException("Could not load granite config", e);
+		}
+		finally {
+			if (is != null) try {
+				is.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+	
+	private static InputStream toOfflineStream(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+		try {
+			byte[] buffer = new byte[4096];
+			for (int read = is.read(buffer); read != -1; read = is.read(buffer))
+				baos.write(buffer, 0, read);
+		}
+		finally {
+			is.close();
+		}
+		byte[] bytes = baos.toByteArray();
+		
+		// ISO-8859-1 maps bytes one to one, so the (ASCII) prolog can be rewritten
+		// without knowing the actual document encoding.
+		String content = new String(bytes, "ISO-8859-1");
+		Matcher matcher = DOCTYPE_PATTERN.matcher(content);
+		if (matcher.find() && !matcher.group().equals(INTERNAL_DOCTYPE)) {
+			content = content.substring(0, matcher.start()) + INTERNAL_DOCTYPE + content.substring(matcher.end());
+			bytes = content.getBytes("ISO-8859-1");
+		}
+		return new ByteArrayInputStream(bytes);
+	}
+	
+	public static final class Entry {
+		
+		private final GraniteConfig graniteConfig;
+		private final ServicesConfig servicesConfig;
+		
+		Entry(GraniteConfig graniteConfig, ServicesConfig servicesConfig) {
+			this.graniteConfig = graniteConfig;
+			this.servicesConfig = servicesConfig;
+		}
+
+		public GraniteConfig getGraniteConfig() {
+			return graniteConfig;
+		}
+
+		public ServicesConfig getServicesConfig() {
+			return servicesConfig;
+		}
+	}
+	
+	private static final class Key {
+		
+		private final String graniteStdConfigPath;
+		private final String graniteConfigPath;
+		
+		Key(String graniteStdConfigPath, String graniteConfigPath) {
+			this.graniteStdConfigPath = graniteStdConfigPath;
+			this.graniteConfigPath = graniteConfigPath;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key key = (Key)obj;
+			return equals(graniteStdConfigPath, key.graniteStdConfigPath) &&
+				equals(graniteConfigPath, key.graniteConfigPath);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = (graniteStdConfigPath != null ? graniteStdConfigPath.hashCode() : 0);
+			return hash * 31 + (graniteConfigPath != null ? graniteConfigPath.hashCode() : 0);
+		}
+		
+		private static boolean equals(Object o1, Object o2) {
+			return (o1 == null ? o2 == null : o1.equals(o2));
+		}
+	}
+}
@@ -21,6 +21,7 @@
 package org.granite.messaging.engine;
 
 import org.granite.config.GraniteConfig;
+import org.granite.messaging.metrics.MetricsListener;
 
 /**
  * @author Franck WOLFF
@@ -40,6 +41,9 @@ public interface Engine {
 	EngineStatusHandler getStatusHandler();
 	void setStatusHandler(EngineStatusHandler statusHandler);
 	
+	MetricsListener getMetricsListener();
+	void setMetricsListener(MetricsListener metricsListener);
+	
 	void start();
 
 	boolean isStarted();
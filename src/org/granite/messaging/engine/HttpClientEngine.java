@@ -21,6 +21,7 @@
 package org.granite.messaging.engine;
 
 import java.net.URI;
+import java.util.concurrent.Future;
 
 import org.granite.messaging.amf.AMF0Message;
 
@@ -29,5 +30,10 @@ import org.granite.messaging.amf.AMF0Message;
  */
 public interface HttpClientEngine extends Engine {
 
-	void send(final URI uri, AMF0Message message, EngineResponseHandler handler);
+	/**
+	 * Send a message asynchronously.
+	 * 
+	 * @return a future that can be used to abort the request, or null if the message could not be sent
+	 */
+	Future<?> send(final URI uri, AMF0Message message, EngineResponseHandler handler);
 }
@@ -21,16 +21,19 @@
 package org.granite.messaging.engine;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.concurrent.TimeoutException;
+import java.util.Map;
 
 import org.apache.http.client.CookieStore;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.eclipse.jetty.websocket.WebSocket;
+import org.eclipse.jetty.websocket.WebSocket.FrameConnection;
 import org.eclipse.jetty.websocket.WebSocket.OnBinaryMessage;
+import org.eclipse.jetty.websocket.WebSocket.OnFrame;
 import org.eclipse.jetty.websocket.WebSocketClient;
 import org.eclipse.jetty.websocket.WebSocketClientFactory;
 import org.granite.context.GraniteContext;
@@ -48,10 +51,75 @@ public class JettyWebSocketEngine extends AbstractEngine implements WebSocketEng
 	
 	private static final Logger log = Logger.getLogger(JettyWebSocketEngine.class);
 
+	private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
 	private WebSocketClientFactory webSocketClientFactory = null;
 	protected WebSocketClient webSocketClient = null;
 	protected CookieStore cookieStore = new BasicCookieStore();
 	
+	private int bufferSize = 4096;
+	private int maxTextMessageSize = 1024;
+	private int maxBinaryMessageSize = 1024 * 1024;
+	private int fragmentSize = 0;
+	
+	// Shared by the thread contexts of all I/O and writer threads, application attributes may be null
+	private final Map<String, Object> applicationMap = Collections.synchronizedMap(new HashMap<String, Object>());
+	
+	// Encoding buffers and serializers are reused by each sending thread (usually one writer thread per channel),
+	// they must be created once the thread GraniteContext exists
+	private final ThreadLocal<Encoder> encoder = new ThreadLocal<Encoder>() {
+		@Override
+		protected Encoder initialValue() {
+			return new Encoder(new PublicByteArrayOutputStream(1000));
+		}
+	};
+	
+	
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	
+	/**
+	 * Size of the Jetty I/O buffers (default 4096), must be set before the engine is started.
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+	
+	public int getMaxTextMessageSize() {
+		return maxTextMessageSize;
+	}
+	
+	public void setMaxTextMessageSize(int maxTextMessageSize) {
+		this.maxTextMessageSize = maxTextMessageSize;
+	}
+	
+	public int getMaxBinaryMessageSize() {
+		return maxBinaryMessageSize;
+	}
+	
+	/**
+	 * Maximum size of an incoming binary message reassembled from fragments (default 1MB).
+	 * A negative value disables reassembly, so fragmented messages are rejected.
+	 */
+	public void setMaxBinaryMessageSize(int maxBinaryMessageSize) {
+		this.maxBinaryMessageSize = maxBinaryMessageSize;
+	}
+	
+	public int getFragmentSize() {
+		return fragmentSize;
+	}
+	
+	/**
+	 * Outgoing messages larger than this size are split in several frames, 0 (default) means no fragmentation.
+	 * The server must accept fragmented binary messages.
+	 */
+	public void setFragmentSize(int fragmentSize) {
+		if (fragmentSize < 0)
+			throw new IllegalArgumentException("Fragment size cannot be negative");
+		this.fragmentSize = fragmentSize;
+	}
+	
 	
 	@Override
 	public synchronized void start() {
@@ -61,15 +129,11 @@ public class JettyWebSocketEngine extends AbstractEngine implements WebSocketEng
 		
 		try {
 			webSocketClientFactory = new WebSocketClientFactory();
-			webSocketClientFactory.setBufferSize(4096);
+			webSocketClientFactory.setBufferSize(bufferSize);
+			// Jetty lifecycle start is synchronous: the factory is either started or has thrown.
 			webSocketClientFactory.start();
-			
-			final long timeout = System.currentTimeMillis() + 10000L; // 10sec.
-			while (!webSocketClientFactory.isStarted()) {
-				if (System.currentTimeMillis() > timeout)
-					throw new TimeoutException("Jetty WebSocketFactory start process too long");
-				Thread.sleep(100);
-			}
+			if (!webSocketClientFactory.isStarted())
+				throw new IllegalStateException("Jetty WebSocketFactory not started: " + webSocketClientFactory.getState());
 		}
 		catch (Exception e) {
 			super.stop();
@@ -105,7 +169,8 @@ public class JettyWebSocketEngine extends AbstractEngine implements WebSocketEng
 			
 			WebSocketClient webSocketClient = webSocketClientFactory.newWebSocketClient();
 			webSocketClient.setMaxIdleTime(maxIdleTime);
-			webSocketClient.setMaxTextMessageSize(1024);
+			webSocketClient.setMaxTextMessageSize(maxTextMessageSize);
+			webSocketClient.setMaxBinaryMessageSize(maxBinaryMessageSize);
 			webSocketClient.setProtocol("gravity");
 			webSocketClient.open(new URI(u), webSocket);
 		}
@@ -114,21 +179,39 @@ public class JettyWebSocketEngine extends AbstractEngine implements WebSocketEng
 		}
 	}
 	
-	public class WebSocketImpl implements WebSocket, OnBinaryMessage {
+	public class WebSocketImpl implements WebSocket, OnBinaryMessage, OnFrame {
 		
 		private final EngineMessageHandler handler;
+		private final FrameInputStream is = new FrameInputStream();
+		private Decoder decoder = null;
+		private volatile FrameConnection frameConnection = null;
 		
 		public WebSocketImpl(EngineMessageHandler handler) {
 			this.handler = handler;
 		}
 
+		@Override
+		public void onHandshake(FrameConnection connection) {
+			this.frameConnection = connection;
+		}
+
+		@Override
+		public boolean onFrame(byte flags, byte opcode, byte[] data, int offset, int length) {
+			// Let Jetty reassemble and dispatch messages
+			return false;
+		}
+
 		@Override
 		public void onMessage(byte[] data, int offset, int length) {
-			SimpleGraniteContext.createThreadInstance(graniteConfig, servicesConfig, new HashMap<String, Object>(0));
-			ByteArrayInputStream is = new ByteArrayInputStream(data, offset, length);			
-			AMF3Deserializer deserializer = new AMF3Deserializer(is);
+			SimpleGraniteContext.createThreadInstance(graniteConfig, servicesConfig, applicationMap);
+			// Messages of a connection are delivered one at a time, the stream wrapper and deserializer can be reused
+			is.setFrame(data, offset, length);
+			if (decoder == null)
+				decoder = new Decoder(is);
 			try {
-				Object[] messages = (Object[])deserializer.readObject();
+				long start = System.nanoTime();
+				Object[] messages = (Object[])decoder.readMessage();
+				metricsListener.messageDeserialized(length, System.nanoTime() - start);
 				for (Object message : messages)
 					handler.onMessage((Message)message);
 			} 
@@ -136,6 +219,7 @@ public class JettyWebSocketEngine extends AbstractEngine implements WebSocketEng
 				statusHandler.handleException(new EngineException("Could not read message", e));
 			}
 			finally {
+				is.release();
 				GraniteContext.release();
 			}
 		}
@@ -160,22 +244,48 @@ public class JettyWebSocketEngine extends AbstractEngine implements WebSocketEng
 
 			@Override
 			public void send(Message[] messages) {
-				ByteArrayOutputStream os = new PublicByteArrayOutputStream(1000);			
-				SimpleGraniteContext.createThreadInstance(graniteConfig, servicesConfig, new HashMap<String, Object>(0));
-				AMF3Serializer serializer = new AMF3Serializer(os);
+				SimpleGraniteContext.createThreadInstance(graniteConfig, servicesConfig, applicationMap);
+				Encoder serializer = encoder.get();
+				PublicByteArrayOutputStream os = serializer.getBuffer();
 				try {
-					serializer.writeObject(messages);
+					long start = System.nanoTime();
+					serializer.writeMessage(messages);
+					metricsListener.messageSerialized(os.size(), System.nanoTime() - start);
 					
-					byte[] data = os.toByteArray();
-					connection.sendMessage(data, 0, data.length);
+					// Send directly from the buffer backing array, no copy
+					sendFrames(os.getBytes(), os.size());
 				} 
 				catch (IOException e) {
 					statusHandler.handleException(new EngineException("Could not send message", e));
 				}
 				finally {
 					GraniteContext.release();
+					if (os.getBytes().length > MAX_RETAINED_BUFFER_SIZE)
+						encoder.remove();
+				}
+			}
+			
+			private void sendFrames(byte[] data, int length) throws IOException {
+				FrameConnection frameConnection = WebSocketImpl.this.frameConnection;
+				int fragmentSize = JettyWebSocketEngine.this.fragmentSize;
+				
+				if (fragmentSize <= 0 || length <= fragmentSize || frameConnection == null) {
+					connection.sendMessage(data, 0, length);
+					return;
+				}
+				
+				for (int offset = 0; offset < length; offset += fragmentSize) {
+					int size = Math.min(fragmentSize, length - offset);
+					byte opcode = (offset == 0 ? frameConnection.binaryOpcode() : frameConnection.continuationOpcode());
+					byte flags = (offset + size == length ? frameConnection.finMask() : 0);
+					frameConnection.sendFrame(flags, opcode, data, offset, size);
 				}
 			}
+
+			@Override
+			public void close() {
+				connection.close();
+			}
 		}
 	}
 
@@ -194,4 +304,82 @@ public class JettyWebSocketEngine extends AbstractEngine implements WebSocketEng
 			webSocketClientFactory = null;
 		}
 	}
+	
+	/**
+	 * AMF3 serializer writing to a reused buffer. Its reference tables are cleared after each message,
+	 * so that no message refers to a previous one and sent objects are not retained.
+	 */
+	private static class Encoder extends AMF3Serializer {
+		
+		private final PublicByteArrayOutputStream buffer;
+		
+		public Encoder(PublicByteArrayOutputStream buffer) {
+			super(buffer);
+			this.buffer = buffer;
+		}
+		
+		public PublicByteArrayOutputStream getBuffer() {
+			return buffer;
+		}
+		
+		public void writeMessage(Object message) throws IOException {
+			buffer.reset();
+			written = 0;
+			try {
+				writeObject(message);
+			}
+			finally {
+				storedStrings.clear();
+				storedObjects.clear();
+				storedClassDescriptors.clear();
+			}
+		}
+	}
+	
+	/**
+	 * AMF3 deserializer reading all frames of a connection. Its reference tables are cleared after each message.
+	 */
+	private static class Decoder extends AMF3Deserializer {
+		
+		public Decoder(InputStream is) {
+			super(is);
+		}
+		
+		public Object readMessage() throws IOException {
+			try {
+				return readObject();
+			}
+			finally {
+				storedStrings.clear();
+				storedObjects.clear();
+				storedClassDescriptors.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Input stream over the bytes of an incoming frame, reused for all frames of a connection.
+	 */
+	private static class FrameInputStream extends ByteArrayInputStream {
+		
+		private static final byte[] EMPTY = new byte[0];
+		
+		public FrameInputStream() {
+			super(EMPTY);
+		}
+		
+		public void setFrame(byte[] data, int offset, int length) {
+			this.buf = data;
+			this.pos = offset;
+			this.mark = offset;
+			this.count = Math.min(offset + length, data.length);
+		}
+		
+		public void release() {
+			this.buf = EMPTY;
+			this.pos = 0;
+			this.mark = 0;
+			this.count = 0;
+		}
+	}
 }
@@ -0,0 +1,176 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2011 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.messaging.engine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output stream writing into chunks borrowed from a {@link BufferPool}. Chunks are never copied
+ * or reallocated and are given back to the pool as soon as their content has been consumed.
+ */
+public class PooledOutputStream extends OutputStream {
+
+	private final BufferPool pool;
+	private final List<byte[]> chunks = new ArrayList<byte[]>();
+	private byte[] current = null;
+	private int position = 0;
+	private long size = 0L;
+	
+	// Read side
+	private int readChunk = 0;
+	private ByteBuffer readBuffer = null;
+	
+	public PooledOutputStream(BufferPool pool) {
+		if (pool == null)
+			throw new NullPointerException("Pool cannot be null");
+		this.pool = pool;
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		if (current == null || position == current.length)
+			nextChunk();
+		current[position++] = (byte)b;
+		size++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (current == null || position == current.length)
+				nextChunk();
+			int count = Math.min(len, current.length - position);
+			System.arraycopy(b, off, current, position, count);
+			position += count;
+			off += count;
+			len -= count;
+			size += count;
+		}
+	}
+	
+	private void nextChunk() {
+		current = pool.acquire();
+		position = 0;
+		chunks.add(current);
+	}
+	
+	/**
+	 * Returns a buffer over the free space of the current chunk, so content can be read directly
+	 * into it (eg. from a NIO channel). {@link #commit(int)} must then be called with the number
+	 * of bytes actually written.
+	 */
+	public ByteBuffer writableBuffer() {
+		if (current == null || position == current.length)
+			nextChunk();
+		return ByteBuffer.wrap(current, position, current.length - position);
+	}
+	
+	public void commit(int count) {
+		if (count < 0 || current == null || position + count > current.length)
+			throw new IllegalArgumentException("Invalid count: " + count);
+		position += count;
+		size += count;
+	}
+	
+	public long size() {
+		return size;
+	}
+	
+	/**
+	 * Returns a stream reading the unconsumed content. Chunks are released while they are read
+	 * and closing the stream releases the remaining ones.
+	 */
+	public InputStream getInputStream() {
+		return new InputStream() {
+			
+			@Override
+			public int read() throws IOException {
+				ByteBuffer buffer = nextBuffer();
+				return (buffer != null ? buffer.get() & 0xFF : -1);
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				ByteBuffer buffer = nextBuffer();
+				if (buffer == null)
+					return -1;
+				int count = Math.min(len, buffer.remaining());
+				buffer.get(b, off, count);
+				return count;
+			}
+			
+			@Override
+			public int available() throws IOException {
+				return (readBuffer != null ? readBuffer.remaining() : 0);
+			}
+			
+			@Override
+			public void close() throws IOException {
+				release();
+			}
+		};
+	}
+	
+	/**
+	 * Returns the next buffer of unconsumed content, or null when all content has been consumed.
+	 * Chunks that have been completely consumed are released to the pool.
+	 */
+	public ByteBuffer nextBuffer() {
+		if (readBuffer != null && readBuffer.hasRemaining())
+			return readBuffer;
+		
+		if (readBuffer != null) {
+			pool.release(chunks.set(readChunk - 1, null));
+			readBuffer = null;
+		}
+		
+		if (readChunk >= chunks.size())
+			return null;
+		
+		byte[] chunk = chunks.get(readChunk++);
+		int length = (readChunk == chunks.size() ? position : chunk.length);
+		readBuffer = ByteBuffer.wrap(chunk, 0, length);
+		return readBuffer.hasRemaining() ? readBuffer : nextBuffer();
+	}
+	
+	/**
+	 * Gives all remaining chunks back to the pool.
+	 */
+	public void release() {
+		for (byte[] chunk : chunks) {
+			if (chunk != null)
+				pool.release(chunk);
+		}
+		chunks.clear();
+		current = null;
+		readBuffer = null;
+		readChunk = 0;
+		position = 0;
+		size = 0L;
+	}
+}
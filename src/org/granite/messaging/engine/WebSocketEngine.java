@@ -33,6 +33,8 @@ public interface WebSocketEngine extends Engine {
 	public static interface Connection {
 		
 		public void send(Message[] message);
+		
+		public void close();
 	}
 	
 	public void setMaxIdleTime(int maxIdleTime);
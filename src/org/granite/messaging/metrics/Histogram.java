@@ -0,0 +1,108 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2011 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.messaging.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram with fixed bucket upper bounds.
+ */
+public class Histogram {
+	
+	public static final long[] MILLIS_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000 };
+	public static final long[] MICROS_BOUNDS = { 10, 50, 100, 500, 1000, 5000, 10000, 50000, 100000, 500000, 1000000 };
+	public static final long[] BYTES_BOUNDS = { 256, 1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216 };
+	public static final long[] SIZE_BOUNDS = { 1, 2, 4, 8, 16, 32, 64, 128 };
+
+	private final long[] bounds;
+	private final AtomicLongArray buckets;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	public Histogram(long[] bounds) {
+		this.bounds = bounds;
+		this.buckets = new AtomicLongArray(bounds.length + 1);
+	}
+	
+	public void record(long value) {
+		int i = 0;
+		while (i < bounds.length && value > bounds[i])
+			i++;
+		buckets.incrementAndGet(i);
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value))
+			m = max.get();
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getSum() {
+		return sum.get();
+	}
+	
+	public long getMax() {
+		return max.get();
+	}
+	
+	public double getMean() {
+		long c = count.get();
+		return c > 0L ? (double)sum.get() / c : 0.0;
+	}
+	
+	/**
+	 * Returns the upper bound of the bucket containing the given percentile (0-100),
+	 * or the max recorded value for the last bucket.
+	 */
+	public long getPercentile(double percentile) {
+		long c = count.get();
+		if (c == 0L)
+			return 0L;
+		
+		long threshold = (long)Math.ceil(c * percentile / 100.0);
+		long total = 0L;
+		for (int i = 0; i < bounds.length; i++) {
+			total += buckets.get(i);
+			if (total >= threshold)
+				return Math.min(bounds[i], max.get());
+		}
+		return max.get();
+	}
+	
+	public void reset() {
+		for (int i = 0; i < buckets.length(); i++)
+			buckets.set(i, 0L);
+		count.set(0L);
+		sum.set(0L);
+		max.set(0L);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d", getCount(), getMean(), getPercentile(50), getPercentile(90), getPercentile(99), getMax());
+	}
+}
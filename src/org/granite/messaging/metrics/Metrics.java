@@ -0,0 +1,339 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2011 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.messaging.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.granite.logging.Logger;
+
+/**
+ * Default {@link MetricsListener} aggregating events in histograms and counters.
+ * It can be published as a MBean, and forwards all events to additional listeners.
+ * <pre>
+ * Metrics metrics = new Metrics();
+ * metrics.registerMBean("myapp");
+ * engine.setMetricsListener(metrics);
+ * </pre>
+ */
+public class Metrics implements MetricsListener, MetricsMBean {
+	
+	private static final Logger log = Logger.getLogger(Metrics.class);
+	
+	public static final String MBEAN_DOMAIN = "org.granite.client";
+	
+	private final ConcurrentHashMap<String, Histogram> callLatencies = new ConcurrentHashMap<String, Histogram>();
+	private final Histogram callLatency = new Histogram(Histogram.MILLIS_BOUNDS);
+	private final AtomicLong faultCount = new AtomicLong();
+	private final Histogram requestBytes = new Histogram(Histogram.BYTES_BOUNDS);
+	private final Histogram serializationMicros = new Histogram(Histogram.MICROS_BOUNDS);
+	private final Histogram responseBytes = new Histogram(Histogram.BYTES_BOUNDS);
+	private final Histogram deserializationMicros = new Histogram(Histogram.MICROS_BOUNDS);
+	private final Histogram batchSizes = new Histogram(Histogram.SIZE_BOUNDS);
+	private volatile int pendingTokens = 0;
+	private volatile int activeTokens = 0;
+	private final AtomicLong reconnectCount = new AtomicLong();
+	private volatile int outboundQueueDepth = 0;
+	private final AtomicInteger maxOutboundQueueDepth = new AtomicInteger();
+	private volatile long droppedMessageCount = 0L;
+	
+	private final List<MetricsListener> listeners = new CopyOnWriteArrayList<MetricsListener>();
+	
+	private ObjectName objectName = null;
+	
+	
+	public void addListener(MetricsListener listener) {
+		listeners.add(listener);
+	}
+	
+	public void removeListener(MetricsListener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Publish these metrics in the platform MBean server as org.granite.client:type=Metrics,name=&lt;name&gt;.
+	 */
+	public synchronized void registerMBean(String name) throws Exception {
+		if (objectName != null)
+			unregisterMBean();
+		
+		ObjectName objectName = new ObjectName(MBEAN_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(this, objectName);
+		this.objectName = objectName;
+	}
+	
+	public synchronized void unregisterMBean() {
+		if (objectName == null)
+			return;
+		
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+		catch (Exception e) {
+			log.warn(e, "Could not unregister MBean %s", objectName);
+		}
+		finally {
+			objectName = null;
+		}
+	}
+	
+	
+	@Override
+	public void messageSerialized(int bytes, long nanos) {
+		requestBytes.record(bytes);
+		serializationMicros.record(nanos / 1000L);
+		
+		for (MetricsListener listener : listeners)
+			listener.messageSerialized(bytes, nanos);
+	}
+
+	@Override
+	public void messageDeserialized(int bytes, long nanos) {
+		responseBytes.record(bytes);
+		deserializationMicros.record(nanos / 1000L);
+		
+		for (MetricsListener listener : listeners)
+			listener.messageDeserialized(bytes, nanos);
+	}
+
+	@Override
+	public void batchSent(int size) {
+		batchSizes.record(size);
+		
+		for (MetricsListener listener : listeners)
+			listener.batchSent(size);
+	}
+
+	@Override
+	public void callCompleted(String destination, String operation, long latencyMillis, boolean fault) {
+		String key = (destination != null ? destination + "." + operation : operation);
+		Histogram histogram = callLatencies.get(key);
+		if (histogram == null) {
+			Histogram newHistogram = new Histogram(Histogram.MILLIS_BOUNDS);
+			histogram = callLatencies.putIfAbsent(key, newHistogram);
+			if (histogram == null)
+				histogram = newHistogram;
+		}
+		histogram.record(latencyMillis);
+		callLatency.record(latencyMillis);
+		if (fault)
+			faultCount.incrementAndGet();
+		
+		for (MetricsListener listener : listeners)
+			listener.callCompleted(destination, operation, latencyMillis, fault);
+	}
+
+	@Override
+	public void tokenCountsChanged(int pending, int active) {
+		this.pendingTokens = pending;
+		this.activeTokens = active;
+		
+		for (MetricsListener listener : listeners)
+			listener.tokenCountsChanged(pending, active);
+	}
+
+	@Override
+	public void reconnected() {
+		reconnectCount.incrementAndGet();
+		
+		for (MetricsListener listener : listeners)
+			listener.reconnected();
+	}
+
+	@Override
+	public void outboundQueueChanged(int depth, long dropped) {
+		this.outboundQueueDepth = depth;
+		this.droppedMessageCount = dropped;
+		int max = maxOutboundQueueDepth.get();
+		while (depth > max && !maxOutboundQueueDepth.compareAndSet(max, depth))
+			max = maxOutboundQueueDepth.get();
+		
+		for (MetricsListener listener : listeners)
+			listener.outboundQueueChanged(depth, dropped);
+	}
+	
+	
+	/**
+	 * Call latency histograms keyed by destination.operation, or by the operation alone for
+	 * commands sent without destination (ping, login, logout).
+	 */
+	public Map<String, Histogram> getCallLatencyHistograms() {
+		return Collections.unmodifiableMap(callLatencies);
+	}
+	
+	public Histogram getCallLatencyHistogram() {
+		return callLatency;
+	}
+	
+	public Histogram getRequestBytesHistogram() {
+		return requestBytes;
+	}
+	
+	public Histogram getResponseBytesHistogram() {
+		return responseBytes;
+	}
+	
+	public Histogram getSerializationMicrosHistogram() {
+		return serializationMicros;
+	}
+	
+	public Histogram getDeserializationMicrosHistogram() {
+		return deserializationMicros;
+	}
+	
+	public Histogram getBatchSizeHistogram() {
+		return batchSizes;
+	}
+
+	@Override
+	public long getCallCount() {
+		return callLatency.getCount();
+	}
+
+	@Override
+	public long getFaultCount() {
+		return faultCount.get();
+	}
+
+	@Override
+	public double getMeanCallLatencyMillis() {
+		return callLatency.getMean();
+	}
+
+	@Override
+	public long getCallLatencyMillisPercentile99() {
+		return callLatency.getPercentile(99);
+	}
+
+	@Override
+	public String[] getCallLatencies() {
+		List<String> latencies = new ArrayList<String>(callLatencies.size());
+		for (Map.Entry<String, Histogram> me : callLatencies.entrySet())
+			latencies.add(me.getKey() + ": " + me.getValue());
+		Collections.sort(latencies);
+		return latencies.toArray(new String[latencies.size()]);
+	}
+
+	@Override
+	public long getMessagesSerialized() {
+		return requestBytes.getCount();
+	}
+
+	@Override
+	public double getMeanRequestBytes() {
+		return requestBytes.getMean();
+	}
+
+	@Override
+	public long getMaxRequestBytes() {
+		return requestBytes.getMax();
+	}
+
+	@Override
+	public double getMeanSerializationMicros() {
+		return serializationMicros.getMean();
+	}
+
+	@Override
+	public long getMessagesDeserialized() {
+		return responseBytes.getCount();
+	}
+
+	@Override
+	public double getMeanResponseBytes() {
+		return responseBytes.getMean();
+	}
+
+	@Override
+	public long getMaxResponseBytes() {
+		return responseBytes.getMax();
+	}
+
+	@Override
+	public double getMeanDeserializationMicros() {
+		return deserializationMicros.getMean();
+	}
+
+	@Override
+	public long getBatchCount() {
+		return batchSizes.getCount();
+	}
+
+	@Override
+	public double getMeanBatchSize() {
+		return batchSizes.getMean();
+	}
+
+	@Override
+	public int getPendingTokens() {
+		return pendingTokens;
+	}
+
+	@Override
+	public int getActiveTokens() {
+		return activeTokens;
+	}
+
+	@Override
+	public long getReconnectCount() {
+		return reconnectCount.get();
+	}
+
+	@Override
+	public int getOutboundQueueDepth() {
+		return outboundQueueDepth;
+	}
+
+	@Override
+	public int getMaxOutboundQueueDepth() {
+		return maxOutboundQueueDepth.get();
+	}
+
+	@Override
+	public long getDroppedMessageCount() {
+		return droppedMessageCount;
+	}
+
+	@Override
+	public void reset() {
+		callLatencies.clear();
+		callLatency.reset();
+		faultCount.set(0L);
+		requestBytes.reset();
+		serializationMicros.reset();
+		responseBytes.reset();
+		deserializationMicros.reset();
+		batchSizes.reset();
+		reconnectCount.set(0L);
+		maxOutboundQueueDepth.set(outboundQueueDepth);
+	}
+}
@@ -0,0 +1,95 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2011 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.messaging.metrics;
+
+/**
+ * Receives instrumentation events from engines and channels.
+ * Implementations are called from I/O and caller threads and must be thread-safe and fast.
+ */
+public interface MetricsListener {
+	
+	public static final MetricsListener NONE = new MetricsListener() {
+
+		@Override
+		public void messageSerialized(int bytes, long nanos) {
+		}
+
+		@Override
+		public void messageDeserialized(int bytes, long nanos) {
+		}
+
+		@Override
+		public void batchSent(int size) {
+		}
+
+		@Override
+		public void callCompleted(String destination, String operation, long latencyMillis, boolean fault) {
+		}
+
+		@Override
+		public void tokenCountsChanged(int pending, int active) {
+		}
+
+		@Override
+		public void reconnected() {
+		}
+
+		@Override
+		public void outboundQueueChanged(int depth, long dropped) {
+		}
+	};
+
+	/**
+	 * An outgoing request or frame has been serialized.
+	 */
+	public void messageSerialized(int bytes, long nanos);
+	
+	/**
+	 * An incoming response or frame has been deserialized.
+	 */
+	public void messageDeserialized(int bytes, long nanos);
+	
+	/**
+	 * A batch of messages has been handed to the engine in a single request.
+	 */
+	public void batchSent(int size);
+	
+	/**
+	 * A call has received its response, or has failed, timed out or been cancelled.
+	 * The destination is null for commands such as ping or login, the operation is then the command name.
+	 */
+	public void callCompleted(String destination, String operation, long latencyMillis, boolean fault);
+	
+	/**
+	 * Number of calls waiting to be sent and waiting for their response.
+	 */
+	public void tokenCountsChanged(int pending, int active);
+	
+	/**
+	 * A lost connection is being reopened.
+	 */
+	public void reconnected();
+	
+	/**
+	 * Number of messages waiting in a channel outbound queue, and total number of messages dropped on overflow.
+	 */
+	public void outboundQueueChanged(int depth, long dropped);
+}
@@ -0,0 +1,71 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2011 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.messaging.metrics;
+
+/**
+ * JMX view of {@link Metrics}.
+ */
+public interface MetricsMBean {
+	
+	public long getCallCount();
+	
+	public long getFaultCount();
+	
+	public double getMeanCallLatencyMillis();
+	
+	public long getCallLatencyMillisPercentile99();
+	
+	public String[] getCallLatencies();
+	
+	public long getMessagesSerialized();
+	
+	public double getMeanRequestBytes();
+	
+	public long getMaxRequestBytes();
+	
+	public double getMeanSerializationMicros();
+	
+	public long getMessagesDeserialized();
+	
+	public double getMeanResponseBytes();
+	
+	public long getMaxResponseBytes();
+	
+	public double getMeanDeserializationMicros();
+	
+	public long getBatchCount();
+	
+	public double getMeanBatchSize();
+	
+	public int getPendingTokens();
+	
+	public int getActiveTokens();
+	
+	public long getReconnectCount();
+	
+	public int getOutboundQueueDepth();
+	
+	public int getMaxOutboundQueueDepth();
+	
+	public long getDroppedMessageCount();
+	
+	public void reset();
+}
@@ -20,23 +20,31 @@
 
 package org.granite.rpc;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.granite.rpc.events.MessageEvent;
 import org.granite.rpc.events.FaultEvent;
 import org.granite.rpc.events.ResultEvent;
 
+import flex.messaging.messages.ErrorMessage;
 import flex.messaging.messages.Message;
 
 /**
  * @author Franck WOLFF
  */
 public class AsyncToken {
+	
+	public static final String CANCELLED_FAULT_CODE = "Client.Cancelled";
+	public static final String TIMEOUT_FAULT_CODE = "Client.Timeout";
 
 	private final Message message;
-	private final List<AsyncResponder> responders = new ArrayList<AsyncResponder>();
-	private MessageEvent responseEvent;
+	private final List<AsyncResponder> responders = new CopyOnWriteArrayList<AsyncResponder>();
+	private volatile MessageEvent responseEvent;
+	private final AtomicBoolean done = new AtomicBoolean(false);
+	private volatile boolean cancelled = false;
+	private long timeout = 0L;
 	
 	public AsyncToken(Message message) {
 		this.message = message;
@@ -63,7 +71,77 @@ public class AsyncToken {
 		return responseEvent;
 	}
 	
-	public void callResponders(MessageEvent event) {
+	public long getTimeout() {
+		return timeout;
+	}
+	
+	/**
+	 * Maximum time in milliseconds to wait for the response once the call has been handed to the channel.
+	 * When expired the responders receive a fault with code {@link #TIMEOUT_FAULT_CODE}.
+	 * 0 (default) means no timeout.
+	 */
+	public void setTimeout(long timeout) {
+		if (timeout < 0L)
+			throw new IllegalArgumentException("Timeout cannot be negative");
+		this.timeout = timeout;
+	}
+	
+	public boolean isDone() {
+		return done.get();
+	}
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/**
+	 * Cancel the call if no response has been received yet. Responders receive a fault
+	 * with code {@link #CANCELLED_FAULT_CODE}.
+	 * 
+	 * @return true if the call has been cancelled, false if it was already done
+	 */
+	public boolean cancel() {
+		if (!done.compareAndSet(false, true))
+			return false;
+		
+		cancelled = true;
+		dispatch(createFaultEvent(CANCELLED_FAULT_CODE, "Call cancelled"));
+		return true;
+	}
+	
+	/**
+	 * Fault the call with code {@link #TIMEOUT_FAULT_CODE} if no response has been received yet.
+	 * 
+	 * @return true if the call has been faulted, false if it was already done
+	 */
+	public boolean timeout() {
+		return callResponders(createFaultEvent(TIMEOUT_FAULT_CODE, "Call timed out after " + timeout + "ms"));
+	}
+	
+	private FaultEvent createFaultEvent(String faultCode, String faultString) {
+		ErrorMessage errorMessage = (message != null ? new ErrorMessage(message, null) : new ErrorMessage());
+		errorMessage.setFaultCode(faultCode);
+		errorMessage.setFaultString(faultString);
+		return new FaultEvent(this, errorMessage);
+	}
+	
+	/**
+	 * Notify the responders of the response. Only the first response is dispatched, responses
+	 * received after a timeout or a cancellation are ignored.
+	 * 
+	 * @return true if the event has been dispatched
+	 */
+	public boolean callResponders(MessageEvent event) {
+		if (!(event instanceof ResultEvent || event instanceof FaultEvent))
+			throw new IllegalArgumentException("Unknown event: " + event);
+		if (!done.compareAndSet(false, true))
+			return false;
+		
+		dispatch(event);
+		return true;
+	}
+	
+	private void dispatch(MessageEvent event) {
 		this.responseEvent = event;
 		
 		if (responseEvent instanceof ResultEvent) {
@@ -76,7 +154,5 @@ public class AsyncToken {
 			for (AsyncResponder responder : responders)
 				responder.fault(faultEvent);
 		}
-		else
-			throw new IllegalArgumentException("Unknown event: " + responseEvent);
 	}
 }
@@ -39,6 +39,7 @@ public class RemoteObject {
 	
 	private Channel channel;
 	private String destination;
+	private long requestTimeout = 0L;
     
     public RemoteObject(String destination) {
         this.destination = destination;
@@ -60,6 +61,20 @@ public class RemoteObject {
 	public String getDestination() {
 		return destination;
 	}
+	
+	public long getRequestTimeout() {
+		return requestTimeout;
+	}
+	
+	/**
+	 * Default timeout in milliseconds for calls on this destination, 0 (default) means no timeout.
+	 */
+	public void setRequestTimeout(long requestTimeout) {
+		if (requestTimeout < 0L)
+			throw new IllegalArgumentException("Request timeout cannot be negative");
+		this.requestTimeout = requestTimeout;
+	}
+	
 	public void setCredentials(String username, String password) {
 		setCredentials(username, password, null);
 	}
@@ -83,6 +98,14 @@ public class RemoteObject {
 	}
 	
 	public AsyncToken call(String method, Object[] params, AsyncResponder[] responders) {
+		return call(method, params, requestTimeout, responders);
+	}
+	
+	public AsyncToken call(String method, Object[] params, long timeout, AsyncResponder responder) {
+		return call(method, params, timeout, (responder != null ? new AsyncResponder[]{responder} : null));
+	}
+	
+	public AsyncToken call(String method, Object[] params, long timeout, AsyncResponder[] responders) {
 		RemotingMessage message = new RemotingMessage();
 		message.setBody(params != null ? params : new Object[0]);
 		message.setOperation(method);
@@ -92,6 +115,7 @@ public class RemoteObject {
 		message.setTimestamp(System.currentTimeMillis());
 		
         AsyncToken token = new AsyncToken(message);
+        token.setTimeout(timeout);
         if (responders != null) {
         	for (AsyncResponder responder : responders)
         		token.addResponder(responder);
@@ -15,6 +15,7 @@ import org.granite.tide.data.EntityManager;
 import org.granite.tide.data.EntityManager.Update;
 import org.granite.tide.data.EntityManagerImpl;
 import org.granite.tide.data.MergeContext;
+import org.granite.tide.data.StagedMerge;
 import org.granite.tide.data.RemoteInitializerImpl;
 import org.granite.tide.impl.SimpleEventBus;
 import org.granite.tide.impl.SimpleInstanceStore;
@@ -244,6 +245,21 @@ public class Context {
      *  @param mergeWith previous value with which the result will be merged
      */
     public void internalResult(ServerSession serverSession, String componentName, String operation, InvocationResult invocationResult, Object result, Object mergeWith) {
+        internalResult(serverSession, componentName, operation, invocationResult, result, mergeWith, null);
+    }
+    
+    /**
+     *  @private  
+     *  Manages a remote call result for which the merge of the result object may have been staged in a background thread
+     * 
+     *  @param componentName name of the target component
+     *  @param operation name of the called operation
+     *  @param ires invocation result object
+     *  @param result result object
+     *  @param mergeWith previous value with which the result will be merged
+     *  @param stagedMerge staged merge of the result object, ignored if the entity manager has been modified since it has been created
+     */
+    public void internalResult(ServerSession serverSession, String componentName, String operation, InvocationResult invocationResult, Object result, Object mergeWith, StagedMerge stagedMerge) {
         trackingContext.clearPendingUpdates();
         
         log.debug("result {0}", result);
@@ -257,6 +273,10 @@ public class Context {
             // Clear flash context variable for Grails/Spring MVC
             componentRegistry.remove("flash");
             
+            boolean staged = stagedMerge != null && stagedMerge.getEntityManager() == entityManager && stagedMerge.isValid();
+            if (stagedMerge != null && !staged)
+                log.debug("staged merge ignored, entity manager modified");
+            
             MergeContext mergeContext = entityManager.initMerge();
             mergeContext.setServerSession(serverSession);
             
@@ -371,6 +391,10 @@ public class Context {
             
             // Merges final result object
             if (result != null) {
+                // Merges of updates and context results may have modified the entities compared by the staged merge
+                if (staged && updates == null && (resultMap == null || resultMap.isEmpty()))
+                    mergeContext.setStagedMerge(stagedMerge);
+                
                 if (mergeExternal)
                     result = entityManager.mergeExternal(mergeContext, result, mergeWith, null, null, null, null, false);
                 else
@@ -28,7 +28,7 @@ public class DirtyCheckContextImpl implements DirtyCheckContext {
     private DataManager dataManager;
     private TrackingContext trackingContext;
     private int dirtyCount = 0;
-    private WeakIdentityHashMap<Object, Map<String, Object>> savedProperties = new WeakIdentityHashMap<Object, Map<String, Object>>();
+    private WeakIdentityHashMap<Object, SavedProperties> savedProperties = new WeakIdentityHashMap<Object, SavedProperties>();
     
     public DirtyCheckContextImpl(DataManager dataManager, TrackingContext trackingContext) {
         this.dataManager = dataManager;
@@ -197,6 +197,108 @@ public class DirtyCheckContextImpl implements DirtyCheckContext {
         return n == o;
     }
     
+    private static final Object NOT_FOUND = new Object();
+    
+    /**
+     *  Hash key consistent with isSameExt
+     *  
+     *  @return key, or null for empty values and nested collections that have to be compared with isSameExt
+     */
+    private Object sameKey(Object val) {
+        if (isEmpty(val) || val.getClass().isArray() || val instanceof Collection<?> || val instanceof Map<?, ?>)
+            return null;
+        if (ObjectUtil.isSimple(val) || val instanceof Value || val instanceof Enum)
+            return val;
+        
+        Object n = val instanceof Wrapper ? ((Wrapper)val).getWrappedObject() : val;
+        if (n instanceof Identifiable)
+            return new UidKey(((Identifiable)n).getUid());
+        return new IdentityKey(n);
+    }
+    
+    private Map<Object, Object> sameIndex(Collection<?> coll, List<Object> unhashed) {
+        Map<Object, Object> index = new HashMap<Object, Object>(coll.size() * 2);
+        for (Object e : coll) {
+            Object key = sameKey(e);
+            if (key == null)
+                unhashed.add(e);
+            else if (!index.containsKey(key))
+                index.put(key, e);
+        }
+        return index;
+    }
+    
+    private Object findSame(Object e, Map<Object, Object> index, List<Object> unhashed) {
+        Object key = sameKey(e);
+        if (key != null)
+            return index.containsKey(key) ? index.get(key) : NOT_FOUND;
+        
+        for (Object f : unhashed) {
+            if (isSameExt(e, f))
+                return f;
+        }
+        return NOT_FOUND;
+    }
+    
+    private boolean containsAllSame(Collection<?> coll1, Collection<?> coll2) {
+        List<Object> unhashed = new ArrayList<Object>();
+        Map<Object, Object> index = sameIndex(coll2, unhashed);
+        for (Object e : coll1) {
+            if (findSame(e, index, unhashed) == NOT_FOUND)
+                return false;
+        }
+        return true;
+    }
+    
+    private boolean containsAllSame(Map<?, ?> map1, Map<?, ?> map2) {
+        List<Object> unhashed = new ArrayList<Object>();
+        Map<Object, Object> index = sameIndex(map2.keySet(), unhashed);
+        for (Entry<?, ?> me : map1.entrySet()) {
+            Object f = findSame(me.getKey(), index, unhashed);
+            if (f == NOT_FOUND || !isSameExt(me.getValue(), map2.get(f)))
+                return false;
+        }
+        return true;
+    }
+    
+    private static final class UidKey {
+        
+        private final String uid;
+        
+        public UidKey(String uid) {
+            this.uid = uid;
+        }
+        
+        @Override
+        public int hashCode() {
+            return uid != null ? uid.hashCode() : 0;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof UidKey && (uid == null ? ((UidKey)obj).uid == null : uid.equals(((UidKey)obj).uid));
+        }
+    }
+    
+    private static final class IdentityKey {
+        
+        private final Object object;
+        
+        public IdentityKey(Object object) {
+            this.object = object;
+        }
+        
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(object);
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof IdentityKey && ((IdentityKey)obj).object == object;
+        }
+    }
+    
     private boolean isSameExt(Object val1, Object val2) {
         if (val1 == null && isEmpty(val2))
             return true;
@@ -222,29 +324,7 @@ public class DirtyCheckContextImpl implements DirtyCheckContext {
             Collection<?> coll2 = (Collection<?>)val2;
             if (coll1.size() != coll2.size())
                 return false;
-            for (Object e : coll1) {
-                boolean found = false;
-                for (Object f : coll2) {
-                    if (isSameExt(e, f)) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found)
-                    return false;
-            }
-            for (Object e : coll2) {
-                boolean found = false;
-                for (Object f : coll1) {
-                    if (isSameExt(e, f)) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found)
-                    return false;
-            }
-            return true;
+            return containsAllSame(coll1, coll2) && containsAllSame(coll2, coll1);
         }
         else if (val1 instanceof List<?> && val2 instanceof List<?>) {
             List<?> list1 = (List<?>)val1;
@@ -262,33 +342,7 @@ public class DirtyCheckContextImpl implements DirtyCheckContext {
             Map<?, ?> map2 = (Map<?, ?>)val2;
             if (map1.size() != map2.size())
                 return false;
-            for (Object e : map1.keySet()) {
-                boolean found = false;
-                for (Object f : map2.keySet()) {
-                    if (isSameExt(e, f)) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found)
-                    return false;
-                if (!isSameExt(map1.get(e), map2.get(e)))
-                    return false;
-            }
-            for (Object e : map2.keySet()) {
-                boolean found = false;
-                for (Object f : map1.keySet()) {
-                    if (isSameExt(e, f)) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found)
-                    return false;
-                if (!isSameExt(map1.get(e), map2.get(e)))
-                    return false;
-            }
-            return true;
+            return containsAllSame(map1, map2) && containsAllSame(map2, map1);
         }
 
         Object n = val1 instanceof Wrapper ? ((Wrapper)val1).getWrappedObject() : val1;
@@ -299,6 +353,12 @@ public class DirtyCheckContextImpl implements DirtyCheckContext {
         return n == o;
     }
 
+    private SavedProperties newSavedProperties(Object object, EntityDescriptor desc, Object version) {
+        SavedProperties save = new SavedProperties(PersistenceManager.getEntityDescriptor(object), desc.getVersionPropertyName());
+        save.setVersion(version);
+        return save;
+    }
+    
     /**
      *  @private 
      *  Interceptor for managed entity setters
@@ -317,37 +377,26 @@ public class DirtyCheckContextImpl implements DirtyCheckContext {
             boolean oldDirtyEntity = isEntityChanged(object, propName, oldValue);
             
             EntityDescriptor desc = PersistenceManager.getEntityDescriptor(entity);
-            Map<String, Object> save = savedProperties.get(object);
+            SavedProperties save = savedProperties.get(object);
             boolean unsaved = save == null;
+            Object version = desc.getVersionPropertyName() != null ? dataManager.getProperty(entity, desc.getVersionPropertyName()) : null;
             
-            if (unsaved || (desc.getVersionPropertyName() != null && 
-                save.get(desc.getVersionPropertyName()) != dataManager.getProperty(entity, desc.getVersionPropertyName()) 
-                    && !(save.get(desc.getVersionPropertyName()) == null && dataManager.getProperty(entity, desc.getVersionPropertyName()) == null))) {
-                
-                save = new HashMap<String, Object>();
-                if (desc.getVersionPropertyName() != null)
-                    save.put(desc.getVersionPropertyName(), dataManager.getProperty(entity, desc.getVersionPropertyName()));
+            if (unsaved || (desc.getVersionPropertyName() != null && save.getVersion() != version)) {
+                save = newSavedProperties(object, desc, version);
                 savedProperties.put(object, save);
                 save.put(propName, oldValue);
                 if (unsaved)
                     dirtyCount++;
             }
             
-            if (save != null && (desc.getVersionPropertyName() == null 
-                || save.get(desc.getVersionPropertyName()) == dataManager.getProperty(entity, desc.getVersionPropertyName())
-                || (save.get(desc.getVersionPropertyName()) == null && dataManager.getProperty(entity, desc.getVersionPropertyName()) == null))) {
+            if (save != null && (desc.getVersionPropertyName() == null || save.getVersion() == version)) {
                 
                 if (!save.containsKey(propName))
                     save.put(propName, oldValue);
                 
                 if (isSame(save.get(propName), newValue)) {
                     save.remove(propName);
-                    int count = 0;
-                    for (String p : save.keySet()) {
-                        if (!p.equals(desc.getVersionPropertyName()))
-                            count++;
-                    }
-                    if (count == 0) {
+                    if (!save.hasChanges()) {
                         savedProperties.remove(object);
                         dirtyCount--;
                     }
@@ -376,16 +425,12 @@ public class DirtyCheckContextImpl implements DirtyCheckContext {
         EntityDescriptor desc = PersistenceManager.getEntityDescriptor(owner);
         boolean oldDirtyEntity = isEntityChanged(owner);
         
-        Map<String, Object> esave = savedProperties.get(owner);
+        SavedProperties esave = savedProperties.get(owner);
         boolean unsaved = esave == null;
+        Object version = desc.getVersionPropertyName() != null ? dataManager.getProperty(owner, desc.getVersionPropertyName()) : null;
         
-        if (unsaved || (desc.getVersionPropertyName() != null && 
-            (esave.get(desc.getVersionPropertyName()) != dataManager.getProperty(owner, desc.getVersionPropertyName()) 
-                && !(esave.get(desc.getVersionPropertyName()) == null && dataManager.getProperty(owner, desc.getVersionPropertyName()) == null)))) {
-
-            esave = new HashMap<String, Object>();
-            if (desc.getVersionPropertyName() != null)
-                esave.put(desc.getVersionPropertyName(), dataManager.getProperty(owner, desc.getVersionPropertyName()));
+        if (unsaved || (desc.getVersionPropertyName() != null && esave.getVersion() != version)) {
+            esave = newSavedProperties(owner, desc, version);
             savedProperties.put(owner, esave);
             if (unsaved)
                 dirtyCount++;
@@ -397,81 +442,16 @@ public class DirtyCheckContextImpl implements DirtyCheckContext {
             esave.put(propName, save);
         }
         
-        if (esave != null && (desc.getVersionPropertyName() == null 
-            || esave.get(desc.getVersionPropertyName()) == dataManager.getProperty(owner, desc.getVersionPropertyName())
-            || (esave.get(desc.getVersionPropertyName()) == null && dataManager.getProperty(owner, desc.getVersionPropertyName()) == null))) {
+        if (esave != null && (desc.getVersionPropertyName() == null || esave.getVersion() == version)) {
+            logCollectionChange(save, kind, location, items);
             
-            boolean found = false;
-
-            for (int i = 0; i < save.size(); i++) {                     
-                if (((kind == ChangeKind.ADD && save.get(i).getKind() == ChangeKind.REMOVE)
-                    || (kind == ChangeKind.REMOVE && save.get(i).getKind() == ChangeKind.ADD))
-                    && items.length == 1 && save.get(i).getItems().length == 1 
-                    && isSame(items[0], save.get(i).getItems()[0]) && location == save.get(i).getLocation()) {
-                    
-                    save.remove(i);
-                    // Adjust location of other saved events because an element added/removed locally has been removed/added
-                    for (Change ce : save) {
-                        if (kind == ChangeKind.REMOVE && ce.getKind() == ChangeKind.ADD && ce.getLocation() > location)
-                            ce.moveLocation(-1);
-                        else if (kind == ChangeKind.ADD && ce.getKind() == ChangeKind.REMOVE && ce.location > location)
-                            ce.moveLocation(1);
-                    }
-                    
-                    if (save.size() == 0) {
-                        esave.remove(propName);
-                        int count = 0;
-                        for (String p : esave.keySet()) {
-                            if (!p.equals(desc.getVersionPropertyName()))
-                                count++;
-                        }
-                        if (count == 0) {
-                            savedProperties.remove(owner);
-                            dirtyCount--;
-                        }
-                    }
-                    i--;
-                    found = true;
-                }
-                else if (kind == ChangeKind.REPLACE && save.get(i).getKind() == ChangeKind.REPLACE
-                    && items.length == 1 && save.get(i).getItems().length == 1
-                    && location == save.get(i).getLocation()) {
-                    
-                    if (isSame(((Object[])items[0])[0], ((Object[])save.get(i).getItems()[0])[1])
-                        && isSame(((Object[])items[0])[1], ((Object[])save.get(i).getItems()[0])[0])) {
-                        
-                        save.remove(i);
-                        if (save.isEmpty()) {
-                            esave.remove(propName);
-                            int count = 0;
-                            for (Object p : esave.keySet()) {
-                                if (!p.equals(desc.getVersionPropertyName()))
-                                    count++;
-                            }
-                            if (count == 0) {
-                                savedProperties.remove(owner);
-                                dirtyCount--;
-                            }
-                        }
-                        i--;
-                    }
-                    else {
-                        ((Object[])save.get(i).getItems()[0])[1] = ((Object[])items[0])[1];
-                    }
-                    found = true;
+            if (save.isEmpty()) {
+                esave.remove(propName);
+                if (!esave.hasChanges()) {
+                    savedProperties.remove(owner);
+                    dirtyCount--;
                 }
             }
-            if (!found) {
-                // Adjust location of previously saved events because a local change has moved collection content
-                for (int j = 0; j < save.size(); j++) {
-                    if (kind == ChangeKind.REMOVE && save.get(j).getKind() == ChangeKind.REMOVE && location <= save.get(j).getLocation() && save.get(j).getLocation() > 0)
-                        save.get(j).moveLocation(-1);
-                    else if (kind == ChangeKind.ADD && save.get(j).getKind() == ChangeKind.ADD && location <= save.get(j).getLocation())
-                        save.get(j).moveLocation(1);
-                }
-
-                save.add(new Change(kind, location, items));
-            }
         }
         
         notifyEntityDirtyChange(owner, owner, oldDirtyEntity);
@@ -495,16 +475,12 @@ public class DirtyCheckContextImpl implements DirtyCheckContext {
         EntityDescriptor desc = PersistenceManager.getEntityDescriptor(owner);
         boolean oldDirtyEntity = isEntityChanged(owner);
         
-        Map<String, Object> esave = savedProperties.get(owner);
+        SavedProperties esave = savedProperties.get(owner);
         boolean unsaved = esave == null;
+        Object version = desc.getVersionPropertyName() != null ? dataManager.getProperty(owner, desc.getVersionPropertyName()) : null;
         
-        if (unsaved || (desc.getVersionPropertyName() != null && 
-            (esave.get(desc.getVersionPropertyName()) != dataManager.getProperty(owner, desc.getVersionPropertyName()) 
-                && !(esave.get(desc.getVersionPropertyName()) == null && dataManager.getProperty(owner, desc.getVersionPropertyName()) == null)))) {
-
-            esave = new HashMap<String, Object>();
-            if (desc.getVersionPropertyName() != null)
-                esave.put(desc.getVersionPropertyName(), dataManager.getProperty(owner, desc.getVersionPropertyName()));
+        if (unsaved || (desc.getVersionPropertyName() != null && esave.getVersion() != version)) {
+            esave = newSavedProperties(owner, desc, version);
             savedProperties.put(owner, esave);
             if (unsaved)
                 dirtyCount++;
@@ -516,64 +492,16 @@ public class DirtyCheckContextImpl implements DirtyCheckContext {
             esave.put(propName, save);
         }
         
-        if (esave != null && (desc.getVersionPropertyName() == null 
-            || esave.get(desc.getVersionPropertyName()) == dataManager.getProperty(owner, desc.getVersionPropertyName())
-            || (esave.get(desc.getVersionPropertyName()) == null && dataManager.getProperty(owner, desc.getVersionPropertyName()) == null))) {
-                
-            boolean found = false;
-
-            for (int i = 0; i < save.size(); i++) {
-                if (((kind == ChangeKind.ADD && save.get(i).getKind() == ChangeKind.REMOVE)
-                    || (kind == ChangeKind.REMOVE && save.get(i).getKind() == ChangeKind.ADD))
-                    && items.length == 1 && save.get(i).getItems().length == 1 && location == save.get(i).getLocation() 
-                    && isSame(((Object[])items[0])[0], ((Object[])save.get(i).items[0])[0]) && isSame(((Object[])items[0])[1], ((Object[])save.get(i).items[0])[1])) {
-                    
-                    save.remove(i);
-                    if (save.size() == 0) {
-                        esave.remove(propName);
-                        int count = 0;
-                        for (String p : esave.keySet()) {
-                            if (!p.equals(desc.getVersionPropertyName()))
-                                count++;
-                        }
-                        if (count == 0) {
-                            savedProperties.remove(owner);
-                            dirtyCount--;
-                        }
-                    }
-                    i--;
-                    found = true;
-                }
-                else if (kind == ChangeKind.REPLACE && save.get(i).getKind() == ChangeKind.REPLACE
-                    && items.length == 1 && save.get(i).getItems().length == 1
-                    && isSame(((Object[])items[0])[0], ((Object[])save.get(i).getItems()[0])[0])) {
-                    
-                    if (isSame(((Object[])items[0])[1], ((Object[])save.get(i).getItems()[0])[2])
-                        && isSame(((Object[])items[0])[2], ((Object[])save.get(i).getItems()[0])[1])) {
-                        
-                        save.remove(i);
-                        if (save.isEmpty()) {
-                            esave.remove(propName);
-                            int count = 0;
-                            for (Object p : esave.keySet()) {
-                                if (!p.equals(desc.getVersionPropertyName()))
-                                    count++;
-                            }
-                            if (count == 0) {
-                                savedProperties.remove(owner);
-                                dirtyCount--;
-                            }
-                        }
-                        i--;
-                    }
-                    else {
-                        ((Object[])save.get(i).getItems()[0])[2] = ((Object[])items[0])[2];
-                    }
-                    found = true;
+        if (esave != null && (desc.getVersionPropertyName() == null || esave.getVersion() == version)) {
+            logMapChange(save, kind, location, items);
+            
+            if (save.isEmpty()) {
+                esave.remove(propName);
+                if (!esave.hasChanges()) {
+                    savedProperties.remove(owner);
+                    dirtyCount--;
                 }
             }
-            if (!found)
-                save.add(new Change(kind, location, items));
         }
         
         notifyEntityDirtyChange(owner, owner, oldDirtyEntity);
@@ -582,6 +510,215 @@ public class DirtyCheckContextImpl implements DirtyCheckContext {
     }
 
 
+    /**
+     *  @private
+     *  Record a collection change in the change log of a collection property
+     *  
+     *  The log is replayed backwards to reset the collection. A removal of an element added locally or an add of an element
+     *  removed locally at the same place cancels the previous change, and the locations of the following changes are rebased.
+     *  Consecutive adds and removes, and replaces following an add or a replace are merged with the last change, so the log
+     *  stays proportional to the net difference with the saved collection.
+     */
+    private void logCollectionChange(List<Change> save, ChangeKind kind, int location, Object[] items) {
+        if (items.length == 1 && kind == ChangeKind.REMOVE && cancelAdd(save, location, items[0]))
+            return;
+        if (items.length == 1 && kind == ChangeKind.ADD && cancelRemove(save, location, items[0]))
+            return;
+        
+        Change last = save.isEmpty() ? null : save.get(save.size()-1);
+        if (last != null) {
+            int offset = location - last.getLocation();
+            int length = last.getItems().length;
+            
+            if (kind == ChangeKind.ADD && last.getKind() == ChangeKind.ADD && offset >= 0 && offset <= length) {
+                last.insertItems(offset, items);
+                return;
+            }
+            else if (kind == ChangeKind.REMOVE && last.getKind() == ChangeKind.REMOVE && offset == 0) {
+                last.insertItems(length, items);
+                return;
+            }
+            else if (kind == ChangeKind.REMOVE && last.getKind() == ChangeKind.REMOVE && offset == -items.length) {
+                last.insertItems(0, items);
+                last.moveLocation(-items.length);
+                return;
+            }
+            else if (kind == ChangeKind.REPLACE && last.getKind() == ChangeKind.ADD && offset >= 0 && offset + items.length <= length) {
+                // Replace of elements added locally
+                for (int z = 0; z < items.length; z++)
+                    last.getItems()[offset+z] = ((Object[])items[z])[1];
+                return;
+            }
+            else if (kind == ChangeKind.REPLACE && last.getKind() == ChangeKind.REPLACE && offset == 0 && items.length == 1 && length == 1) {
+                Object[] replaced = (Object[])last.getItems()[0];
+                if (isSame(((Object[])items[0])[1], replaced[0]))
+                    save.remove(save.size()-1);
+                else
+                    replaced[1] = ((Object[])items[0])[1];
+                return;
+            }
+            else if (kind == ChangeKind.REMOVE && last.getKind() == ChangeKind.REPLACE && offset == 0 && items.length == 1 && length == 1
+                && isSame(items[0], ((Object[])last.getItems()[0])[1])) {
+                // Remove of an element replaced locally
+                save.set(save.size()-1, new Change(ChangeKind.REMOVE, location, new Object[] { ((Object[])last.getItems()[0])[0] }));
+                return;
+            }
+        }
+        
+        save.add(new Change(kind, location, items));
+    }
+    
+    /**
+     *  @private
+     *  Cancel the add of an element that is removed at the location where it is now
+     */
+    private boolean cancelAdd(List<Change> save, int location, Object item) {
+        for (int i = save.size()-1; i >= 0; i--) {
+            Change ce = save.get(i);
+            if (ce.getKind() != ChangeKind.ADD)
+                continue;
+            
+            for (int k = 0; k < ce.getItems().length; k++) {
+                if (!isSame(item, ce.getItems()[k]) || trackElement(save, i, ce.getLocation()+k, false) != location)
+                    continue;
+                
+                trackElement(save, i, ce.getLocation()+k, true);
+                ce.removeItem(k);
+                if (ce.getItems().length == 0)
+                    save.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     *  @private
+     *  Cancel the remove of an element that is added back at the place it has been removed from
+     */
+    private boolean cancelRemove(List<Change> save, int location, Object item) {
+        for (int i = save.size()-1; i >= 0; i--) {
+            Change ce = save.get(i);
+            if (ce.getKind() != ChangeKind.REMOVE)
+                continue;
+            
+            for (int k = 0; k < ce.getItems().length; k++) {
+                if (!isSame(item, ce.getItems()[k]) || trackGap(save, i, ce.getLocation(), false) != location)
+                    continue;
+                
+                trackGap(save, i, ce.getLocation(), true);
+                
+                // The element is kept, elements removed before and after it are now removed by two changes
+                Object[] before = new Object[k];
+                Object[] after = new Object[ce.getItems().length-k-1];
+                System.arraycopy(ce.getItems(), 0, before, 0, before.length);
+                System.arraycopy(ce.getItems(), k+1, after, 0, after.length);
+                save.remove(i);
+                if (after.length > 0)
+                    save.add(i, new Change(ChangeKind.REMOVE, ce.getLocation()+1, after));
+                if (before.length > 0)
+                    save.add(i, new Change(ChangeKind.REMOVE, ce.getLocation(), before));
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     *  @private
+     *  Follow the position of an element added by a change through the following changes
+     *  
+     *  @param rebase when true, shift the following changes as if the element had never been added
+     *  @return position of the element after the last change, -1 if it has been removed or replaced
+     */
+    private int trackElement(List<Change> save, int index, int position, boolean rebase) {
+        for (int j = index+1; j < save.size(); j++) {
+            Change ce = save.get(j);
+            int length = ce.getItems().length;
+            if (ce.getLocation() > position) {
+                if (rebase)
+                    ce.moveLocation(-1);
+            }
+            else if (ce.getKind() == ChangeKind.ADD)
+                position += length;
+            else if (ce.getKind() == ChangeKind.REMOVE && ce.getLocation() + length <= position)
+                position -= length;
+            else if (ce.getLocation() + length > position)
+                return -1;
+        }
+        return position;
+    }
+    
+    /**
+     *  @private
+     *  Follow the place of an element removed by a change through the following changes
+     *  
+     *  @param rebase when true, shift the following changes as if the element had never been removed
+     *  @return place of the element after the last change, -1 if it cannot be determined
+     */
+    private int trackGap(List<Change> save, int index, int position, boolean rebase) {
+        for (int j = index+1; j < save.size(); j++) {
+            Change ce = save.get(j);
+            int length = ce.getItems().length;
+            if (ce.getLocation() > position || (ce.getLocation() == position && ce.getKind() != ChangeKind.ADD)) {
+                if (rebase)
+                    ce.moveLocation(1);
+            }
+            else if (ce.getLocation() == position)
+                return -1;
+            else if (ce.getKind() == ChangeKind.ADD)
+                position += length;
+            else if (ce.getLocation() + length > position)
+                return -1;  // Removed or replaced range spanning the place
+            else if (ce.getKind() == ChangeKind.REMOVE)
+                position -= length;
+        }
+        return position;
+    }
+    
+    /**
+     *  @private
+     *  Record a map change in the change log of a map property
+     *  
+     *  The log holds at most one change by key: successive changes on the same key are merged
+     *  and changes that restore the saved value are removed
+     */
+    private void logMapChange(List<Change> save, ChangeKind kind, int location, Object[] items) {
+        if (items.length == 1) {
+            Object[] item = (Object[])items[0];
+            for (int i = 0; i < save.size(); i++) {
+                Change ce = save.get(i);
+                if (ce.getItems().length != 1 || !isSame(item[0], ((Object[])ce.getItems()[0])[0]))
+                    continue;
+                
+                Object[] saved = (Object[])ce.getItems()[0];
+                if (kind == ChangeKind.REMOVE && ce.getKind() == ChangeKind.ADD && isSame(item[1], saved[1]))
+                    save.remove(i);
+                else if (kind == ChangeKind.ADD && ce.getKind() == ChangeKind.REMOVE) {
+                    if (isSame(item[1], saved[1]))
+                        save.remove(i);
+                    else
+                        save.set(i, new Change(ChangeKind.REPLACE, ce.getLocation(), new Object[] { new Object[] { item[0], saved[1], item[1] } }));
+                }
+                else if (kind == ChangeKind.REPLACE && ce.getKind() == ChangeKind.REPLACE) {
+                    if (isSame(item[1], saved[2]) && isSame(item[2], saved[1]))
+                        save.remove(i);
+                    else
+                        saved[2] = item[2];
+                }
+                else if (kind == ChangeKind.REPLACE && ce.getKind() == ChangeKind.ADD)
+                    saved[1] = item[2];
+                else if (kind == ChangeKind.REMOVE && ce.getKind() == ChangeKind.REPLACE)
+                    save.set(i, new Change(ChangeKind.REMOVE, ce.getLocation(), new Object[] { new Object[] { item[0], saved[1] } }));
+                else
+                    continue;
+                return;
+            }
+        }
+        
+        save.add(new Change(kind, location, items));
+    }
+    
     /**
      *  @private 
      *  Mark an object merged from the server as not dirty
@@ -621,7 +758,7 @@ public class DirtyCheckContextImpl implements DirtyCheckContext {
      *  @return true if the entity is still dirty after comparing with incoming object
      */ 
     public boolean checkAndMarkNotDirty(Identifiable entity, Identifiable source) {
-        Map<String, Object> save = savedProperties.get(entity);
+        SavedProperties save = savedProperties.get(entity);
         if (save == null)
             return false;
         
@@ -646,12 +783,7 @@ public class DirtyCheckContextImpl implements DirtyCheckContext {
         for (String propName : merged)
             save.remove(propName);
         
-        int count = 0;
-        for (String propName : save.keySet()) {
-            if (!propName.equals(desc.getVersionPropertyName()))
-                count++;
-        }
-        if (count == 0) {
+        if (!save.hasChanges()) {
             savedProperties.remove(entity);
             dirtyCount--;
         }
@@ -885,5 +1017,20 @@ public class DirtyCheckContextImpl implements DirtyCheckContext {
         public void moveLocation(int offset) {
             location += offset;
         }
+        
+        void removeItem(int index) {
+            Object[] newItems = new Object[items.length-1];
+            System.arraycopy(items, 0, newItems, 0, index);
+            System.arraycopy(items, index+1, newItems, index, newItems.length-index);
+            items = newItems;
+        }
+        
+        void insertItems(int index, Object[] added) {
+            Object[] newItems = new Object[items.length+added.length];
+            System.arraycopy(items, 0, newItems, 0, index);
+            System.arraycopy(added, 0, newItems, index, added.length);
+            System.arraycopy(items, index, newItems, index+added.length, items.length-index);
+            items = newItems;
+        }
     }
 }
@@ -5,6 +5,8 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.granite.logging.Logger;
 import org.granite.messaging.amf.RemoteClass;
@@ -15,6 +17,7 @@ public class EntityDescriptor {
     @SuppressWarnings("unused")
     private final static Logger log = Logger.getLogger("org.granite.tide.data.EntityDescriptor");
     
+    private final Class<?> entityClass;
     private final String className;
     private final String idPropertyName;
     private final String versionPropertyName;
@@ -23,9 +26,13 @@ public class EntityDescriptor {
     private final Field initField;
     
     private final Map<String, Boolean> lazy = new HashMap<String, Boolean>();
+    private final Map<String, Integer> propertySlots = new HashMap<String, Integer>();
+    private String[] propertyNames = new String[16];
+    private final ConcurrentMap<String, PropertyAccessor> propertyAccessors = new ConcurrentHashMap<String, PropertyAccessor>();
     
     
     public EntityDescriptor(Object entity) {        
+        entityClass = entity.getClass();
         if (entity.getClass().isAnnotationPresent(RemoteClass.class))
             className = entity.getClass().getAnnotation(RemoteClass.class).value();
         else
@@ -37,6 +44,8 @@ public class EntityDescriptor {
         
         for (Method m : entity.getClass().getMethods()) {
             if (m.getName().startsWith("get") && m.getParameterTypes().length == 0 && m.getReturnType() != Void.class) {
+                if (m.getDeclaringClass() != Object.class)
+                    getPropertySlot(Introspector.decapitalize(m.getName().substring(3)));
                 if (m.isAnnotationPresent(Id.class))
                     idPropertyName = Introspector.decapitalize(m.getName().substring(3));
                 else if (m.isAnnotationPresent(Version.class))
@@ -113,4 +122,61 @@ public class EntityDescriptor {
     public Field getInitializedField() {
         return initField;
     }
+    
+    /**
+     *  Slot number of a property, properties with a getter are numbered when the descriptor is built
+     *  and other properties when they are first requested
+     *  
+     *  @param propertyName property name
+     *  @return slot number
+     */
+    public synchronized int getPropertySlot(String propertyName) {
+        Integer slot = propertySlots.get(propertyName);
+        if (slot != null)
+            return slot.intValue();
+        
+        int newSlot = propertySlots.size();
+        if (newSlot == propertyNames.length) {
+            String[] names = new String[propertyNames.length * 2];
+            System.arraycopy(propertyNames, 0, names, 0, propertyNames.length);
+            propertyNames = names;
+        }
+        propertyNames[newSlot] = propertyName;
+        propertySlots.put(propertyName, newSlot);
+        return newSlot;
+    }
+    
+    /**
+     *  @param propertyName property name
+     *  @return slot number of the property, -1 if no slot has been assigned
+     */
+    public synchronized int findPropertySlot(String propertyName) {
+        Integer slot = propertySlots.get(propertyName);
+        return slot != null ? slot.intValue() : -1;
+    }
+    
+    public synchronized String getPropertyName(int slot) {
+        return propertyNames[slot];
+    }
+    
+    public synchronized int getPropertySlotCount() {
+        return propertySlots.size();
+    }
+    
+    /**
+     *  Accessor methods of a property, resolved on first use and kept for the class
+     *  
+     *  @param propertyName property name
+     *  @return property accessor
+     */
+    public PropertyAccessor getPropertyAccessor(String propertyName) {
+        PropertyAccessor accessor = propertyAccessors.get(propertyName);
+        if (accessor == null) {
+            accessor = new PropertyAccessor(entityClass, propertyName);
+            PropertyAccessor existing = propertyAccessors.putIfAbsent(propertyName, accessor);
+            if (existing != null)
+                accessor = existing;
+        }
+        return accessor;
+    }
 }
@@ -0,0 +1,123 @@
+package org.granite.tide.data;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.granite.util.WeakIdentityHashMap;
+
+
+/**
+ *  Index that holds weak references to entities by class name and id
+ *  
+ *  Each entity is indexed under a single id, indexing it again under another id replaces the previous key.
+ */
+public class EntityIdIndex {
+    
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    private final Map<Key, Ref> entities = new HashMap<Key, Ref>();
+    private final WeakIdentityHashMap<Object, Key> keys = new WeakIdentityHashMap<Object, Key>();
+    
+    
+    public void clear() {
+        while (queue.poll() != null)
+            ;
+        entities.clear();
+        keys.clear();
+    }
+    
+    public void put(Object entity, Object id) {
+        expunge();
+        
+        Key key = id != null ? new Key(entity.getClass().getName(), id) : null;
+        Key old = keys.get(entity);
+        if (old != null && old.equals(key))
+            return;
+        
+        if (old != null)
+            unmap(old, entity);
+        
+        if (key != null) {
+            Ref ref = entities.put(key, new Ref(entity, key, queue));
+            if (ref != null && ref.get() != null && ref.get() != entity)
+                keys.remove(ref.get());
+            keys.put(entity, key);
+        }
+        else
+            keys.remove(entity);
+    }
+    
+    public Object get(String className, Object id) {
+        expunge();
+        
+        Ref ref = entities.get(new Key(className, id));
+        return ref != null ? ref.get() : null;
+    }
+    
+    public void remove(Object entity) {
+        expunge();
+        
+        Key key = keys.remove(entity);
+        if (key != null)
+            unmap(key, entity);
+    }
+    
+    public int size() {
+        expunge();
+        return entities.size();
+    }
+    
+    private void unmap(Key key, Object entity) {
+        Ref ref = entities.get(key);
+        if (ref != null && ref.get() == entity)
+            entities.remove(key);
+    }
+    
+    private void expunge() {
+        Ref ref;
+        while ((ref = (Ref)queue.poll()) != null) {
+            if (entities.get(ref.key) == ref)
+                entities.remove(ref.key);
+        }
+    }
+    
+    
+    private static final class Key {
+        
+        private final String className;
+        private final Object id;
+        private final int hash;
+        
+        public Key(String className, Object id) {
+            this.className = className;
+            this.id = id;
+            this.hash = 31 * className.hashCode() + id.hashCode();
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key key = (Key)obj;
+            return hash == key.hash && className.equals(key.className) && id.equals(key.id);
+        }
+    }
+    
+    private static final class Ref extends WeakReference<Object> {
+        
+        private final Key key;
+        
+        public Ref(Object entity, Key key, ReferenceQueue<Object> queue) {
+            super(entity, queue);
+            this.key = key;
+        }
+    }
+}
@@ -171,6 +171,14 @@ public interface EntityManager {
     
     public MergeContext initMerge();
     
+    /**
+     *  Prepare the merge of data received from the server, the received data can be collected and compared
+     *  in a background thread but the snapshot of the cached entities must be taken in the UI thread
+     *
+     *  @return staged merge
+     */
+    public StagedMerge newStagedMerge();
+    
     public Object mergeExternal(final MergeContext mergeContext, Object obj, Object previous, Expression expr, Object parent, String propertyName, String setter, boolean forceUpdate);
     
     /**
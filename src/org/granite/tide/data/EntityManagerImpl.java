@@ -2,8 +2,10 @@ package org.granite.tide.data;
 
 import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -24,10 +26,8 @@ import org.granite.tide.collections.ManagedPersistentCollection;
 import org.granite.tide.collections.ManagedPersistentMap;
 import org.granite.tide.data.DataManager.ChangeKind;
 import org.granite.tide.data.ExpressionEvaluator.Value;
-import org.granite.tide.data.UIDWeakSet.Matcher;
 import org.granite.tide.rpc.ServerSession;
 import org.granite.util.ClassUtil;
-import org.granite.util.WeakIdentityHashMap;
 
 
 public class EntityManagerImpl implements EntityManager {
@@ -41,7 +41,9 @@ public class EntityManagerImpl implements EntityManager {
     private TrackingContext trackingContext = null;
     private DirtyCheckContext dirtyCheckContext = null;
     private UIDWeakSet entitiesByUid = new UIDWeakSet();
-    private WeakIdentityHashMap<Object, List<Object>> entityReferences = new WeakIdentityHashMap<Object, List<Object>>();
+    private EntityIdIndex entitiesById = new EntityIdIndex();
+    private ReferenceGraph<Expression> entityReferences = new ReferenceGraph<Expression>(entitiesByUid);
+    private volatile int modificationCount = 0;
     
     private DataMerger[] customMergers = null;
     
@@ -83,12 +85,14 @@ public class EntityManagerImpl implements EntityManager {
      *  Destroys all components/context variables
      */
     public void clear() {
+        modificationCount++;
         // TODO: clear entities
 //        for each (var e:Object in _entitiesByUID.data) {
 //            if (e is IEntity)
 //                Managed.setEntityManager(IEntity(e), null);
 //        }
         entitiesByUid.clear();
+        entitiesById.clear();
         entityReferences.clear();
         dirtyCheckContext.clear(false);
         dataManager.clear();
@@ -262,6 +266,7 @@ public class EntityManagerImpl implements EntityManager {
      *  @param putInCache put entity in cache
      */
     public void attachEntity(Identifiable entity, boolean putInCache) {
+        modificationCount++;
         EntityManager em = PersistenceManager.getEntityManager(entity);
         if (em != null && em != this && !em.isActive()) {
             throw new Error("The entity instance " + entity
@@ -270,8 +275,10 @@ public class EntityManagerImpl implements EntityManager {
         }
         
         PersistenceManager.setEntityManager(entity, this);
-        if (putInCache)
-            entitiesByUid.put(entity);         
+        if (putInCache) {
+            entitiesByUid.put(entity);
+            indexEntity(entity);
+        }
     }
     
     /**
@@ -293,11 +300,26 @@ public class EntityManagerImpl implements EntityManager {
      *  @param removeFromCache remove entity from cache
      */
     public void detachEntity(Identifiable entity, boolean removeFromCache) {
+        modificationCount++;
         dirtyCheckContext.markNotDirty(entity, entity);
         
         PersistenceManager.setEntityManager(entity, null);
-        if (removeFromCache)
-            entitiesByUid.remove(entity.getClass().getName() + ":" + entity.getUid());
+        if (removeFromCache) {
+            entitiesByUid.remove(entity.getClass().getName(), entity.getUid());
+            entitiesById.remove(entity);
+        }
+    }
+    
+    /**
+     *  @private
+     *  Index an entity by its class name and id to resolve uninitialized proxies
+     * 
+     *  @param entity an entity
+     */
+    private void indexEntity(Object entity) {
+        EntityDescriptor desc = PersistenceManager.getEntityDescriptor(entity);
+        if (desc.getIdPropertyName() != null)
+            entitiesById.put(entity, dataManager.getProperty(entity, desc.getIdPropertyName()));
     }
     
     
@@ -321,10 +343,10 @@ public class EntityManagerImpl implements EntityManager {
     public Object getCachedObject(Object object, boolean nullIfAbsent) {
         Object entity = null;
         if (object instanceof Identifiable) {
-            entity = entitiesByUid.get(object.getClass().getName() + ":" + ((Identifiable)object).getUid());
+            entity = entitiesByUid.get(object.getClass().getName(), ((Identifiable)object).getUid());
         }
         else if (object instanceof EntityRef) {
-            entity = entitiesByUid.get(((EntityRef)object).getClassName() + ":" + ((EntityRef)object).getUid());
+            entity = entitiesByUid.get(((EntityRef)object).getClassName(), ((EntityRef)object).getUid());
         }
 
         if (entity != null)
@@ -342,15 +364,7 @@ public class EntityManagerImpl implements EntityManager {
      *  @param object an entity
      */
     public Object[] getOwnerEntity(Object object) {
-        List<Object> refs = entityReferences.get(object);
-        if (refs == null)
-            return null;
-        
-        for (int i = 0; i < refs.size(); i++) {
-            if (refs.get(i) instanceof Object[] && ((Object[])refs.get(i))[0] instanceof String)
-                return new Object[] { entitiesByUid.get((String)((Object[])refs.get(i))[0]), ((Object[])refs.get(i))[1] };
-        }
-        return null;
+        return entityReferences.getOwner(object);
     }
 
     /**
@@ -360,19 +374,7 @@ public class EntityManagerImpl implements EntityManager {
      *  @param object an entity
      */
     public List<Object[]> getOwnerEntities(Object object) {
-        List<Object> refs = entityReferences.get(object);
-        if (refs == null)
-            return null;
-
-        List<Object[]> owners = new ArrayList<Object[]>();
-        for (int i = 0; i < refs.size(); i++) {
-            if (refs.get(i) instanceof Object[] && ((Object[])refs.get(i))[0] instanceof String) {
-            	Object owner = entitiesByUid.get((String)((Object[])refs.get(i))[0]);
-            	if (owner != null)	// May have been garbage collected
-            		owners.add(new Object[] { owner, ((Object[])refs.get(i))[1] });
-            }
-        }
-        return owners;
+        return entityReferences.getOwners(object);
     }
 
     
@@ -388,55 +390,22 @@ public class EntityManagerImpl implements EntityManager {
         else if (recurse)
             throw new Error("Cache must be provided to get reference recursively");
         
-        List<Object> refs = entityReferences.get(obj);
-        if (refs == null)
-            return null;
-        
-        for (int i = 0; i < refs.size(); i++) {
+        for (Expression ref : entityReferences.getExpressions(obj)) {
             // Return first context expression reference that is remote enabled
-            if (refs.get(i) instanceof Expression && expressionEvaluator != null && expressionEvaluator.getRemoteSync(refs.get(i)) != SyncMode.NONE)
-                return (Expression)refs.get(i);
+            if (expressionEvaluator != null && expressionEvaluator.getRemoteSync(ref) != SyncMode.NONE)
+                return ref;
         }
         
         if (recurse) {
-            Object ref = null;
-            for (int i = 0; i < refs.size(); i++) {
-                if (refs.get(i) instanceof Object[] && ((Object[])refs.get(i))[0] instanceof String) {
-                    ref = entitiesByUid.get((String)((Object[])refs.get(i))[0]);
-                    if (ref != null) {
-                        ref = getReference(ref, recurse, cache);
-                        if (ref != null)
-                            return (Expression)ref;
-                    }
-                }
-                else if (refs.get(i) instanceof Object[] && !(refs.get(i) instanceof Expression)) {
-                    ref = ((Object[])refs.get(i))[0];
-                    if (ref != null) {
-                        ref = getReference(ref, recurse, cache);
-                        if (ref != null)
-                            return (Expression)ref;
-                    } 
-                }
+            for (Object parent : entityReferences.getParents(obj)) {
+                Expression ref = getReference(parent, recurse, cache);
+                if (ref != null)
+                    return ref;
             }
         }
         return null;
     }
     
-    /**
-     *  @private
-     *  Init references array for an object
-     *   
-     *  @param obj an entity
-     */
-    private List<Object> initRefs(Object obj) {
-        List<Object> refs = entityReferences.get(obj);
-        if (refs == null) {
-            refs = new ArrayList<Object>();
-            entityReferences.put(obj, refs);
-        }
-        return refs;
-    }
-    
 
     /**
      *  Registers a reference to the provided object with either a parent or res
@@ -455,53 +424,13 @@ public class EntityManagerImpl implements EntityManager {
         if (obj instanceof ManagedPersistentAssociation)
             obj = ((ManagedPersistentAssociation)obj).getCollection();
         
-        List<Object> refs = entityReferences.get(obj);
-        if (!(obj instanceof LazyableCollection) && res != null) {
-            refs = initRefs(obj);
-            boolean found = false;
-            for (int i = 0; i < refs.size(); i++) {
-                if (!(refs.get(i) instanceof Expression))
-                    continue; 
-                Expression r = (Expression)refs.get(i);
-                if (r.getComponentName().equals(res.getComponentName()) 
-                        && ((r.getExpression() == null && res.getExpression() == null) || (r.getExpression() != null && r.getExpression().equals(res.getExpression())))) {
-                    found = true;
-                    break;
-                }
-            }
-            if (!found)
-                refs.add(res);
-        }
-        boolean found = false;
-        if (parent instanceof Identifiable) {
-            String ref = parent.getClass().getName() + ":" + ((Identifiable)parent).getUid();
-            if (refs == null)
-                refs = initRefs(obj);
-            else {
-                for (int i = 0; i < refs.size(); i++) {
-                    if (refs.get(i) instanceof Object[] && ((Object[])refs.get(i))[0].equals(ref)) {
-                        found = true;
-                        break;
-                    }
-                }
-            }
-            if (!found)
-                refs.add(new Object[] { ref, propName });
-        }
-        else if (parent != null) {
-            if (refs == null)
-                refs = initRefs(obj);
-            else {
-                for (int i = 0; i < refs.size(); i++) {
-                    if (refs.get(i) instanceof Object[] && ((Object[])refs.get(i))[0].equals(parent)) {
-                        found = true;
-                        break;
-                    }
-                }
-            }
-            if (!found)
-                refs.add(new Object[] { parent, propName });
-        }
+        if (!(obj instanceof LazyableCollection) && res != null)
+            entityReferences.addExpression(obj, res.getPath(), res);
+        
+        if (parent instanceof Identifiable)
+            entityReferences.addOwner(obj, (Identifiable)parent, propName);
+        else if (parent != null)
+            entityReferences.addParent(obj, parent, propName);
     }
     
     /**
@@ -516,39 +445,17 @@ public class EntityManagerImpl implements EntityManager {
         if (obj instanceof ManagedPersistentAssociation)
             obj = ((ManagedPersistentAssociation)obj).getCollection();
         
-        List<Object> refs = entityReferences.get(obj);
-        if (refs == null)
+        if (!entityReferences.contains(obj))
             return;
         
-        int idx = -1;
-        if (parent instanceof Identifiable) {
-            for (int i = 0; i < refs.size(); i++) {
-                if (refs.get(i) instanceof Object[] && ((Object[])refs.get(i))[0].equals(parent.getClass().getName() + ":" + ((Identifiable)parent).getUid())) {
-                    idx = i;
-                    break;                    
-                }
-            }
-        }
-        else if (parent != null) {
-            for (int i = 0; i < refs.size(); i++) {
-                if (refs.get(i) instanceof Object[] && ((Object[])refs.get(i))[0].equals(parent)) {
-                    idx = i;
-                    break;                    
-                }
-            }
-        }
-        else if (res != null) {
-            for (int i = 0; i < refs.size(); i++) {
-                if (refs.get(i) instanceof Expression && ((Expression)refs.get(i)).getPath().equals(res.getPath())) {
-                    idx = i;
-                    break;
-                }
-            }
-        }
-        if (idx >= 0)
-            refs.remove(idx);
+        if (parent instanceof Identifiable)
+            entityReferences.removeOwner(obj, (Identifiable)parent);
+        else if (parent != null)
+            entityReferences.removeParent(obj, parent);
+        else if (res != null)
+            entityReferences.removeExpression(obj, res.getPath());
         
-        if (refs.size() == 0) {
+        if (entityReferences.isUnreferenced(obj)) {
             entityReferences.remove(obj);
             
             if (obj instanceof Identifiable)
@@ -575,8 +482,23 @@ public class EntityManagerImpl implements EntityManager {
     
     
     public MergeContext initMerge() {
+        modificationCount++;
         return new MergeContext(this, dirtyCheckContext, null);
     }
+    
+    /**
+     *  Number of modifications of the entity manager, incremented by merges, resets and local changes
+     */
+    int getModificationCount() {
+        return modificationCount;
+    }
+    
+    /**
+     *  {@inheritdoc}
+     */
+    public StagedMerge newStagedMerge() {
+        return new StagedMerge(this, entitiesByUid, dataManager);
+    }
 
     /**
      *  Merge an object coming from the server in the context
@@ -716,7 +638,7 @@ public class EntityManagerImpl implements EntityManager {
      *
      *  @return merged entity (=== previous when previous not null)
      */ 
-    private Object mergeEntity(MergeContext mergeContext, final Object obj, Object previous, Expression expr, Object parent, String propertyName) {
+    private Object mergeEntity(MergeContext mergeContext, Object obj, Object previous, Expression expr, Object parent, String propertyName) {
         if (obj != null || previous != null)
             log.debug("mergeEntity: %s previous %s%s", ObjectUtil.toString(obj), ObjectUtil.toString(previous), obj == previous ? " (same)" : "");
         
@@ -724,14 +646,10 @@ public class EntityManagerImpl implements EntityManager {
         Object p = null;
         if (obj instanceof Lazyable && !((Lazyable)obj).isInitialized()) {
             // If entity is uninitialized, try to lookup the cached instance by its class name and id (only works with Hibernate proxies)
-            final EntityDescriptor desc = PersistenceManager.getEntityDescriptor(obj);
+            EntityDescriptor desc = PersistenceManager.getEntityDescriptor(obj);
             if (desc.getIdPropertyName() != null) {
-                p = entitiesByUid.find(new Matcher() {
-                    public boolean match(Object o) {
-                        return o.getClass().getName().equals(obj.getClass().getName()) && 
-                            dataManager.getProperty(obj, desc.getIdPropertyName()).equals(dataManager.getProperty(o, desc.getIdPropertyName()));
-                    }
-                });
+                Object id = dataManager.getProperty(obj, desc.getIdPropertyName());
+                p = id != null ? entitiesById.get(obj.getClass().getName(), id) : null;
 
                 if (p != null) {
                     previous = p;
@@ -740,13 +658,19 @@ public class EntityManagerImpl implements EntityManager {
             }
         }
         else if (obj instanceof Identifiable) {
-            p = entitiesByUid.get(obj.getClass().getName() + ":" + ((Identifiable)obj).getUid());
+            p = entitiesByUid.get(obj.getClass().getName(), ((Identifiable)obj).getUid());
             if (p != null) {
                 // Trying to merge an entity that is already cached with itself: stop now, this is not necessary to go deeper in the object graph
                 // it should be already instrumented and tracked
                 if (obj == p)
                     return obj;
                 
+                // The staged merge found the received entity and its associations identical to the cached entity
+                if (mergeContext.getStagedMerge() != null && mergeContext.getStagedMerge().isUnchanged(obj) && !isSaved(p)) {
+                    mergeContext.putInCache(obj, p);
+                    return p;
+                }
+                
                 previous = p;
                 dest = previous;
             }
@@ -801,8 +725,10 @@ public class EntityManagerImpl implements EntityManager {
             if (mergeContext.isUninitializing() && parent instanceof Identifiable && propertyName != null) {
                 if (desc.getVersionPropertyName() != null && dataManager.getProperty(obj, desc.getVersionPropertyName()) != null 
                         && PersistenceManager.getEntityDescriptor(parent).isLazy(propertyName)) {
-                    if (defineProxy(desc, dest, obj))   // Only if entity can be proxied (has a detachedState)
+                    if (defineProxy(desc, dest, obj)) {  // Only if entity can be proxied (has a detachedState)
+                        indexEntity(dest);
                         return dest;
+                    }
                 }
             }
             
@@ -883,6 +809,9 @@ public class EntityManagerImpl implements EntityManager {
         if (dest != null)
             log.debug("mergeEntity result: %s", dest.toString());
         
+        if (dest instanceof Identifiable)
+            indexEntity(dest);
+        
         // Keep notified of collection updates to notify the server at next remote call
         dataManager.startTracking(dest, parent);
         
@@ -997,59 +926,12 @@ public class EntityManagerImpl implements EntityManager {
                 dataManager.startTracking(prevColl, parent);
                 tracking = true;
             }
-            
-            for (int i = 0; i < destColl.size(); i++) {
-                Object obj = destColl.get(i);
-                boolean found = false;
-                for (int j = 0; j < coll.size(); j++) {
-                    Object next = coll.get(j);
-                    if (PersistenceManager.objectEquals(dataManager, next, obj)) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found) {
-                    destColl.remove(i);
-                    i--;
-                }
-            }
         }
-        for (int i = 0; i < coll.size(); i++) {
-            Object obj = coll.get(i);
-            if (destColl != null) {
-                boolean found = false;
-                for (int j = i; j < destColl.size(); j++) {
-                    Object prev = destColl.get(j);
-                    if (i < destColl.size() && PersistenceManager.objectEquals(dataManager, prev, obj)) {
-                        obj = mergeExternal(mergeContext, obj, prev, propertyName != null ? expr : null, propertyName != null ? parent : null, propertyName, null, false);
-                        
-                        if (j != i) {
-                            destColl.remove(j);
-                            if (i < destColl.size())
-                                destColl.add(i, obj);
-                            else
-                                destColl.add(obj);
-                            if (i > j)
-                                j--;
-                        }
-                        else if (obj != prev)
-                            destColl.set(i, obj);
-                        
-                        found = true;
-                    }
-                }
-                if (!found) {
-                    obj = mergeExternal(mergeContext, obj, null, propertyName != null ? expr : null, propertyName != null ? parent : null, propertyName, null, false);
-                    
-                    if (mergeContext.isMergeUpdate()) {
-                        if (i < prevColl.size())
-                            destColl.add(i, obj);
-                        else
-                            destColl.add(obj);
-                    }
-                }
-            }
-            else {
+        if (destColl != null)
+            mergeCollectionItems(mergeContext, coll, destColl, expr, parent, propertyName);
+        else {
+            for (int i = 0; i < coll.size(); i++) {
+                Object obj = coll.get(i);
                 Object prev = obj;
                 obj = mergeExternal(mergeContext, obj, null, propertyName != null ? expr : null, propertyName != null ? parent : null, propertyName, null, false);
                 if (obj != prev)
@@ -1082,6 +964,127 @@ public class EntityManagerImpl implements EntityManager {
         return nextList;
     }
     
+    /**
+     *  @private 
+     *  Merge the elements of a collection coming from the server in an existing collection
+     *  
+     *  Incoming elements are matched with existing elements by class and uid (or id for uninitialized entities)
+     *  through hash indexes, and the existing collection is then updated with a minimal batch of mutations.
+     *  Its content is only merged and not reordered when the merge does not update the context.
+     *
+     *  @param coll external collection
+     *  @param destColl existing collection in the context
+     *  @param expr current path from the context
+     *  @param parent owner object for collections
+     *  @param propertyName property name in owner object
+     */
+    private void mergeCollectionItems(MergeContext mergeContext, List<Object> coll, List<Object> destColl, Expression expr, Object parent, String propertyName) {
+        int size = destColl.size();
+        boolean byId = hasUninitializedEntity(coll) || hasUninitializedEntity(destColl);
+        
+        // Hash indexes of the existing elements, elements with the same key are chained in order
+        Map<Object, Integer> uidIndex = new HashMap<Object, Integer>(size * 2);
+        int[] uidNext = new int[size];
+        Map<Object, Integer> idIndex = byId ? new HashMap<Object, Integer>(size * 2) : null;
+        int[] idNext = byId ? new int[size] : null;
+        for (int j = size - 1; j >= 0; j--) {
+            Object prev = destColl.get(j);
+            if (!isUninitializedEntity(prev))
+                uidNext[j] = indexOf(uidIndex.put(elementKey(prev), j));
+            else
+                uidNext[j] = -1;
+            if (byId) {
+                Object id = entityId(prev);
+                idNext[j] = id != null ? indexOf(idIndex.put(id, j)) : -1;
+            }
+        }
+        
+        boolean[] matched = new boolean[size];
+        int[] matches = new int[coll.size()];
+        Object[] items = new Object[coll.size()];
+        for (int i = 0; i < coll.size(); i++) {
+            Object obj = coll.get(i);
+            
+            int j = -1;
+            if (isUninitializedEntity(obj))
+                j = lookup(idIndex, idNext, entityId(obj), matched, null);
+            else {
+                j = lookup(uidIndex, uidNext, elementKey(obj), matched, null);
+                if (j < 0 && byId && obj instanceof Identifiable)
+                    j = lookup(idIndex, idNext, entityId(obj), matched, destColl);
+            }
+            if (j >= 0)
+                matched[j] = true;
+            matches[i] = j;
+            
+            items[i] = mergeExternal(mergeContext, obj, j >= 0 ? destColl.get(j) : null, propertyName != null ? expr : null, propertyName != null ? parent : null, propertyName, null, false);
+        }
+        
+        if (mergeContext.isMergeUpdate())
+            ListDiff.apply(destColl, matches, items);
+    }
+    
+    private static int indexOf(Integer index) {
+        return index != null ? index.intValue() : -1;
+    }
+    
+    /**
+     *  @private
+     *  Find the first unmatched element with the key, restricted to uninitialized entities when a collection is provided
+     */
+    private int lookup(Map<Object, Integer> index, int[] next, Object key, boolean[] matched, List<Object> uninitializedIn) {
+        if (index == null || key == null)
+            return -1;
+        
+        Integer head = index.get(key);
+        int j = indexOf(head);
+        while (j >= 0 && matched[j])
+            j = next[j];
+        // Drop matched elements from the head of the chain
+        if (head != null && j != head.intValue()) {
+            if (j >= 0)
+                index.put(key, j);
+            else
+                index.remove(key);
+        }
+        
+        while (j >= 0 && (matched[j] || (uninitializedIn != null && !isUninitializedEntity(uninitializedIn.get(j)))))
+            j = next[j];
+        return j;
+    }
+    
+    private static boolean isUninitializedEntity(Object obj) {
+        return obj instanceof Identifiable && obj instanceof Lazyable && !((Lazyable)obj).isInitialized();
+    }
+    
+    private static boolean hasUninitializedEntity(Collection<?> coll) {
+        for (Object obj : coll) {
+            if (isUninitializedEntity(obj))
+                return true;
+        }
+        return false;
+    }
+    
+    /**
+     *  @private
+     *  Hash key consistent with PersistenceManager.objectEquals for initialized entities and other objects
+     */
+    private static Object elementKey(Object obj) {
+        if (obj instanceof Identifiable)
+            return Arrays.asList(obj.getClass(), ((Identifiable)obj).getUid());
+        return obj != null ? Collections.singletonList(obj) : Collections.emptyList();
+    }
+    
+    private Object entityId(Object obj) {
+        if (!(obj instanceof Identifiable))
+            return null;
+        EntityDescriptor desc = PersistenceManager.getEntityDescriptor(obj);
+        if (desc.getIdPropertyName() == null)
+            return null;
+        Object id = dataManager.getProperty(obj, desc.getIdPropertyName());
+        return id != null ? Arrays.asList(obj.getClass(), id) : null;
+    }
+    
 //    /**
 //     *  @private 
 //     *  Merge an array coming from the server in the context
@@ -1196,15 +1199,29 @@ public class EntityManagerImpl implements EntityManager {
                 }
                 
                 if (mergeContext.isMergeUpdate()) {
+                    // Hash the incoming keys consistently with PersistenceManager.objectEquals
+                    boolean byId = hasUninitializedEntity(map.keySet()) || hasUninitializedEntity(prevMap.keySet());
+                    Set<Object> keys = new HashSet<Object>(map.size() * 2);
+                    Set<Object> ids = byId ? new HashSet<Object>() : null;
+                    Set<Object> uninitializedIds = byId ? new HashSet<Object>() : null;
+                    for (Object k : map.keySet()) {
+                        if (!isUninitializedEntity(k))
+                            keys.add(elementKey(k));
+                        Object id = byId ? entityId(k) : null;
+                        if (id != null) {
+                            ids.add(id);
+                            if (isUninitializedEntity(k))
+                                uninitializedIds.add(id);
+                        }
+                    }
+                    
                     Iterator<Object> imap = prevMap.keySet().iterator();
                     while (imap.hasNext()) {
                         Object key = imap.next();
-                        boolean found = false;
-                        for (Object k : map.keySet()) {
-                            if (PersistenceManager.objectEquals(dataManager, k, key)) {
-                                found = true;
-                                break;
-                            }
+                        boolean found = !isUninitializedEntity(key) && keys.contains(elementKey(key));
+                        if (!found && byId) {
+                            Object id = entityId(key);
+                            found = id != null && (isUninitializedEntity(key) ? ids.contains(id) : uninitializedIds.contains(id));
                         }
                         if (!found)
                             imap.remove();
@@ -1340,6 +1357,7 @@ public class EntityManagerImpl implements EntityManager {
      */
     public Object mergeFromEntityManager(EntityManager sourceEntityManager, Object obj, String externalDataSessionId, boolean uninitializing) {
         try {
+            modificationCount++;
             MergeContext mergeContext = new MergeContext(this, dirtyCheckContext, null);
             mergeContext.setSourceEntityManager(sourceEntityManager);
             mergeContext.setUninitializing(uninitializing);
@@ -1391,6 +1409,7 @@ public class EntityManagerImpl implements EntityManager {
      */
     public Object mergeExternalData(ServerSession serverSession, Object obj, Object prev, String externalDataSessionId, List<Object> removals) {
         try {
+            modificationCount++;
             MergeContext mergeContext = new MergeContext(this, dirtyCheckContext, null);
             mergeContext.setServerSession(serverSession);
             mergeContext.setExternalDataSessionId(externalDataSessionId);
@@ -1522,9 +1541,8 @@ public class EntityManagerImpl implements EntityManager {
                 }
 
                 /* May not be necessary, should be cleaned up by weak reference */
-                Map<String, Object> pvalues = dataManager.getPropertyValues(entity, false, true);
-                for (Object val : pvalues.values()) {
-                    if (val instanceof List<?> || val instanceof Map<?, ?> || (val != null && val.getClass().isArray()))
+                for (Object val : entityReferences.getOwned((Identifiable)entity)) {
+                    if (val instanceof List<?> || val instanceof Map<?, ?> || val.getClass().isArray())
                         entityReferences.remove(val);
                 }
 
@@ -1628,9 +1646,21 @@ public class EntityManagerImpl implements EntityManager {
         Map<String, Object> pval = dataManager.getPropertyValues(obj, false, false);
         List<String> rw = new ArrayList<String>();
         
+        // Only the changed properties of a cached entity have to be merged when the merge has been staged,
+        // the simple values of a new entity are already in place unless custom mergers may accept them
+        Set<String> changedProperties = null;
+        if (mergeContext.getStagedMerge() != null && obj != dest)
+            changedProperties = mergeContext.getStagedMerge().getChangedProperties(obj);
+        else if (mergeContext.getStagedMerge() != null && customMergers == null)
+            changedProperties = mergeContext.getStagedMerge().getAssociationProperties(obj);
+        
         boolean isEmbedded = parent instanceof Identifiable && !(obj instanceof Identifiable);
         for (Entry<String, Object> mval : pval.entrySet()) {
             String propName = mval.getKey();
+            if (changedProperties != null && !changedProperties.contains(propName)) {
+                rw.add(propName);
+                continue;
+            }
             Object o = mval.getValue();
             Object d = dataManager.getProperty(dest, propName);
             o = mergeExternal(mergeContext, o, d, expr, isEmbedded ? parent : dest, isEmbedded ? propertyName + "." + propName : propName, propName, false);
@@ -1647,6 +1677,9 @@ public class EntityManagerImpl implements EntityManager {
             if (o instanceof Identifiable || d instanceof Identifiable)
                 throw new IllegalStateException("Cannot merge the read-only property " + propName + " on bean " + obj + " with an Identifiable value, this will break local unicity and caching. Change property access to read-write.");  
             
+            if (changedProperties != null && !changedProperties.contains(propName))
+                continue;
+            
             mergeExternal(mergeContext, o, d, expr, parent != null ? parent : dest, propertyName != null ? propertyName + '.' + propName : propName, null, false);
         }
     }
@@ -1664,6 +1697,7 @@ public class EntityManagerImpl implements EntityManager {
 
     private void resetEntity(Identifiable entity, Set<Object> cache) {
         try {
+            modificationCount++;
             MergeContext mergeContext = new MergeContext(this, dirtyCheckContext, null);
             // Disable dirty check during reset of entity
             mergeContext.setMerging(true);
@@ -1683,6 +1717,7 @@ public class EntityManagerImpl implements EntityManager {
         try {
             Set<Object> cache = new HashSet<Object>();
             
+            modificationCount++;
             MergeContext mergeContext = new MergeContext(this, dirtyCheckContext, null);
             // Disable dirty check during reset of entity
             mergeContext.setMerging(true);
@@ -1710,6 +1745,7 @@ public class EntityManagerImpl implements EntityManager {
                 modifiedEntity = conflict.getReceivedEntity();
             
             try {
+                modificationCount++;
                 MergeContext mergeContext = new MergeContext(this, dirtyCheckContext, null);
                 
                 // Reset the local entity to its last stable state
@@ -1841,6 +1877,8 @@ public class EntityManagerImpl implements EntityManager {
          *  @param event collection event
          */ 
         public void entityPropertyChangeHandler(Object target, String property, Object oldValue, Object newValue) {
+            modificationCount++;
+            
             MergeContext mergeContext = MergeContext.get(PersistenceManager.getEntityManager(target));
             if ((mergeContext != null && mergeContext.getSourceEntityManager() == this) || !isActive())
                 return;
@@ -1857,6 +1895,10 @@ public class EntityManagerImpl implements EntityManager {
                 }
             }
             
+            if (target instanceof Identifiable && entitiesByUid.get(target.getClass().getName(), ((Identifiable)target).getUid()) == target
+                    && property.equals(PersistenceManager.getEntityDescriptor(target).getIdPropertyName()))
+                entitiesById.put(target, newValue);
+            
             log.debug("property changed: %s %s", ObjectUtil.toString(target));
             
             if (mergeContext == null || !mergeContext.isMerging() || mergeContext.isResolvingConflict()) {
@@ -1879,6 +1921,8 @@ public class EntityManagerImpl implements EntityManager {
          *  @param event collection event
          */ 
         public void collectionChangeHandler(ChangeKind kind, Object target, int location, Object[] items) {
+            modificationCount++;
+            
             MergeContext mergeContext = MergeContext.get(PersistenceManager.getEntityManager(target));
             if ((mergeContext != null && mergeContext.getSourceEntityManager() == this) || !isActive())
                 return;
@@ -1897,6 +1941,8 @@ public class EntityManagerImpl implements EntityManager {
          *  @param event collection event
          */ 
         public void entityCollectionChangeHandler(ChangeKind kind, Object target, int location, Object[] items) {
+            modificationCount++;
+            
             MergeContext mergeContext = MergeContext.get(PersistenceManager.getEntityManager(target));
             if ((mergeContext != null && mergeContext.getSourceEntityManager() == this) || !isActive())
                 return;
@@ -1967,6 +2013,8 @@ public class EntityManagerImpl implements EntityManager {
          *  @param event map event
          */ 
         public void mapChangeHandler(ChangeKind kind, Object target, int location, Object[] items) {
+            modificationCount++;
+            
             MergeContext mergeContext = MergeContext.get(PersistenceManager.getEntityManager(target));
             if ((mergeContext != null && mergeContext.getSourceEntityManager() == this) || !isActive())
                 return;
@@ -1985,6 +2033,8 @@ public class EntityManagerImpl implements EntityManager {
          *  @param event map event
          */ 
         public void entityMapChangeHandler(ChangeKind kind, Object target, int location, Object[] items) {
+            modificationCount++;
+            
             MergeContext mergeContext = MergeContext.get(PersistenceManager.getEntityManager(target));
             if ((mergeContext != null && mergeContext.getSourceEntityManager() == this) || !isActive())
                 return;
@@ -0,0 +1,101 @@
+package org.granite.tide.data;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ *  Applies the difference between a list and its new content as a minimal batch of mutations
+ *  
+ *  Elements kept in place are the longest subsequence whose order is unchanged, other elements are removed
+ *  and inserted by contiguous ranges so observable lists fire as few change events as possible.
+ */
+public class ListDiff {
+    
+    /**
+     *  Update the list so it contains the items in order
+     *  
+     *  @param list list to update
+     *  @param matches index in the list of the current element matching each item, -1 for new items
+     *  @param items new content of the list
+     */
+    public static void apply(List<Object> list, int[] matches, Object[] items) {
+        int size = list.size();
+        
+        // Position in the new content of each current element, in current order
+        int[] positions = new int[size];
+        Arrays.fill(positions, -1);
+        for (int i = 0; i < matches.length; i++) {
+            if (matches[i] >= 0)
+                positions[matches[i]] = i;
+        }
+        
+        boolean[] kept = longestIncreasingSubsequence(positions);
+        
+        for (int j = size - 1; j >= 0; ) {
+            if (kept[j]) {
+                j--;
+                continue;
+            }
+            int end = j + 1;
+            while (j >= 0 && !kept[j])
+                j--;
+            if (end - j - 1 == 1)
+                list.remove(j + 1);
+            else
+                list.subList(j + 1, end).clear();
+        }
+        
+        for (int i = 0; i < items.length; ) {
+            if (matches[i] >= 0 && kept[matches[i]]) {
+                if (list.get(i) != items[i])
+                    list.set(i, items[i]);
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < items.length && !(matches[i] >= 0 && kept[matches[i]]))
+                i++;
+            if (i - start == 1)
+                list.add(start, items[start]);
+            else
+                list.addAll(start, Arrays.asList(items).subList(start, i));
+        }
+    }
+    
+    /**
+     *  Longest strictly increasing subsequence of the non negative values, in O(n log n)
+     *  
+     *  @param values sequence, negative values are ignored
+     *  @return flags of the elements that belong to the subsequence
+     */
+    public static boolean[] longestIncreasingSubsequence(int[] values) {
+        int n = values.length;
+        int[] tails = new int[n];          // index of the smallest tail of each subsequence length
+        int[] predecessors = new int[n];
+        int length = 0;
+        
+        for (int j = 0; j < n; j++) {
+            if (values[j] < 0)
+                continue;
+            
+            int low = 0, high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[tails[mid]] < values[j])
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            predecessors[j] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = j;
+            if (low == length)
+                length++;
+        }
+        
+        boolean[] flags = new boolean[n];
+        for (int j = length > 0 ? tails[length - 1] : -1; j >= 0; j = predecessors[j])
+            flags[j] = true;
+        return flags;
+    }
+}
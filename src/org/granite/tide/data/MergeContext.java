@@ -32,6 +32,7 @@ public class MergeContext {
     private boolean resolvingConflict = false;
     private Conflicts mergeConflicts = null;
     private boolean uninitializing = false;
+    private StagedMerge stagedMerge = null;
     
     
     public static MergeContext get(EntityManager entityManager) {
@@ -166,4 +167,12 @@ public class MergeContext {
     public boolean isUninitializeAllowed() {
         return this.entityManager.isUninitializeAllowed();
     }
+    
+    public void setStagedMerge(StagedMerge stagedMerge) {
+        this.stagedMerge = stagedMerge;
+    }
+    
+    public StagedMerge getStagedMerge() {
+        return this.stagedMerge;
+    }
 }
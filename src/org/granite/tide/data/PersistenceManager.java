@@ -1,8 +1,8 @@
 package org.granite.tide.data;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.granite.tide.PropertyHolder;
 
@@ -10,7 +10,7 @@ import org.granite.tide.PropertyHolder;
 public class PersistenceManager {
     
     private static WeakHashMap<Object, EntityManager> entityManagersByEntity = new WeakHashMap<Object, EntityManager>(1000);
-    private static Map<Class<?>, EntityDescriptor> entityDescriptors = new HashMap<Class<?>, EntityDescriptor>(50);
+    private static ConcurrentMap<Class<?>, EntityDescriptor> entityDescriptors = new ConcurrentHashMap<Class<?>, EntityDescriptor>(50);
     
     public static EntityManager getEntityManager(Object object) {
         return entityManagersByEntity.get(object);
@@ -24,7 +24,9 @@ public class PersistenceManager {
         EntityDescriptor desc = entityDescriptors.get(object.getClass());
         if (desc == null) {
             desc = new EntityDescriptor(object);
-            entityDescriptors.put(object.getClass(), desc);
+            EntityDescriptor existing = entityDescriptors.putIfAbsent(object.getClass(), desc);
+            if (existing != null)
+                desc = existing;
         }
         return desc;
     }
@@ -0,0 +1,145 @@
+package org.granite.tide.data;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ *  Accessor methods of a property of a class, resolved once and bound as method handles
+ *
+ *  Handles are adapted to generic (Object)Object and (Object, Object)void signatures so they can be invoked
+ *  exactly, without the method lookup, name building and access checks of reflective calls.
+ */
+public class PropertyAccessor {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final String name;
+    private final String getterName;
+    private final MethodHandle getter;
+    private final MethodHandle propertyGetter;
+    private final Class<?> propertyGetterType;
+    private final Class<?>[] setterTypes;
+    private final MethodHandle[] setters;
+
+
+    public PropertyAccessor(Class<?> clazz, String name) {
+        this.name = name;
+
+        String capitalizedName = name.substring(0, 1).toUpperCase() + name.substring(1);
+        Method getter = null, isGetter = null, propertyGetter = null;
+        List<Method> setters = new ArrayList<Method>();
+        for (Method m : clazz.getMethods()) {
+            if (m.getParameterTypes().length == 0 && !m.isBridge()) {
+                if (m.getName().equals("get" + capitalizedName))
+                    getter = m;
+                else if (m.getName().equals("is" + capitalizedName))
+                    isGetter = m;
+                else if (m.getName().equals(name + "Property") && m.getReturnType() != void.class)
+                    propertyGetter = m;
+            }
+            else if (m.getParameterTypes().length == 1 && m.getName().equals("set" + capitalizedName))
+                setters.add(m);
+        }
+        if (getter == null)
+            getter = isGetter;
+
+        this.getterName = getter != null ? getter.getName() : "get" + capitalizedName;
+        this.getter = getter != null ? unreflect(getter).asType(GETTER_TYPE) : null;
+        this.propertyGetter = propertyGetter != null ? unreflect(propertyGetter).asType(GETTER_TYPE) : null;
+        this.propertyGetterType = propertyGetter != null ? propertyGetter.getReturnType() : null;
+        this.setterTypes = new Class<?>[setters.size()];
+        this.setters = new MethodHandle[setters.size()];
+        for (int i = 0; i < setters.size(); i++) {
+            this.setterTypes[i] = wrap(setters.get(i).getParameterTypes()[0]);
+            this.setters[i] = unreflect(setters.get(i)).asType(SETTER_TYPE);
+        }
+    }
+
+    private static MethodHandle unreflect(Method method) {
+        try {
+            return MethodHandles.publicLookup().unreflect(method);
+        }
+        catch (IllegalAccessException e) {
+            // Public method declared in a non public class
+            try {
+                method.setAccessible(true);
+                return MethodHandles.lookup().unreflect(method);
+            }
+            catch (Exception f) {
+                throw new RuntimeException("Could not access method " + method, f);
+            }
+        }
+    }
+
+    private static Class<?> wrap(Class<?> type) {
+        if (!type.isPrimitive())
+            return type;
+        return MethodType.methodType(type).wrap().returnType();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean hasGetter() {
+        return getter != null;
+    }
+
+    /**
+     *  Value of the property, read with its getXxx or isXxx getter
+     *
+     *  @param object object
+     *  @return property value
+     *  @throws NoSuchMethodException when the class has no getter for this property
+     */
+    public Object getValue(Object object) throws Throwable {
+        if (getter == null)
+            throw new NoSuchMethodException(object.getClass().getName() + "." + getterName + "()");
+        return (Object)getter.invokeExact(object);
+    }
+
+    /**
+     *  Set the value of the property with the first setter accepting the value,
+     *  setters of primitive types accept non null values of the wrapper type
+     *
+     *  @param object object
+     *  @param value new value
+     *  @return false if no setter accepts the value
+     */
+    public boolean setValue(Object object, Object value) throws Throwable {
+        for (int i = 0; i < setters.length; i++) {
+            if (setterTypes[i].isInstance(value)) {
+                setters[i].invokeExact(object, value);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean hasPropertyGetter() {
+        return propertyGetter != null;
+    }
+
+    public Class<?> getPropertyGetterType() {
+        return propertyGetterType;
+    }
+
+    /**
+     *  Property object returned by the xxxProperty() method of the object
+     *
+     *  @param object object
+     *  @return property object
+     *  @throws NoSuchMethodException when the class has no xxxProperty() method
+     */
+    public Object getPropertyObject(Object object) throws Throwable {
+        if (propertyGetter == null)
+            throw new NoSuchMethodException(object.getClass().getName() + "." + name + "Property()");
+        return (Object)propertyGetter.invokeExact(object);
+    }
+}
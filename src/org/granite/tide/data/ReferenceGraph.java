@@ -0,0 +1,279 @@
+package org.granite.tide.data;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.granite.util.WeakIdentityHashMap;
+
+
+/**
+ *  Graph of the references held on managed objects
+ *  
+ *  Each referenced object has typed edges to the context expressions, owner entities and other parent objects
+ *  that reference it. Owner entities are stored by class name and uid and resolved through the entity cache,
+ *  and are indexed in reverse to find the objects referenced by an entity.
+ *  
+ *  @param <E> type of context expressions
+ */
+public class ReferenceGraph<E> {
+    
+    private final UIDWeakSet entitiesByUid;
+    private final WeakIdentityHashMap<Object, Node<E>> nodes = new WeakIdentityHashMap<Object, Node<E>>();
+    private final Map<EntityKey, Map<Node<E>, Boolean>> nodesByOwner = new HashMap<EntityKey, Map<Node<E>, Boolean>>();
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    
+    
+    public ReferenceGraph(UIDWeakSet entitiesByUid) {
+        this.entitiesByUid = entitiesByUid;
+    }
+    
+    public void clear() {
+        while (queue.poll() != null)
+            ;
+        nodes.clear();
+        nodesByOwner.clear();
+    }
+    
+    public boolean contains(Object obj) {
+        return nodes.get(obj) != null;
+    }
+    
+    /**
+     *  @return true when the object has no more references
+     */
+    public boolean isUnreferenced(Object obj) {
+        Node<E> node = nodes.get(obj);
+        return node == null || node.isEmpty();
+    }
+    
+    public void addExpression(Object obj, String path, E expression) {
+        Node<E> node = initNode(obj);
+        if (node.expressions == null)
+            node.expressions = new LinkedHashMap<String, E>(4);
+        if (!node.expressions.containsKey(path))
+            node.expressions.put(path, expression);
+    }
+    
+    public void addOwner(Object obj, Identifiable owner, String propName) {
+        Node<E> node = initNode(obj);
+        EntityKey key = new EntityKey(owner);
+        if (node.owners == null)
+            node.owners = new LinkedHashMap<EntityKey, String>(4);
+        else if (node.owners.containsKey(key))
+            return;
+        
+        node.owners.put(key, propName);
+        Map<Node<E>, Boolean> owned = nodesByOwner.get(key);
+        if (owned == null) {
+            owned = new IdentityHashMap<Node<E>, Boolean>();
+            nodesByOwner.put(key, owned);
+        }
+        owned.put(node, Boolean.TRUE);
+    }
+    
+    public void addParent(Object obj, Object parent, String propName) {
+        Node<E> node = initNode(obj);
+        if (node.parents == null)
+            node.parents = new IdentityHashMap<Object, String>(4);
+        if (!node.parents.containsKey(parent))
+            node.parents.put(parent, propName);
+    }
+    
+    public void removeExpression(Object obj, String path) {
+        Node<E> node = nodes.get(obj);
+        if (node != null && node.expressions != null)
+            node.expressions.remove(path);
+    }
+    
+    public void removeOwner(Object obj, Identifiable owner) {
+        Node<E> node = nodes.get(obj);
+        if (node != null && node.owners != null) {
+            EntityKey key = new EntityKey(owner);
+            if (node.owners.remove(key) != null)
+                unindex(node, key);
+        }
+    }
+    
+    public void removeParent(Object obj, Object parent) {
+        Node<E> node = nodes.get(obj);
+        if (node != null && node.parents != null)
+            node.parents.remove(parent);
+    }
+    
+    public void remove(Object obj) {
+        Node<E> node = nodes.remove(obj);
+        if (node != null)
+            unindex(node);
+    }
+    
+    public Collection<E> getExpressions(Object obj) {
+        Node<E> node = nodes.get(obj);
+        if (node == null || node.expressions == null)
+            return Collections.emptyList();
+        return node.expressions.values();
+    }
+    
+    /**
+     *  @return first owner entity and property name, the entity is null when it is no more in the cache
+     */
+    public Object[] getOwner(Object obj) {
+        Node<E> node = nodes.get(obj);
+        if (node == null || node.owners == null || node.owners.isEmpty())
+            return null;
+        Map.Entry<EntityKey, String> owner = node.owners.entrySet().iterator().next();
+        return new Object[] { owner.getKey().resolve(entitiesByUid), owner.getValue() };
+    }
+    
+    /**
+     *  @return cached owner entities and property names, null if the object is not referenced
+     */
+    public List<Object[]> getOwners(Object obj) {
+        Node<E> node = nodes.get(obj);
+        if (node == null)
+            return null;
+        
+        List<Object[]> owners = new ArrayList<Object[]>();
+        if (node.owners != null) {
+            for (Map.Entry<EntityKey, String> owner : node.owners.entrySet()) {
+                Object entity = owner.getKey().resolve(entitiesByUid);
+                if (entity != null)     // May have been garbage collected
+                    owners.add(new Object[] { entity, owner.getValue() });
+            }
+        }
+        return owners;
+    }
+    
+    /**
+     *  @return cached owner entities followed by other parent objects
+     */
+    public List<Object> getParents(Object obj) {
+        Node<E> node = nodes.get(obj);
+        if (node == null)
+            return Collections.emptyList();
+        
+        List<Object> parents = new ArrayList<Object>();
+        if (node.owners != null) {
+            for (EntityKey key : node.owners.keySet()) {
+                Object entity = key.resolve(entitiesByUid);
+                if (entity != null)
+                    parents.add(entity);
+            }
+        }
+        if (node.parents != null)
+            parents.addAll(node.parents.keySet());
+        return parents;
+    }
+    
+    /**
+     *  @return objects referenced by the owner entity
+     */
+    public List<Object> getOwned(Identifiable owner) {
+        expunge();
+        
+        Map<Node<E>, Boolean> owned = nodesByOwner.get(new EntityKey(owner));
+        if (owned == null)
+            return Collections.emptyList();
+        
+        List<Object> objects = new ArrayList<Object>(owned.size());
+        for (Node<E> node : owned.keySet()) {
+            Object obj = node.get();
+            if (obj != null)
+                objects.add(obj);
+        }
+        return objects;
+    }
+    
+    
+    private Node<E> initNode(Object obj) {
+        expunge();
+        
+        Node<E> node = nodes.get(obj);
+        if (node == null) {
+            node = new Node<E>(obj, queue);
+            nodes.put(obj, node);
+        }
+        return node;
+    }
+    
+    private void unindex(Node<E> node) {
+        if (node.owners != null) {
+            for (EntityKey key : node.owners.keySet())
+                unindex(node, key);
+        }
+    }
+    
+    private void unindex(Node<E> node, EntityKey key) {
+        Map<Node<E>, Boolean> owned = nodesByOwner.get(key);
+        if (owned != null) {
+            owned.remove(node);
+            if (owned.isEmpty())
+                nodesByOwner.remove(key);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void expunge() {
+        Node<E> node;
+        while ((node = (Node<E>)queue.poll()) != null)
+            unindex(node);
+    }
+    
+    
+    private static final class Node<E> extends WeakReference<Object> {
+        
+        private Map<String, E> expressions = null;
+        private Map<EntityKey, String> owners = null;
+        private Map<Object, String> parents = null;
+        
+        public Node(Object obj, ReferenceQueue<Object> queue) {
+            super(obj, queue);
+        }
+        
+        public boolean isEmpty() {
+            return (expressions == null || expressions.isEmpty()) 
+                && (owners == null || owners.isEmpty()) 
+                && (parents == null || parents.isEmpty());
+        }
+    }
+    
+    private static final class EntityKey {
+        
+        private final String className;
+        private final String uid;
+        private final int hash;
+        
+        public EntityKey(Identifiable entity) {
+            this.className = entity.getClass().getName();
+            this.uid = entity.getUid();
+            this.hash = 31 * className.hashCode() + (uid != null ? uid.hashCode() : 0);
+        }
+        
+        public Object resolve(UIDWeakSet entitiesByUid) {
+            return entitiesByUid.get(className, uid);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this)
+                return true;
+            if (!(obj instanceof EntityKey))
+                return false;
+            EntityKey key = (EntityKey)obj;
+            return hash == key.hash && className.equals(key.className) 
+                && (uid == null ? key.uid == null : uid.equals(key.uid));
+        }
+    }
+}
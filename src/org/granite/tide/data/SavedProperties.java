@@ -0,0 +1,203 @@
+package org.granite.tide.data;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+
+/**
+ *  Saved property values of a modified object, stored by property slot
+ *  
+ *  Values are held in an array indexed by the slots numbered in the EntityDescriptor of the object class,
+ *  with a bitset of the saved slots and a count of the saved properties other than the version.
+ */
+public class SavedProperties extends AbstractMap<String, Object> {
+    
+    private final EntityDescriptor desc;
+    private final int versionSlot;
+    private Object[] values;
+    private long[] saved;
+    private int size = 0;
+    private int changeCount = 0;
+    
+    
+    /**
+     *  @param desc descriptor of the object class
+     *  @param versionPropertyName name of the version property of the owner entity, can be null
+     */
+    public SavedProperties(EntityDescriptor desc, String versionPropertyName) {
+        this.desc = desc;
+        this.versionSlot = versionPropertyName != null ? desc.getPropertySlot(versionPropertyName) : -1;
+        int slots = Math.max(desc.getPropertySlotCount(), 1);
+        this.values = new Object[slots];
+        this.saved = new long[(slots + 63) >>> 6];
+    }
+    
+    /**
+     *  @return true when at least one property other than the version is saved
+     */
+    public boolean hasChanges() {
+        return changeCount > 0;
+    }
+    
+    public Object getVersion() {
+        return versionSlot >= 0 ? values[versionSlot] : null;
+    }
+    
+    public void setVersion(Object version) {
+        if (versionSlot >= 0)
+            put(versionSlot, version);
+    }
+    
+    @Override
+    public int size() {
+        return size;
+    }
+    
+    @Override
+    public boolean containsKey(Object key) {
+        int slot = slot(key);
+        return slot >= 0 && isSaved(slot);
+    }
+    
+    @Override
+    public Object get(Object key) {
+        int slot = slot(key);
+        return slot >= 0 && isSaved(slot) ? values[slot] : null;
+    }
+    
+    @Override
+    public Object put(String key, Object value) {
+        return put(desc.getPropertySlot(key), value);
+    }
+    
+    @Override
+    public Object remove(Object key) {
+        int slot = slot(key);
+        return slot >= 0 ? remove(slot) : null;
+    }
+    
+    @Override
+    public void clear() {
+        for (int i = 0; i < values.length; i++)
+            values[i] = null;
+        for (int i = 0; i < saved.length; i++)
+            saved[i] = 0L;
+        size = 0;
+        changeCount = 0;
+    }
+    
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            
+            @Override
+            public int size() {
+                return size;
+            }
+            
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new Iterator<Map.Entry<String, Object>>() {
+                    
+                    private int next = nextSaved(0);
+                    private int current = -1;
+                    
+                    public boolean hasNext() {
+                        return next >= 0;
+                    }
+                    
+                    public Map.Entry<String, Object> next() {
+                        if (next < 0)
+                            throw new NoSuchElementException();
+                        current = next;
+                        next = nextSaved(current + 1);
+                        return new SimpleEntry<String, Object>(desc.getPropertyName(current), values[current]) {
+                            
+                            private static final long serialVersionUID = 1L;
+                            
+                            private final int slot = current;
+                            
+                            @Override
+                            public Object setValue(Object value) {
+                                values[slot] = value;
+                                return super.setValue(value);
+                            }
+                        };
+                    }
+                    
+                    public void remove() {
+                        if (current < 0)
+                            throw new IllegalStateException();
+                        SavedProperties.this.remove(current);
+                        current = -1;
+                    }
+                };
+            }
+        };
+    }
+    
+    
+    private int slot(Object key) {
+        return key instanceof String ? desc.findPropertySlot((String)key) : -1;
+    }
+    
+    private boolean isSaved(int slot) {
+        int word = slot >>> 6;
+        return word < saved.length && (saved[word] & (1L << slot)) != 0L;
+    }
+    
+    private int nextSaved(int slot) {
+        int word = slot >>> 6;
+        if (word >= saved.length)
+            return -1;
+        long bits = saved[word] & (-1L << slot);
+        while (true) {
+            if (bits != 0L)
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            if (++word >= saved.length)
+                return -1;
+            bits = saved[word];
+        }
+    }
+    
+    private Object put(int slot, Object value) {
+        if (slot >= values.length) {
+            Object[] newValues = new Object[Math.max(slot + 1, values.length * 2)];
+            System.arraycopy(values, 0, newValues, 0, values.length);
+            values = newValues;
+        }
+        if ((slot >>> 6) >= saved.length) {
+            long[] newSaved = new long[(values.length + 63) >>> 6];
+            System.arraycopy(saved, 0, newSaved, 0, saved.length);
+            saved = newSaved;
+        }
+        
+        Object old = values[slot];
+        values[slot] = value;
+        if (!isSaved(slot)) {
+            saved[slot >>> 6] |= 1L << slot;
+            size++;
+            if (slot != versionSlot)
+                changeCount++;
+            return null;
+        }
+        return old;
+    }
+    
+    private Object remove(int slot) {
+        if (!isSaved(slot))
+            return null;
+        
+        Object old = values[slot];
+        values[slot] = null;
+        saved[slot >>> 6] &= ~(1L << slot);
+        size--;
+        if (slot != versionSlot)
+            changeCount--;
+        return old;
+    }
+}
@@ -0,0 +1,469 @@
+package org.granite.tide.data;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.granite.logging.Logger;
+import org.granite.persistence.LazyableCollection;
+import org.granite.tide.ObjectUtil;
+
+
+/**
+ *  Merge of external data prepared in a background thread before being applied in the UI thread
+ *
+ *  The staged merge runs in three steps:
+ *  <ul>
+ *  <li>collect: the received entities and their property values are collected in the background thread,
+ *  the received graph must not be shared with the UI thread</li>
+ *  <li>snapshot: the state of the cached instances of the received entities is copied in the UI thread,
+ *  the snapshot only reads the cached entities and is proportional to the received data</li>
+ *  <li>compare: the received entities are compared with the snapshot in the background thread</li>
+ *  </ul>
+ *  When the merge is applied, received entities identical to their cached instance and referencing only unchanged
+ *  entities are skipped, only the changed properties of other cached entities are merged, and only the properties
+ *  of new entities holding associations, collections or embedded objects are merged.
+ *
+ *  The staged merge can be applied only if the entity manager has not been modified since the snapshot,
+ *  otherwise data should be merged as usual.
+ */
+public class StagedMerge {
+
+    private static final Logger log = Logger.getLogger(StagedMerge.class);
+
+    private static final Object EMBEDDED = new Object();
+
+    private final EntityManagerImpl entityManager;
+    private final UIDWeakSet entitiesByUid;
+    private final DataManager dataManager;
+    private volatile int modificationCount = -1;
+
+    private final Map<Object, Node> nodes = new IdentityHashMap<Object, Node>();
+    private final Map<Object, Boolean> visited = new IdentityHashMap<Object, Boolean>();
+    private final List<Object> pending = new ArrayList<Object>();
+    private int collected = 0;
+
+
+    StagedMerge(EntityManagerImpl entityManager, UIDWeakSet entitiesByUid, DataManager dataManager) {
+        this.entityManager = entityManager;
+        this.entitiesByUid = entitiesByUid;
+        this.dataManager = dataManager;
+    }
+
+    public EntityManager getEntityManager() {
+        return entityManager;
+    }
+
+    /**
+     *  @return true if the snapshot has been taken and the entity manager has not been modified since
+     */
+    public boolean isValid() {
+        return modificationCount >= 0 && entityManager.getModificationCount() == modificationCount;
+    }
+
+    /**
+     *  Collect, snapshot and compare a received object graph in the current thread
+     *
+     *  @param obj received object
+     */
+    public void stage(Object obj) {
+        collect(obj);
+        snapshot();
+        compare();
+    }
+
+    /**
+     *  Collect the entities of a received object graph and their property values, can be called from any thread
+     *
+     *  @param obj received object
+     */
+    public void collect(Object obj) {
+        collect(obj, null, null);
+
+        for (; collected < pending.size(); collected++) {
+            Object entity = pending.get(collected);
+            Node node = nodes.get(entity);
+            node.values = dataManager.getPropertyValues(entity, true, false);
+            if (node.values == null)
+                continue;
+
+            for (Entry<String, Object> value : node.values.entrySet())
+                collect(value.getValue(), node, value.getKey());
+        }
+        visited.clear();
+    }
+
+    /**
+     *  Copy the state of the cached instances of the collected entities, must be called from the UI thread
+     */
+    public void snapshot() {
+        long start = System.currentTimeMillis();
+
+        for (Object entity : pending) {
+            Node node = nodes.get(entity);
+            node.cached = entitiesByUid.get(entity.getClass().getName(), ((Identifiable)entity).getUid());
+            if (node.cached == null || node.cached == entity || node.values == null)
+                continue;
+            if (node.cached instanceof Lazyable && !((Lazyable)node.cached).isInitialized())
+                continue;
+
+            try {
+                node.cachedState = getInternalState(node.cached);
+                node.cachedValues = new HashMap<String, Object>();
+                for (Entry<String, Object> value : node.values.entrySet())
+                    node.cachedValues.put(value.getKey(), copy(value.getValue(), dataManager.getProperty(node.cached, value.getKey())));
+            }
+            catch (RuntimeException e) {
+                log.debug("could not copy cached entity %s, entity will be merged: %s", ObjectUtil.toString(node.cached), e.getMessage());
+                node.cachedValues = null;
+            }
+        }
+
+        modificationCount = entityManager.getModificationCount();
+
+        log.debug("snapshot of %d cached entities in %d ms", pending.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     *  Compare the collected entities with the snapshot of their cached instances, can be called from any thread
+     */
+    public void compare() {
+        long start = System.currentTimeMillis();
+
+        List<Node> changed = new ArrayList<Node>();
+        for (Object entity : pending) {
+            Node node = nodes.get(entity);
+            try {
+                compare(entity, node);
+            }
+            catch (RuntimeException e) {
+                log.debug("could not compare %s with cached entity, entity will be merged: %s", ObjectUtil.toString(entity), e.getMessage());
+                node.unchanged = false;
+                node.changedProperties = null;
+            }
+            if (!node.unchanged)
+                changed.add(node);
+        }
+
+        // Entities referencing changed entities must be merged
+        while (!changed.isEmpty()) {
+            Node node = changed.remove(changed.size()-1);
+            for (Reference ref : node.references) {
+                if (ref.owner.changedProperties != null)
+                    ref.owner.changedProperties.add(ref.propertyName);
+                if (ref.owner.unchanged) {
+                    ref.owner.unchanged = false;
+                    changed.add(ref.owner);
+                }
+            }
+        }
+
+        // Only the plan is kept for the merge
+        for (Node node : nodes.values()) {
+            node.values = null;
+            node.cachedValues = null;
+            node.cachedState = null;
+            node.references.clear();
+        }
+        pending.clear();
+
+        log.debug("staged merge of %d entities in %d ms", nodes.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     *  @param obj received entity
+     *  @return true if the received entity and the entities it references are identical to their cached instances
+     */
+    public boolean isUnchanged(Object obj) {
+        Node node = nodes.get(obj);
+        return node != null && node.unchanged;
+    }
+
+    /**
+     *  @param obj received entity
+     *  @return names of the properties to merge in the cached entity, null if all properties should be merged
+     */
+    public Set<String> getChangedProperties(Object obj) {
+        Node node = nodes.get(obj);
+        return node != null ? node.changedProperties : null;
+    }
+
+    /**
+     *  @param obj received entity
+     *  @return names of the properties of a new entity holding values to merge, null if the entity is cached
+     *      or if all properties should be merged
+     */
+    public Set<String> getAssociationProperties(Object obj) {
+        Node node = nodes.get(obj);
+        return node != null ? node.associationProperties : null;
+    }
+
+
+    /**
+     *  Find the received entities in a value, owner is the entity referencing them
+     */
+    private void collect(Object value, Node owner, String propertyName) {
+        if (value == null || ObjectUtil.isSimple(value) || value instanceof Enum || value instanceof Value || value instanceof byte[])
+            return;
+
+        if (owner != null && owner.associationProperties != null)
+            owner.associationProperties.add(propertyName);
+
+        if (value instanceof Identifiable) {
+            if (value instanceof Lazyable && !((Lazyable)value).isInitialized())
+                return;
+
+            Node node = nodes.get(value);
+            if (node == null) {
+                node = new Node();
+                nodes.put(value, node);
+                pending.add(value);
+            }
+            if (owner != null)
+                node.references.add(new Reference(owner, propertyName));
+            return;
+        }
+
+        if (value instanceof LazyableCollection && !((LazyableCollection)value).isInitialized())
+            return;
+
+        if (visited.put(value, Boolean.TRUE) != null)
+            return;
+
+        if (value instanceof List<?>) {
+            for (Object item : (List<?>)value)
+                collect(item, owner, propertyName);
+        }
+        else if (value instanceof Map<?, ?>) {
+            for (Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+                collect(entry.getKey(), owner, propertyName);
+                collect(entry.getValue(), owner, propertyName);
+            }
+        }
+        else {
+            // Embedded object or bean holding the result
+            Map<String, Object> values = dataManager.getPropertyValues(value, true, false);
+            if (values != null) {
+                for (Object v : values.values())
+                    collect(v, owner, propertyName);
+            }
+        }
+    }
+
+    /**
+     *  Copy a value of a cached entity, value is the received value used to find the proxies to compare by id
+     */
+    private Object copy(Object value, Object current) {
+        if (current == null || ObjectUtil.isSimple(current) || current instanceof Enum || current instanceof Value)
+            return current;
+
+        if (current instanceof byte[])
+            return ((byte[])current).clone();
+
+        if (current instanceof Identifiable) {
+            if (value instanceof Lazyable && !((Lazyable)value).isInitialized() && value.getClass() == current.getClass()) {
+                EntityDescriptor desc = PersistenceManager.getEntityDescriptor(current);
+                if (desc.getIdPropertyName() != null && desc.getVersionPropertyName() != null)
+                    return new ProxySnapshot(current, dataManager.getProperty(current, desc.getIdPropertyName()));
+            }
+            return current;
+        }
+
+        if (current instanceof List<?> || current instanceof Map<?, ?>) {
+            boolean initialized = !(current instanceof LazyableCollection) || ((LazyableCollection)current).isInitialized();
+            CollectionSnapshot snapshot = new CollectionSnapshot(current instanceof LazyableCollection, initialized);
+            if (!initialized)
+                return snapshot;
+
+            if (current instanceof List<?>) {
+                List<?> list = (List<?>)current;
+                List<?> received = value instanceof List<?> ? (List<?>)value : null;
+                List<Object> elements = new ArrayList<Object>(list.size());
+                for (int i = 0; i < list.size(); i++)
+                    elements.add(copy(received != null && i < received.size() ? received.get(i) : null, list.get(i)));
+                snapshot.elements = elements;
+            }
+            else {
+                Map<?, ?> received = value instanceof Map<?, ?> ? (Map<?, ?>)value : null;
+                Map<Object, Object> entries = new HashMap<Object, Object>();
+                for (Entry<?, ?> entry : ((Map<?, ?>)current).entrySet())
+                    entries.put(entry.getKey(), copy(received != null ? received.get(entry.getKey()) : null, entry.getValue()));
+                snapshot.elements = entries;
+            }
+            return snapshot;
+        }
+
+        // Embedded objects are always merged
+        return EMBEDDED;
+    }
+
+    /**
+     *  Compare a received entity with the snapshot of its cached instance
+     */
+    private void compare(Object entity, Node node) {
+        if (node.cached == entity) {
+            // Already the cached instance, the merge stops there
+            node.unchanged = true;
+            node.changedProperties = new HashSet<String>();
+            node.associationProperties = null;
+            return;
+        }
+
+        if (node.cached != null) {
+            // Cached entities are merged entirely when they could not be copied
+            node.associationProperties = null;
+            if (node.cachedValues == null)
+                return;
+
+            node.changedProperties = new HashSet<String>();
+            node.unchanged = Arrays.equals(getInternalState(entity), node.cachedState);
+            for (Entry<String, Object> value : node.values.entrySet()) {
+                if (!same(value.getValue(), node.cachedValues.get(value.getKey()))) {
+                    node.changedProperties.add(value.getKey());
+                    node.unchanged = false;
+                }
+            }
+        }
+        else if (node.values == null)
+            node.associationProperties = null;
+    }
+
+    private Object[] getInternalState(Object entity) {
+        EntityDescriptor desc = PersistenceManager.getEntityDescriptor(entity);
+        try {
+            return new Object[] {
+                desc.getInitializedField() != null ? desc.getInitializedField().get(entity) : null,
+                desc.getDetachedStateField() != null ? desc.getDetachedStateField().get(entity) : null
+            };
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException("Could not read internal state of " + ObjectUtil.toString(entity), e);
+        }
+    }
+
+    /**
+     *  Compare a received value with the copied value of the cached entity, referenced entities are only compared
+     *  by identity here and the references to changed entities are handled after all entities are compared
+     */
+    private boolean same(Object value, Object current) {
+        if (value == null || current == null)
+            return value == current;
+
+        if (value instanceof Identifiable) {
+            if (value instanceof Lazyable && !((Lazyable)value).isInitialized())
+                return current instanceof ProxySnapshot && ((ProxySnapshot)current).matches(value);
+            Node node = nodes.get(value);
+            return node != null && node.cached == current;
+        }
+
+        if (value instanceof List<?> || value instanceof Map<?, ?>) {
+            if (!(current instanceof CollectionSnapshot))
+                return false;
+            CollectionSnapshot snapshot = (CollectionSnapshot)current;
+
+            // Collections are compared only when they are both initialized persistent collections or both plain collections
+            if ((value instanceof LazyableCollection) != snapshot.persistent)
+                return false;
+            if (value instanceof LazyableCollection && (!((LazyableCollection)value).isInitialized() || !snapshot.initialized))
+                return false;
+
+            if (value instanceof List<?>) {
+                if (!(snapshot.elements instanceof List<?>) || ((List<?>)value).size() != ((List<?>)snapshot.elements).size())
+                    return false;
+                List<?> list = (List<?>)value, currentList = (List<?>)snapshot.elements;
+                for (int i = 0; i < list.size(); i++) {
+                    if (!same(list.get(i), currentList.get(i)))
+                        return false;
+                }
+                return true;
+            }
+
+            if (!(snapshot.elements instanceof Map<?, ?>) || ((Map<?, ?>)value).size() != ((Map<?, ?>)snapshot.elements).size())
+                return false;
+            Map<?, ?> currentMap = (Map<?, ?>)snapshot.elements;
+            for (Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+                Object key = entry.getKey();
+                if (!(ObjectUtil.isSimple(key) || key instanceof Enum) || !currentMap.containsKey(key) || !same(entry.getValue(), currentMap.get(key)))
+                    return false;
+            }
+            return true;
+        }
+
+        if (ObjectUtil.isSimple(value) || value instanceof Enum || value instanceof Value)
+            return value.equals(current);
+
+        if (value instanceof byte[])
+            return current instanceof byte[] && Arrays.equals((byte[])value, (byte[])current);
+
+        // Embedded objects are always merged
+        return false;
+    }
+
+
+    private static final class Node {
+
+        private Map<String, Object> values = null;
+        private Object cached = null;
+        private Map<String, Object> cachedValues = null;
+        private Object[] cachedState = null;
+
+        private boolean unchanged = false;
+        private Set<String> changedProperties = null;
+        private Set<String> associationProperties = new HashSet<String>();
+        private final List<Reference> references = new ArrayList<Reference>(1);
+    }
+
+    private static final class Reference {
+
+        private final Node owner;
+        private final String propertyName;
+
+        public Reference(Node owner, String propertyName) {
+            this.owner = owner;
+            this.propertyName = propertyName;
+        }
+    }
+
+    /**
+     *  Copy of an initialized or uninitialized collection of a cached entity
+     */
+    private static final class CollectionSnapshot {
+
+        private final boolean persistent;
+        private final boolean initialized;
+        private Object elements = null;
+
+        public CollectionSnapshot(boolean persistent, boolean initialized) {
+            this.persistent = persistent;
+            this.initialized = initialized;
+        }
+    }
+
+    /**
+     *  A received uninitialized proxy is ignored by the merge when it references the current entity
+     *  and the entity has a version
+     */
+    private final class ProxySnapshot {
+
+        private final Object entity;
+        private final Object id;
+
+        public ProxySnapshot(Object entity, Object id) {
+            this.entity = entity;
+            this.id = id;
+        }
+
+        public boolean matches(Object proxy) {
+            if (id == null || entity.getClass() != proxy.getClass())
+                return false;
+            return id.equals(dataManager.getProperty(proxy, PersistenceManager.getEntityDescriptor(proxy).getIdPropertyName()));
+        }
+    }
+}
@@ -1,8 +1,9 @@
 package org.granite.tide.data;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.WeakHashMap;
 
 
 
@@ -10,69 +11,96 @@ import java.util.WeakHashMap;
 /**
  *  Implementation of HashSet that holds weak references to UID entities 
  *  
+ *  Entities are indexed by (class name, uid) in a resizable hash table, entries of collected
+ *  entities are expunged through a reference queue. Methods are synchronized so the set
+ *  can be read by a background thread staging a merge.
+ *  
+ *  Entries are matched against the current uid of the entity, but stay in the bucket of the uid
+ *  it had when put. An entity whose uid changes must be removed before the change and put again
+ *  after it to be found by its new uid.
+ *  
  *  @author Franck WOLFF
  */
 public class UIDWeakSet {
     
-    private WeakHashMap<Object, Object>[] table;
+    private static final float LOAD_FACTOR = 0.75f;
+    
+    private Entry[] table;
+    private int size = 0;
+    private int threshold;
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
     
     
     public UIDWeakSet() {
         this(64);
     }
     
-    @SuppressWarnings("unchecked")
     public UIDWeakSet(int capacity) {
-        table = new WeakHashMap[capacity];  
+        int c = 1;
+        while (c < capacity)
+            c <<= 1;
+        table = new Entry[c];
+        threshold = (int)(c * LOAD_FACTOR);
     }
     
-    public void clear() {
+    public synchronized void clear() {
+        while (queue.poll() != null)
+            ;
         for (int i = 0; i < table.length; i++)
             table[i] = null;
+        size = 0;
     }
     
-    public Identifiable put(Identifiable uidObject) {
-        int h = hash(uidObject.getClass().getName() + ":" + uidObject.getUid());
+    public synchronized Identifiable put(Identifiable uidObject) {
+        expunge();
         
-        WeakHashMap<Object, Object> dic = table[h];
-        if (dic == null) {
-            dic = new WeakHashMap<Object, Object>();
-            table[h] = dic;
-        }
+        String className = uidObject.getClass().getName();
+        String uid = uidObject.getUid();
+        int h = hash(className, uid);
+        int i = h & (table.length - 1);
         
         Identifiable old = null;
-        for (Object o : dic.keySet()) {
-            if (o == uidObject)
-                return (Identifiable)o;
-            
-            if (((Identifiable)o).getUid() == uidObject.getUid() && o.getClass().getName().equals(uidObject.getClass().getName())) {
+        for (Entry e = table[i], prev = null; e != null; prev = e, e = e.next) {
+            if (e.matches(h, className, uid)) {
+                Object o = e.get();
+                if (o == uidObject)
+                    return uidObject;
+                
                 old = (Identifiable)o;
-                dic.remove(o);
+                e.clear();
+                if (prev == null)
+                    table[i] = e.next;
+                else
+                    prev.next = e.next;
+                size--;
                 break;
             }
         }
         
-        dic.put(uidObject, null);
+        table[i] = new Entry(uidObject, className, h, table[i], queue);
+        if (++size > threshold)
+            resize();
         
         return old;
     }
     
-    public Identifiable get(String uid) {
-        int h = hash(uid);
-        
-        Identifiable uidObject = null;
+    /**
+     * @param uid class name and uid of the entity, separated by a colon
+     */
+    public synchronized Identifiable get(String uid) {
+        int index = uid.indexOf(':');
+        return get(uid.substring(0, index), uid.substring(index + 1));
+    }
+    
+    public synchronized Identifiable get(String className, String uid) {
+        expunge();
         
-        WeakHashMap<Object, Object> dic = table[h];
-        if (dic != null) {
-            for (Object o : dic.keySet()) {
-                if ((o.getClass().getName() + ":" + ((Identifiable)o).getUid()).equals(uid)) {
-                    uidObject = (Identifiable)o;
-                    break;
-                }
-            }
+        int h = hash(className, uid);
+        for (Entry e = table[h & (table.length - 1)]; e != null; e = e.next) {
+            if (e.matches(h, className, uid))
+                return (Identifiable)e.get();
         }
-        
-        return uidObject;
+        return null;
     }
 
     public static interface Matcher {
@@ -80,14 +108,12 @@ public class UIDWeakSet {
         public boolean match(Object o);
     }
     
-    public Object find(Matcher matcher) {
+    public synchronized Object find(Matcher matcher) {
         for (int i = 0; i < table.length; i++) {
-            WeakHashMap<Object, Object> dic = table[i];
-            if (dic != null) {
-                for (Object o : dic.keySet()) {
-                    if (matcher.match(o))
-                        return o;
-                }
+            for (Entry e = table[i]; e != null; e = e.next) {
+                Object o = e.get();
+                if (o != null && matcher.match(o))
+                    return o;
             }
         }
         return null;
@@ -98,63 +124,130 @@ public class UIDWeakSet {
         public boolean apply(Object o);
     }
     
-    public void apply(Operation operation) {
-        for (int i = 0; i < table.length; i++) {
-            WeakHashMap<Object, Object> dic = table[i];
-            if (dic != null) {
-                for (Object o : dic.keySet())
-                    operation.apply(o);
+    public synchronized void apply(Operation operation) {
+        // Operations may modify the set
+        for (Object o : data())
+            operation.apply(o);
+    }
+    
+    /**
+     * @param uid class name and uid of the entity, separated by a colon
+     */
+    public synchronized Identifiable remove(String uid) {
+        int index = uid.indexOf(':');
+        return remove(uid.substring(0, index), uid.substring(index + 1));
+    }
+    
+    public synchronized Identifiable remove(String className, String uid) {
+        expunge();
+        
+        int h = hash(className, uid);
+        int i = h & (table.length - 1);
+        for (Entry e = table[i], prev = null; e != null; prev = e, e = e.next) {
+            if (e.matches(h, className, uid)) {
+                Object o = e.get();
+                e.clear();
+                if (prev == null)
+                    table[i] = e.next;
+                else
+                    prev.next = e.next;
+                size--;
+                return (Identifiable)o;
             }
         }
+        return null;
     }
     
-    public Identifiable remove(String uid) {
-        int h = hash(uid);
-        
-        Identifiable uidObject = null;
+    public synchronized int size() {
+        expunge();
+        return size;
+    }
+    
+    public synchronized List<Object> data() {
+        List<Object> d = new ArrayList<Object>(size);
         
-        WeakHashMap<Object, Object> dic = table[h];
-        if (dic != null) {
-            for (Object o : dic.keySet()) {
-                if ((o.getClass().getName() + ":" + ((Identifiable)o).getUid()).equals(uid)) {
-                    uidObject = (Identifiable)o;
-                    dic.remove(o);
+        for (int i = 0; i < table.length; i++) {
+            for (Entry e = table[i]; e != null; e = e.next) {
+                Object o = e.get();
+                if (o != null)
+                    d.add(o);
+            }
+        }
+        return d;
+    }
+    
+    private void expunge() {
+        for (Object r = queue.poll(); r != null; r = queue.poll()) {
+            Entry entry = (Entry)r;
+            int i = entry.hash & (table.length - 1);
+            for (Entry e = table[i], prev = null; e != null; prev = e, e = e.next) {
+                if (e == entry) {
+                    if (prev == null)
+                        table[i] = e.next;
+                    else
+                        prev.next = e.next;
+                    size--;
                     break;
                 }
             }
         }
-        
-        return uidObject;
     }
     
-    public int size() {
-        int size = 0;
+    private void resize() {
+        Entry[] oldTable = table;
+        Entry[] newTable = new Entry[oldTable.length << 1];
+        int mask = newTable.length - 1;
         
-        for (int i = 0; i < table.length; i++) {
-            WeakHashMap<Object, Object> dic = table[i];
-            if (dic != null)
-                size += dic.size();
+        for (int i = 0; i < oldTable.length; i++) {
+            Entry e = oldTable[i];
+            while (e != null) {
+                Entry next = e.next;
+                if (e.get() == null)
+                    size--;     // Not enqueued yet, it will not be found in the new table
+                else {
+                    int j = e.hash & mask;
+                    e.next = newTable[j];
+                    newTable[j] = e;
+                }
+                e = next;
+            }
         }
         
-        return size;
+        table = newTable;
+        threshold = (int)(newTable.length * LOAD_FACTOR);
     }
     
-    public List<Object> data() {
-        List<Object> d = new ArrayList<Object>();
-        
-        for (int i = 0; i < table.length; i++) {
-            WeakHashMap<Object, Object> dic = table[i];
-            if (dic != null)
-                d.addAll(dic.keySet());
-        }
-        return d;
+    private static int hash(String className, String uid) {
+        // String hash codes are cached, no string is built
+        int h = className.hashCode() * 31 + (uid != null ? uid.hashCode() : 0);
+        return h ^ (h >>> 16);
     }
     
-    private int hash(String uid) {
-        int h = 0;
-        int max = uid.length();
-        for (int i = 0; i < max; i++)
-            h = (31 * h) + uid.charAt(i);
-        return (Math.abs(h) % table.length);
+    
+    private static final class Entry extends WeakReference<Object> {
+        
+        private final String className;
+        private final int hash;
+        private Entry next;
+        
+        public Entry(Object referent, String className, int hash, Entry next, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.className = className;
+            this.hash = hash;
+            this.next = next;
+        }
+        
+        /**
+         * Compares with the current uid of the entity, collected entities never match.
+         */
+        public boolean matches(int hash, String className, String uid) {
+            if (this.hash != hash || !this.className.equals(className))
+                return false;
+            Object o = get();
+            if (o == null)
+                return false;
+            String currentUid = ((Identifiable)o).getUid();
+            return currentUid == null ? uid == null : currentUid.equals(uid);
+        }
     }
-}
\ No newline at end of file
+}
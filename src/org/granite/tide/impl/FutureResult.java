@@ -1,5 +1,6 @@
 package org.granite.tide.impl;
 
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
@@ -19,10 +20,12 @@ public class FutureResult<T> implements Future<T> {
     
     private Semaphore sem = new Semaphore(1);
     
-    private boolean done = false;
-    private T result;
+    private final AsyncToken token;
+    private volatile boolean done = false;
+    private volatile T result;
     
     public FutureResult(AsyncToken token) {
+        this.token = token;
         token.addResponder(new AsyncResponder() {
             @SuppressWarnings("unchecked")
             @Override
@@ -48,12 +51,12 @@ public class FutureResult<T> implements Future<T> {
 
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
-        return false;
+        return token.cancel();
     }
 
     @Override
     public boolean isCancelled() {
-        return false;
+        return token.isCancelled();
     }
 
     @Override
@@ -64,6 +67,9 @@ public class FutureResult<T> implements Future<T> {
     @Override
     public T get() throws InterruptedException, ExecutionException {
         sem.acquire();
+        sem.release();
+        if (isCancelled())
+            throw new CancellationException("Call cancelled");
         return result;
     }
 
@@ -72,6 +78,9 @@ public class FutureResult<T> implements Future<T> {
         boolean acquired = sem.tryAcquire(timeout, unit);
         if (!acquired)
             throw new TimeoutException("Could not get result");
+        sem.release();
+        if (isCancelled())
+            throw new CancellationException("Call cancelled");
         return result;
     }
 
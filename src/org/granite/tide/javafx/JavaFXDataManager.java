@@ -1,24 +1,15 @@
 package org.granite.tide.javafx;
 
-import java.beans.Introspector;
-import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
 
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.Property;
 import javafx.beans.property.ReadOnlyBooleanProperty;
 import javafx.beans.property.ReadOnlyBooleanWrapper;
-import javafx.beans.property.ReadOnlyProperty;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
-import javafx.beans.value.WritableValue;
 import javafx.collections.ListChangeListener;
 import javafx.collections.MapChangeListener;
 import javafx.collections.ObservableList;
@@ -32,7 +23,8 @@ import org.granite.tide.data.DataManager;
 import org.granite.tide.data.EntityDescriptor;
 import org.granite.tide.data.Identifiable;
 import org.granite.tide.data.PersistenceManager;
-import org.granite.tide.data.Transient;
+import org.granite.tide.data.PropertyAccessor;
+import org.granite.util.WeakIdentityHashMap;
 
 
 public class JavaFXDataManager implements DataManager {
@@ -56,75 +48,64 @@ public class JavaFXDataManager implements DataManager {
     }
     
     
+    private static PropertyAccessor getPropertyAccessor(Object object, String propertyName) {
+        return PersistenceManager.getEntityDescriptor(object).getPropertyAccessor(propertyName);
+    }
+    
     @Override
     public Object getProperty(Object object, String propertyName) {
         try {
-            Method m = object.getClass().getMethod("get" + propertyName.substring(0, 1).toUpperCase() + propertyName.substring(1));
-            return m.invoke(object);
+            return getPropertyAccessor(object, propertyName).getValue(object);
         }
-        catch (NoSuchMethodException e) {
-            try {
-                Method m = object.getClass().getMethod("is" + propertyName.substring(0, 1).toUpperCase() + propertyName.substring(1));
-                return m.invoke(object);
-            }
-            catch (Exception f) {
-                throw new RuntimeException("Could not get property " + propertyName + " on object " + object, f);
-            }
+        catch (Error e) {
+            throw e;
         }
-        catch (Exception e) {
-            throw new RuntimeException("Could not get property " + propertyName + " on object " + object, e);
+        catch (Throwable t) {
+            throw new RuntimeException("Could not get property " + propertyName + " on object " + object, t);
         }
     }
     
     @Override
     public void setProperty(Object object, String propertyName, Object oldValue, Object newValue) {
         try {
-            Method[] methods = object.getClass().getMethods();
-            String setter = "set" + propertyName.substring(0, 1).toUpperCase() + propertyName.substring(1);
-            for (Method m : methods) {
-                if (m.getName().equals(setter) && m.getParameterTypes().length == 1 && m.getParameterTypes()[0].isInstance(newValue)) {
-                    m.invoke(object, newValue);
-                    break;
-                }
-            }
+            getPropertyAccessor(object, propertyName).setValue(object, newValue);
+        }
+        catch (Error e) {
+            throw e;
         }
-        catch (Exception e) {
-            throw new RuntimeException("Could not get property " + propertyName + " on object " + object, e);
+        catch (Throwable t) {
+            throw new RuntimeException("Could not get property " + propertyName + " on object " + object, t);
         }
     }
 
     @Override
     public void setInternalProperty(Object object, String propertyName, Object value) {
-        Method[] methods = object.getClass().getMethods();
-        String property = propertyName + "Property";
-        String setter = "set" + propertyName.substring(0, 1).toUpperCase() + propertyName.substring(1);
+        PropertyAccessor accessor = getPropertyAccessor(object, propertyName);
         boolean found = false;
-        for (Method m : methods) {
-        	if (m.getName().equals(property) && m.getParameterTypes().length == 0 && ObservableValue.class.isAssignableFrom(m.getReturnType())) {
-                try {
-	                @SuppressWarnings("unchecked")
-	                Property<Object> p = (Property<Object>)m.invoke(object);
-	                p.setValue(value);
-	        		found = true;
-                }
-                catch (Exception e) {
-                    throw new RuntimeException("Could not setValue on property " + propertyName + " on object " + object, e);
-                }
-        	}
-        }
-        if (!found) {
-            for (Method m : methods) {
-            	if (m.getName().equals(setter) && m.getParameterTypes().length == 1 && m.getParameterTypes()[0].isInstance(value)) {
-            		try {
-	            		m.invoke(object, value);
-	            		found = true;
-	            		break;
-            		}
-            		catch (Exception e) {
-                        throw new RuntimeException("Could not call setter on property " + propertyName + " on object " + object, e);
-            		}
-            	}
+    	if (accessor.hasPropertyGetter() && ObservableValue.class.isAssignableFrom(accessor.getPropertyGetterType())) {
+            try {
+                @SuppressWarnings("unchecked")
+                Property<Object> p = (Property<Object>)accessor.getPropertyObject(object);
+                p.setValue(value);
+        		found = true;
+            }
+            catch (Error e) {
+                throw e;
+            }
+            catch (Throwable t) {
+                throw new RuntimeException("Could not setValue on property " + propertyName + " on object " + object, t);
             }
+    	}
+        if (!found) {
+    		try {
+        		found = accessor.setValue(object, value);
+    		}
+    		catch (Error e) {
+                throw e;
+    		}
+    		catch (Throwable t) {
+                throw new RuntimeException("Could not call setter on property " + propertyName + " on object " + object, t);
+    		}
         }
         if (!found)
         	log.warn("No property found for object " + object + " name " + propertyName);
@@ -138,48 +119,15 @@ public class JavaFXDataManager implements DataManager {
 
     @Override
     public Map<String, Object> getPropertyValues(Object object, List<String> excludedProperties, boolean includeReadOnly, boolean includeTransient) {
-        EntityDescriptor desc = PersistenceManager.getEntityDescriptor(object);
-        
-        Map<String, Object> values = new LinkedHashMap<String, Object>();
-        for (Method m : object.getClass().getMethods()) {
-            if (!((m.getName().endsWith("Property") && ObservableValue.class.isAssignableFrom(m.getReturnType()) 
-                    || (m.getName().startsWith("get") && (Collection.class.isAssignableFrom(m.getReturnType()) || Map.class.isAssignableFrom(m.getReturnType()))))))
-                continue;
-            
-            if (!includeTransient && m.isAnnotationPresent(Transient.class))
-                continue;
-            
-            String pname = m.getName().startsWith("get") 
-                ? Introspector.decapitalize(m.getName().substring(3))
-                : m.getName().substring(0, m.getName().length()-8);
-                
-            if (desc.getDirtyPropertyName() != null && desc.getDirtyPropertyName().equals(pname))
-                continue;
-            
-            try {
-                if (excludedProperties.contains(pname))
-                    continue;
-                
-                if (m.getName().endsWith("Property")) {
-                    @SuppressWarnings("unchecked")
-                    ReadOnlyProperty<Object> p = (ReadOnlyProperty<Object>)m.invoke(object);
-                    
-                    if (!includeReadOnly && !(p instanceof WritableValue))
-                        continue;
-                    
-                    values.put(p.getName(), p.getValue());
-                }
-                else {
-                    Object value = m.invoke(object);
-                    
-                    values.put(pname, value);
-                }
-            }
-            catch (Exception e) {
-                throw new RuntimeException("Could not get property " + m + " on object " + object, e);
-            }
+        try {
+            return PropertyMetadata.get(object).getValues(object, excludedProperties, includeReadOnly, includeTransient);
+        }
+        catch (Error e) {
+            throw e;
+        }
+        catch (Throwable t) {
+            throw new RuntimeException("Could not get property values on object " + object, t);
         }
-        return values;
     }
 
     @Override
@@ -276,7 +224,7 @@ public class JavaFXDataManager implements DataManager {
     private ListChangeListener<Object> entityListChangeListener = new EntityListChangeListener<Object>();
     private MapChangeListener<Object, Object> entityMapChangeListener = new EntityMapChangeListener<Object, Object>();
     
-    private WeakHashMap<Object, TrackingType> trackingListeners = new WeakHashMap<Object, TrackingType>();
+    private WeakIdentityHashMap<Object, TrackingType> trackingListeners = new WeakIdentityHashMap<Object, TrackingType>();
     
     
     @Override
@@ -305,82 +253,70 @@ public class JavaFXDataManager implements DataManager {
             }
         }
         else if (parent != null || previous instanceof Identifiable) {
-            for (ObservableValue<?> property : instrospectProperties(previous))
-                property.addListener(entityPropertyChangeListener);
+            if (previous instanceof ObservableEntity)
+                ((ObservableEntity)previous).addEntityChangeListener(entityPropertyChangeListener);
+            else {
+                for (ObservableValue<?> property : instrospectProperties(previous))
+                    property.addListener(entityPropertyChangeListener);
+            }
             trackingListeners.put(previous, TrackingType.ENTITY_PROPERTY);
         }
     }
 
     @Override
     public void stopTracking(Object previous, Object parent) {
-        if (previous == null || !trackingListeners.containsKey(previous))
+        if (previous == null)
             return;
         
-        if (previous instanceof ObservableList<?>) {
-            if (parent != null)
-                ((ObservableList<?>)previous).removeListener(entityListChangeListener);
-            else
-                ((ObservableList<?>)previous).removeListener(listChangeListener);
-        }
-        else if (previous instanceof ObservableMap<?, ?>) {
-            if (parent != null)
-                ((ObservableMap<?, ?>)previous).removeListener(entityMapChangeListener);
-            else
-                ((ObservableMap<?, ?>)previous).removeListener(mapChangeListener);
-        }
-        else if (parent != null || previous instanceof Identifiable) {
-            for (ObservableValue<?> property : instrospectProperties(previous))
-                property.removeListener(entityPropertyChangeListener);
-        }
-        
-        trackingListeners.remove(previous);
+        TrackingType type = trackingListeners.remove(previous);
+        if (type != null)
+            removeListener(previous, type);
     }
 
     @Override
     public void clear() {
-        Iterator<Object> ikey = trackingListeners.keySet().iterator();
-        while (ikey.hasNext()) {
-            Object obj = ikey.next();
-            TrackingType type = trackingListeners.get(obj);
-            switch (type) {
-            case COLLECTION:
-                ((ObservableList<?>)obj).removeListener(listChangeListener);
-                break;
-            case MAP:
-                ((ObservableMap<?, ?>)obj).removeListener(mapChangeListener);
-                break;
-            case ENTITY_PROPERTY:
+        for (Map.Entry<Object, TrackingType> entry : trackingListeners.entrySet()) {
+            if (entry.getKey() != null)
+                removeListener(entry.getKey(), entry.getValue());
+        }
+        trackingListeners.clear();
+    }
+    
+    private void removeListener(Object obj, TrackingType type) {
+        switch (type) {
+        case COLLECTION:
+            ((ObservableList<?>)obj).removeListener(listChangeListener);
+            break;
+        case MAP:
+            ((ObservableMap<?, ?>)obj).removeListener(mapChangeListener);
+            break;
+        case ENTITY_PROPERTY:
+            if (obj instanceof ObservableEntity)
+                ((ObservableEntity)obj).removeEntityChangeListener(entityPropertyChangeListener);
+            else {
                 for (ObservableValue<?> property : instrospectProperties(obj))
                     property.removeListener(entityPropertyChangeListener);
-                break;
-            case ENTITY_COLLECTION:
-                ((ObservableList<?>)obj).removeListener(listChangeListener);
-                break;
-            case ENTITY_MAP:
-                ((ObservableMap<?, ?>)obj).removeListener(mapChangeListener);
-                break;
             }
+            break;
+        case ENTITY_COLLECTION:
+            ((ObservableList<?>)obj).removeListener(entityListChangeListener);
+            break;
+        case ENTITY_MAP:
+            ((ObservableMap<?, ?>)obj).removeListener(entityMapChangeListener);
+            break;
         }
     }
     
     private List<ObservableValue<?>> instrospectProperties(Object obj) {
-        List<ObservableValue<?>> properties = new ArrayList<ObservableValue<?>>();
-        EntityDescriptor desc = PersistenceManager.getEntityDescriptor(obj);
-        for (Method m : obj.getClass().getMethods()) {
-            if (m.getParameterTypes().length != 0 || !m.getName().endsWith("Property") || !ObservableValue.class.isAssignableFrom(m.getReturnType()))
-                continue;
-            if (desc != null && m.getName().substring(0, m.getName().length()-8).equals(desc.getDirtyPropertyName()))
-                continue;
-            
-            try {
-                ObservableValue<?> property = (ObservableValue<?>)m.invoke(obj);
-                properties.add(property);
-            }
-            catch (Exception e) {
-                throw new RuntimeException("Could not get property " + m.getName() + " on " + obj, e);
-            }                
+        try {
+            return PropertyMetadata.get(obj).getObservableValues(obj);
+        }
+        catch (Error e) {
+            throw e;
+        }
+        catch (Throwable t) {
+            throw new RuntimeException("Could not get properties on " + obj, t);
         }
-        return properties;
     }
 
     @Override
@@ -392,14 +328,15 @@ public class JavaFXDataManager implements DataManager {
     public void notifyEntityDirtyChange(Object entity, boolean oldDirtyEntity, boolean newDirtyEntity) {
         EntityDescriptor desc = PersistenceManager.getEntityDescriptor(entity);
         if (desc.getDirtyPropertyName() != null) {
-            Method m;
             try {
-                m = entity.getClass().getMethod(desc.getDirtyPropertyName() + "Property");
-                BooleanProperty dirty = (BooleanProperty)m.invoke(entity);
+                BooleanProperty dirty = (BooleanProperty)desc.getPropertyAccessor(desc.getDirtyPropertyName()).getPropertyObject(entity);
                 dirty.set(newDirtyEntity);
             }
-            catch (Exception e) {
-                throw new RuntimeException("Could not get dirty property on entity " + entity, e);
+            catch (Error e) {
+                throw e;
+            }
+            catch (Throwable t) {
+                throw new RuntimeException("Could not get dirty property on entity " + entity, t);
             }
         }
     }
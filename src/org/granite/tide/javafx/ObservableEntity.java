@@ -0,0 +1,18 @@
+package org.granite.tide.javafx;
+
+import javafx.beans.value.ChangeListener;
+
+
+/**
+ *  Entity notifying the changes of all its properties to entity level listeners
+ *
+ *  The data manager registers a single listener on entities implementing this interface instead of a listener
+ *  on each of their observable properties. Listeners must be called with the changed property, which has
+ *  its bean and name defined, and its old and new values.
+ */
+public interface ObservableEntity {
+
+    public void addEntityChangeListener(ChangeListener<Object> listener);
+
+    public void removeEntityChangeListener(ChangeListener<Object> listener);
+}
@@ -0,0 +1,274 @@
+package org.granite.tide.javafx;
+
+import java.beans.Introspector;
+import java.lang.reflect.Method;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javafx.beans.value.ObservableValue;
+import javafx.beans.value.WritableValue;
+
+import org.granite.tide.data.EntityDescriptor;
+import org.granite.tide.data.PersistenceManager;
+import org.granite.tide.data.PropertyAccessor;
+import org.granite.tide.data.Transient;
+
+
+/**
+ *  Properties of a class seen by the JavaFX data manager, computed once per class
+ *
+ *  Properties are the observable values returned by xxxProperty() methods and the collections or maps
+ *  returned by getters, the dirty property of entities is excluded.
+ */
+class PropertyMetadata {
+
+    private static final ConcurrentMap<Class<?>, PropertyMetadata> metadataByClass = new ConcurrentHashMap<Class<?>, PropertyMetadata>();
+
+    private static final Object EXCLUDED = new Object();
+
+    private final String[] names;
+    private final PropertyAccessor[] accessors;
+    private final boolean[] observable;
+    private final boolean[] readOnly;
+    private final boolean[] transients;
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+    private final PropertyAccessor[] observableAccessors;
+
+
+    public static PropertyMetadata get(Object object) {
+        PropertyMetadata metadata = metadataByClass.get(object.getClass());
+        if (metadata == null) {
+            metadata = new PropertyMetadata(object);
+            PropertyMetadata existing = metadataByClass.putIfAbsent(object.getClass(), metadata);
+            if (existing != null)
+                metadata = existing;
+        }
+        return metadata;
+    }
+
+    private PropertyMetadata(Object object) {
+        EntityDescriptor desc = PersistenceManager.getEntityDescriptor(object);
+
+        List<Method> methods = new ArrayList<Method>();
+        for (Method m : object.getClass().getMethods()) {
+            if (m.getParameterTypes().length != 0)
+                continue;
+
+            boolean isProperty = m.getName().endsWith("Property") && ObservableValue.class.isAssignableFrom(m.getReturnType());
+            if (!isProperty && !(m.getName().startsWith("get") && (Collection.class.isAssignableFrom(m.getReturnType()) || Map.class.isAssignableFrom(m.getReturnType()))))
+                continue;
+
+            String name = isProperty ? m.getName().substring(0, m.getName().length()-8) : Introspector.decapitalize(m.getName().substring(3));
+            if (name.equals(desc.getDirtyPropertyName()))
+                continue;
+
+            // A property can be both observable and have a collection getter, the last method found is used
+            Integer slot = slots.get(name);
+            if (slot != null)
+                methods.set(slot, m);
+            else {
+                slots.put(name, methods.size());
+                methods.add(m);
+            }
+        }
+
+        names = new String[methods.size()];
+        accessors = new PropertyAccessor[methods.size()];
+        observable = new boolean[methods.size()];
+        readOnly = new boolean[methods.size()];
+        transients = new boolean[methods.size()];
+        List<PropertyAccessor> observableAccessors = new ArrayList<PropertyAccessor>();
+        for (Map.Entry<String, Integer> slot : slots.entrySet()) {
+            int i = slot.getValue();
+            Method m = methods.get(i);
+            names[i] = slot.getKey();
+            accessors[i] = desc.getPropertyAccessor(names[i]);
+            observable[i] = m.getName().endsWith("Property") && ObservableValue.class.isAssignableFrom(m.getReturnType());
+            readOnly[i] = !WritableValue.class.isAssignableFrom(m.getReturnType());
+            transients[i] = m.isAnnotationPresent(Transient.class);
+        }
+        for (int i = 0; i < names.length; i++) {
+            if (observable[i])
+                observableAccessors.add(accessors[i]);
+        }
+        this.observableAccessors = observableAccessors.toArray(new PropertyAccessor[observableAccessors.size()]);
+    }
+
+    /**
+     *  Observable values of an object, in the order of the class properties
+     *
+     *  @param object object
+     *  @return observable values
+     */
+    public List<ObservableValue<?>> getObservableValues(Object object) throws Throwable {
+        List<ObservableValue<?>> properties = new ArrayList<ObservableValue<?>>(observableAccessors.length);
+        for (PropertyAccessor accessor : observableAccessors)
+            properties.add((ObservableValue<?>)accessor.getPropertyObject(object));
+        return properties;
+    }
+
+    /**
+     *  Values of the properties of an object
+     *
+     *  Values are read in a single array indexed by property, the returned map is a read-only view of this array.
+     *
+     *  @param object object
+     *  @param excludedProperties names of properties to exclude
+     *  @param includeReadOnly include properties without a writable observable value
+     *  @param includeTransient include properties annotated with @Transient
+     *  @return property values
+     */
+    public Map<String, Object> getValues(Object object, List<String> excludedProperties, boolean includeReadOnly, boolean includeTransient) throws Throwable {
+        Object[] values = new Object[names.length];
+        for (String name : excludedProperties) {
+            Integer slot = slots.get(name);
+            if (slot != null)
+                values[slot] = EXCLUDED;
+        }
+
+        int size = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (values[i] == EXCLUDED || (!includeTransient && transients[i])) {
+                values[i] = EXCLUDED;
+                continue;
+            }
+
+            if (observable[i]) {
+                ObservableValue<?> p = (ObservableValue<?>)accessors[i].getPropertyObject(object);
+                if (!includeReadOnly && readOnly[i] && !(p instanceof WritableValue)) {
+                    values[i] = EXCLUDED;
+                    continue;
+                }
+                values[i] = p.getValue();
+            }
+            else
+                values[i] = accessors[i].getValue(object);
+            size++;
+        }
+        return new PropertyValues(values, size);
+    }
+
+
+    private class PropertyValues extends AbstractMap<String, Object> {
+
+        private final Object[] values;
+        private final int size;
+        private Set<String> keySet = null;
+        private Set<Map.Entry<String, Object>> entrySet = null;
+
+        public PropertyValues(Object[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            Integer slot = slots.get(key);
+            return slot != null && values[slot] != EXCLUDED;
+        }
+
+        @Override
+        public Object get(Object key) {
+            Integer slot = slots.get(key);
+            return slot != null && values[slot] != EXCLUDED ? values[slot] : null;
+        }
+
+        @Override
+        public Set<String> keySet() {
+            if (keySet == null) {
+                keySet = new AbstractSet<String>() {
+                    @Override
+                    public Iterator<String> iterator() {
+                        return new SlotIterator<String>() {
+                            @Override
+                            protected String get(int slot) {
+                                return names[slot];
+                            }
+                        };
+                    }
+
+                    @Override
+                    public boolean contains(Object key) {
+                        return containsKey(key);
+                    }
+
+                    @Override
+                    public int size() {
+                        return size;
+                    }
+                };
+            }
+            return keySet;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            if (entrySet == null) {
+                entrySet = new AbstractSet<Map.Entry<String, Object>>() {
+                    @Override
+                    public Iterator<Map.Entry<String, Object>> iterator() {
+                        return new SlotIterator<Map.Entry<String, Object>>() {
+                            @Override
+                            protected Map.Entry<String, Object> get(int slot) {
+                                return new SimpleImmutableEntry<String, Object>(names[slot], values[slot]);
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return size;
+                    }
+                };
+            }
+            return entrySet;
+        }
+
+        private abstract class SlotIterator<T> implements Iterator<T> {
+
+            private int next = nextSlot(0);
+
+            private int nextSlot(int slot) {
+                while (slot < values.length && values[slot] == EXCLUDED)
+                    slot++;
+                return slot;
+            }
+
+            protected abstract T get(int slot);
+
+            @Override
+            public boolean hasNext() {
+                return next < values.length;
+            }
+
+            @Override
+            public T next() {
+                if (next >= values.length)
+                    throw new NoSuchElementException();
+                int slot = next;
+                next = nextSlot(next+1);
+                return get(slot);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }
+    }
+}
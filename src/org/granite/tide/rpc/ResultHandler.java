@@ -1,15 +1,21 @@
 package org.granite.tide.rpc;
 
+import java.util.concurrent.Executor;
+
+import org.granite.logging.Logger;
 import org.granite.rpc.events.MessageEvent;
 import org.granite.rpc.events.ResultEvent;
 import org.granite.tide.Context;
 import org.granite.tide.TideMergeResponder;
 import org.granite.tide.TideResponder;
+import org.granite.tide.data.StagedMerge;
 import org.granite.tide.invocation.InvocationResult;
 
 
 public class ResultHandler<T> implements Runnable {
 
+	private static Logger log = Logger.getLogger(ResultHandler.class);
+	
 	private final ServerSession serverSession;
 	private final Context sourceContext;
 	private final String componentName;
@@ -19,6 +25,7 @@ public class ResultHandler<T> implements Runnable {
 	private final Object info;
 	private final TideResponder<T> tideResponder;
 	private final ComponentResponder componentResponder;
+	private volatile StagedMerge stagedMerge = null;
 	
 	
 	public ResultHandler(ServerSession serverSession, Context sourceContext, String componentName, String operation, MessageEvent event, Object info, TideResponder<T> tideResponder, ComponentResponder componentResponder) {
@@ -32,18 +39,74 @@ public class ResultHandler<T> implements Runnable {
 		this.componentResponder = componentResponder;
 	}
 	
-	public void run() {
-        InvocationResult invocationResult = null;
-        Object result = null; 
+	/**
+	 *  Compare the result with the cached entities in a background thread before running the handler in the UI thread,
+	 *  only the snapshot of the cached entities is taken in the UI thread
+	 *  
+	 *  @param executor executor of the background tasks
+	 *  @param staged called from any thread when the handler is ready to run
+	 */
+	public void stage(final Executor executor, final Runnable staged) {
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						final StagedMerge stagedMerge = sourceContext.getEntityManager().newStagedMerge();
+						stagedMerge.collect(getResult());
+						sourceContext.callLater(new Runnable() {
+							public void run() {
+								try {
+									stagedMerge.snapshot();
+									executor.execute(new Runnable() {
+										public void run() {
+											try {
+												stagedMerge.compare();
+												ResultHandler.this.stagedMerge = stagedMerge;
+											}
+											catch (Exception e) {
+												log.error(e, "Could not stage merge of result %s", event);
+											}
+											staged.run();
+										}
+									});
+								}
+								catch (RuntimeException e) {
+									log.error(e, "Could not stage merge of result %s", event);
+									staged.run();
+								}
+							}
+						});
+					}
+					catch (Exception e) {
+						log.error(e, "Could not stage merge of result %s", event);
+						staged.run();
+					}
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			log.error(e, "Could not stage merge of result %s", event);
+			staged.run();
+		}
+	}
+	
+	private Object getBody() {
         if (event instanceof ResultEvent)
-            result = ((ResultEvent)event).getResult();
-        else if (event instanceof MessageEvent)
-            result = ((MessageEvent)event).getMessage().getBody();
-        
-        if (result instanceof InvocationResult) {
-            invocationResult = (InvocationResult)result;
-            result = invocationResult.getResult();
-        }
+            return ((ResultEvent)event).getResult();
+        return event.getMessage().getBody();
+	}
+	
+	private Object getResult() {
+        Object result = getBody();
+        if (result instanceof InvocationResult)
+            result = ((InvocationResult)result).getResult();
+        return result;
+	}
+	
+	public void run() {
+        Object body = getBody();
+        InvocationResult invocationResult = body instanceof InvocationResult ? (InvocationResult)body : null;
+        Object result = getResult();
         
         serverSession.result(event);
         
@@ -58,7 +121,7 @@ public class ResultHandler<T> implements Runnable {
         Context context = sourceContext.getContextManager().retrieveContext(sourceContext, null, false, false); // conversationId, wasConversationCreated, wasConversationEnded);
         
         context.internalResult(serverSession, componentName, operation, invocationResult, result, 
-            tideResponder instanceof TideMergeResponder<?> ? ((TideMergeResponder<T>)tideResponder).getMergeResultWith() : null);
+            tideResponder instanceof TideMergeResponder<?> ? ((TideMergeResponder<T>)tideResponder).getMergeResultWith() : null, stagedMerge);
         if (invocationResult != null)
             result = invocationResult.getResult();
         
@@ -2,11 +2,14 @@ package org.granite.tide.rpc;
 
 import java.net.URI;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
 import org.granite.logging.Logger;
 import org.granite.messaging.Channel;
@@ -81,6 +84,13 @@ public class ServerSession implements ContextAware {
     private Channel graniteChannel;
 	private WebSocketChannel gravityChannel;
 	
+	private boolean optimisticConnect = false;
+	private boolean eagerConnect = false;
+	private long requestTimeout = 0L;
+	private Map<String, Long> destinationRequestTimeouts = new HashMap<String, Long>();
+	private volatile Executor mergeExecutor = null;
+	private final LinkedList<HandlerSlot> handlerSlots = new LinkedList<HandlerSlot>();
+	
 	protected Map<String, RemoteObject> remoteObjects = new HashMap<String, RemoteObject>();
 	protected Map<String, MessageAgent> messageAgents = new HashMap<String, MessageAgent>();
 	
@@ -127,6 +137,20 @@ public class ServerSession implements ContextAware {
     public WebSocketEngine getWebSocketEngine() {
     	return webSocketEngine;
     }
+    
+    public Executor getMergeExecutor() {
+    	return mergeExecutor;
+    }
+    
+    /**
+     * Executor used to compare received results with the cached entities before they are merged in the UI thread.
+     * When null (default), results are entirely merged in the UI thread.
+     * Staging is opt-in, a single thread executor is usually enough as the results are applied in their arrival order.
+     * An ExecutorService is shut down when the session is stopped.
+     */
+    public void setMergeExecutor(Executor mergeExecutor) {
+    	this.mergeExecutor = mergeExecutor;
+    }
 	
     public void setContextRoot(String contextRoot) {
     	this.contextRoot = contextRoot;
@@ -166,6 +190,41 @@ public class ServerSession implements ContextAware {
 		this.context = context;
 	}
 	
+	/**
+	 * Send the first remote calls without waiting for the channel ping handshake.
+	 */
+	public void setOptimisticConnect(boolean optimisticConnect) {
+		this.optimisticConnect = optimisticConnect;
+	}
+	
+	/**
+	 * Start the channel ping handshake as soon as the session is started instead of at the first remote call.
+	 */
+	public void setEagerConnect(boolean eagerConnect) {
+		this.eagerConnect = eagerConnect;
+	}
+	
+	/**
+	 * Default timeout in milliseconds of remote calls, 0 (default) means no timeout.
+	 */
+	public synchronized void setRequestTimeout(long requestTimeout) {
+		this.requestTimeout = requestTimeout;
+		for (Map.Entry<String, RemoteObject> me : remoteObjects.entrySet()) {
+			if (!destinationRequestTimeouts.containsKey(me.getKey()))
+				me.getValue().setRequestTimeout(requestTimeout);
+		}
+	}
+	
+	/**
+	 * Timeout in milliseconds of remote calls on the specified destination, overrides the default timeout.
+	 */
+	public synchronized void setRequestTimeout(String destination, long requestTimeout) {
+		destinationRequestTimeouts.put(destination, requestTimeout);
+		RemoteObject remoteObject = remoteObjects.get(destination);
+		if (remoteObject != null)
+			remoteObject.setRequestTimeout(requestTimeout);
+	}
+	
 	public void setStatus(Status status) {
 		this.status = status;
 	}
@@ -182,6 +241,9 @@ public class ServerSession implements ContextAware {
 			httpClientEngine.start();
 			graniteURI = new URI(protocol + "://" + this.serverName + ":" + this.serverPort + this.contextRoot + this.graniteUrlMapping);
 			graniteChannel = new Channel(httpClientEngine, "graniteamf", graniteURI);
+			graniteChannel.setOptimisticConnect(optimisticConnect);
+			if (eagerConnect)
+				graniteChannel.connect();
 		}		
 		
 		if (webSocketEngine == null)
@@ -196,13 +258,21 @@ public class ServerSession implements ContextAware {
 	
 	public void stop()throws Exception {
 		if (httpClientEngine != null) {
+			if (graniteChannel != null)
+				graniteChannel.stop();
 			graniteChannel = null;
 			httpClientEngine.stop();
 		}
 		if (webSocketEngine != null) {
+			if (gravityChannel != null)
+				gravityChannel.stop();
 			gravityChannel = null;
 			webSocketEngine.stop();
 		}
+		Executor executor = mergeExecutor;
+		mergeExecutor = null;
+		if (executor instanceof ExecutorService)
+			((ExecutorService)executor).shutdown();
 	}
 	
 	public RemoteObject getRemoteObject() {
@@ -216,6 +286,8 @@ public class ServerSession implements ContextAware {
 		if (remoteObject == null) {
 			remoteObject = new RemoteObject(destination);
 			remoteObject.setChannel(graniteChannel);
+			Long timeout = destinationRequestTimeouts.get(destination);
+			remoteObject.setRequestTimeout(timeout != null ? timeout : requestTimeout);
 			remoteObjects.put(destination, remoteObject);
 		}
 		return remoteObject;
@@ -260,7 +332,15 @@ public class ServerSession implements ContextAware {
         if (ro == null)
         	throw new RuntimeException("Cannot call remote server, internal RemoteObject not created");
         
-        AsyncToken token = ro.call(method, params, responder);
+        return remoteCall(method, params, ro.getRequestTimeout(), responder);
+	}
+	
+	public AsyncToken remoteCall(String method, Object[] params, long timeout, AsyncResponder responder) {
+        RemoteObject ro = getRemoteObject();
+        if (ro == null)
+        	throw new RuntimeException("Cannot call remote server, internal RemoteObject not created");
+        
+        AsyncToken token = ro.call(method, params, timeout, responder);
         
         checkWaitForLogout();
         
@@ -288,6 +368,55 @@ public class ServerSession implements ContextAware {
         	status.setConnected(false);            
 	}
 	
+	/**
+	 *  Result or fault handler waiting for the handlers received before it when results are staged
+	 */
+	private class HandlerSlot implements Runnable {
+		
+		private final Context context;
+		private final Runnable handler;
+		private boolean ready = false;
+		
+		public HandlerSlot(Context context, Runnable handler) {
+			this.context = context;
+			this.handler = handler;
+			synchronized (handlerSlots) {
+				handlerSlots.add(this);
+			}
+		}
+		
+		/**
+		 *  Mark the handler ready, it runs in the UI thread once all handlers received before it have run
+		 */
+		public void run() {
+			synchronized (handlerSlots) {
+				ready = true;
+			}
+			context.callLater(new Runnable() {
+				public void run() {
+					runReadyHandlers();
+				}
+			});
+		}
+	}
+	
+	private void runReadyHandlers() {
+		while (true) {
+			HandlerSlot slot = null;
+			synchronized (handlerSlots) {
+				if (handlerSlots.isEmpty() || !handlerSlots.getFirst().ready)
+					return;
+				slot = handlerSlots.removeFirst();
+			}
+			try {
+				slot.handler.run();
+			}
+			catch (RuntimeException e) {
+				log.error(e, "Could not run handler %s", slot.handler);
+			}
+		}
+	}
+	
 	public class ServerSessionStatusHandler implements EngineStatusHandler {
 
 		@Override
@@ -324,13 +453,23 @@ public class ServerSession implements ContextAware {
 			@Override
             public void result(Context context, ResultEvent event, Object info, String componentName,
                     String operation, TideResponder<?> tideResponder, ComponentResponder componentResponder) {
-            	context.callLater(new ResultHandler(ServerSession.this, context, componentName, operation, event, info, tideResponder, componentResponder));
+            	ResultHandler resultHandler = new ResultHandler(ServerSession.this, context, componentName, operation, event, info, tideResponder, componentResponder);
+            	Executor executor = mergeExecutor;
+            	if (executor != null)
+            		resultHandler.stage(executor, new HandlerSlot(context, resultHandler));
+            	else
+            		context.callLater(resultHandler);
             }
             
             @Override
             public void fault(Context context, FaultEvent event, Object info, String componentName,
                     String operation, TideResponder<?> tideResponder, ComponentResponder componentResponder) {
-            	context.callLater(new FaultHandler(ServerSession.this, context, componentName, operation, event, info, tideResponder, componentResponder));
+            	FaultHandler faultHandler = new FaultHandler(ServerSession.this, context, componentName, operation, event, info, tideResponder, componentResponder);
+            	// Keep the arrival order with the results being staged
+            	if (mergeExecutor != null)
+            		new HandlerSlot(context, faultHandler).run();
+            	else
+            		context.callLater(faultHandler);
             }
         };
         ComponentResponder componentResponder = new ComponentResponder(context, h, component, operation, args, null, tideResponder);
@@ -0,0 +1,179 @@
+package org.granite.rpc.client.test;
+
+import java.net.URI;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.granite.messaging.amf.AMF0Body;
+import org.granite.messaging.amf.AMF0Message;
+import org.granite.messaging.amf.AMF3Object;
+import org.granite.messaging.engine.DefaultEngineStatusHandler;
+import org.granite.messaging.engine.EngineResponseHandler;
+import org.granite.messaging.engine.EngineStatusHandler;
+import org.granite.messaging.engine.HttpClientEngine;
+import org.granite.messaging.metrics.MetricsListener;
+
+import flex.messaging.messages.AcknowledgeMessage;
+import flex.messaging.messages.CommandMessage;
+import flex.messaging.messages.ErrorMessage;
+import flex.messaging.messages.Message;
+import flex.messaging.messages.RemotingMessage;
+
+/**
+ * Simulates serialization cost on the calling thread and answers asynchronously,
+ * like the Apache async client does.
+ * Calls to operations named "hang" are never answered. The next rejectedPings pings are rejected along with
+ * the other messages of their request, as by a server refusing clients that have not done the ping handshake.
+ * The request numbered failedRequest (starting at 1) throws as if its serialization failed.
+ */
+public class MockHttpClientEngine implements HttpClientEngine {
+	
+	private final ScheduledExecutorService responseExecutor = Executors.newScheduledThreadPool(2);
+	private final long serializationDelay;
+	private final long responseDelay;
+	private final AtomicInteger requestCount = new AtomicInteger();
+	private final AtomicInteger concurrentSendCount = new AtomicInteger();
+	private final AtomicInteger maxConcurrentSendCount = new AtomicInteger();
+	private EngineStatusHandler statusHandler = new DefaultEngineStatusHandler();
+	private MetricsListener metricsListener = MetricsListener.NONE;
+	private volatile boolean started = false;
+	private final AtomicInteger rejectedPings = new AtomicInteger();
+	private final AtomicInteger requestCountAtFirstResponse = new AtomicInteger();
+	private volatile int failedRequest = 0;
+	
+	public MockHttpClientEngine(long serializationDelay, long responseDelay) {
+		this.serializationDelay = serializationDelay;
+		this.responseDelay = responseDelay;
+	}
+	
+	public int getRequestCount() {
+		return requestCount.get();
+	}
+	
+	/**
+	 * Highest number of threads seen serializing a request at the same time.
+	 */
+	public int getMaxConcurrentSendCount() {
+		return maxConcurrentSendCount.get();
+	}
+	
+	/**
+	 * Number of requests sent before the first response was delivered.
+	 */
+	public int getRequestCountAtFirstResponse() {
+		return requestCountAtFirstResponse.get();
+	}
+	
+	public void setRejectedPings(int rejectedPings) {
+		this.rejectedPings.set(rejectedPings);
+	}
+	
+	private boolean rejectPing() {
+		int count = rejectedPings.get();
+		while (count > 0 && !rejectedPings.compareAndSet(count, count - 1))
+			count = rejectedPings.get();
+		return count > 0;
+	}
+
+	public void setFailedRequest(int failedRequest) {
+		this.failedRequest = failedRequest;
+	}
+
+	@Override
+	public Future<?> send(URI uri, final AMF0Message message, final EngineResponseHandler handler) {
+		if (requestCount.incrementAndGet() == failedRequest)
+			throw new RuntimeException("Serialization failed");
+		
+		int concurrent = concurrentSendCount.incrementAndGet();
+		int max = maxConcurrentSendCount.get();
+		while (concurrent > max && !maxConcurrentSendCount.compareAndSet(max, concurrent))
+			max = maxConcurrentSendCount.get();
+		try {
+			// Serialization time
+			Thread.sleep(serializationDelay);
+		}
+		catch (InterruptedException e) {
+		}
+		finally {
+			concurrentSendCount.decrementAndGet();
+		}
+		
+		return responseExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				AMF0Message response = new AMF0Message();
+				boolean rejected = false;
+				for (int i = 0; i < message.getBodyCount(); i++) {
+					AMF0Body body = message.getBody(i);
+					Message request = (Message)((AMF3Object)((Object[])body.getValue())[0]).getValue();
+					if (request instanceof RemotingMessage && "hang".equals(((RemotingMessage)request).getOperation()))
+						return;
+					if (request instanceof CommandMessage && ((CommandMessage)request).isClientPingOperation() && rejectPing())
+						rejected = true;
+					if (rejected) {
+						ErrorMessage error = new ErrorMessage(request, null);
+						error.setFaultCode("Server.Rejected");
+						response.addBody(body.getResponse() + "/onStatus", "", error, AMF0Body.DATA_TYPE_AMF3_OBJECT);
+						continue;
+					}
+					AcknowledgeMessage ack = new AcknowledgeMessage();
+					ack.setCorrelationId(request.getMessageId());
+					response.addBody(body.getResponse() + "/onResult", "", ack, AMF0Body.DATA_TYPE_AMF3_OBJECT);
+				}
+				requestCountAtFirstResponse.compareAndSet(0, requestCount.get());
+				handler.completed(response);
+			}
+		}, responseDelay, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void setGraniteStdConfigPath(String graniteConfigPath) {
+	}
+
+	@Override
+	public void setGraniteConfigPath(String graniteConfigPath) {
+	}
+
+	@Override
+	public void setGraniteConfigurator(Configurator configurator) {
+	}
+
+	@Override
+	public EngineStatusHandler getStatusHandler() {
+		return statusHandler;
+	}
+
+	@Override
+	public void setStatusHandler(EngineStatusHandler statusHandler) {
+		this.statusHandler = statusHandler;
+	}
+
+	@Override
+	public MetricsListener getMetricsListener() {
+		return metricsListener;
+	}
+
+	@Override
+	public void setMetricsListener(MetricsListener metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+
+	@Override
+	public void start() {
+		started = true;
+	}
+
+	@Override
+	public boolean isStarted() {
+		return started;
+	}
+
+	@Override
+	public void stop() {
+		started = false;
+		responseExecutor.shutdown();
+	}
+}
@@ -0,0 +1,48 @@
+package org.granite.rpc.client.test;
+
+import org.granite.messaging.engine.BufferPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBufferPool {
+	
+	@Test
+	public void testReuse() {
+		BufferPool pool = new BufferPool(16, 4);
+		
+		byte[] chunk = pool.acquire();
+		Assert.assertEquals("Chunk size", 16, chunk.length);
+		Assert.assertEquals("Nothing pooled", 0, pool.getPooledChunks());
+		
+		pool.release(chunk);
+		Assert.assertEquals("Chunk pooled", 1, pool.getPooledChunks());
+		Assert.assertSame("Chunk reused", chunk, pool.acquire());
+		Assert.assertEquals("Nothing pooled", 0, pool.getPooledChunks());
+		Assert.assertNotSame("New chunk when empty", chunk, pool.acquire());
+	}
+	
+	@Test
+	public void testMaxPooledChunks() {
+		BufferPool pool = new BufferPool(16, 2);
+		
+		byte[][] chunks = new byte[3][];
+		for (int i = 0; i < chunks.length; i++)
+			chunks[i] = pool.acquire();
+		for (byte[] chunk : chunks)
+			pool.release(chunk);
+		Assert.assertEquals("Pool capped", 2, pool.getPooledChunks());
+		
+		pool.acquire();
+		pool.acquire();
+		Assert.assertEquals("Pool empty", 0, pool.getPooledChunks());
+	}
+	
+	@Test
+	public void testReleaseForeignChunk() {
+		BufferPool pool = new BufferPool(16, 2);
+		
+		pool.release(null);
+		pool.release(new byte[8]);
+		Assert.assertEquals("Chunks of another size not pooled", 0, pool.getPooledChunks());
+	}
+}
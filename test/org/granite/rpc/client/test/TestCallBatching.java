@@ -0,0 +1,245 @@
+package org.granite.rpc.client.test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.granite.messaging.Channel;
+import org.granite.messaging.metrics.MetricsListener;
+import org.granite.rpc.AsyncResponder;
+import org.granite.rpc.AsyncToken;
+import org.granite.rpc.events.FaultEvent;
+import org.granite.rpc.events.ResultEvent;
+import org.granite.rpc.remoting.RemoteObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestCallBatching {
+	
+	@Test
+	public void testBatchDelay() throws Exception {
+		MockHttpClientEngine engine = new MockHttpClientEngine(0, 5);
+		Channel channel = new Channel(engine, "graniteamf", new URI("http://localhost:8080/graniteamf/amf"));
+		RemoteObject remoteObject = new RemoteObject(channel, "testService");
+		
+		try {
+			CallCounter counter = new CallCounter(1);
+			remoteObject.call("echo", new Object[0], counter);
+			Assert.assertTrue("Connected", counter.latch.await(2, TimeUnit.SECONDS));
+			
+			channel.setBatchDelayMillis(100);
+			channel.resetBatchStatistics();
+			int requestCount = engine.getRequestCount();
+			
+			counter = new CallCounter(5);
+			for (int i = 0; i < 5; i++)
+				remoteObject.call("echo", new Object[] { i }, counter);
+			Assert.assertTrue("Answered", counter.latch.await(2, TimeUnit.SECONDS));
+			
+			Assert.assertEquals("No fault", 0, counter.faults.get());
+			Assert.assertEquals("One request", requestCount + 1, engine.getRequestCount());
+			Assert.assertEquals("Flush count", 1, channel.getFlushCount());
+			Assert.assertEquals("Batch count", 1, channel.getBatchCount());
+			Assert.assertEquals("Batched messages", 5, channel.getBatchedMessageCount());
+			Assert.assertEquals("Max batch size", 5, channel.getMaxBatchSize());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testMaxBatchMessagesSplit() throws Exception {
+		// Calls queued during the ping handshake are flushed at once when it completes
+		MockHttpClientEngine engine = new MockHttpClientEngine(0, 100);
+		Channel channel = new Channel(engine, "graniteamf", new URI("http://localhost:8080/graniteamf/amf"));
+		channel.setMaxBatchMessages(3);
+		RemoteObject remoteObject = new RemoteObject(channel, "testService");
+		
+		try {
+			CallCounter counter = new CallCounter(7);
+			for (int i = 0; i < 7; i++)
+				remoteObject.call("echo", new Object[] { i }, counter);
+			Assert.assertTrue("Answered", counter.latch.await(2, TimeUnit.SECONDS));
+			
+			Assert.assertEquals("No fault", 0, counter.faults.get());
+			Assert.assertEquals("Ping then 3 requests", 4, engine.getRequestCount());
+			Assert.assertEquals("Flush count", 1, channel.getFlushCount());
+			Assert.assertEquals("Batch count", 3, channel.getBatchCount());
+			Assert.assertEquals("Batched messages", 7, channel.getBatchedMessageCount());
+			Assert.assertEquals("Max batch size", 3, channel.getMaxBatchSize());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testFailedSplitBatch() throws Exception {
+		MockHttpClientEngine engine = new MockHttpClientEngine(0, 100);
+		// Request 1 is the ping, request 3 is the second chunk
+		engine.setFailedRequest(3);
+		Channel channel = new Channel(engine, "graniteamf", new URI("http://localhost:8080/graniteamf/amf"));
+		channel.setMaxBatchMessages(3);
+		RemoteObject remoteObject = new RemoteObject(channel, "testService");
+		
+		try {
+			List<AsyncToken> tokens = new ArrayList<AsyncToken>();
+			CallCounter counter = new CallCounter(7);
+			for (int i = 0; i < 7; i++)
+				tokens.add(remoteObject.call("echo", new Object[] { i }, counter));
+			Assert.assertTrue("Answered", counter.latch.await(2, TimeUnit.SECONDS));
+			
+			Assert.assertEquals("Faults of the failed and unsent chunks", 4, counter.faults.get());
+			for (int i = 0; i < 3; i++)
+				Assert.assertFalse("First chunk answered", tokens.get(i).getResponseEvent() instanceof FaultEvent);
+			Assert.assertEquals("Failed chunk", "Client.Error", ((FaultEvent)tokens.get(3).getResponseEvent()).getFaultCode());
+			Assert.assertEquals("Unsent chunk", "Channel.Failed", ((FaultEvent)tokens.get(6).getResponseEvent()).getFaultCode());
+			
+			counter = new CallCounter(1);
+			remoteObject.call("echo", new Object[0], counter);
+			Assert.assertTrue("Answered", counter.latch.await(2, TimeUnit.SECONDS));
+			Assert.assertEquals("Channel still usable", 0, counter.faults.get());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testTokenCounts() throws Exception {
+		MockHttpClientEngine engine = new MockHttpClientEngine(0, 5);
+		final AtomicInteger pendingCount = new AtomicInteger();
+		final AtomicInteger activeCount = new AtomicInteger();
+		engine.setMetricsListener(new TokenCountsListener(pendingCount, activeCount));
+		Channel channel = new Channel(engine, "graniteamf", new URI("http://localhost:8080/graniteamf/amf"));
+		RemoteObject remoteObject = new RemoteObject(channel, "testService");
+		
+		try {
+			CallCounter counter = new CallCounter(1);
+			remoteObject.call("echo", new Object[0], counter);
+			Assert.assertTrue("Connected", counter.latch.await(2, TimeUnit.SECONDS));
+			assertCount("Pending", 0, pendingCount);
+			assertCount("Active", 0, activeCount);
+			
+			channel.setBatchDelayMillis(200);
+			AsyncToken token1 = remoteObject.call("hang", new Object[0], (AsyncResponder)null);
+			AsyncToken token2 = remoteObject.call("hang", new Object[0], (AsyncResponder)null);
+			Assert.assertEquals("Pending", 2, pendingCount.get());
+			Assert.assertEquals("Active", 0, activeCount.get());
+			
+			assertCount("Pending", 0, pendingCount);
+			assertCount("Active", 2, activeCount);
+			
+			token1.cancel();
+			Assert.assertEquals("Active", 1, activeCount.get());
+			token2.cancel();
+			Assert.assertEquals("Active", 0, activeCount.get());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testStop() throws Exception {
+		MockHttpClientEngine engine = new MockHttpClientEngine(0, 5);
+		Channel channel = new Channel(engine, "graniteamf", new URI("http://localhost:8080/graniteamf/amf"));
+		RemoteObject remoteObject = new RemoteObject(channel, "testService");
+		
+		try {
+			CallCounter counter = new CallCounter(1);
+			remoteObject.call("echo", new Object[0], counter);
+			Assert.assertTrue("Connected", counter.latch.await(2, TimeUnit.SECONDS));
+			
+			channel.setBatchDelayMillis(100);
+			int requestCount = engine.getRequestCount();
+			AsyncToken token = remoteObject.call("echo", new Object[0], (AsyncResponder)null);
+			channel.stop();
+			
+			Assert.assertTrue("Delayed call faulted", token.getResponseEvent() instanceof FaultEvent);
+			Assert.assertEquals("Fault code", "Channel.Stopped", ((FaultEvent)token.getResponseEvent()).getFaultCode());
+			Thread.sleep(200);
+			Assert.assertEquals("Delayed call not sent", requestCount, engine.getRequestCount());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	
+	private static class CallCounter implements AsyncResponder {
+		
+		private final CountDownLatch latch;
+		private final AtomicInteger faults = new AtomicInteger();
+		
+		public CallCounter(int count) {
+			latch = new CountDownLatch(count);
+		}
+
+		@Override
+		public void result(ResultEvent event) {
+			latch.countDown();
+		}
+
+		@Override
+		public void fault(FaultEvent event) {
+			faults.incrementAndGet();
+			latch.countDown();
+		}
+	}
+	
+	/**
+	 * Token counts are updated by the channel after the responders of the call have been notified
+	 */
+	private static void assertCount(String message, int expected, AtomicInteger count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 2000L;
+		while (count.get() != expected && System.currentTimeMillis() < deadline)
+			Thread.sleep(10L);
+		Assert.assertEquals(message, expected, count.get());
+	}
+	
+	private static class TokenCountsListener implements MetricsListener {
+		
+		private final AtomicInteger pendingCount;
+		private final AtomicInteger activeCount;
+		
+		public TokenCountsListener(AtomicInteger pendingCount, AtomicInteger activeCount) {
+			this.pendingCount = pendingCount;
+			this.activeCount = activeCount;
+		}
+
+		@Override
+		public void messageSerialized(int bytes, long nanos) {
+		}
+
+		@Override
+		public void messageDeserialized(int bytes, long nanos) {
+		}
+
+		@Override
+		public void batchSent(int size) {
+		}
+
+		@Override
+		public void callCompleted(String destination, String operation, long latencyMillis, boolean fault) {
+		}
+
+		@Override
+		public void tokenCountsChanged(int pending, int active) {
+			pendingCount.set(pending);
+			activeCount.set(active);
+		}
+
+		@Override
+		public void reconnected() {
+		}
+
+		@Override
+		public void outboundQueueChanged(int depth, long dropped) {
+		}
+	}
+}
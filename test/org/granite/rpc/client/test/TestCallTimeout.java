@@ -0,0 +1,90 @@
+package org.granite.rpc.client.test;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.granite.messaging.Channel;
+import org.granite.rpc.AsyncResponder;
+import org.granite.rpc.AsyncToken;
+import org.granite.rpc.events.FaultEvent;
+import org.granite.rpc.events.ResultEvent;
+import org.granite.rpc.remoting.RemoteObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestCallTimeout {
+	
+	@Test
+	public void testTimeout() throws Exception {
+		MockHttpClientEngine engine = new MockHttpClientEngine(0, 5);
+		Channel channel = new Channel(engine, "graniteamf", new URI("http://localhost:8080/graniteamf/amf"));
+		RemoteObject remoteObject = new RemoteObject(channel, "testService");
+		remoteObject.setRequestTimeout(100);
+		
+		try {
+			FaultCatcher catcher = new FaultCatcher();
+			AsyncToken token = remoteObject.call("hang", new Object[0], catcher);
+			Assert.assertNotNull("Deadline header", token.getMessage().getHeader(Channel.REQUEST_DEADLINE_HEADER));
+			Assert.assertTrue("Timed out", catcher.latch.await(2, TimeUnit.SECONDS));
+			Assert.assertEquals("Fault code", AsyncToken.TIMEOUT_FAULT_CODE, catcher.faultCode.get());
+			Assert.assertTrue("Token done", token.isDone());
+			
+			catcher = new FaultCatcher();
+			token = remoteObject.call("echo", new Object[0], catcher);
+			Assert.assertTrue("Answered", catcher.latch.await(2, TimeUnit.SECONDS));
+			Assert.assertNull("No fault", catcher.faultCode.get());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testCancel() throws Exception {
+		MockHttpClientEngine engine = new MockHttpClientEngine(0, 5);
+		Channel channel = new Channel(engine, "graniteamf", new URI("http://localhost:8080/graniteamf/amf"));
+		channel.setBatchDelayMillis(200);
+		RemoteObject remoteObject = new RemoteObject(channel, "testService");
+		
+		try {
+			FaultCatcher catcher = new FaultCatcher();
+			AsyncToken token = remoteObject.call("echo", new Object[0], catcher);
+			Assert.assertTrue("Cancelled", token.cancel());
+			Assert.assertTrue("Cancelled", token.isCancelled());
+			Assert.assertFalse("Cancel only once", token.cancel());
+			Assert.assertEquals("Fault code", AsyncToken.CANCELLED_FAULT_CODE, catcher.faultCode.get());
+			
+			// Cancelled call must not be sent with the next batch
+			Thread.sleep(300);
+			int requestCount = engine.getRequestCount();
+			catcher = new FaultCatcher();
+			remoteObject.call("echo", new Object[0], catcher);
+			Assert.assertTrue("Answered", catcher.latch.await(2, TimeUnit.SECONDS));
+			Assert.assertNull("No fault", catcher.faultCode.get());
+			Assert.assertEquals("One more request", requestCount + 1, engine.getRequestCount());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	
+	private static class FaultCatcher implements AsyncResponder {
+		
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private final AtomicReference<String> faultCode = new AtomicReference<String>();
+
+		@Override
+		public void result(ResultEvent event) {
+			latch.countDown();
+		}
+
+		@Override
+		public void fault(FaultEvent event) {
+			faultCode.set(event.getFaultCode());
+			latch.countDown();
+		}
+	}
+}
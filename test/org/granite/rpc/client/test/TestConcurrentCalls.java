@@ -0,0 +1,78 @@
+package org.granite.rpc.client.test;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.granite.messaging.Channel;
+import org.granite.rpc.AsyncResponder;
+import org.granite.rpc.events.FaultEvent;
+import org.granite.rpc.events.ResultEvent;
+import org.granite.rpc.remoting.RemoteObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestConcurrentCalls {
+	
+	private static final int THREAD_COUNT = 4;
+	private static final int CALLS_PER_THREAD = 20;
+
+	@Test
+	public void testCallsAreSentConcurrently() throws Exception {
+		// A long serialization time makes overlapping sends observable
+		MockHttpClientEngine engine = new MockHttpClientEngine(20, 5);
+		Channel channel = new Channel(engine, "graniteamf", new URI("http://localhost:8080/graniteamf/amf"));
+		final RemoteObject remoteObject = new RemoteObject(channel, "testService");
+		
+		final CountDownLatch done = new CountDownLatch(THREAD_COUNT * CALLS_PER_THREAD);
+		final AtomicInteger faults = new AtomicInteger();
+		final AsyncResponder responder = new AsyncResponder() {
+			@Override
+			public void result(ResultEvent event) {
+				done.countDown();
+			}
+
+			@Override
+			public void fault(FaultEvent event) {
+				faults.incrementAndGet();
+				done.countDown();
+			}
+		};
+		
+		// Connect first so the ping handshake does not serialize the calls
+		final CountDownLatch connected = new CountDownLatch(1);
+		remoteObject.call("ping", new Object[0], new AsyncResponder() {
+			@Override
+			public void result(ResultEvent event) {
+				connected.countDown();
+			}
+
+			@Override
+			public void fault(FaultEvent event) {
+				connected.countDown();
+			}
+		});
+		Assert.assertTrue("Connected", connected.await(5, TimeUnit.SECONDS));
+		
+		Thread[] threads = new Thread[THREAD_COUNT];
+		for (int i = 0; i < THREAD_COUNT; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < CALLS_PER_THREAD; j++)
+						remoteObject.call("echo", new Object[] { j }, responder);
+				}
+			});
+		}
+		
+		for (Thread thread : threads)
+			thread.start();
+		Assert.assertTrue("All calls completed", done.await(60, TimeUnit.SECONDS));
+		
+		engine.stop();
+		
+		Assert.assertEquals("No faults", 0, faults.get());
+		Assert.assertTrue("Calls from different threads should be serialized concurrently", engine.getMaxConcurrentSendCount() > 1);
+	}
+}
@@ -0,0 +1,62 @@
+package org.granite.rpc.client.test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.granite.config.GraniteConfig;
+import org.granite.messaging.engine.AbstractEngine;
+import org.granite.messaging.engine.ConfigurationCache;
+import org.granite.messaging.engine.Engine.Configurator;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestConfigurationCache {
+	
+	@Test
+	public void testSameConfiguratorParsedOnce() throws Exception {
+		ConfigurationCache.clear();
+		
+		CountingConfigurator configurator = new CountingConfigurator();
+		ConfiguredEngine engine1 = new ConfiguredEngine(configurator);
+		ConfiguredEngine engine2 = new ConfiguredEngine(configurator);
+		engine1.start();
+		engine2.start();
+		try {
+			Assert.assertTrue("Engine started", engine1.isStarted() && engine2.isStarted());
+			Assert.assertEquals("Parsed once", 1, configurator.count.get());
+			Assert.assertSame("Shared config", engine1.getGraniteConfig(), engine2.getGraniteConfig());
+			
+			CountingConfigurator otherConfigurator = new CountingConfigurator();
+			ConfiguredEngine engine3 = new ConfiguredEngine(otherConfigurator);
+			engine3.start();
+			Assert.assertEquals("Parsed for another configurator", 1, otherConfigurator.count.get());
+			Assert.assertNotSame("Separate config", engine1.getGraniteConfig(), engine3.getGraniteConfig());
+			engine3.stop();
+		}
+		finally {
+			engine1.stop();
+			engine2.stop();
+		}
+	}
+	
+	
+	private static class CountingConfigurator implements Configurator {
+		
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public void configure(GraniteConfig graniteConfig) {
+			count.incrementAndGet();
+		}
+	}
+	
+	private static class ConfiguredEngine extends AbstractEngine {
+		
+		public ConfiguredEngine(Configurator configurator) {
+			setGraniteConfigurator(configurator);
+		}
+		
+		public GraniteConfig getGraniteConfig() {
+			return graniteConfig;
+		}
+	}
+}
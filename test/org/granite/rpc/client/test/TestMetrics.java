@@ -0,0 +1,148 @@
+package org.granite.rpc.client.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.granite.messaging.metrics.Histogram;
+import org.granite.messaging.metrics.Metrics;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMetrics {
+	
+	@Test
+	public void testEmptyHistogram() {
+		Histogram histogram = new Histogram(new long[] { 10, 100 });
+		
+		Assert.assertEquals("Count", 0L, histogram.getCount());
+		Assert.assertEquals("Mean", 0.0, histogram.getMean(), 0.0);
+		Assert.assertEquals("Percentile", 0L, histogram.getPercentile(50));
+	}
+	
+	@Test
+	public void testBucketEdges() {
+		Histogram histogram = new Histogram(new long[] { 10, 100 });
+		
+		// Bounds are inclusive: 0 and 10 in the first bucket, 11 and 100 in the second, 101 and 500 above the last bound
+		for (long value : new long[] { 0, 10, 11, 100, 101, 500 })
+			histogram.record(value);
+		
+		Assert.assertEquals("Count", 6L, histogram.getCount());
+		Assert.assertEquals("Sum", 722L, histogram.getSum());
+		Assert.assertEquals("Max", 500L, histogram.getMax());
+		Assert.assertEquals("p33 in first bucket", 10L, histogram.getPercentile(33));
+		Assert.assertEquals("p34 in second bucket", 100L, histogram.getPercentile(34));
+		Assert.assertEquals("p66 in second bucket", 100L, histogram.getPercentile(66));
+		Assert.assertEquals("p67 above last bound", 500L, histogram.getPercentile(67));
+		Assert.assertEquals("p100 is max", 500L, histogram.getPercentile(100));
+	}
+	
+	@Test
+	public void testPercentileCappedByMax() {
+		Histogram histogram = new Histogram(new long[] { 10, 100 });
+		
+		histogram.record(3);
+		Assert.assertEquals("First bucket capped by max", 3L, histogram.getPercentile(50));
+		
+		histogram.record(40);
+		Assert.assertEquals("p50 bucket bound", 10L, histogram.getPercentile(50));
+		Assert.assertEquals("p100 capped by max", 40L, histogram.getPercentile(100));
+	}
+	
+	@Test
+	public void testHistogramReset() {
+		Histogram histogram = new Histogram(new long[] { 10 });
+		histogram.record(5);
+		histogram.record(50);
+		
+		histogram.reset();
+		
+		Assert.assertEquals("Count", 0L, histogram.getCount());
+		Assert.assertEquals("Sum", 0L, histogram.getSum());
+		Assert.assertEquals("Max", 0L, histogram.getMax());
+		histogram.record(7);
+		Assert.assertEquals("Buckets reset", 7L, histogram.getPercentile(100));
+	}
+	
+	@Test
+	public void testCallAggregation() {
+		Metrics metrics = new Metrics();
+		
+		metrics.callCompleted("service", "find", 5L, false);
+		metrics.callCompleted("service", "find", 50L, true);
+		metrics.callCompleted("service", "save", 1L, false);
+		metrics.callCompleted("other", "find", 2L, false);
+		metrics.callCompleted(null, "ping", 3L, false);
+		
+		Assert.assertEquals("Keys", new HashSet<String>(Arrays.asList("service.find", "service.save", "other.find", "ping")), metrics.getCallLatencyHistograms().keySet());
+		Assert.assertEquals("service.find count", 2L, metrics.getCallLatencyHistograms().get("service.find").getCount());
+		Assert.assertEquals("service.find max", 50L, metrics.getCallLatencyHistograms().get("service.find").getMax());
+		Assert.assertEquals("service.save count", 1L, metrics.getCallLatencyHistograms().get("service.save").getCount());
+		Assert.assertEquals("other.find count", 1L, metrics.getCallLatencyHistograms().get("other.find").getCount());
+		Assert.assertEquals("Calls", 5L, metrics.getCallCount());
+		Assert.assertEquals("Faults", 1L, metrics.getFaultCount());
+		Assert.assertEquals("Mean", 61.0 / 5, metrics.getMeanCallLatencyMillis(), 0.001);
+		
+		String[] latencies = metrics.getCallLatencies();
+		Assert.assertEquals("Latencies", 4, latencies.length);
+		Assert.assertTrue("Sorted by key", latencies[0].startsWith("other.find: count=1"));
+		Assert.assertTrue("Command without destination", latencies[1].startsWith("ping: count=1"));
+		Assert.assertTrue("Sorted by key", latencies[2].startsWith("service.find: count=2"));
+		
+		metrics.reset();
+		Assert.assertTrue("Reset", metrics.getCallLatencyHistograms().isEmpty());
+		Assert.assertEquals("Reset calls", 0L, metrics.getCallCount());
+		Assert.assertEquals("Reset faults", 0L, metrics.getFaultCount());
+	}
+	
+	@Test
+	public void testForwardToListeners() {
+		Metrics metrics = new Metrics();
+		Metrics listener = new Metrics();
+		
+		metrics.addListener(listener);
+		metrics.callCompleted("service", "find", 1L, false);
+		metrics.batchSent(3);
+		metrics.removeListener(listener);
+		metrics.callCompleted("service", "find", 1L, false);
+		
+		Assert.assertEquals("Forwarded while registered", 1L, listener.getCallCount());
+		Assert.assertEquals("Forwarded batch", 1L, listener.getBatchCount());
+	}
+	
+	@Test
+	public void testMBeanRegistration() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName(Metrics.MBEAN_DOMAIN + ":type=Metrics,name=" + ObjectName.quote("test"));
+		Metrics metrics = new Metrics();
+		
+		metrics.registerMBean("test");
+		try {
+			Assert.assertTrue("Registered", server.isRegistered(objectName));
+			metrics.callCompleted("service", "find", 1L, false);
+			Assert.assertEquals("Attribute", 1L, server.getAttribute(objectName, "CallCount"));
+			
+			try {
+				new Metrics().registerMBean("test");
+				Assert.fail("Name already registered");
+			}
+			catch (InstanceAlreadyExistsException e) {
+			}
+			
+			// Registering again under the same name replaces the previous registration
+			metrics.registerMBean("test");
+			Assert.assertTrue("Registered again", server.isRegistered(objectName));
+		}
+		finally {
+			metrics.unregisterMBean();
+		}
+		
+		Assert.assertFalse("Unregistered", server.isRegistered(objectName));
+		metrics.unregisterMBean();
+	}
+}
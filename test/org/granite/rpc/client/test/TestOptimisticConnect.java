@@ -0,0 +1,151 @@
+package org.granite.rpc.client.test;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.granite.messaging.Channel;
+import org.granite.rpc.AsyncResponder;
+import org.granite.rpc.events.FaultEvent;
+import org.granite.rpc.events.ResultEvent;
+import org.granite.rpc.remoting.RemoteObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestOptimisticConnect {
+	
+	@Test
+	public void testBlockingConnect() throws Exception {
+		MockHttpClientEngine engine = new MockHttpClientEngine(0, 5);
+		Channel channel = new Channel(engine, "graniteamf", new URI("http://localhost:8080/graniteamf/amf"));
+		RemoteObject remoteObject = new RemoteObject(channel, "testService");
+		
+		try {
+			Assert.assertTrue("Answered", call(remoteObject));
+			Assert.assertEquals("Ping then call", 2, engine.getRequestCount());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testOptimisticConnect() throws Exception {
+		MockHttpClientEngine engine = new MockHttpClientEngine(0, 5);
+		Channel channel = new Channel(engine, "graniteamf", new URI("http://localhost:8080/graniteamf/amf"));
+		channel.setOptimisticConnect(true);
+		RemoteObject remoteObject = new RemoteObject(channel, "testService");
+		
+		try {
+			Assert.assertTrue("Answered", call(remoteObject));
+			Assert.assertEquals("Ping sent with the call", 1, engine.getRequestCount());
+			
+			Assert.assertTrue("Answered", call(remoteObject));
+			Assert.assertEquals("No more ping", 2, engine.getRequestCount());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testOptimisticConnectRejected() throws Exception {
+		MockHttpClientEngine engine = new MockHttpClientEngine(0, 5);
+		engine.setRejectedPings(1);
+		Channel channel = new Channel(engine, "graniteamf", new URI("http://localhost:8080/graniteamf/amf"));
+		channel.setOptimisticConnect(true);
+		RemoteObject remoteObject = new RemoteObject(channel, "testService");
+		
+		try {
+			// Call rejected with the ping, retried after the fallback ping handshake
+			CallCounter counter = new CallCounter(1);
+			remoteObject.call("echo", new Object[0], counter);
+			Assert.assertTrue("Answered", counter.latch.await(1, TimeUnit.SECONDS));
+			Assert.assertEquals("Not faulted", 0, counter.faults.get());
+			Assert.assertEquals("Optimistic ping, blocking ping then retried call", 3, engine.getRequestCount());
+			
+			Assert.assertTrue("Answered", call(remoteObject));
+			Assert.assertEquals("No more ping", 4, engine.getRequestCount());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testOptimisticConnectSplitBatch() throws Exception {
+		MockHttpClientEngine engine = new MockHttpClientEngine(0, 50);
+		Channel channel = new Channel(engine, "graniteamf", new URI("http://localhost:8080/graniteamf/amf"));
+		channel.setOptimisticConnect(true);
+		channel.setBatchDelayMillis(50);
+		channel.setMaxBatchMessages(2);
+		RemoteObject remoteObject = new RemoteObject(channel, "testService");
+		
+		try {
+			CallCounter counter = new CallCounter(5);
+			for (int i = 0; i < 5; i++)
+				remoteObject.call("echo", new Object[] { i }, counter);
+			Assert.assertTrue("Answered", counter.latch.await(2, TimeUnit.SECONDS));
+			
+			Assert.assertEquals("No fault", 0, counter.faults.get());
+			Assert.assertEquals("Next chunks sent after the ping response", 1, engine.getRequestCountAtFirstResponse());
+			Assert.assertEquals("Ping with 1 call, then 2 requests", 3, engine.getRequestCount());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testOptimisticConnectRejectedSplitBatch() throws Exception {
+		MockHttpClientEngine engine = new MockHttpClientEngine(0, 50);
+		engine.setRejectedPings(1);
+		Channel channel = new Channel(engine, "graniteamf", new URI("http://localhost:8080/graniteamf/amf"));
+		channel.setOptimisticConnect(true);
+		channel.setBatchDelayMillis(50);
+		channel.setMaxBatchMessages(2);
+		RemoteObject remoteObject = new RemoteObject(channel, "testService");
+		
+		try {
+			CallCounter counter = new CallCounter(5);
+			for (int i = 0; i < 5; i++)
+				remoteObject.call("echo", new Object[] { i }, counter);
+			Assert.assertTrue("Answered", counter.latch.await(2, TimeUnit.SECONDS));
+			
+			Assert.assertEquals("No fault", 0, counter.faults.get());
+			Assert.assertEquals("Next chunks sent after the ping response", 1, engine.getRequestCountAtFirstResponse());
+			Assert.assertEquals("Rejected ping with 1 call, blocking ping, then 3 requests", 5, engine.getRequestCount());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	private static boolean call(RemoteObject remoteObject) throws InterruptedException {
+		CallCounter counter = new CallCounter(1);
+		remoteObject.call("echo", new Object[0], counter);
+		return counter.latch.await(1, TimeUnit.SECONDS);
+	}
+	
+	private static class CallCounter implements AsyncResponder {
+		
+		private final CountDownLatch latch;
+		private final AtomicInteger faults = new AtomicInteger();
+		
+		public CallCounter(int count) {
+			this.latch = new CountDownLatch(count);
+		}
+		
+		@Override
+		public void result(ResultEvent event) {
+			latch.countDown();
+		}
+		
+		@Override
+		public void fault(FaultEvent event) {
+			faults.incrementAndGet();
+			latch.countDown();
+		}
+	}
+}
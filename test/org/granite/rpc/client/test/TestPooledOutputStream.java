@@ -0,0 +1,120 @@
+package org.granite.rpc.client.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import org.granite.messaging.engine.BufferPool;
+import org.granite.messaging.engine.PooledOutputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPooledOutputStream {
+	
+	@Test
+	public void testWriteSpanningChunks() throws Exception {
+		BufferPool pool = new BufferPool(16, 8);
+		PooledOutputStream out = new PooledOutputStream(pool);
+		
+		byte[] content = content(40);
+		out.write(content[0]);
+		out.write(content, 1, 20);
+		out.write(content, 21, 19);
+		Assert.assertEquals("Size", 40, out.size());
+		
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		int buffers = 0;
+		ByteBuffer buffer = null;
+		while ((buffer = out.nextBuffer()) != null) {
+			Assert.assertEquals("Consumed chunks released", buffers, pool.getPooledChunks());
+			buffers++;
+			while (buffer.hasRemaining())
+				read.write(buffer.get());
+		}
+		Assert.assertEquals("Three chunks", 3, buffers);
+		Assert.assertArrayEquals("Content", content, read.toByteArray());
+		Assert.assertEquals("All chunks released", 3, pool.getPooledChunks());
+		
+		out.release();
+		Assert.assertEquals("Chunks released once", 3, pool.getPooledChunks());
+	}
+	
+	@Test
+	public void testChunksReused() throws Exception {
+		BufferPool pool = new BufferPool(16, 8);
+		
+		PooledOutputStream out = new PooledOutputStream(pool);
+		out.write(content(32));
+		out.release();
+		Assert.assertEquals("Chunks released", 2, pool.getPooledChunks());
+		
+		out = new PooledOutputStream(pool);
+		out.write(content(20));
+		Assert.assertEquals("Pooled chunks reused", 0, pool.getPooledChunks());
+		out.release();
+		Assert.assertEquals("Chunks released", 2, pool.getPooledChunks());
+	}
+	
+	@Test
+	public void testReadIntoWritableBuffer() throws Exception {
+		BufferPool pool = new BufferPool(16, 8);
+		PooledOutputStream out = new PooledOutputStream(pool);
+		
+		// Read from a channel as the response consumer does with the NIO decoder
+		byte[] content = content(40);
+		ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(content));
+		int count = 0;
+		while ((count = channel.read(out.writableBuffer())) > 0)
+			out.commit(count);
+		Assert.assertEquals("Size", 40, out.size());
+		
+		InputStream in = out.getInputStream();
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		byte[] buffer = new byte[10];
+		while ((count = in.read(buffer, 0, buffer.length)) != -1)
+			read.write(buffer, 0, count);
+		Assert.assertArrayEquals("Content", content, read.toByteArray());
+		Assert.assertEquals("Chunks released while read", 3, pool.getPooledChunks());
+		
+		in.close();
+		Assert.assertEquals("Chunks released once", 3, pool.getPooledChunks());
+	}
+	
+	@Test
+	public void testCloseReleasesUnreadChunks() throws Exception {
+		BufferPool pool = new BufferPool(16, 8);
+		PooledOutputStream out = new PooledOutputStream(pool);
+		out.write(content(40));
+		
+		InputStream in = out.getInputStream();
+		Assert.assertEquals("First byte", 0, in.read());
+		Assert.assertEquals("Available in current chunk", 15, in.available());
+		Assert.assertEquals("Nothing released", 0, pool.getPooledChunks());
+		
+		in.close();
+		Assert.assertEquals("All chunks released", 3, pool.getPooledChunks());
+	}
+	
+	@Test
+	public void testCommitBeyondChunk() throws Exception {
+		PooledOutputStream out = new PooledOutputStream(new BufferPool(16, 8));
+		out.writableBuffer();
+		try {
+			out.commit(17);
+			Assert.fail("Commit beyond the chunk should be rejected");
+		}
+		catch (IllegalArgumentException e) {
+		}
+		Assert.assertEquals("Nothing committed", 0, out.size());
+	}
+	
+	private static byte[] content(int length) {
+		byte[] content = new byte[length];
+		for (int i = 0; i < length; i++)
+			content[i] = (byte)i;
+		return content;
+	}
+}
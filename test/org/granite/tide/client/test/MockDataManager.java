@@ -0,0 +1,74 @@
+package org.granite.tide.client.test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.granite.tide.data.DefaultDataManager;
+
+
+/**
+ *  Data manager accessing the public fields of MockEntity instances, other objects have no properties
+ */
+public class MockDataManager extends DefaultDataManager {
+    
+    @Override
+    public Object getProperty(Object object, String propertyName) {
+        Field field = getField(object, propertyName);
+        try {
+            return field != null ? field.get(object) : null;
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException("Could not get property " + propertyName + " on object " + object, e);
+        }
+    }
+    
+    @Override
+    public void setProperty(Object object, String propertyName, Object oldValue, Object newValue) {
+        setInternalProperty(object, propertyName, newValue);
+    }
+    
+    @Override
+    public void setInternalProperty(Object object, String propertyName, Object value) {
+        Field field = getField(object, propertyName);
+        try {
+            if (field != null)
+                field.set(object, value);
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException("Could not set property " + propertyName + " on object " + object, e);
+        }
+    }
+    
+    @Override
+    public Map<String, Object> getPropertyValues(Object object, boolean includeReadOnly, boolean includeTransient) {
+        return getPropertyValues(object, Collections.<String>emptyList(), includeReadOnly, includeTransient);
+    }
+    
+    @Override
+    public Map<String, Object> getPropertyValues(Object object, List<String> excludedProperties, boolean includeReadOnly, boolean includeTransient) {
+        if (!(object instanceof MockEntity))
+            return Collections.emptyMap();
+        
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        for (Field field : MockEntity.class.getFields()) {
+            if (!Modifier.isStatic(field.getModifiers()) && !excludedProperties.contains(field.getName()))
+                values.put(field.getName(), getProperty(object, field.getName()));
+        }
+        return values;
+    }
+    
+    private static Field getField(Object object, String propertyName) {
+        if (!(object instanceof MockEntity))
+            return null;
+        try {
+            return MockEntity.class.getField(propertyName);
+        }
+        catch (NoSuchFieldException e) {
+            return null;
+        }
+    }
+}
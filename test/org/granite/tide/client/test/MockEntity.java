@@ -0,0 +1,39 @@
+package org.granite.tide.client.test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.granite.tide.data.Identifiable;
+
+
+/**
+ *  Entity with public fields read and written by MockDataManager
+ */
+public class MockEntity implements Identifiable {
+    
+    public String uid;
+    public String name;
+    public MockEntity ref;
+    public Object value;
+    public List<Object> items = new ArrayList<Object>();
+    public Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+    
+    public MockEntity(String uid) {
+        this.uid = uid;
+    }
+    
+    public MockEntity(String uid, String name) {
+        this.uid = uid;
+        this.name = name;
+    }
+    
+    public String getUid() {
+        return uid;
+    }
+    
+    public void setUid(String uid) {
+        this.uid = uid;
+    }
+}
@@ -0,0 +1,184 @@
+package org.granite.tide.client.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.granite.tide.TrackingContext;
+import org.granite.tide.data.DataManager.ChangeKind;
+import org.granite.tide.data.DirtyCheckContextImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestCollectionChangeLog {
+
+	private static final int SEQUENCES = 5000;
+
+	@Test
+	public void testSingleItemChanges() {
+		replay(new Random(1L), 1, false);
+	}
+
+	@Test
+	public void testSingleItemChangesWithDuplicates() {
+		replay(new Random(2L), 1, true);
+	}
+
+	@Test
+	public void testMultiItemChanges() {
+		replay(new Random(3L), 3, false);
+	}
+
+	@Test
+	public void testMultiItemChangesWithDuplicates() {
+		replay(new Random(4L), 3, true);
+	}
+
+	@Test
+	public void testCancelledChanges() {
+		DirtyCheckContextImpl dirtyCheckContext = new DirtyCheckContextImpl(new MockDataManager(), new TrackingContext());
+		MockEntity entity = newEntity(Arrays.asList("a", "b", "c"));
+
+		add(dirtyCheckContext, entity, 1, "x", "y");
+		remove(dirtyCheckContext, entity, 2, 1);
+		remove(dirtyCheckContext, entity, 1, 1);
+		Assert.assertFalse("Add cancelled by remove", dirtyCheckContext.isSaved(entity));
+
+		remove(dirtyCheckContext, entity, 0, 2);
+		add(dirtyCheckContext, entity, 0, "a");
+		add(dirtyCheckContext, entity, 1, "b");
+		Assert.assertFalse("Remove cancelled by add", dirtyCheckContext.isSaved(entity));
+
+		replace(dirtyCheckContext, entity, 1, "z");
+		replace(dirtyCheckContext, entity, 1, "b");
+		Assert.assertFalse("Replace cancelled by replace", dirtyCheckContext.isSaved(entity));
+
+		Assert.assertEquals("List", Arrays.asList("a", "b", "c"), entity.items);
+	}
+
+	@Test
+	public void testMapChanges() {
+		Random random = new Random(5L);
+		for (int s = 0; s < SEQUENCES; s++) {
+			DirtyCheckContextImpl dirtyCheckContext = new DirtyCheckContextImpl(new MockDataManager(), new TrackingContext());
+			MockEntity entity = newEntity(Collections.emptyList());
+			for (int i = random.nextInt(4); i > 0; i--)
+				entity.map.put(random.nextInt(5), random.nextInt(3));
+			Map<Object, Object> original = new LinkedHashMap<Object, Object>(entity.map);
+
+			List<String> operations = new ArrayList<String>();
+			for (int i = random.nextInt(10); i >= 0; i--) {
+				Object key = random.nextInt(5);
+				Object value = random.nextInt(3);
+				ChangeKind kind;
+				Object[] item;
+				if (random.nextBoolean() && entity.map.containsKey(key)) {
+					kind = ChangeKind.REMOVE;
+					item = new Object[] { key, entity.map.remove(key) };
+				}
+				else if (entity.map.containsKey(key)) {
+					// Observable maps do not notify puts of an equal value
+					if (value.equals(entity.map.get(key)))
+						continue;
+					kind = ChangeKind.REPLACE;
+					item = new Object[] { key, entity.map.put(key, value), value };
+				}
+				else {
+					kind = ChangeKind.ADD;
+					entity.map.put(key, value);
+					item = new Object[] { key, value };
+				}
+				operations.add(kind + Arrays.toString(item));
+				dirtyCheckContext.entityMapChangeHandler(entity, "map", kind, 0, new Object[] { item });
+			}
+
+			if (entity.map.equals(original))
+				Assert.assertFalse("No net change " + original + " " + operations, dirtyCheckContext.isSaved(entity));
+
+			dirtyCheckContext.resetEntity(null, entity, entity, new HashSet<Object>());
+			Assert.assertEquals("Reset " + original + " " + operations, original, entity.map);
+			Assert.assertFalse("Not dirty after reset", dirtyCheckContext.isDirty());
+		}
+	}
+
+	/**
+	 * Applies random add, remove and replace sequences to a list while logging them, then checks that the reset
+	 * replays the log back to the original list
+	 */
+	private static void replay(Random random, int maxItems, boolean duplicates) {
+		int next = 0;
+		for (int s = 0; s < SEQUENCES; s++) {
+			DirtyCheckContextImpl dirtyCheckContext = new DirtyCheckContextImpl(new MockDataManager(), new TrackingContext());
+			List<Object> original = new ArrayList<Object>();
+			for (int i = random.nextInt(6); i > 0; i--)
+				original.add(duplicates ? random.nextInt(3) : next++);
+			MockEntity entity = newEntity(original);
+
+			List<String> operations = new ArrayList<String>();
+			for (int i = random.nextInt(10); i >= 0; i--) {
+				int size = entity.items.size();
+				int count = 1 + random.nextInt(maxItems);
+				int op = random.nextInt(3);
+				if (op == 1 && size >= count) {
+					int location = random.nextInt(size - count + 1);
+					operations.add("remove " + location + " " + count);
+					remove(dirtyCheckContext, entity, location, count);
+				}
+				else if (op == 2 && size >= count) {
+					int location = random.nextInt(size - count + 1);
+					Object[] values = new Object[count];
+					for (int k = 0; k < count; k++)
+						values[k] = duplicates ? random.nextInt(3) : next++;
+					operations.add("replace " + location + " " + Arrays.toString(values));
+					replace(dirtyCheckContext, entity, location, values);
+				}
+				else {
+					int location = random.nextInt(size + 1);
+					Object[] values = new Object[count];
+					for (int k = 0; k < count; k++)
+						values[k] = duplicates ? random.nextInt(3) : next++;
+					operations.add("add " + location + " " + Arrays.toString(values));
+					add(dirtyCheckContext, entity, location, values);
+				}
+			}
+
+			// Only changes of single items cancel each other
+			if (maxItems == 1 && !duplicates && entity.items.equals(original))
+				Assert.assertFalse("No net change " + original + " " + operations, dirtyCheckContext.isSaved(entity));
+
+			dirtyCheckContext.resetEntity(null, entity, entity, new HashSet<Object>());
+			Assert.assertEquals("Reset " + original + " " + operations, original, entity.items);
+			Assert.assertFalse("Not dirty after reset", dirtyCheckContext.isDirty());
+		}
+	}
+
+	private static MockEntity newEntity(List<?> items) {
+		MockEntity entity = new MockEntity("e");
+		entity.items.addAll(items);
+		return entity;
+	}
+
+	private static void add(DirtyCheckContextImpl dirtyCheckContext, MockEntity entity, int location, Object... values) {
+		entity.items.addAll(location, Arrays.asList(values));
+		dirtyCheckContext.entityCollectionChangeHandler(entity, "items", ChangeKind.ADD, location, values);
+	}
+
+	private static void remove(DirtyCheckContextImpl dirtyCheckContext, MockEntity entity, int location, int count) {
+		List<Object> removed = entity.items.subList(location, location + count);
+		Object[] values = removed.toArray();
+		removed.clear();
+		dirtyCheckContext.entityCollectionChangeHandler(entity, "items", ChangeKind.REMOVE, location, values);
+	}
+
+	private static void replace(DirtyCheckContextImpl dirtyCheckContext, MockEntity entity, int location, Object... values) {
+		Object[] items = new Object[values.length];
+		for (int k = 0; k < values.length; k++)
+			items[k] = new Object[] { entity.items.set(location + k, values[k]), values[k] };
+		dirtyCheckContext.entityCollectionChangeHandler(entity, "items", ChangeKind.REPLACE, location, items);
+	}
+}
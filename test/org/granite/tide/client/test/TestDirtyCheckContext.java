@@ -0,0 +1,117 @@
+package org.granite.tide.client.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.granite.tide.TrackingContext;
+import org.granite.tide.data.DirtyCheckContextImpl;
+import org.granite.tide.data.Wrapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestDirtyCheckContext {
+
+	@Test
+	public void testSetOfSimpleValues() {
+		Assert.assertTrue("Same", isSame(set("a", 1, 2L), set(2L, "a", 1)));
+		Assert.assertFalse("Different value", isSame(set("a", 1), set("a", 2)));
+		Assert.assertFalse("Different size", isSame(set("a", 1), set("a", 1, 2)));
+		Assert.assertFalse("Different type", isSame(set(1), set(1L)));
+	}
+
+	@Test
+	public void testSetOfEntities() {
+		MockEntity a = new MockEntity("a"), b = new MockEntity("b");
+		Object other = new Object();
+
+		Assert.assertTrue("Same uids", isSame(set(a, b, "x", other), set("x", new MockEntity("b"), other, new MockEntity("a"))));
+		Assert.assertTrue("Wrapped entities", isSame(set(new EntityWrapper(a), b), set(new MockEntity("a"), new EntityWrapper(new MockEntity("b")))));
+		Assert.assertFalse("Different uid", isSame(set(a, b), set(a, new MockEntity("c"))));
+		Assert.assertFalse("Duplicate uid", isSame(set(a, new MockEntity("a")), set(a, b)));
+		Assert.assertFalse("Duplicate uid reversed", isSame(set(a, b), set(a, new MockEntity("a"))));
+		Assert.assertFalse("Other object compared by identity", isSame(set(a, other), set(a, new Object())));
+		Assert.assertFalse("MockEntity and simple value", isSame(set(a), set("a")));
+	}
+
+	@Test
+	public void testSetOfEmptyValues() {
+		Assert.assertTrue("Null and empty string", isSame(set(null, "x"), set("", "x")));
+		Assert.assertTrue("Empty list and null", isSame(set(new ArrayList<Object>(), "x"), set("x", null)));
+		Assert.assertFalse("Null and value", isSame(set(null, "x"), set("y", "x")));
+		Assert.assertTrue("Empty sets", isSame(set(), set()));
+		Assert.assertTrue("Empty map and null", isSame(new HashMap<Object, Object>(), null));
+	}
+
+	@Test
+	public void testNestedCollections() {
+		MockEntity a = new MockEntity("a");
+
+		Assert.assertTrue("Nested sets", isSame(set(set(a, "x"), set("y")), set(set("y"), set("x", new MockEntity("a")))));
+		Assert.assertFalse("Different nested set", isSame(set(set(a, "x"), set("y")), set(set("x", new MockEntity("b")), set("y"))));
+		Assert.assertTrue("Nested lists", isSame(set(Arrays.asList(a, "x"), "z"), set("z", Arrays.asList(new MockEntity("a"), "x"))));
+		Assert.assertFalse("Nested list order", isSame(set(Arrays.asList(a, "x")), set(Arrays.asList("x", a))));
+		Assert.assertTrue("Nested maps", isSame(set(map("k", a)), set(map("k", new EntityWrapper(new MockEntity("a"))))));
+		Assert.assertTrue("Arrays", isSame(set((Object)new Object[] { a, "x" }), set((Object)new Object[] { new MockEntity("a"), "x" })));
+	}
+
+	@Test
+	public void testMaps() {
+		MockEntity a = new MockEntity("a"), b = new MockEntity("b");
+
+		Assert.assertTrue("Same keys and values", isSame(map(a, "1", "k", b), map("k", new MockEntity("b"), new MockEntity("a"), "1")));
+		Assert.assertTrue("Wrapped keys", isSame(map(new EntityWrapper(a), b), map(new MockEntity("a"), new EntityWrapper(new MockEntity("b")))));
+		Assert.assertFalse("Different value", isSame(map(a, "1"), map(new MockEntity("a"), "2")));
+		Assert.assertFalse("Different key", isSame(map(a, "1"), map(b, "1")));
+		Assert.assertFalse("Different size", isSame(map(a, "1"), map(a, "1", b, "2")));
+		Assert.assertTrue("Empty values", isSame(map("k", null, "l", ""), map("k", "", "l", null)));
+		Assert.assertTrue("Empty keys", isSame(map(null, "1", "k", "2"), map("k", "2", "", "1")));
+		Assert.assertTrue("Collection keys", isSame(map(Arrays.asList(a), "1"), map(Arrays.asList(new MockEntity("a")), "1")));
+		Assert.assertTrue("Nested values", isSame(map("k", set(a, "x")), map("k", set("x", new MockEntity("a")))));
+		Assert.assertFalse("Different nested values", isSame(map("k", set(a, "x")), map("k", set("x", b))));
+	}
+
+	/**
+	 * Marks the value property of an entity dirty and checks whether an incoming entity with the given value clears it
+	 */
+	private static boolean isSame(Object localValue, Object sourceValue) {
+		DirtyCheckContextImpl dirtyCheckContext = new DirtyCheckContextImpl(new MockDataManager(), new TrackingContext());
+		MockEntity entity = new MockEntity("e");
+		entity.value = localValue;
+		dirtyCheckContext.entityPropertyChangeHandler(entity, entity, "value", "initial", localValue);
+		Assert.assertTrue("Saved", dirtyCheckContext.isSaved(entity));
+
+		MockEntity source = new MockEntity("e");
+		source.value = sourceValue;
+		dirtyCheckContext.checkAndMarkNotDirty(entity, source);
+		return !dirtyCheckContext.isSaved(entity);
+	}
+
+	private static Set<Object> set(Object... values) {
+		return new HashSet<Object>(Arrays.asList(values));
+	}
+
+	private static Map<Object, Object> map(Object... keysAndValues) {
+		Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+		for (int i = 0; i < keysAndValues.length; i += 2)
+			map.put(keysAndValues[i], keysAndValues[i+1]);
+		return map;
+	}
+
+	private static class EntityWrapper implements Wrapper {
+
+		private final MockEntity entity;
+
+		public EntityWrapper(MockEntity entity) {
+			this.entity = entity;
+		}
+
+		public Object getWrappedObject() {
+			return entity;
+		}
+	}
+}
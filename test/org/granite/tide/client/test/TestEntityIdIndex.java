@@ -0,0 +1,59 @@
+package org.granite.tide.client.test;
+
+import org.granite.tide.data.EntityIdIndex;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestEntityIdIndex {
+	
+	@Test
+	public void testPutGetRemove() {
+		EntityIdIndex index = new EntityIdIndex();
+		Entity entity = new Entity();
+		index.put(entity, 1L);
+		
+		Assert.assertSame("Get", entity, index.get(Entity.class.getName(), 1L));
+		Assert.assertNull("Other id", index.get(Entity.class.getName(), 2L));
+		Assert.assertNull("Other class", index.get(Object.class.getName(), 1L));
+		
+		index.remove(entity);
+		Assert.assertNull("Removed", index.get(Entity.class.getName(), 1L));
+		Assert.assertEquals("Size", 0, index.size());
+	}
+	
+	@Test
+	public void testIdChange() {
+		EntityIdIndex index = new EntityIdIndex();
+		Entity entity = new Entity();
+		index.put(entity, null);
+		Assert.assertEquals("Null id not indexed", 0, index.size());
+		
+		index.put(entity, 1L);
+		index.put(entity, 2L);
+		Assert.assertNull("Old id", index.get(Entity.class.getName(), 1L));
+		Assert.assertSame("New id", entity, index.get(Entity.class.getName(), 2L));
+		Assert.assertEquals("Size", 1, index.size());
+		
+		Entity other = new Entity();
+		index.put(other, 2L);
+		Assert.assertSame("Replaced", other, index.get(Entity.class.getName(), 2L));
+		index.remove(entity);
+		Assert.assertSame("Replacement kept", other, index.get(Entity.class.getName(), 2L));
+	}
+	
+	@Test
+	public void testExpunge() throws Exception {
+		EntityIdIndex index = new EntityIdIndex();
+		for (long i = 0; i < 10000; i++)
+			index.put(new Entity(), i);
+		
+		for (int i = 0; i < 10 && index.size() > 0; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		Assert.assertEquals("Collected entities expunged", 0, index.size());
+	}
+	
+	private static class Entity {
+	}
+}
@@ -0,0 +1,143 @@
+package org.granite.tide.client.test;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.granite.tide.data.ListDiff;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestListDiff {
+	
+	@Test
+	public void testLongestIncreasingSubsequence() {
+		boolean[] flags = ListDiff.longestIncreasingSubsequence(new int[] { 3, -1, 0, 4, 1, 2, -1 });
+		Assert.assertEquals("Subsequence", Arrays.toString(new boolean[] { false, false, true, false, true, true, false }), Arrays.toString(flags));
+	}
+	
+	@Test
+	public void testMove() {
+		CountingList list = new CountingList(Arrays.<Object>asList("a", "b", "c", "d", "e"));
+		apply(list, "b", "c", "d", "e", "a");
+		
+		Assert.assertEquals("Content", Arrays.asList("b", "c", "d", "e", "a"), list);
+		Assert.assertEquals("Mutations", 2, list.mutations);
+	}
+	
+	@Test
+	public void testRemoveAndInsertRanges() {
+		CountingList list = new CountingList(Arrays.<Object>asList("a", "b", "c", "d", "e", "f"));
+		apply(list, "a", "x", "y", "z", "f");
+		
+		Assert.assertEquals("Content", Arrays.asList("a", "x", "y", "z", "f"), list);
+		Assert.assertEquals("Mutations", 2, list.mutations);
+	}
+	
+	@Test
+	public void testRandom() {
+		Random random = new Random(0);
+		for (int n = 0; n < 200; n++) {
+			List<Object> initial = new ArrayList<Object>();
+			for (int i = 0; i < random.nextInt(30); i++)
+				initial.add("e" + random.nextInt(40));
+			initial = new ArrayList<Object>(new LinkedHashSet<Object>(initial));
+			
+			List<Object> target = new ArrayList<Object>(initial);
+			Collections.shuffle(target, random);
+			for (int i = 0; i < random.nextInt(5) && !target.isEmpty(); i++)
+				target.remove(random.nextInt(target.size()));
+			for (int i = 0; i < random.nextInt(5); i++)
+				target.add(random.nextInt(target.size() + 1), "n" + i);
+			
+			CountingList list = new CountingList(initial);
+			apply(list, target.toArray());
+			Assert.assertEquals("Content", target, list);
+		}
+	}
+	
+	@Test
+	public void testLargeRefresh() {
+		List<Object> initial = new ArrayList<Object>();
+		for (int i = 0; i < 5000; i++)
+			initial.add("e" + i);
+		List<Object> target = new ArrayList<Object>(initial);
+		target.remove(2500);
+		target.add(0, "new");
+		Collections.swap(target, 10, 20);
+		
+		CountingList list = new CountingList(initial);
+		apply(list, target.toArray());
+		Assert.assertEquals("Content", target, list);
+		Assert.assertTrue("Mutations " + list.mutations, list.mutations <= 6);
+	}
+	
+	private static void apply(List<Object> list, Object... items) {
+		Map<Object, Integer> index = new HashMap<Object, Integer>();
+		for (int j = 0; j < list.size(); j++)
+			index.put(list.get(j), j);
+		int[] matches = new int[items.length];
+		for (int i = 0; i < items.length; i++) {
+			Integer j = index.get(items[i]);
+			matches[i] = j != null ? j : -1;
+		}
+		ListDiff.apply(list, matches, items);
+	}
+	
+	private static class CountingList extends AbstractList<Object> {
+		
+		private final List<Object> list;
+		private int mutations = 0;
+		
+		public CountingList(List<Object> list) {
+			this.list = new ArrayList<Object>(list);
+		}
+		
+		@Override
+		public Object get(int index) {
+			return list.get(index);
+		}
+		
+		@Override
+		public int size() {
+			return list.size();
+		}
+		
+		@Override
+		public Object set(int index, Object element) {
+			mutations++;
+			return list.set(index, element);
+		}
+		
+		@Override
+		public void add(int index, Object element) {
+			mutations++;
+			list.add(index, element);
+		}
+		
+		@Override
+		public boolean addAll(int index, Collection<? extends Object> c) {
+			mutations++;
+			return list.addAll(index, c);
+		}
+		
+		@Override
+		public Object remove(int index) {
+			mutations++;
+			return list.remove(index);
+		}
+		
+		@Override
+		protected void removeRange(int fromIndex, int toIndex) {
+			mutations++;
+			list.subList(fromIndex, toIndex).clear();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.granite.tide.client.test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.granite.tide.data.EntityManagerImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMergeMap {
+
+	@Test
+	public void testRemovedKeys() {
+		EntityManagerImpl entityManager = new EntityManagerImpl("test", new MockDataManager(), null, null);
+		MockEntity a = new MockEntity("a", "A"), b = new MockEntity("b", "B");
+		entityManager.attachEntity(a, true);
+		entityManager.attachEntity(b, true);
+
+		Map<Object, Object> map = new HashMap<Object, Object>();
+		map.put(a, "1");
+		map.put(b, "2");
+		map.put("k", "3");
+		map.put("l", "4");
+
+		Map<Object, Object> received = new HashMap<Object, Object>();
+		received.put(new MockEntity("a", "A"), "5");
+		received.put("k", "6");
+
+		Object merged = entityManager.mergeExternalData(received, map, null, null);
+
+		Assert.assertSame("Merged in previous map", map, merged);
+		Assert.assertEquals("Kept keys", new HashSet<Object>(Arrays.asList(a, "k")), map.keySet());
+		Assert.assertEquals("Updated entity key value", "5", map.get(a));
+		Assert.assertEquals("Updated simple key value", "6", map.get("k"));
+	}
+
+	@Test
+	public void testAllKeysRemoved() {
+		EntityManagerImpl entityManager = new EntityManagerImpl("test", new MockDataManager(), null, null);
+		MockEntity a = new MockEntity("a", "A");
+		entityManager.attachEntity(a, true);
+
+		Map<Object, Object> map = new HashMap<Object, Object>();
+		map.put(a, "1");
+		map.put("k", "2");
+
+		entityManager.mergeExternalData(new HashMap<Object, Object>(), map, null, null);
+
+		Assert.assertTrue("Empty", map.isEmpty());
+	}
+}
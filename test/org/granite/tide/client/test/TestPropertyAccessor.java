@@ -0,0 +1,67 @@
+package org.granite.tide.client.test;
+
+import org.granite.tide.data.PropertyAccessor;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPropertyAccessor {
+
+	@Test
+	public void testAccessors() throws Throwable {
+		Bean bean = new Bean();
+
+		PropertyAccessor name = new PropertyAccessor(Bean.class, "name");
+		Assert.assertTrue("Setter", name.setValue(bean, "test"));
+		Assert.assertEquals("Getter", "test", name.getValue(bean));
+		Assert.assertFalse("No setter for value", name.setValue(bean, 12));
+
+		PropertyAccessor active = new PropertyAccessor(Bean.class, "active");
+		Assert.assertTrue("Setter", active.setValue(bean, Boolean.TRUE));
+		Assert.assertEquals("Is getter", Boolean.TRUE, active.getValue(bean));
+		Assert.assertFalse("No primitive setter for null", active.setValue(bean, null));
+
+		PropertyAccessor count = new PropertyAccessor(Bean.class, "count");
+		Assert.assertTrue("Property getter", count.hasPropertyGetter());
+		Assert.assertSame("Property getter type", Counter.class, count.getPropertyGetterType());
+		Assert.assertSame("Property object", bean.countProperty(), count.getPropertyObject(bean));
+
+		PropertyAccessor missing = new PropertyAccessor(Bean.class, "missing");
+		Assert.assertFalse("No getter", missing.hasGetter());
+		try {
+			missing.getValue(bean);
+			Assert.fail("No getter");
+		}
+		catch (NoSuchMethodException e) {
+		}
+	}
+
+	public static class Counter {
+	}
+
+	public static class Bean {
+
+		private String name;
+		private boolean active;
+		private Counter count = new Counter();
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public boolean isActive() {
+			return active;
+		}
+
+		public void setActive(boolean active) {
+			this.active = active;
+		}
+
+		public Counter countProperty() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package org.granite.tide.client.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.granite.tide.data.Identifiable;
+import org.granite.tide.data.ReferenceGraph;
+import org.granite.tide.data.UIDWeakSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestReferenceGraph {
+	
+	@Test
+	public void testOwners() {
+		UIDWeakSet entitiesByUid = new UIDWeakSet();
+		ReferenceGraph<String> graph = new ReferenceGraph<String>(entitiesByUid);
+		
+		Entity owner1 = new Entity("o1");
+		Entity owner2 = new Entity("o2");
+		entitiesByUid.put(owner1);
+		entitiesByUid.put(owner2);
+		
+		Entity child = new Entity("c");
+		graph.addOwner(child, owner1, "child");
+		graph.addOwner(child, owner2, "child");
+		graph.addOwner(child, owner1, "other");
+		
+		Assert.assertSame("First owner", owner1, graph.getOwner(child)[0]);
+		Assert.assertEquals("First owner property", "child", graph.getOwner(child)[1]);
+		Assert.assertEquals("Owners", 2, graph.getOwners(child).size());
+		Assert.assertEquals("Owned", 1, graph.getOwned(owner2).size());
+		
+		graph.removeOwner(child, owner1);
+		Assert.assertSame("Remaining owner", owner2, graph.getOwner(child)[0]);
+		Assert.assertTrue("Owned removed", graph.getOwned(owner1).isEmpty());
+		Assert.assertFalse("Referenced", graph.isUnreferenced(child));
+		
+		graph.removeOwner(child, owner2);
+		Assert.assertTrue("Unreferenced", graph.isUnreferenced(child));
+		graph.remove(child);
+		Assert.assertFalse("Removed", graph.contains(child));
+	}
+	
+	@Test
+	public void testExpressionsAndParents() {
+		ReferenceGraph<String> graph = new ReferenceGraph<String>(new UIDWeakSet());
+		List<Object> list = new ArrayList<Object>();
+		Entity entity = new Entity("e");
+		
+		graph.addExpression(entity, "ctx.entity", "ctx.entity");
+		graph.addExpression(entity, "ctx.entity", "ctx.entity");
+		graph.addParent(entity, list, null);
+		list.add(entity);	// Parents are compared by identity even when their hash code changes
+		graph.addParent(entity, list, null);
+		
+		Assert.assertEquals("Expressions", 1, graph.getExpressions(entity).size());
+		Assert.assertEquals("Parents", 1, graph.getParents(entity).size());
+		
+		graph.removeParent(entity, list);
+		graph.removeExpression(entity, "ctx.entity");
+		Assert.assertTrue("Unreferenced", graph.isUnreferenced(entity));
+	}
+	
+	@Test
+	public void testPopularOwner() {
+		UIDWeakSet entitiesByUid = new UIDWeakSet();
+		ReferenceGraph<String> graph = new ReferenceGraph<String>(entitiesByUid);
+		Entity classification = new Entity("classification");
+		entitiesByUid.put(classification);
+		
+		List<Entity> entities = new ArrayList<Entity>();
+		for (int i = 0; i < 100000; i++) {
+			Entity entity = new Entity("e" + i);
+			entities.add(entity);
+			graph.addOwner(classification, entity, "classification");
+			graph.addOwner(entity, classification, "entities");
+		}
+		
+		long start = System.nanoTime();
+		for (Entity entity : entities)
+			graph.removeOwner(classification, entity);
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		
+		Assert.assertEquals("Owned", 100000, graph.getOwned(classification).size());
+		Assert.assertTrue("Unreferenced", graph.isUnreferenced(classification));
+		Assert.assertTrue("Removal of 100000 back references took " + elapsed + " ms", elapsed < 2000);
+	}
+	
+	private static class Entity implements Identifiable {
+		
+		private String uid;
+		
+		public Entity(String uid) {
+			this.uid = uid;
+		}
+
+		@Override
+		public String getUid() {
+			return uid;
+		}
+
+		@Override
+		public void setUid(String uid) {
+			this.uid = uid;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package org.granite.tide.client.test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.granite.tide.data.EntityDescriptor;
+import org.granite.tide.data.SavedProperties;
+import org.granite.tide.data.Version;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSavedProperties {
+	
+	@Test
+	public void testChangeCount() {
+		EntityDescriptor desc = new EntityDescriptor(new Entity());
+		SavedProperties save = new SavedProperties(desc, desc.getVersionPropertyName());
+		save.setVersion(3L);
+		Assert.assertFalse("Version only", save.hasChanges());
+		Assert.assertEquals("Version", 3L, save.getVersion());
+		
+		save.put("name", "x");
+		save.put("notAGetter", null);
+		Assert.assertTrue("Changed", save.hasChanges());
+		Assert.assertTrue("Null value saved", save.containsKey("notAGetter"));
+		
+		save.remove("name");
+		Assert.assertTrue("Still changed", save.hasChanges());
+		save.remove("notAGetter");
+		Assert.assertFalse("Not changed", save.hasChanges());
+		Assert.assertEquals("Keys", Collections.singleton("version"), save.keySet());
+	}
+	
+	@Test
+	public void testMapView() {
+		EntityDescriptor desc = new EntityDescriptor(new Entity());
+		SavedProperties save = new SavedProperties(desc, null);
+		for (int i = 0; i < 100; i++)
+			save.put("p" + i, i);
+		
+		Map<String, Object> copy = new HashMap<String, Object>(save);
+		Assert.assertEquals("Size", 100, copy.size());
+		Assert.assertEquals("Value", 50, copy.get("p50"));
+		
+		for (Iterator<String> i = save.keySet().iterator(); i.hasNext(); ) {
+			if (!i.next().equals("p99"))
+				i.remove();
+		}
+		Assert.assertEquals("Remaining", Collections.singletonMap("p99", (Object)99), save);
+		Assert.assertTrue("Changed", save.hasChanges());
+	}
+	
+	public static class Entity {
+		
+		@Version
+		public Long getVersion() {
+			return null;
+		}
+		
+		public String getName() {
+			return null;
+		}
+	}
+}
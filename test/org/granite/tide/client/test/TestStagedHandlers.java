@@ -0,0 +1,117 @@
+package org.granite.tide.client.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.granite.rpc.AsyncToken;
+import org.granite.rpc.events.FaultEvent;
+import org.granite.rpc.events.ResultEvent;
+import org.granite.tide.Context;
+import org.granite.tide.DefaultPlatform;
+import org.granite.tide.TideResponder;
+import org.granite.tide.impl.ComponentImpl;
+import org.granite.tide.impl.ContextManagerImpl;
+import org.granite.tide.rpc.ComponentResponder;
+import org.granite.tide.rpc.ServerSession;
+import org.granite.tide.rpc.TideFaultEvent;
+import org.granite.tide.rpc.TideResultEvent;
+import org.junit.Assert;
+import org.junit.Test;
+
+import flex.messaging.messages.AcknowledgeMessage;
+import flex.messaging.messages.ErrorMessage;
+
+public class TestStagedHandlers {
+
+	@Test
+	public void testFaultAfterStagedResult() throws Exception {
+		final ExecutorService ui = Executors.newSingleThreadExecutor();
+		final ExecutorService stager = Executors.newSingleThreadExecutor();
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			ContextManagerImpl contextManager = new ContextManagerImpl(new DefaultPlatform() {
+				@Override
+				public void execute(Runnable runnable) {
+					ui.execute(runnable);
+				}
+			});
+			contextManager.setInstanceStoreFactory(new TestInstanceStoreFactory());
+			Context context = contextManager.getContext("");
+
+			ServerSession serverSession = new ServerSession();
+			// Staging waits for the release of the latch
+			serverSession.setMergeExecutor(new Executor() {
+				public void execute(final Runnable command) {
+					stager.execute(new Runnable() {
+						public void run() {
+							try {
+								release.await();
+							}
+							catch (InterruptedException e) {
+								return;
+							}
+							command.run();
+						}
+					});
+				}
+			});
+
+			final List<ComponentResponder> componentResponders = new ArrayList<ComponentResponder>();
+			ComponentImpl component = new ComponentImpl(serverSession) {
+				@Override
+				public AsyncToken invoke(ComponentResponder componentResponder) {
+					componentResponders.add(componentResponder);
+					return new MockAsyncToken(componentResponder);
+				}
+			};
+			component.setName("component");
+
+			final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+			final CountDownLatch done = new CountDownLatch(2);
+			TideResponder<Object> responder = new TideResponder<Object>() {
+				public void result(TideResultEvent<Object> event) {
+					handled.add("result " + event.getResult());
+					done.countDown();
+				}
+
+				public void fault(TideFaultEvent event) {
+					handled.add("fault");
+					done.countDown();
+				}
+			};
+
+			serverSession.invoke(context, component, "first", new Object[0], responder, false, null);
+			serverSession.invoke(context, component, "second", new Object[0], responder, false, null);
+			Assert.assertEquals("Invocations", 2, componentResponders.size());
+
+			AcknowledgeMessage result = new AcknowledgeMessage();
+			result.setBody("r");
+			componentResponders.get(0).result(new ResultEvent(new MockAsyncToken(componentResponders.get(0)), result));
+			ErrorMessage fault = new ErrorMessage();
+			fault.setFaultCode("Server.Error");
+			componentResponders.get(1).fault(new FaultEvent(new MockAsyncToken(componentResponders.get(1)), fault));
+
+			// Let the UI thread run everything already queued
+			ui.submit(new Runnable() {
+				public void run() {
+				}
+			}).get(5, TimeUnit.SECONDS);
+			Assert.assertTrue("Fault waiting for the staged result", handled.isEmpty());
+
+			release.countDown();
+			Assert.assertTrue("Handled", done.await(5, TimeUnit.SECONDS));
+			Assert.assertEquals("Arrival order", "[result r, fault]", handled.toString());
+		}
+		finally {
+			release.countDown();
+			stager.shutdownNow();
+			ui.shutdownNow();
+		}
+	}
+}
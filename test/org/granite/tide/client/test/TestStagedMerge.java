@@ -0,0 +1,219 @@
+package org.granite.tide.client.test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.granite.tide.data.EntityManagerImpl;
+import org.granite.tide.data.MergeContext;
+import org.granite.tide.data.StagedMerge;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestStagedMerge {
+	
+	@Test
+	public void testUnchanged() {
+		EntityManagerImpl entityManager = newEntityManager();
+		MockEntity cached = new MockEntity("1", "a");
+		cached.ref = new MockEntity("2", "b");
+		cached.items.add(cached.ref);
+		entityManager.attachEntity(cached, true);
+		entityManager.attachEntity(cached.ref, true);
+		
+		MockEntity received = new MockEntity("1", "a");
+		received.ref = new MockEntity("2", "b");
+		received.items.add(received.ref);
+		
+		StagedMerge stagedMerge = entityManager.newStagedMerge();
+		stagedMerge.stage(Arrays.asList(received));
+		Assert.assertTrue("Unchanged", stagedMerge.isUnchanged(received));
+		Assert.assertTrue("Unchanged reference", stagedMerge.isUnchanged(received.ref));
+		Assert.assertTrue("Valid", stagedMerge.isValid());
+		
+		entityManager.attachEntity(new MockEntity("3", "c"), true);
+		Assert.assertFalse("Invalid after modification", stagedMerge.isValid());
+	}
+	
+	@Test
+	public void testChangedProperties() {
+		EntityManagerImpl entityManager = newEntityManager();
+		MockEntity cached = new MockEntity("1", "a");
+		cached.ref = new MockEntity("2", "b");
+		entityManager.attachEntity(cached, true);
+		entityManager.attachEntity(cached.ref, true);
+		
+		MockEntity received = new MockEntity("1", "a");
+		received.ref = new MockEntity("2", "c");
+		
+		StagedMerge stagedMerge = entityManager.newStagedMerge();
+		stagedMerge.stage(received);
+		Assert.assertFalse("Changed", stagedMerge.isUnchanged(received.ref));
+		Assert.assertEquals("Changed property", new HashSet<String>(Arrays.asList("name")), stagedMerge.getChangedProperties(received.ref));
+		Assert.assertFalse("Referencing changed entity", stagedMerge.isUnchanged(received));
+		Assert.assertEquals("Reference property", new HashSet<String>(Arrays.asList("ref")), stagedMerge.getChangedProperties(received));
+		
+		received.ref = new MockEntity("3", "d");
+		stagedMerge = entityManager.newStagedMerge();
+		stagedMerge.stage(received);
+		Assert.assertEquals("New reference", new HashSet<String>(Arrays.asList("ref")), stagedMerge.getChangedProperties(received));
+		Assert.assertFalse("New entity", stagedMerge.isUnchanged(received.ref));
+		Assert.assertNull("New entity has no changed properties", stagedMerge.getChangedProperties(received.ref));
+		Assert.assertEquals("New entity without associations", new HashSet<String>(Arrays.asList("items", "map")), stagedMerge.getAssociationProperties(received.ref));
+	}
+	
+	@Test
+	public void testSnapshot() {
+		EntityManagerImpl entityManager = newEntityManager();
+		MockEntity cached = new MockEntity("1", "a");
+		cached.items.add("x");
+		entityManager.attachEntity(cached, true);
+		
+		MockEntity received = new MockEntity("1", "a");
+		received.items.add("x");
+		
+		StagedMerge stagedMerge = entityManager.newStagedMerge();
+		stagedMerge.collect(received);
+		Assert.assertFalse("Not valid before snapshot", stagedMerge.isValid());
+		stagedMerge.snapshot();
+		
+		// Changes of the cached entity after the snapshot are not seen by the comparison
+		cached.name = "b";
+		cached.items.add("y");
+		stagedMerge.compare();
+		Assert.assertTrue("Compared with snapshot", stagedMerge.isUnchanged(received));
+		Assert.assertTrue("Valid", stagedMerge.isValid());
+	}
+	
+	@Test
+	public void testStagedMergeSameGraph() {
+		EntityManagerImpl entityManager = newEntityManager();
+		List<?> cached = (List<?>)entityManager.mergeExternalData(newCachedGraph());
+		EntityManagerImpl stagedEntityManager = newEntityManager();
+		List<?> stagedCached = (List<?>)stagedEntityManager.mergeExternalData(newCachedGraph());
+		
+		List<?> received = newReceivedGraph();
+		List<?> merged = (List<?>)merge(entityManager, received, null);
+		
+		List<?> stagedReceived = newReceivedGraph();
+		StagedMerge stagedMerge = stagedEntityManager.newStagedMerge();
+		stagedMerge.stage(stagedReceived);
+		MockEntity r1 = (MockEntity)stagedReceived.get(0), r3 = (MockEntity)r1.map.get("k"), r4 = (MockEntity)stagedReceived.get(1), r5 = (MockEntity)stagedReceived.get(2);
+		Assert.assertTrue("Unchanged entity", stagedMerge.isUnchanged(r3));
+		Assert.assertTrue("Unchanged entity in result", stagedMerge.isUnchanged(r4));
+		Assert.assertEquals("Changed properties", new HashSet<String>(Arrays.asList("ref", "items")), stagedMerge.getChangedProperties(r1));
+		Assert.assertEquals("Association properties", new HashSet<String>(Arrays.asList("ref", "items", "map")), stagedMerge.getAssociationProperties(r5));
+		
+		List<?> stagedMerged = (List<?>)merge(stagedEntityManager, stagedReceived, stagedMerge);
+		
+		Assert.assertEquals("Same graph", dump(merged), dump(stagedMerged));
+		Assert.assertSame("Cached entity", stagedCached.get(0), stagedMerged.get(0));
+		Assert.assertSame("Unchanged cached entity", stagedCached.get(1), stagedMerged.get(1));
+		Assert.assertSame("Unchanged cached entity reference", ((MockEntity)stagedCached.get(0)).map.get("k"), ((MockEntity)stagedMerged.get(2)).ref);
+		Assert.assertSame("New entity", r5, stagedMerged.get(2));
+		Assert.assertSame("Cached entity of plain merge", cached.get(0), merged.get(0));
+	}
+	
+	@Test
+	public void testStagedMergeUnchanged() {
+		EntityManagerImpl entityManager = newEntityManager();
+		List<?> cached = (List<?>)entityManager.mergeExternalData(newCachedGraph());
+		String before = dump(cached);
+		
+		List<?> received = newCachedGraph();
+		StagedMerge stagedMerge = entityManager.newStagedMerge();
+		stagedMerge.stage(received);
+		Assert.assertTrue("Unchanged", stagedMerge.isUnchanged(received.get(0)));
+		
+		List<?> merged = (List<?>)merge(entityManager, received, stagedMerge);
+		Assert.assertSame("Cached entity", cached.get(0), merged.get(0));
+		Assert.assertEquals("Same graph", before, dump(merged));
+	}
+	
+	/**
+	 *  e1 references e2 and e3, e4 is alone
+	 */
+	private static List<?> newCachedGraph() {
+		MockEntity e1 = new MockEntity("1", "a"), e2 = new MockEntity("2", "b"), e3 = new MockEntity("3", "c"), e4 = new MockEntity("4", "d");
+		e1.ref = e2;
+		e1.items.addAll(Arrays.asList(e2, "x"));
+		e1.map.put("k", e3);
+		e3.value = "v";
+		return Arrays.asList(e1, e4);
+	}
+	
+	/**
+	 *  e2 is changed, e3 and e4 are unchanged, e1 references the new entity e5
+	 */
+	private static List<?> newReceivedGraph() {
+		MockEntity e1 = new MockEntity("1", "a"), e2 = new MockEntity("2", "b2"), e3 = new MockEntity("3", "c"), e4 = new MockEntity("4", "d"), e5 = new MockEntity("5", "e");
+		e1.ref = e2;
+		e1.items.addAll(Arrays.asList(e2, "x", e5));
+		e1.map.put("k", e3);
+		e3.value = "v";
+		e5.value = 42;
+		e5.ref = e3;
+		e5.items.add(e4);
+		e5.map.put("m", "n");
+		return Arrays.asList(e1, e4, e5);
+	}
+	
+	private static Object merge(EntityManagerImpl entityManager, Object received, StagedMerge stagedMerge) {
+		try {
+			MergeContext mergeContext = entityManager.initMerge();
+			mergeContext.setStagedMerge(stagedMerge);
+			return entityManager.mergeExternal(mergeContext, received, null, null, null, null, null, false);
+		}
+		finally {
+			MergeContext.destroy(entityManager);
+		}
+	}
+	
+	private static String dump(Object value) {
+		StringBuilder sb = new StringBuilder();
+		dump(value, sb, new IdentityHashMap<Object, Boolean>());
+		return sb.toString();
+	}
+	
+	private static void dump(Object value, StringBuilder sb, Map<Object, Boolean> visited) {
+		if (value instanceof MockEntity) {
+			MockEntity entity = (MockEntity)value;
+			sb.append(entity.uid);
+			if (visited.put(entity, Boolean.TRUE) != null)
+				return;
+			sb.append("{").append(entity.name).append(",").append(entity.value).append(",");
+			dump(entity.ref, sb, visited);
+			sb.append(",");
+			dump(entity.items, sb, visited);
+			sb.append(",");
+			dump(entity.map, sb, visited);
+			sb.append("}");
+		}
+		else if (value instanceof List<?>) {
+			sb.append("[");
+			for (Object item : (List<?>)value) {
+				dump(item, sb, visited);
+				sb.append(" ");
+			}
+			sb.append("]");
+		}
+		else if (value instanceof Map<?, ?>) {
+			sb.append("{");
+			for (Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+				sb.append(entry.getKey()).append("=");
+				dump(entry.getValue(), sb, visited);
+				sb.append(" ");
+			}
+			sb.append("}");
+		}
+		else
+			sb.append(value);
+	}
+	
+	private static EntityManagerImpl newEntityManager() {
+		return new EntityManagerImpl("test", new MockDataManager(), null, null);
+	}
+}
@@ -0,0 +1,97 @@
+package org.granite.tide.client.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.granite.tide.data.Identifiable;
+import org.granite.tide.data.UIDWeakSet;
+import org.granite.util.UUIDUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestUIDWeakSet {
+	
+	@Test
+	public void testPutGetRemove() {
+		UIDWeakSet set = new UIDWeakSet();
+		List<Entity> entities = newEntities(1000);
+		for (Entity entity : entities)
+			set.put(entity);
+		Assert.assertEquals("Size", 1000, set.size());
+		
+		Entity entity = entities.get(500);
+		Assert.assertSame("Get", entity, set.get(Entity.class.getName(), entity.getUid()));
+		Assert.assertSame("Get by compound uid", entity, set.get(Entity.class.getName() + ":" + entity.getUid()));
+		Assert.assertNull("Other class", set.get(Object.class.getName(), entity.getUid()));
+		
+		Entity copy = new Entity(entity.getUid());
+		Assert.assertSame("Replaced", entity, set.put(copy));
+		Assert.assertSame("Copy", copy, set.get(Entity.class.getName(), entity.getUid()));
+		Assert.assertEquals("Size", 1000, set.size());
+		
+		Assert.assertSame("Removed", copy, set.remove(Entity.class.getName(), entity.getUid()));
+		Assert.assertNull("Removed", set.get(Entity.class.getName(), entity.getUid()));
+		Assert.assertEquals("Size", 999, set.size());
+	}
+	
+	@Test
+	public void testUidChange() {
+		UIDWeakSet set = new UIDWeakSet();
+		List<Entity> entities = newEntities(100);
+		for (Entity entity : entities)
+			set.put(entity);
+		
+		Entity entity = entities.get(50);
+		String oldUid = entity.getUid();
+		entity.setUid(UUIDUtil.randomUUID());
+		Assert.assertNull("Not found by its previous uid", set.get(Entity.class.getName(), oldUid));
+		Assert.assertNull("Not removed by its previous uid", set.remove(Entity.class.getName(), oldUid));
+		Assert.assertEquals("Size", 100, set.size());
+		
+		// Removed before the change and put again after it
+		Entity other = entities.get(60);
+		Assert.assertSame("Removed", other, set.remove(Entity.class.getName(), other.getUid()));
+		other.setUid(UUIDUtil.randomUUID());
+		Assert.assertNull("New entry", set.put(other));
+		Assert.assertSame("Found by its new uid", other, set.get(Entity.class.getName(), other.getUid()));
+		Assert.assertEquals("Size", 100, set.size());
+	}
+	
+	@Test
+	public void testResize() {
+		UIDWeakSet set = new UIDWeakSet(4);
+		List<Entity> entities = newEntities(1000);
+		for (Entity entity : entities)
+			set.put(entity);
+		Assert.assertEquals("Size", 1000, set.size());
+		Assert.assertEquals("Data", 1000, set.data().size());
+		for (Entity entity : entities)
+			Assert.assertSame("Get", entity, set.get(Entity.class.getName(), entity.getUid()));
+	}
+	
+	private static List<Entity> newEntities(int count) {
+		List<Entity> entities = new ArrayList<Entity>(count);
+		for (int i = 0; i < count; i++)
+			entities.add(new Entity(UUIDUtil.randomUUID()));
+		return entities;
+	}
+	
+	private static class Entity implements Identifiable {
+		
+		private String uid;
+		
+		public Entity(String uid) {
+			this.uid = uid;
+		}
+
+		@Override
+		public String getUid() {
+			return uid;
+		}
+
+		@Override
+		public void setUid(String uid) {
+			this.uid = uid;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package org.granite.tide.javafx.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+
+import org.granite.tide.javafx.ObservableEntity;
+
+
+public class PersonObservable extends AbstractEntity implements ObservableEntity {
+
+    private static final long serialVersionUID = 1L;
+    
+    private StringProperty lastName = new SimpleStringProperty(this, "lastName");
+    private final List<ChangeListener<Object>> entityChangeListeners = new ArrayList<ChangeListener<Object>>();
+    
+    
+    public PersonObservable(Long id, Long version, String uid, String lastName) {
+        super(id, version, uid);
+        this.lastName.set(lastName);
+        this.lastName.addListener(new ChangeListener<Object>() {
+            @Override
+            public void changed(ObservableValue<? extends Object> property, Object oldValue, Object newValue) {
+                for (ChangeListener<Object> listener : new ArrayList<ChangeListener<Object>>(entityChangeListeners))
+                    listener.changed(property, oldValue, newValue);
+            }
+        });
+    }
+    
+    public StringProperty lastNameProperty() {
+        return lastName;
+    }
+    
+    public String getLastName() {
+        return lastName.get();
+    }
+    
+    public void setLastName(String lastName) {
+        this.lastName.set(lastName);
+    }
+    
+    public int getEntityChangeListenerCount() {
+        return entityChangeListeners.size();
+    }
+
+    @Override
+    public void addEntityChangeListener(ChangeListener<Object> listener) {
+        entityChangeListeners.add(listener);
+    }
+
+    @Override
+    public void removeEntityChangeListener(ChangeListener<Object> listener) {
+        entityChangeListeners.remove(listener);
+    }
+}
@@ -0,0 +1,63 @@
+package org.granite.tide.javafx.test;
+
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
+
+import org.granite.tide.data.Transient;
+
+
+public class PersonReadOnly extends AbstractEntity {
+
+    private static final long serialVersionUID = 1L;
+    
+    private StringProperty lastName = new SimpleStringProperty(this, "lastName");
+    private ReadOnlyStringWrapper displayName = new ReadOnlyStringWrapper(this, "displayName");
+    private StringProperty nickName = new SimpleStringProperty(this, "nickName");
+    
+    
+    public PersonReadOnly() {
+        super();
+    }
+    
+    public PersonReadOnly(Long id, Long version, String uid, String lastName, String nickName) {
+        super(id, version, uid);
+        this.lastName.set(lastName);
+        this.displayName.set("Mr " + lastName);
+        this.nickName.set(nickName);
+    }
+    
+    public StringProperty lastNameProperty() {
+        return lastName;
+    }
+    
+    public String getLastName() {
+        return lastName.get();
+    }
+    
+    public void setLastName(String lastName) {
+        this.lastName.set(lastName);
+    }
+    
+    public ReadOnlyStringProperty displayNameProperty() {
+        return displayName.getReadOnlyProperty();
+    }
+    
+    public String getDisplayName() {
+        return displayName.get();
+    }
+    
+    @Transient
+    public StringProperty nickNameProperty() {
+        return nickName;
+    }
+    
+    public String getNickName() {
+        return nickName.get();
+    }
+    
+    public void setNickName(String nickName) {
+        this.nickName.set(nickName);
+    }
+}
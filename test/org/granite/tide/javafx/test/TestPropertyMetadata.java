@@ -0,0 +1,165 @@
+package org.granite.tide.javafx.test;
+
+import java.beans.Introspector;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javafx.beans.property.ReadOnlyProperty;
+import javafx.beans.value.ObservableValue;
+import javafx.beans.value.WritableValue;
+import javafx.collections.FXCollections;
+
+import org.granite.tide.data.EntityDescriptor;
+import org.granite.tide.data.PersistenceManager;
+import org.granite.tide.data.Transient;
+import org.granite.tide.javafx.JavaFXDataManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+@SuppressWarnings("unchecked")
+public class TestPropertyMetadata {
+    
+    private JavaFXDataManager dataManager = new JavaFXDataManager();
+    
+    @Test
+    public void testDirtyPropertyExcluded() {
+        Person person = new Person(1L, 0L, "P1", "Jean", "Dupont");
+        
+        Map<String, Object> values = dataManager.getPropertyValues(person, true, true);
+        
+        Assert.assertFalse("Dirty excluded", values.containsKey("dirty"));
+        Assert.assertFalse("Dirty excluded from keys", values.keySet().contains("dirty"));
+        Assert.assertEquals("First name", "Jean", values.get("firstName"));
+        Assert.assertEquals("Last name", "Dupont", values.get("lastName"));
+        Assert.assertTrue("Null collection included", values.containsKey("contacts"));
+        Assert.assertNull("Null collection", values.get("contacts"));
+    }
+    
+    @Test
+    public void testTransientAndReadOnly() {
+        PersonReadOnly person = new PersonReadOnly(1L, 0L, "P1", "Dupont", "Jeannot");
+        
+        Map<String, Object> values = dataManager.getPropertyValues(person, false, false);
+        Assert.assertEquals("Writable property", "Dupont", values.get("lastName"));
+        Assert.assertFalse("Read-only excluded", values.containsKey("displayName"));
+        Assert.assertFalse("Transient excluded", values.containsKey("nickName"));
+        
+        values = dataManager.getPropertyValues(person, true, false);
+        Assert.assertEquals("Read-only included", "Mr Dupont", values.get("displayName"));
+        Assert.assertFalse("Transient excluded", values.containsKey("nickName"));
+        
+        values = dataManager.getPropertyValues(person, false, true);
+        Assert.assertFalse("Read-only excluded", values.containsKey("displayName"));
+        Assert.assertEquals("Transient included", "Jeannot", values.get("nickName"));
+    }
+    
+    @Test
+    public void testExcludedProperties() {
+        Contact contact = new Contact(1L, 0L, "C1", "jean@dupont.fr");
+        Person person = new Person(1L, 0L, "P1", "Jean", "Dupont");
+        contact.setPerson(person);
+        
+        Map<String, Object> values = dataManager.getPropertyValues(contact, Arrays.asList("person", "unknown"), true, true);
+        
+        Assert.assertFalse("Excluded", values.containsKey("person"));
+        Assert.assertNull("Excluded value", values.get("person"));
+        Assert.assertEquals("Email", "jean@dupont.fr", values.get("email"));
+        Assert.assertEquals("Size", legacyPropertyValues(contact, Arrays.asList("person"), true, true).size(), values.size());
+        
+        // Exclusions only apply to the call they are passed to
+        Assert.assertSame("Not excluded", person, dataManager.getPropertyValues(contact, true, true).get("person"));
+    }
+    
+    @Test
+    public void testSameKeysAndOrder() {
+        Person person = new Person(1L, 0L, "P1", "Jean", "Dupont");
+        person.setContacts(FXCollections.<Contact>observableArrayList());
+        Contact contact = new Contact(1L, 0L, "C1", "jean@dupont.fr");
+        PersonReadOnly personReadOnly = new PersonReadOnly(2L, 0L, "P2", "Martin", "Tintin");
+        
+        for (Object object : new Object[] { person, contact, personReadOnly }) {
+            for (boolean includeReadOnly : new boolean[] { false, true }) {
+                for (boolean includeTransient : new boolean[] { false, true }) {
+                    Map<String, Object> expected = legacyPropertyValues(object, Collections.<String>emptyList(), includeReadOnly, includeTransient);
+                    Map<String, Object> values = dataManager.getPropertyValues(object, includeReadOnly, includeTransient);
+                    
+                    String message = object.getClass().getSimpleName() + " readOnly=" + includeReadOnly + " transient=" + includeTransient;
+                    Assert.assertEquals("Key order " + message, new ArrayList<String>(expected.keySet()), new ArrayList<String>(values.keySet()));
+                    Assert.assertEquals("Values " + message, expected, values);
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testReadOnlyView() {
+        Person person = new Person(1L, 0L, "P1", "Jean", "Dupont");
+        Map<String, Object> values = dataManager.getPropertyValues(person, true, true);
+        
+        try {
+            values.put("firstName", "Paul");
+            Assert.fail("Read-only map");
+        }
+        catch (UnsupportedOperationException e) {
+        }
+        try {
+            values.keySet().iterator().remove();
+            Assert.fail("Read-only keys");
+        }
+        catch (UnsupportedOperationException e) {
+        }
+        Assert.assertEquals("Unchanged", "Jean", person.getFirstName());
+    }
+    
+    
+    /**
+     * Property values as they were computed by introspecting the methods on each call, before property metadata was cached
+     */
+    private static Map<String, Object> legacyPropertyValues(Object object, List<String> excludedProperties, boolean includeReadOnly, boolean includeTransient) {
+        EntityDescriptor desc = PersistenceManager.getEntityDescriptor(object);
+        
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        for (Method m : object.getClass().getMethods()) {
+            if (m.getParameterTypes().length != 0)
+                continue;
+            if (!((m.getName().endsWith("Property") && ObservableValue.class.isAssignableFrom(m.getReturnType()) 
+                    || (m.getName().startsWith("get") && (Collection.class.isAssignableFrom(m.getReturnType()) || Map.class.isAssignableFrom(m.getReturnType()))))))
+                continue;
+            
+            if (!includeTransient && m.isAnnotationPresent(Transient.class))
+                continue;
+            
+            String pname = m.getName().startsWith("get") 
+                ? Introspector.decapitalize(m.getName().substring(3))
+                : m.getName().substring(0, m.getName().length()-8);
+                
+            if (desc.getDirtyPropertyName() != null && desc.getDirtyPropertyName().equals(pname))
+                continue;
+            
+            if (excludedProperties.contains(pname))
+                continue;
+            
+            try {
+                if (m.getName().endsWith("Property")) {
+                    ReadOnlyProperty<Object> p = (ReadOnlyProperty<Object>)m.invoke(object);
+                    if (!includeReadOnly && !(p instanceof WritableValue))
+                        continue;
+                    values.put(p.getName(), p.getValue());
+                }
+                else
+                    values.put(pname, m.invoke(object));
+            }
+            catch (Exception e) {
+                throw new RuntimeException("Could not get property " + m + " on object " + object, e);
+            }
+        }
+        return values;
+    }
+}
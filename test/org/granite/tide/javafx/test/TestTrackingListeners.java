@@ -0,0 +1,111 @@
+package org.granite.tide.javafx.test;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+import org.granite.tide.data.DataManager.ChangeKind;
+import org.granite.tide.data.DataManager.TrackingHandler;
+import org.granite.tide.javafx.JavaFXDataManager;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TestTrackingListeners {
+    
+    private JavaFXDataManager dataManager;
+    private ChangeCounter changes;
+    
+    @Before
+    public void setup() {
+        dataManager = new JavaFXDataManager();
+        changes = new ChangeCounter();
+        dataManager.setTrackingHandler(changes);
+    }
+    
+    @Test
+    public void testObservableEntitySingleListener() {
+        PersonObservable person = new PersonObservable(1L, 0L, "P1", "Dupont");
+        
+        dataManager.startTracking(person, null);
+        dataManager.startTracking(person, null);
+        Assert.assertEquals("One entity listener", 1, person.getEntityChangeListenerCount());
+        
+        person.setLastName("Martin");
+        Assert.assertEquals("Change notified once", 1, changes.propertyChanges);
+        
+        dataManager.stopTracking(person, null);
+        Assert.assertEquals("Entity listener removed", 0, person.getEntityChangeListenerCount());
+        
+        person.setLastName("Durand");
+        Assert.assertEquals("Not notified after stop", 1, changes.propertyChanges);
+    }
+    
+    @Test
+    public void testTrackAgainAfterClear() {
+        PersonObservable observablePerson = new PersonObservable(1L, 0L, "P1", "Dupont");
+        Person person = new Person(2L, 0L, "P2", "Jean", "Dupont");
+        
+        dataManager.startTracking(observablePerson, null);
+        dataManager.startTracking(person, null);
+        dataManager.clear();
+        Assert.assertEquals("Entity listener removed", 0, observablePerson.getEntityChangeListenerCount());
+        
+        person.setLastName("Martin");
+        Assert.assertEquals("Property listeners removed", 0, changes.propertyChanges);
+        
+        dataManager.startTracking(observablePerson, null);
+        dataManager.startTracking(person, null);
+        Assert.assertEquals("Entity listener added again", 1, observablePerson.getEntityChangeListenerCount());
+        
+        person.setLastName("Durand");
+        observablePerson.setLastName("Martin");
+        Assert.assertEquals("Tracked again", 2, changes.propertyChanges);
+    }
+    
+    @Test
+    public void testClearEntityCollection() {
+        Person person = new Person(1L, 0L, "P1", "Jean", "Dupont");
+        ObservableList<Contact> contacts = FXCollections.observableArrayList();
+        
+        dataManager.startTracking(contacts, person);
+        contacts.add(new Contact(1L, 0L, "C1", "jean@dupont.fr"));
+        Assert.assertEquals("Entity collection change", 1, changes.entityCollectionChanges);
+        
+        dataManager.clear();
+        contacts.add(new Contact(2L, 0L, "C2", "paul@dupont.fr"));
+        Assert.assertEquals("Entity listener removed", 1, changes.entityCollectionChanges);
+        Assert.assertEquals("No default listener", 0, changes.collectionChanges);
+    }
+    
+    
+    private static class ChangeCounter implements TrackingHandler {
+        
+        private int propertyChanges = 0;
+        private int collectionChanges = 0;
+        private int entityCollectionChanges = 0;
+
+        @Override
+        public void collectionChangeHandler(ChangeKind kind, Object target, int location, Object[] items) {
+            collectionChanges++;
+        }
+
+        @Override
+        public void mapChangeHandler(ChangeKind kind, Object target, int location, Object[] items) {
+        }
+
+        @Override
+        public void entityPropertyChangeHandler(Object target, String property, Object oldValue, Object newValue) {
+            propertyChanges++;
+        }
+
+        @Override
+        public void entityCollectionChangeHandler(ChangeKind kind, Object target, int location, Object[] items) {
+            entityCollectionChanges++;
+        }
+
+        @Override
+        public void entityMapChangeHandler(ChangeKind kind, Object target, int location, Object[] items) {
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.granite.websocket.client.test;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.granite.messaging.WebSocketChannel;
+import org.granite.messaging.engine.DefaultEngineStatusHandler;
+import org.granite.messaging.engine.EngineMessageHandler;
+import org.granite.messaging.engine.EngineStatusHandler;
+import org.granite.messaging.engine.WebSocketEngine;
+import org.granite.messaging.metrics.MetricsListener;
+
+import flex.messaging.messages.AcknowledgeMessage;
+import flex.messaging.messages.CommandMessage;
+import flex.messaging.messages.Message;
+
+/**
+ * Opens connections and acknowledges command messages asynchronously, like a Gravity server would.
+ */
+public class MockWebSocketEngine implements WebSocketEngine {
+	
+	private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+	private final long reconnectIntervalMillis;
+	private final AtomicInteger connectCount = new AtomicInteger();
+	private final AtomicInteger subscribeCount = new AtomicInteger();
+	private final AtomicInteger frameCount = new AtomicInteger();
+	private final AtomicInteger messageCount = new AtomicInteger();
+	private final AtomicInteger sendCount = new AtomicInteger();
+	private final AtomicInteger pingCount = new AtomicInteger();
+	private volatile int failedSend = 0;
+	private volatile boolean autoOpen = true;
+	private volatile boolean dropOnOpen = false;
+	private EngineStatusHandler statusHandler = new DefaultEngineStatusHandler();
+	private MetricsListener metricsListener = MetricsListener.NONE;
+	private volatile EngineMessageHandler handler = null;
+	private volatile boolean started = false;
+	
+	public MockWebSocketEngine(long reconnectIntervalMillis) {
+		this.reconnectIntervalMillis = reconnectIntervalMillis;
+	}
+	
+	public int getConnectCount() {
+		return connectCount.get();
+	}
+	
+	public int getSubscribeCount() {
+		return subscribeCount.get();
+	}
+	
+	public int getFrameCount() {
+		return frameCount.get();
+	}
+	
+	public int getMessageCount() {
+		return messageCount.get();
+	}
+	
+	public int getPingCount() {
+		return pingCount.get();
+	}
+	
+	/**
+	 * The frame send numbered failedSend (starting at 1) throws as if the socket write failed.
+	 */
+	public void setFailedSend(int failedSend) {
+		this.failedSend = failedSend;
+	}
+	
+	/**
+	 * When false, connections are only opened by calling open().
+	 */
+	public void setAutoOpen(boolean autoOpen) {
+		this.autoOpen = autoOpen;
+	}
+	
+	/**
+	 * When true, connections are closed right after being opened, before the server acknowledges them.
+	 */
+	public void setDropOnOpen(boolean dropOnOpen) {
+		this.dropOnOpen = dropOnOpen;
+	}
+	
+	public void disconnect() {
+		handler.onDisconnect(1006, "Connection lost");
+	}
+
+	@Override
+	public void connect(URI uri, final EngineMessageHandler handler, String clientId, String sessionId) {
+		this.handler = handler;
+		connectCount.incrementAndGet();
+		
+		if (autoOpen)
+			open();
+	}
+	
+	public void open() {
+		ioExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				handler.onConnect(new Connection() {
+					@Override
+					public void send(Message[] messages) {
+						if (sendCount.incrementAndGet() == failedSend)
+							throw new RuntimeException("Write failed");
+						frameCount.incrementAndGet();
+						messageCount.addAndGet(messages.length);
+						for (Message message : messages) {
+							if (message instanceof CommandMessage && ((CommandMessage)message).getOperation() == CommandMessage.SUBSCRIBE_OPERATION)
+								subscribeCount.incrementAndGet();
+							if (message instanceof CommandMessage && ((CommandMessage)message).isClientPingOperation())
+								pingCount.incrementAndGet();
+							AcknowledgeMessage ack = new AcknowledgeMessage();
+							ack.setCorrelationId(message.getMessageId());
+							reply(ack);
+						}
+					}
+
+					@Override
+					public void close() {
+						ioExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								handler.onDisconnect(1000, "Closed");
+							}
+						});
+					}
+				});
+				
+				if (dropOnOpen) {
+					handler.onDisconnect(1006, "Connection lost");
+					return;
+				}
+				
+				AcknowledgeMessage ack = new AcknowledgeMessage();
+				ack.setCorrelationId("OPEN_CONNECTION");
+				ack.setClientId("mockClientId");
+				Map<String, Object> advice = new HashMap<String, Object>();
+				advice.put(WebSocketChannel.RECONNECT_INTERVAL_MS_KEY, reconnectIntervalMillis);
+				advice.put(WebSocketChannel.RECONNECT_MAX_ATTEMPTS_KEY, 5);
+				ack.setBody(advice);
+				handler.onMessage(ack);
+			}
+		});
+	}
+	
+	public void push(Message message) {
+		reply(message);
+	}
+	
+	private void reply(final Message message) {
+		ioExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				handler.onMessage(message);
+			}
+		});
+	}
+
+	@Override
+	public void setMaxIdleTime(int maxIdleTime) {
+	}
+
+	@Override
+	public void setGraniteStdConfigPath(String graniteConfigPath) {
+	}
+
+	@Override
+	public void setGraniteConfigPath(String graniteConfigPath) {
+	}
+
+	@Override
+	public void setGraniteConfigurator(Configurator configurator) {
+	}
+
+	@Override
+	public EngineStatusHandler getStatusHandler() {
+		return statusHandler;
+	}
+
+	@Override
+	public void setStatusHandler(EngineStatusHandler statusHandler) {
+		this.statusHandler = statusHandler;
+	}
+
+	@Override
+	public MetricsListener getMetricsListener() {
+		return metricsListener;
+	}
+
+	@Override
+	public void setMetricsListener(MetricsListener metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+
+	@Override
+	public void start() {
+		started = true;
+	}
+
+	@Override
+	public boolean isStarted() {
+		return started;
+	}
+
+	@Override
+	public void stop() {
+		started = false;
+		ioExecutor.shutdown();
+	}
+}
@@ -0,0 +1,144 @@
+package org.granite.websocket.client.test;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.granite.messaging.Consumer;
+import org.granite.messaging.MessageListener;
+import org.granite.messaging.WebSocketChannel;
+import org.granite.util.UUIDUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import flex.messaging.messages.AsyncMessage;
+import flex.messaging.messages.Message;
+
+public class TestConflation {
+	
+	@Test
+	public void testConflation() throws Exception {
+		MockWebSocketEngine engine = new MockWebSocketEngine(1000);
+		WebSocketChannel channel = new WebSocketChannel(engine, "gravityamf", new URI("ws://localhost:8080/gravityamf/amf"));
+		
+		try {
+			Collector collector = new Collector();
+			Consumer consumer = newConsumer(channel, collector);
+			consumer.setConflation("symbol", 200);
+			Thread.sleep(100);
+			
+			for (int i = 0; i < 10; i++)
+				engine.push(newMessage(i % 2 == 0 ? "GOOG" : "AAPL", i));
+			Thread.sleep(400);
+			
+			Assert.assertEquals("Latest value per key", 2, collector.messages.size());
+			Assert.assertEquals("GOOG latest", 8, collector.messages.get(0).getBody());
+			Assert.assertEquals("AAPL latest", 9, collector.messages.get(1).getBody());
+			Assert.assertEquals("Conflated", 8, consumer.getConflatedMessageCount());
+			Assert.assertEquals("Received", 10, consumer.getReceivedMessageCount());
+		}
+		finally {
+			channel.stop();
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testPauseResume() throws Exception {
+		MockWebSocketEngine engine = new MockWebSocketEngine(1000);
+		WebSocketChannel channel = new WebSocketChannel(engine, "gravityamf", new URI("ws://localhost:8080/gravityamf/amf"));
+		
+		try {
+			Collector collector = new Collector();
+			Consumer consumer = newConsumer(channel, collector);
+			consumer.setMaxBufferedMessages(3);
+			Thread.sleep(100);
+			
+			consumer.pause();
+			for (int i = 0; i < 5; i++)
+				engine.push(newMessage("S" + i, i));
+			Thread.sleep(200);
+			Assert.assertEquals("Nothing delivered while paused", 0, collector.messages.size());
+			
+			consumer.resume();
+			Assert.assertEquals("Buffered messages delivered", 3, collector.messages.size());
+			Assert.assertEquals("Oldest dropped", 2, collector.messages.get(0).getBody());
+			Assert.assertEquals("Dropped", 2, consumer.getDroppedMessageCount());
+		}
+		finally {
+			channel.stop();
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testResumeKeepsOrder() throws Exception {
+		MockWebSocketEngine engine = new MockWebSocketEngine(1000);
+		WebSocketChannel channel = new WebSocketChannel(engine, "gravityamf", new URI("ws://localhost:8080/gravityamf/amf"));
+		
+		try {
+			// A slow listener keeps the resume flush running while new messages are received
+			Collector collector = new Collector() {
+				@Override
+				public void onMessage(Message message) {
+					super.onMessage(message);
+					try {
+						Thread.sleep(1);
+					}
+					catch (InterruptedException e) {
+					}
+				}
+			};
+			Consumer consumer = newConsumer(channel, collector);
+			Thread.sleep(100);
+			
+			consumer.pause();
+			for (int i = 0; i < 50; i++)
+				engine.push(newMessage("S" + i, i));
+			Thread.sleep(100);
+			
+			for (int i = 50; i < 100; i++)
+				engine.push(newMessage("S" + i, i));
+			consumer.resume();
+			
+			long end = System.currentTimeMillis() + 2000;
+			while (collector.messages.size() < 100 && System.currentTimeMillis() < end)
+				Thread.sleep(10);
+			Assert.assertEquals("All delivered", 100, collector.messages.size());
+			for (int i = 0; i < 100; i++)
+				Assert.assertEquals("Delivered in order", i, collector.messages.get(i).getBody());
+		}
+		finally {
+			channel.stop();
+			engine.stop();
+		}
+	}
+	
+	private static Consumer newConsumer(WebSocketChannel channel, MessageListener listener) {
+		Consumer consumer = new Consumer(channel, "testDestination");
+		consumer.setTopic("quotes");
+		consumer.setMessageListener(listener);
+		consumer.subscribe();
+		return consumer;
+	}
+	
+	private static Message newMessage(String symbol, int value) {
+		AsyncMessage message = new AsyncMessage();
+		message.setMessageId(UUIDUtil.randomUUID());
+		message.setDestination("testDestination");
+		message.setHeader(AsyncMessage.SUBTOPIC_HEADER, "quotes");
+		message.setHeader("symbol", symbol);
+		message.setBody(value);
+		return message;
+	}
+	
+	private static class Collector implements MessageListener {
+		
+		private final List<Message> messages = new CopyOnWriteArrayList<Message>();
+
+		@Override
+		public void onMessage(Message message) {
+			messages.add(message);
+		}
+	}
+}
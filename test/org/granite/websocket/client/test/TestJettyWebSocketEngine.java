@@ -0,0 +1,322 @@
+package org.granite.websocket.client.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jetty.websocket.WebSocket.FrameConnection;
+import org.granite.messaging.engine.EngineMessageHandler;
+import org.granite.messaging.engine.JettyWebSocketEngine;
+import org.granite.messaging.engine.WebSocketEngine;
+import org.granite.util.UUIDUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import flex.messaging.messages.AsyncMessage;
+import flex.messaging.messages.Message;
+
+public class TestJettyWebSocketEngine {
+	
+	private static final int THREAD_COUNT = 4;
+	private static final int MESSAGES_PER_THREAD = 200;
+	
+	@Test
+	public void testConcurrentSendAndReceive() throws Exception {
+		JettyWebSocketEngine engine = new JettyWebSocketEngine();
+		engine.start();
+		// Jetty delivers the incoming messages of a connection on one thread at a time
+		final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+		
+		try {
+			Assert.assertTrue("Engine started", engine.isStarted());
+			
+			final Set<String> received = Collections.synchronizedSet(new HashSet<String>());
+			final CountDownLatch done = new CountDownLatch(THREAD_COUNT * MESSAGES_PER_THREAD);
+			final AtomicReference<WebSocketEngine.Connection> connection = new AtomicReference<WebSocketEngine.Connection>();
+			final JettyWebSocketEngine.WebSocketImpl webSocket = engine.new WebSocketImpl(new EngineMessageHandler() {
+				@Override
+				public void onConnect(WebSocketEngine.Connection c) {
+					connection.set(c);
+				}
+
+				@Override
+				public void onMessage(Message message) {
+					received.add(message.getMessageId());
+					done.countDown();
+				}
+
+				@Override
+				public void onDisconnect(int closeCode, String message) {
+				}
+			});
+			
+			// Every frame sent is received back on the I/O thread, so messages are decoded
+			// while other threads are encoding
+			webSocket.onOpen(new LoopbackConnection() {
+				@Override
+				public void sendMessage(byte[] data, int offset, int length) throws IOException {
+					final byte[] frame = Arrays.copyOfRange(data, offset, offset + length);
+					ioExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							webSocket.onMessage(frame, 0, frame.length);
+						}
+					});
+				}
+			});
+			Assert.assertNotNull("Connected", connection.get());
+			
+			final Set<String> sent = Collections.synchronizedSet(new HashSet<String>());
+			Thread[] threads = new Thread[THREAD_COUNT];
+			for (int i = 0; i < THREAD_COUNT; i++) {
+				threads[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						for (int j = 0; j < MESSAGES_PER_THREAD; j++) {
+							AsyncMessage message = new AsyncMessage();
+							message.setMessageId(UUIDUtil.randomUUID());
+							message.setDestination("testDestination");
+							message.setBody("message " + j);
+							sent.add(message.getMessageId());
+							connection.get().send(new Message[] { message });
+						}
+					}
+				});
+			}
+			for (Thread thread : threads)
+				thread.start();
+			
+			Assert.assertTrue("All messages received", done.await(10, TimeUnit.SECONDS));
+			Assert.assertEquals("Received intact", sent, received);
+		}
+		finally {
+			ioExecutor.shutdownNow();
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testFragmentedSend() throws Exception {
+		JettyWebSocketEngine engine = new JettyWebSocketEngine();
+		engine.setFragmentSize(1024);
+		engine.start();
+		
+		try {
+			final List<Message> received = new ArrayList<Message>();
+			final AtomicReference<WebSocketEngine.Connection> connection = new AtomicReference<WebSocketEngine.Connection>();
+			final JettyWebSocketEngine.WebSocketImpl webSocket = engine.new WebSocketImpl(new EngineMessageHandler() {
+				@Override
+				public void onConnect(WebSocketEngine.Connection c) {
+					connection.set(c);
+				}
+
+				@Override
+				public void onMessage(Message message) {
+					received.add(message);
+				}
+
+				@Override
+				public void onDisconnect(int closeCode, String message) {
+				}
+			});
+			
+			// Reassembles the frames of a message as Jetty would before dispatching it
+			final ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+			final List<Integer> fragmentSizes = new ArrayList<Integer>();
+			LoopbackConnection loopback = new LoopbackConnection() {
+				@Override
+				public void sendMessage(byte[] data, int offset, int length) throws IOException {
+					webSocket.onMessage(data, offset, length);
+				}
+				
+				@Override
+				public void sendFrame(byte flags, byte opcode, byte[] data, int offset, int length) throws IOException {
+					Assert.assertEquals("Opcode", fragmentSizes.isEmpty() ? binaryOpcode() : continuationOpcode(), opcode);
+					fragmentSizes.add(length);
+					fragments.write(data, offset, length);
+					if ((flags & finMask()) != 0) {
+						byte[] message = fragments.toByteArray();
+						fragments.reset();
+						webSocket.onMessage(message, 0, message.length);
+					}
+				}
+			};
+			webSocket.onHandshake(loopback);
+			webSocket.onOpen(loopback);
+			
+			char[] chars = new char[10000];
+			Arrays.fill(chars, 'x');
+			AsyncMessage message = new AsyncMessage();
+			message.setMessageId(UUIDUtil.randomUUID());
+			message.setDestination("testDestination");
+			message.setBody(new String(chars));
+			connection.get().send(new Message[] { message });
+			
+			Assert.assertTrue("Several fragments", fragmentSizes.size() > 1);
+			for (int i = 0; i < fragmentSizes.size() - 1; i++)
+				Assert.assertEquals("Fragment size", 1024, fragmentSizes.get(i).intValue());
+			Assert.assertEquals("Reassembled", 1, received.size());
+			Assert.assertEquals("Message id", message.getMessageId(), received.get(0).getMessageId());
+			Assert.assertEquals("Body", message.getBody(), received.get(0).getBody());
+			
+			// Small messages are sent in a single frame
+			AsyncMessage small = new AsyncMessage();
+			small.setMessageId(UUIDUtil.randomUUID());
+			small.setBody("small");
+			int fragmentCount = fragmentSizes.size();
+			connection.get().send(new Message[] { small });
+			Assert.assertEquals("Not fragmented", fragmentCount, fragmentSizes.size());
+			Assert.assertEquals("Received", "small", received.get(1).getBody());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	
+	private static abstract class LoopbackConnection implements FrameConnection {
+
+		@Override
+		public byte binaryOpcode() {
+			return 0x2;
+		}
+
+		@Override
+		public byte textOpcode() {
+			return 0x1;
+		}
+
+		@Override
+		public byte continuationOpcode() {
+			return 0x0;
+		}
+
+		@Override
+		public byte finMask() {
+			return 0x8;
+		}
+
+		@Override
+		public void setAllowFrameFragmentation(boolean allowFragmentation) {
+		}
+
+		@Override
+		public boolean isMessageComplete(byte flags) {
+			return (flags & finMask()) != 0;
+		}
+
+		@Override
+		public boolean isControl(byte opcode) {
+			return false;
+		}
+
+		@Override
+		public boolean isText(byte opcode) {
+			return opcode == textOpcode();
+		}
+
+		@Override
+		public boolean isBinary(byte opcode) {
+			return opcode == binaryOpcode();
+		}
+
+		@Override
+		public boolean isContinuation(byte opcode) {
+			return opcode == continuationOpcode();
+		}
+
+		@Override
+		public boolean isClose(byte opcode) {
+			return false;
+		}
+
+		@Override
+		public boolean isPing(byte opcode) {
+			return false;
+		}
+
+		@Override
+		public boolean isPong(byte opcode) {
+			return false;
+		}
+
+		@Override
+		public boolean isAllowFrameFragmentation() {
+			return true;
+		}
+
+		@Override
+		public void sendControl(byte control, byte[] data, int offset, int length) throws IOException {
+		}
+
+		@Override
+		public void sendFrame(byte flags, byte opcode, byte[] data, int offset, int length) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String getProtocol() {
+			return "gravity";
+		}
+
+		@Override
+		public void sendMessage(String data) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		@Deprecated
+		public void disconnect() {
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public void close(int closeCode, String message) {
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void setMaxIdleTime(int ms) {
+		}
+
+		@Override
+		public void setMaxTextMessageSize(int size) {
+		}
+
+		@Override
+		public void setMaxBinaryMessageSize(int size) {
+		}
+
+		@Override
+		public int getMaxIdleTime() {
+			return 0;
+		}
+
+		@Override
+		public int getMaxTextMessageSize() {
+			return 0;
+		}
+
+		@Override
+		public int getMaxBinaryMessageSize() {
+			return 0;
+		}
+	}
+}
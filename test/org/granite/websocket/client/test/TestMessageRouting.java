@@ -0,0 +1,147 @@
+package org.granite.websocket.client.test;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.granite.messaging.Consumer;
+import org.granite.messaging.MessageListener;
+import org.granite.messaging.WebSocketChannel;
+import org.granite.util.UUIDUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import flex.messaging.messages.AsyncMessage;
+import flex.messaging.messages.Message;
+
+public class TestMessageRouting {
+	
+	@Test
+	public void testRouteByTopic() throws Exception {
+		MockWebSocketEngine engine = new MockWebSocketEngine(1000);
+		WebSocketChannel channel = new WebSocketChannel(engine, "gravityamf", new URI("ws://localhost:8080/gravityamf/amf"));
+		
+		try {
+			Collector collectorA = new Collector();
+			Consumer consumerA = newConsumer(channel, "topicA", collectorA);
+			Collector collectorB = new Collector();
+			Consumer consumerB = newConsumer(channel, "topicB", collectorB);
+			Thread.sleep(200);
+			Assert.assertTrue("Subscribed", consumerA.isSubscribed() && consumerB.isSubscribed());
+			Assert.assertTrue("Acks not forwarded to listeners", collectorA.messages.isEmpty() && collectorB.messages.isEmpty());
+			
+			engine.push(newMessage("topicA"));
+			engine.push(newMessage("topicB"));
+			engine.push(newMessage("topicB"));
+			Thread.sleep(200);
+			
+			Assert.assertEquals("Messages for A", 1, collectorA.messages.size());
+			Assert.assertEquals("Messages for B", 2, collectorB.messages.size());
+		}
+		finally {
+			channel.stop();
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testNoFallbackToOtherTopics() throws Exception {
+		MockWebSocketEngine engine = new MockWebSocketEngine(1000);
+		WebSocketChannel channel = new WebSocketChannel(engine, "gravityamf", new URI("ws://localhost:8080/gravityamf/amf"));
+		
+		try {
+			Collector collectorA = new Collector();
+			Consumer consumerA = newConsumer(channel, "topicA", collectorA);
+			Collector collectorAll = new Collector();
+			Consumer consumerAll = newConsumer(channel, null, collectorAll);
+			Thread.sleep(200);
+			Assert.assertTrue("Subscribed", consumerA.isSubscribed() && consumerAll.isSubscribed());
+			
+			// Unknown topic: only the consumer without topic receives it
+			engine.push(newMessage("topicC"));
+			// No topic: all consumers of the destination receive it
+			engine.push(newMessage(null));
+			// Unknown destination: nobody receives it
+			Message unroutable = newMessage("topicA");
+			unroutable.setDestination("otherDestination");
+			engine.push(unroutable);
+			Thread.sleep(200);
+			
+			Assert.assertEquals("Messages for A", 1, collectorA.messages.size());
+			Assert.assertEquals("Messages for consumer without topic", 2, collectorAll.messages.size());
+			
+			channel.removeMessageListener(consumerAll);
+			engine.push(newMessage("topicC"));
+			Thread.sleep(200);
+			Assert.assertEquals("Not delivered to other topics", 1, collectorA.messages.size());
+		}
+		finally {
+			channel.stop();
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testConsumerExecutor() throws Exception {
+		MockWebSocketEngine engine = new MockWebSocketEngine(1000);
+		WebSocketChannel channel = new WebSocketChannel(engine, "gravityamf", new URI("ws://localhost:8080/gravityamf/amf"));
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		
+		try {
+			Consumer slowConsumer = newConsumer(channel, "topicA", new MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					try {
+						Thread.sleep(1000);
+					}
+					catch (InterruptedException e) {
+					}
+				}
+			});
+			slowConsumer.setExecutor(executor);
+			Collector collector = new Collector();
+			newConsumer(channel, "topicB", collector);
+			Thread.sleep(200);
+			
+			engine.push(newMessage("topicA"));
+			engine.push(newMessage("topicB"));
+			Thread.sleep(200);
+			
+			Assert.assertEquals("Not stalled by the slow consumer", 1, collector.messages.size());
+		}
+		finally {
+			executor.shutdownNow();
+			channel.stop();
+			engine.stop();
+		}
+	}
+	
+	private static Consumer newConsumer(WebSocketChannel channel, String topic, MessageListener listener) {
+		Consumer consumer = new Consumer(channel, "testDestination");
+		consumer.setTopic(topic);
+		consumer.setMessageListener(listener);
+		consumer.subscribe();
+		return consumer;
+	}
+	
+	private static Message newMessage(String topic) {
+		AsyncMessage message = new AsyncMessage();
+		message.setMessageId(UUIDUtil.randomUUID());
+		message.setDestination("testDestination");
+		if (topic != null)
+			message.setHeader(AsyncMessage.SUBTOPIC_HEADER, topic);
+		return message;
+	}
+	
+	private static class Collector implements MessageListener {
+		
+		private final List<Message> messages = new CopyOnWriteArrayList<Message>();
+
+		@Override
+		public void onMessage(Message message) {
+			messages.add(message);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package org.granite.websocket.client.test;
+
+import java.net.URI;
+
+import org.granite.messaging.WebSocketChannel;
+import org.granite.messaging.WebSocketChannel.OverflowPolicy;
+import org.granite.util.UUIDUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import flex.messaging.messages.AsyncMessage;
+import flex.messaging.messages.Message;
+
+public class TestOutboundQueue {
+	
+	@Test
+	public void testDropOldestAndCoalesce() throws Exception {
+		MockWebSocketEngine engine = new MockWebSocketEngine(1000);
+		engine.setAutoOpen(false);
+		WebSocketChannel channel = new WebSocketChannel(engine, "gravityamf", new URI("ws://localhost:8080/gravityamf/amf"));
+		channel.setMaxPendingMessages(5);
+		channel.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+		
+		try {
+			for (int i = 0; i < 10; i++)
+				channel.send(newMessage());
+			Assert.assertEquals("Queue depth", 5, channel.getPendingMessageCount());
+			Assert.assertEquals("Dropped", 5, channel.getDroppedMessageCount());
+			
+			engine.open();
+			Thread.sleep(200);
+			Assert.assertEquals("Queue flushed", 0, channel.getPendingMessageCount());
+			Assert.assertEquals("Single frame", 1, engine.getFrameCount());
+			Assert.assertEquals("Messages", 5, engine.getMessageCount());
+		}
+		finally {
+			channel.stop();
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testFail() throws Exception {
+		MockWebSocketEngine engine = new MockWebSocketEngine(1000);
+		engine.setAutoOpen(false);
+		WebSocketChannel channel = new WebSocketChannel(engine, "gravityamf", new URI("ws://localhost:8080/gravityamf/amf"));
+		channel.setMaxPendingMessages(2);
+		channel.setOverflowPolicy(OverflowPolicy.FAIL);
+		
+		try {
+			channel.send(newMessage());
+			channel.send(newMessage());
+			try {
+				channel.send(newMessage());
+				Assert.fail("Queue full");
+			}
+			catch (IllegalStateException e) {
+			}
+			Assert.assertEquals("Queue depth", 2, channel.getPendingMessageCount());
+		}
+		finally {
+			channel.stop();
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testRequeueOnWriteFailure() throws Exception {
+		MockWebSocketEngine engine = new MockWebSocketEngine(50);
+		engine.setAutoOpen(false);
+		engine.setFailedSend(1);
+		WebSocketChannel channel = new WebSocketChannel(engine, "gravityamf", new URI("ws://localhost:8080/gravityamf/amf"));
+		
+		try {
+			for (int i = 0; i < 3; i++)
+				channel.send(newMessage());
+			engine.setAutoOpen(true);
+			engine.open();
+			
+			// The failed frame is written again on the next connection
+			long end = System.currentTimeMillis() + 2000;
+			while (engine.getMessageCount() < 3 && System.currentTimeMillis() < end)
+				Thread.sleep(10);
+			Assert.assertEquals("Reconnected", 2, engine.getConnectCount());
+			Assert.assertEquals("Single frame", 1, engine.getFrameCount());
+			Assert.assertEquals("Messages", 3, engine.getMessageCount());
+			Assert.assertEquals("Nothing dropped", 0, channel.getDroppedMessageCount());
+		}
+		finally {
+			channel.stop();
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testMaxFrameMessages() throws Exception {
+		MockWebSocketEngine engine = new MockWebSocketEngine(1000);
+		engine.setAutoOpen(false);
+		WebSocketChannel channel = new WebSocketChannel(engine, "gravityamf", new URI("ws://localhost:8080/gravityamf/amf"));
+		channel.setMaxFrameMessages(4);
+		
+		try {
+			for (int i = 0; i < 10; i++)
+				channel.send(newMessage());
+			
+			engine.open();
+			long end = System.currentTimeMillis() + 2000;
+			while (engine.getMessageCount() < 10 && System.currentTimeMillis() < end)
+				Thread.sleep(10);
+			Assert.assertEquals("Queue flushed", 0, channel.getPendingMessageCount());
+			Assert.assertEquals("Frames of 4, 4 and 2 messages", 3, engine.getFrameCount());
+			Assert.assertEquals("Messages", 10, engine.getMessageCount());
+		}
+		finally {
+			channel.stop();
+			engine.stop();
+		}
+	}
+	
+	private static Message newMessage() {
+		AsyncMessage message = new AsyncMessage();
+		message.setMessageId(UUIDUtil.randomUUID());
+		message.setDestination("testTopic");
+		return message;
+	}
+}
@@ -0,0 +1,108 @@
+package org.granite.websocket.client.test;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.granite.messaging.Consumer;
+import org.granite.messaging.WebSocketChannel;
+import org.granite.messaging.engine.DefaultEngineStatusHandler;
+import org.granite.messaging.engine.EngineException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestReconnect {
+	
+	@Test
+	public void testReconnectResubscribes() throws Exception {
+		MockWebSocketEngine engine = new MockWebSocketEngine(200);
+		WebSocketChannel channel = new WebSocketChannel(engine, "gravityamf", new URI("ws://localhost:8080/gravityamf/amf"));
+		
+		try {
+			Consumer consumer = new Consumer(channel, "testTopic");
+			consumer.subscribe();
+			waitFor(consumer, 1000);
+			Assert.assertTrue("Subscribed", consumer.isSubscribed());
+			Assert.assertEquals("Connected once", 1, engine.getConnectCount());
+			
+			long start = System.currentTimeMillis();
+			engine.disconnect();
+			Assert.assertTrue("Disconnect does not block the IO thread", System.currentTimeMillis() - start < 100);
+			
+			waitForSubscribeCount(engine, 2, 2000);
+			Assert.assertEquals("Reconnected", 2, engine.getConnectCount());
+			Assert.assertEquals("Resubscribed", 2, engine.getSubscribeCount());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testDroppedConnectionsCountAsAttempts() throws Exception {
+		MockWebSocketEngine engine = new MockWebSocketEngine(10);
+		final CountDownLatch disconnected = new CountDownLatch(1);
+		engine.setStatusHandler(new DefaultEngineStatusHandler() {
+			@Override
+			public void handleException(EngineException e) {
+				if ("Channel disconnected".equals(e.getMessage()))
+					disconnected.countDown();
+			}
+		});
+		WebSocketChannel channel = new WebSocketChannel(engine, "gravityamf", new URI("ws://localhost:8080/gravityamf/amf"));
+		channel.setReconnectJitter(0.0);
+		channel.setReconnectBackoffMultiplier(1.0);
+		
+		try {
+			Consumer consumer = new Consumer(channel, "testTopic");
+			consumer.subscribe();
+			waitFor(consumer, 1000);
+			Assert.assertTrue("Subscribed", consumer.isSubscribed());
+			
+			// Sockets open but are closed before the server accepts them, the channel must give up after the max attempts (5)
+			engine.setDropOnOpen(true);
+			engine.disconnect();
+			
+			Assert.assertTrue("Gave up", disconnected.await(2, TimeUnit.SECONDS));
+			Assert.assertEquals("Initial connection and 5 attempts", 6, engine.getConnectCount());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	@Test
+	public void testHeartbeatKeepsLiveConnection() throws Exception {
+		MockWebSocketEngine engine = new MockWebSocketEngine(50);
+		WebSocketChannel channel = new WebSocketChannel(engine, "gravityamf", new URI("ws://localhost:8080/gravityamf/amf"));
+		channel.setHeartbeatIntervalMillis(100);
+		
+		try {
+			Consumer consumer = new Consumer(channel, "testTopic");
+			consumer.subscribe();
+			waitFor(consumer, 1000);
+			
+			// Pings are acknowledged, the connection stays open for more than two intervals
+			long deadline = System.currentTimeMillis() + 2000;
+			while (engine.getPingCount() < 3 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			Assert.assertTrue("Pings sent", engine.getPingCount() >= 3);
+			Assert.assertEquals("Connected once", 1, engine.getConnectCount());
+		}
+		finally {
+			engine.stop();
+		}
+	}
+	
+	private static void waitFor(Consumer consumer, long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while (!consumer.isSubscribed() && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+	}
+	
+	private static void waitForSubscribeCount(MockWebSocketEngine engine, int count, long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while (engine.getSubscribeCount() < count && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+	}
+}